@@ -0,0 +1,265 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * GeneratorBenchmark.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Benchmarks the generation steps of {@link Generator} that scale with the number
+ * of jars, using an output directory with synthetic jars (ADAMS, third-party
+ * and dependency jars).
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GeneratorBenchmark {
+
+  /** the ADAMS version of the synthetic jars. */
+  public final static String VERSION = "20.1.1";
+
+  /** the dependency of the synthetic jars. */
+  public final static String DEPENDENCY = "nz.ac.waikato.cms.weka:kfGroovy:1.0.12";
+
+  /**
+   * The base state: an output directory with synthetic jars.
+   */
+  public abstract static class AbstractOutput {
+
+    /** the number of jars. */
+    @Param({"100", "1000"})
+    public int jars;
+
+    /** the output directory. */
+    public File outputDir;
+
+    /** the lib directory. */
+    public File libDir;
+
+    /** the generator. */
+    public Generator generator;
+
+    /** the result of the generator. */
+    public GeneratorResult result;
+
+    /**
+     * Writes a jar with a single entry.
+     *
+     * @param file	the jar to write
+     * @throws Exception	if writing fails
+     */
+    protected void writeJar(File file) throws Exception {
+      try (OutputStream out = Files.newOutputStream(file.toPath()); ZipOutputStream zip = new ZipOutputStream(out)) {
+	zip.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+	zip.write("Manifest-Version: 1.0\n".getBytes(StandardCharsets.UTF_8));
+	zip.closeEntry();
+      }
+    }
+
+    /**
+     * Creates the output directory with the jars and the flow.
+     *
+     * @param layered	whether the generator uses layers
+     * @throws Exception	if setup fails
+     */
+    protected void create(boolean layered) throws Exception {
+      GeneratorConfig	config;
+      File		flow;
+      int		i;
+
+      outputDir = Files.createTempDirectory("adamsflow2docker-bench").toFile();
+      libDir    = new File(outputDir, "target/lib");
+      libDir.mkdirs();
+      for (i = 0; i < jars; i++) {
+	if (i % 10 == 0)
+	  writeJar(new File(libDir, "adams-module" + i + "-" + VERSION + ".jar"));
+	else if (i % 10 == 1)
+	  writeJar(new File(libDir, "kfGroovy-1.0." + i + ".jar"));
+	else
+	  writeJar(new File(libDir, "thirdparty" + i + "-1.0.jar"));
+      }
+      flow = new File(outputDir, "input.flow");
+      Files.write(flow.toPath(), "adams.flow.control.Flow -actor adams.flow.source.Start\n".getBytes(StandardCharsets.UTF_8));
+
+      config = new GeneratorConfig.Builder()
+	.modules("adams-core")
+	.version(VERSION)
+	.dependencies(DEPENDENCY)
+	.input(flow)
+	.dockerBaseImage("openjdk:11-jdk-slim-buster")
+	.outputDir(outputDir)
+	.layered(layered)
+	.build();
+      generator = new Generator(config);
+      result    = new GeneratorResult(generator.getConfig());
+    }
+
+    /**
+     * Moves the jars from the layer directories back into the lib directory.
+     */
+    public void restoreLibDir() {
+      File[]	files;
+
+      for (LibraryLayers.Group group : LibraryLayers.Group.values()) {
+	files = LibraryLayers.getLayerDir(outputDir, group).listFiles();
+	if (files == null)
+	  continue;
+	for (File file : files)
+	  file.renameTo(new File(libDir, file.getName()));
+      }
+    }
+
+    /**
+     * Removes the output directory.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      FileUtils.delete(outputDir);
+    }
+  }
+
+  /**
+   * The state for the generation steps, with and without layers.
+   */
+  @State(Scope.Thread)
+  public static class Output extends AbstractOutput {
+
+    /** whether to use layers. */
+    @Param({"false", "true"})
+    public boolean layered;
+
+    /**
+     * Creates the output directory, staging the layers if layered.
+     *
+     * @throws Exception	if setup fails
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      create(layered);
+      if (layered)
+	generator.initLayers(result);
+    }
+  }
+
+  /**
+   * The state for staging the layers, restoring the lib directory before
+   * every invocation.
+   */
+  @State(Scope.Thread)
+  public static class Staging extends AbstractOutput {
+
+    /**
+     * Creates the output directory with a generator that uses layers.
+     *
+     * @throws Exception	if setup fails
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      create(true);
+    }
+
+    /**
+     * Restores the lib directory.
+     */
+    @Setup(Level.Invocation)
+    public void restore() {
+      restoreLibDir();
+    }
+  }
+
+  /**
+   * Generates the Dockerfile (with the layers staged if layered).
+   *
+   * @param output	the state
+   * @return		the error, if any
+   */
+  @Benchmark
+  public String dockerfile(Output output) {
+    return output.generator.createDockerfile(output.result);
+  }
+
+  /**
+   * Writes the placeholders.
+   *
+   * @param output	the state
+   * @return		the error, if any
+   */
+  @Benchmark
+  public String placeholders(Output output) {
+    return output.generator.initPlaceholders(output.result);
+  }
+
+  /**
+   * Copies the flow.
+   *
+   * @param output	the state
+   * @return		the error, if any
+   */
+  @Benchmark
+  public String flow(Output output) {
+    return output.generator.initFlow(output.result);
+  }
+
+  /**
+   * Stages the jars into the layer directories.
+   *
+   * @param staging	the state
+   * @return		the error, if any
+   */
+  @Benchmark
+  public String stageLayers(Staging staging) {
+    return staging.generator.initLayers(staging.result);
+  }
+
+  /**
+   * Lists the jars of the application (used by pruning, repacking, pre-parsing).
+   *
+   * @param output	the state
+   * @return		the number of jars
+   */
+  @Benchmark
+  public int listLibraries(Output output) {
+    return output.generator.listLibraries().size();
+  }
+}
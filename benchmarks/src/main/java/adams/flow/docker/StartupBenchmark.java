@@ -0,0 +1,282 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * StartupBenchmark.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Launches adams.flow.FlowRunner against a generated output directory
+ * (without docker) and measures the time until the flow starts and until
+ * the first item got processed. The item is a copy of the input file that
+ * gets placed in the directory specified by the INPUT environment variable,
+ * the item counts as processed once a file appears in the OUTPUT directory
+ * (like the example workflow does).
+ * <br>
+ * Different builds (default, layered, pruned, CDS) can be compared by
+ * supplying several output directories, e.g.:
+ * -p outputDir=/out/default,/out/pruned -p cds=false,true
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StartupBenchmark {
+
+  /**
+   * The state: the generated output directory.
+   */
+  @State(Scope.Benchmark)
+  public static class Runtime {
+
+    /** the generated output directory. */
+    @Param({""})
+    public String outputDir;
+
+    /** the input file to process. */
+    @Param({""})
+    public String inputFile;
+
+    /** the regular expression for the console output that signals the start of the flow. */
+    @Param({"(?i).*(flow|actor).*(start|execut).*"})
+    public String startPattern;
+
+    /** whether to use a CDS archive (generated with a training run). */
+    @Param({"false"})
+    public boolean cds;
+
+    /** the maximum time to wait in seconds. */
+    @Param({"300"})
+    public int timeout;
+
+    /** the working directory with the in/out directories. */
+    public File workDir;
+
+    /** the input directory. */
+    public File inDir;
+
+    /** the output directory of the flow. */
+    public File outDir;
+
+    /** the CDS archive. */
+    public File archive;
+
+    /** the compiled start pattern. */
+    public Pattern pattern;
+
+    /**
+     * Sets up the directories and, if enabled, generates the CDS archive.
+     *
+     * @throws Exception	if setup fails
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      if (outputDir.isEmpty() || !new File(outputDir, "worker.flow").exists())
+	throw new IllegalStateException("Parameter 'outputDir' must point to a generated output directory!");
+      if (inputFile.isEmpty() || !new File(inputFile).exists())
+	throw new IllegalStateException("Parameter 'inputFile' must point to an existing file!");
+      workDir = Files.createTempDirectory("adamsflow2docker-startup").toFile();
+      inDir   = new File(workDir, "in");
+      outDir  = new File(workDir, "out");
+      pattern = Pattern.compile(startPattern);
+      archive = null;
+      if (cds) {
+	archive = new File(workDir, "app.jsa");
+	reset();
+	run(true, "-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath());
+	if (!archive.exists())
+	  throw new IllegalStateException("Failed to generate CDS archive: " + archive);
+      }
+    }
+
+    /**
+     * Empties the in/out directories and places the input file.
+     *
+     * @throws Exception	if resetting fails
+     */
+    @Setup(Level.Invocation)
+    public void reset() throws Exception {
+      FileUtils.delete(inDir);
+      FileUtils.delete(outDir);
+      inDir.mkdirs();
+      outDir.mkdirs();
+      Files.copy(new File(inputFile).toPath(), new File(inDir, new File(inputFile).getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Returns the classpath, i.e., the lib and layer directories.
+     *
+     * @return		the classpath
+     */
+    protected String getClasspath() {
+      List<String>	result;
+
+      result = new ArrayList<>();
+      result.add(new File(outputDir, "target/lib").getAbsolutePath() + "/*");
+      for (LibraryLayers.Group group : LibraryLayers.Group.values())
+	result.add(LibraryLayers.getLayerDir(new File(outputDir), group).getAbsolutePath() + "/*");
+
+      return String.join(File.pathSeparator, result);
+    }
+
+    /**
+     * Launches the flow and waits for the flow to start or the first item
+     * to be processed.
+     *
+     * @param firstItem	whether to wait for the first item rather than the start
+     * @param jvm		additional JVM option, null if none
+     * @return		the time in msec
+     * @throws Exception	if launching fails or timeout reached
+     */
+    public long run(boolean firstItem, String jvm) throws Exception {
+      List<String>	cmd;
+      ProcessBuilder	builder;
+      Process		process;
+      long		start;
+      long		end;
+      String		line;
+      String[]		out;
+
+      cmd = new ArrayList<>();
+      cmd.add(new File(System.getProperty("java.home"), "bin/java").getAbsolutePath());
+      cmd.add("-cp");
+      cmd.add(getClasspath());
+      if (jvm != null)
+	cmd.add(jvm);
+      else if (archive != null)
+	cmd.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+      cmd.add("adams.flow.FlowRunner");
+      cmd.add("-headless");
+      cmd.add("true");
+      cmd.add("-non-interactive");
+      cmd.add("true");
+      cmd.add("-clean-up");
+      cmd.add("true");
+      cmd.add("-home");
+      cmd.add(new File(outputDir).getAbsolutePath());
+      cmd.add("-input");
+      cmd.add(new File(outputDir, "worker.flow").getAbsolutePath());
+      builder = new ProcessBuilder(cmd);
+      builder.redirectErrorStream(true);
+      builder.environment().put("INPUT", inDir.getAbsolutePath() + "/");
+      builder.environment().put("OUTPUT", outDir.getAbsolutePath() + "/");
+
+      // only the start of the flow requires the console output
+      if (firstItem)
+	builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+
+      start   = System.nanoTime();
+      end     = -1;
+      process = builder.start();
+      try {
+	if (!firstItem) {
+	  try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+	    while ((line = reader.readLine()) != null) {
+	      if (pattern.matcher(line).matches()) {
+		end = System.nanoTime();
+		break;
+	      }
+	    }
+	  }
+	}
+	else {
+	  while ((System.nanoTime() - start) / 1000000000L < timeout) {
+	    out = outDir.list();
+	    if ((out != null) && (out.length > 0)) {
+	      end = System.nanoTime();
+	      break;
+	    }
+	    if (!process.isAlive())
+	      break;
+	    Thread.sleep(5);
+	  }
+	}
+      }
+      finally {
+	// SIGTERM lets the JVM exit normally (e.g., for dumping the CDS archive)
+	process.destroy();
+	if (!process.waitFor(30, TimeUnit.SECONDS))
+	  process.destroyForcibly();
+      }
+      if (end == -1)
+	throw new IllegalStateException((firstItem ? "No item processed" : "Flow start not detected") + " for: " + outputDir);
+
+      return (end - start) / 1000000;
+    }
+
+    /**
+     * Removes the working directory.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      FileUtils.delete(workDir);
+    }
+  }
+
+  /**
+   * Measures the time until the flow starts.
+   *
+   * @param runtime	the state
+   * @return		the time in msec
+   * @throws Exception	if launching fails
+   */
+  @Benchmark
+  public long timeToFlowStart(Runtime runtime) throws Exception {
+    return runtime.run(false, null);
+  }
+
+  /**
+   * Measures the time until the first item got processed.
+   *
+   * @param runtime	the state
+   * @return		the time in msec
+   * @throws Exception	if launching fails
+   */
+  @Benchmark
+  public long timeToFirstItem(Runtime runtime) throws Exception {
+    return runtime.run(true, null);
+  }
+}
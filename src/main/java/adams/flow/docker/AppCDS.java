@@ -0,0 +1,126 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * AppCDS.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates the shell script that creates an AppCDS archive for the
+ * workflow while building the image. The workflow gets run for a limited
+ * time to record the loaded classes, which then get dumped into the archive.
+ * Finally, the startup time with and without the archive gets reported, i.e.,
+ * the JVM uptime at which the last class got loaded before the shutdown
+ * (assuming that the workflow is idle by the end of the training time).
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class AppCDS {
+
+  /** the name of the script. */
+  public final static String SCRIPT = "appcds.sh";
+
+  /** the class list in the image. */
+  public final static String CLASS_LIST = "/adamsflow2docker/app.classlist";
+
+  /** the archive in the image. */
+  public final static String ARCHIVE = "/adamsflow2docker/app.jsa";
+
+  /** the report in the image. */
+  public final static String REPORT = "/adamsflow2docker/appcds-report.txt";
+
+  /** the default training time in seconds. */
+  public final static int DEFAULT_TRAINING = 30;
+
+  /**
+   * Quotes the string for use in a shell script.
+   *
+   * @param s		the string to quote
+   * @return		the quoted string
+   */
+  public static String quote(String s) {
+    return "'" + s.replace("'", "'\\''") + "'";
+  }
+
+  /**
+   * Quotes the strings for use in a shell script.
+   *
+   * @param list	the strings to quote
+   * @return		the quoted, space-separated strings
+   */
+  public static String quote(List<String> list) {
+    StringBuilder	result;
+
+    result = new StringBuilder();
+    for (String s : list) {
+      if (result.length() > 0)
+	result.append(" ");
+      result.append(quote(s));
+    }
+
+    return result.toString();
+  }
+
+  /**
+   * Generates the script.
+   *
+   * @param classpath	the classpath to use
+   * @param jvm		the JVM options, can be null
+   * @param runner	the main class and its options for running the workflow
+   * @param training	the training time in seconds
+   * @return		the lines of the script
+   */
+  public static List<String> generateScript(String classpath, List<String> jvm, List<String> runner, int training) {
+    List<String>	result;
+
+    if (jvm == null)
+      jvm = new ArrayList<>();
+
+    result = new ArrayList<>();
+    result.add("#!/bin/sh");
+    result.add("# Generates the AppCDS archive for the workflow and reports the startup time.");
+    result.add("");
+    result.add("CP=" + quote(classpath));
+    result.add("JVM=" + quote(quote(jvm)));
+    result.add("RUNNER=" + quote(quote(runner)));
+    result.add("TRAINING=" + training);
+    result.add("LOG=/tmp/appcds-classload.log");
+    result.add("");
+    result.add("# records the classes loaded while running the workflow");
+    result.add("eval timeout -s TERM \"$TRAINING\" java -Xshare:off -XX:DumpLoadedClassList=" + CLASS_LIST + " -cp \"'$CP'\" $JVM $RUNNER");
+    result.add("");
+    result.add("# dumps the archive");
+    result.add("eval java -Xshare:dump -XX:SharedClassListFile=" + CLASS_LIST + " -XX:SharedArchiveFile=" + ARCHIVE + " -cp \"'$CP'\" $JVM || exit 1");
+    result.add("");
+    result.add("# outputs the JVM uptime at which the last class got loaded (ignoring the shutdown)");
+    result.add("startup() {");
+    result.add("  rm -f \"$LOG\"");
+    result.add("  eval timeout -s TERM \"$TRAINING\" java \"$1\" -Xlog:class+load:file=\"$LOG\":uptime -cp \"'$CP'\" $JVM $RUNNER > /dev/null 2>&1");
+    result.add("  sed -e 's/^\\[\\([0-9.]*\\)s\\].*/\\1/' \"$LOG\" | awk -v max=\"$TRAINING\" '$1 < max - 0.5 { last = $1 } END { print last }'");
+    result.add("}");
+    result.add("");
+    result.add("WITHOUT=`startup -Xshare:off`");
+    result.add("WITH=`startup -XX:SharedArchiveFile=" + ARCHIVE + "`");
+    result.add("echo \"AppCDS startup time (sec): without archive=$WITHOUT, with archive=$WITH\" | tee " + REPORT);
+
+    return result;
+  }
+}
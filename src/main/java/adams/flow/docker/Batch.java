@@ -0,0 +1,668 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Batch.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import com.github.fracpete.simpleargparse4j.ArgumentParser;
+import com.github.fracpete.simpleargparse4j.ArgumentParserException;
+import com.github.fracpete.simpleargparse4j.Namespace;
+import com.github.fracpete.simpleargparse4j.Option.Type;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Command-line application for turning many ADAMS workflows into Docker
+ * images in a single invocation.
+ * <br>
+ * The manifest lists one workflow per line, using the same options as
+ * {@link Main} (e.g., "-M adams-weka -V 20.1.1 -i a.flow -b openjdk:11-jdk-slim-buster -o out/a").
+ * Empty lines and lines starting with '#' are ignored, a trailing backslash
+ * continues the line. Workflows that share modules, version and dependencies
+ * share a single library resolution.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class Batch {
+
+  /**
+   * Container for a single workflow of the manifest.
+   */
+  public static class Entry {
+
+    /** the line in the manifest. */
+    protected int m_Line;
+
+    /** the configured generator. */
+    protected Generator m_Generator;
+
+    /** the result of the generator. */
+    protected GeneratorResult m_Result;
+
+    /** the time in msec for resolving the libraries. */
+    protected long m_ResolveTime;
+
+    /** the time in msec for generating the flow, placeholders and Dockerfile. */
+    protected long m_GenerateTime;
+
+    /** whether the libraries were shared from another workflow. */
+    protected boolean m_Shared;
+
+    /** the error, null if successful. */
+    protected String m_Error;
+
+    /**
+     * Initializes the entry.
+     *
+     * @param line	the line in the manifest
+     * @param generator	the configured generator
+     */
+    public Entry(int line, Generator generator) {
+      m_Line      = line;
+      m_Generator = generator;
+    }
+
+    /**
+     * Returns the line in the manifest.
+     *
+     * @return		the line (1-based)
+     */
+    public int getLine() {
+      return m_Line;
+    }
+
+    /**
+     * Returns the configured generator.
+     *
+     * @return		the generator
+     */
+    public Generator getGenerator() {
+      return m_Generator;
+    }
+
+    /**
+     * Returns the configuration of the generator.
+     *
+     * @return		the configuration
+     */
+    public GeneratorConfig getConfig() {
+      return m_Generator.getConfig();
+    }
+
+    /**
+     * Returns the result of the generator.
+     *
+     * @return		the result, null if not run yet
+     */
+    public GeneratorResult getResult() {
+      return m_Result;
+    }
+
+    /**
+     * Returns the time for resolving the libraries.
+     *
+     * @return		the time in msec
+     */
+    public long getResolveTime() {
+      return m_ResolveTime;
+    }
+
+    /**
+     * Returns the time for generating the flow, placeholders and Dockerfile.
+     *
+     * @return		the time in msec
+     */
+    public long getGenerateTime() {
+      return m_GenerateTime;
+    }
+
+    /**
+     * Returns whether the libraries were shared from another workflow.
+     *
+     * @return		true if shared
+     */
+    public boolean isShared() {
+      return m_Shared;
+    }
+
+    /**
+     * Returns the error.
+     *
+     * @return		the error, null if successful
+     */
+    public String getError() {
+      return m_Error;
+    }
+  }
+
+  /** the manifest file. */
+  protected File m_Manifest;
+
+  /** the number of threads to use. */
+  protected int m_NumThreads;
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /** whether help got requested. */
+  protected boolean m_HelpRequested;
+
+  /** the processed entries. */
+  protected transient List<Entry> m_Entries;
+
+  /**
+   * Initializes the object.
+   */
+  public Batch() {
+    initialize();
+  }
+
+  /**
+   * Initializes the members.
+   */
+  protected void initialize() {
+    m_Manifest      = null;
+    m_NumThreads    = Runtime.getRuntime().availableProcessors();
+    m_HelpRequested = false;
+    m_Entries       = null;
+  }
+
+  /**
+   * Returns the logger instance to use.
+   *
+   * @return		the logger
+   */
+  protected Logger getLogger() {
+    if (m_Logger == null)
+      m_Logger = Logger.getLogger(getClass().getName());
+    return m_Logger;
+  }
+
+  /**
+   * Sets the manifest with the workflows to convert.
+   *
+   * @param file	the manifest
+   * @return		itself
+   */
+  public Batch manifest(File file) {
+    m_Manifest = file;
+    return this;
+  }
+
+  /**
+   * Returns the manifest with the workflows to convert.
+   *
+   * @return		the manifest, null if none set
+   */
+  public File getManifest() {
+    return m_Manifest;
+  }
+
+  /**
+   * Sets the number of threads to use.
+   *
+   * @param num		the number of threads, &lt;= 0 for number of available processors
+   * @return		itself
+   */
+  public Batch numThreads(int num) {
+    if (num <= 0)
+      num = Runtime.getRuntime().availableProcessors();
+    m_NumThreads = num;
+    return this;
+  }
+
+  /**
+   * Returns the number of threads to use.
+   *
+   * @return		the number of threads
+   */
+  public int getNumThreads() {
+    return m_NumThreads;
+  }
+
+  /**
+   * Returns the processed entries.
+   *
+   * @return		the entries, null if not executed
+   */
+  public List<Entry> getEntries() {
+    return m_Entries;
+  }
+
+  /**
+   * Configures and returns the commandline parser.
+   *
+   * @return		the parser
+   */
+  protected ArgumentParser getParser() {
+    ArgumentParser 		parser;
+
+    parser = new ArgumentParser("Converts many ADAMS workflows into Docker images.");
+    parser.addOption("-f", "--manifest")
+      .required(true)
+      .type(Type.EXISTING_FILE)
+      .dest("manifest")
+      .help("The file listing the workflows to convert, one per line, using the options of the single workflow conversion (e.g., -M/-V/-i/-b/-o).");
+    parser.addOption("-t", "--threads")
+      .required(false)
+      .type(Type.INTEGER)
+      .setDefault(-1)
+      .dest("threads")
+      .help("The number of threads to use for the conversions; <= 0 for number of available processors.");
+
+    return parser;
+  }
+
+  /**
+   * Sets the parsed options.
+   *
+   * @param ns		the parsed options
+   * @return		if successfully set
+   */
+  protected boolean setOptions(Namespace ns) {
+    manifest(ns.getFile("manifest"));
+    numThreads(ns.getInt("threads"));
+    return true;
+  }
+
+  /**
+   * Returns whether help got requested when setting the options.
+   *
+   * @return		true if help got requested
+   */
+  public boolean getHelpRequested() {
+    return m_HelpRequested;
+  }
+
+  /**
+   * Parses the options and configures the object.
+   *
+   * @param options	the command-line options
+   * @return		true if successfully set (or help requested)
+   */
+  public boolean setOptions(String[] options) {
+    ArgumentParser 	parser;
+    Namespace 		ns;
+
+    m_HelpRequested = false;
+    parser          = getParser();
+    try {
+      ns = parser.parseArgs(options);
+    }
+    catch (ArgumentParserException e) {
+      parser.handleError(e);
+      m_HelpRequested = parser.getHelpRequested();
+      return m_HelpRequested;
+    }
+
+    return setOptions(ns);
+  }
+
+  /**
+   * Splits the command-line into its options, taking single/double quotes
+   * and backslash escapes into account.
+   *
+   * @param line	the command-line to split
+   * @return		the options
+   */
+  public static List<String> splitOptions(String line) {
+    List<String>	result;
+    StringBuilder	current;
+    boolean		inOption;
+    char		quote;
+    char		c;
+    int			i;
+
+    result   = new ArrayList<>();
+    current  = new StringBuilder();
+    inOption = false;
+    quote    = 0;
+    for (i = 0; i < line.length(); i++) {
+      c = line.charAt(i);
+      if ((c == '\\') && (quote != '\'') && (i < line.length() - 1)) {
+	current.append(line.charAt(++i));
+	inOption = true;
+      }
+      else if (quote != 0) {
+	if (c == quote)
+	  quote = 0;
+	else
+	  current.append(c);
+      }
+      else if ((c == '"') || (c == '\'')) {
+	quote    = c;
+	inOption = true;
+      }
+      else if (Character.isWhitespace(c)) {
+	if (inOption)
+	  result.add(current.toString());
+	current.setLength(0);
+	inOption = false;
+      }
+      else {
+	current.append(c);
+	inOption = true;
+      }
+    }
+    if (inOption)
+      result.add(current.toString());
+
+    return result;
+  }
+
+  /**
+   * Reads the manifest and configures a generator per workflow.
+   *
+   * @param entries	the list to add the entries to
+   * @return		null if successful, otherwise error message
+   */
+  protected String readManifest(List<Entry> entries) {
+    List<String>	lines;
+    List<String>	options;
+    StringBuilder	line;
+    int			start;
+    int			i;
+    String		current;
+    String		msg;
+    Main		main;
+    Map<String,Integer>	outputs;
+
+    try {
+      lines = Files.readAllLines(m_Manifest.toPath());
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to read manifest: " + m_Manifest, e);
+      return "Failed to read manifest: " + m_Manifest;
+    }
+
+    outputs = new HashMap<>();
+    line    = new StringBuilder();
+    start   = 0;
+    for (i = 0; i < lines.size(); i++) {
+      current = lines.get(i).trim();
+      if (line.length() == 0) {
+	start = i + 1;
+	if (current.isEmpty() || current.startsWith("#"))
+	  continue;
+      }
+      if (current.endsWith("\\")) {
+	line.append(current, 0, current.length() - 1).append(" ");
+	continue;
+      }
+      line.append(current);
+
+      // the entries already run concurrently
+      options = splitOptions(line.toString());
+      if (!options.contains("-Y") && !options.contains("--phase_threads")) {
+	options.add("--phase_threads");
+	options.add("1");
+      }
+      main = new Main();
+      if (!main.setOptions(options.toArray(new String[0])) || main.getHelpRequested())
+	return "Failed to parse options of manifest line #" + start + ": " + line;
+      if ((msg = main.checkOptions()) != null)
+	return "Invalid options in manifest line #" + start + ": " + msg;
+      if (main.getWatch())
+	return "Watch mode is not supported in batch mode, see manifest line #" + start;
+      if (main.hasVariants())
+	return "Variants are not supported in batch mode, see manifest line #" + start;
+      if (ContextArchive.isStdout(main.getContextTar()))
+	return "Streaming the build context to stdout is not supported in batch mode, see manifest line #" + start;
+      if (outputs.containsKey(main.getOutputDir().getAbsolutePath()))
+	return "Output directory of manifest line #" + start + " already used by line #" + outputs.get(main.getOutputDir().getAbsolutePath()) + ": " + main.getOutputDir();
+      outputs.put(main.getOutputDir().getAbsolutePath(), start);
+      entries.add(new Entry(start, new Generator(main.toConfig())));
+      line.setLength(0);
+    }
+
+    if (entries.isEmpty())
+      return "No workflows listed in manifest: " + m_Manifest;
+
+    return null;
+  }
+
+  /**
+   * Groups the entries by their library resolution (modules, version,
+   * dependencies, dependency files and external jars).
+   *
+   * @param entries	the entries to group
+   * @param groups	the map to fill with the groups
+   * @return		null if successful, otherwise error message
+   */
+  protected String groupEntries(List<Entry> entries, Map<String,List<Entry>> groups) {
+    GeneratorConfig	config;
+    String		key;
+
+    for (Entry entry : entries) {
+      config = entry.getConfig();
+      try {
+	key = BootstrapCache.computeKey(config.getModules(), config.getVersion(), config.getDependencies(), config.getDependencyFiles(), config.getExternalJars());
+      }
+      catch (Exception e) {
+	getLogger().log(Level.SEVERE, "Failed to determine dependencies of manifest line #" + entry.getLine(), e);
+	return "Failed to determine dependencies of manifest line #" + entry.getLine();
+      }
+      groups.computeIfAbsent(key, (String k) -> new ArrayList<>()).add(entry);
+    }
+
+    return null;
+  }
+
+  /**
+   * Resolves the libraries once for the group and shares them with the
+   * other members of the group.
+   *
+   * @param group	the entries sharing the same libraries
+   */
+  protected void resolve(List<Entry> group) {
+    Entry	leader;
+    Entry	entry;
+    String	msg;
+    long	start;
+    int		i;
+
+    leader = group.get(0);
+    start  = System.currentTimeMillis();
+    leader.m_Result      = leader.getGenerator().resolveLibraries();
+    leader.m_ResolveTime = System.currentTimeMillis() - start;
+    leader.m_Error       = leader.m_Result.getError();
+    msg                  = leader.m_Error;
+    for (i = 1; i < group.size(); i++) {
+      entry          = group.get(i);
+      entry.m_Shared = true;
+      if (msg != null) {
+	entry.m_Error = "Library resolution failed for manifest line #" + leader.getLine() + ": " + msg;
+	continue;
+      }
+      start = System.currentTimeMillis();
+      entry.m_Result      = entry.getGenerator().resolveLibraries(leader.getConfig().getOutputDir());
+      entry.m_ResolveTime = System.currentTimeMillis() - start;
+      entry.m_Error       = entry.m_Result.getError();
+    }
+  }
+
+  /**
+   * Generates flow, placeholders and Dockerfile for the entry.
+   *
+   * @param entry	the entry to process
+   */
+  protected void generate(Entry entry) {
+    long	start;
+
+    if (entry.getError() != null)
+      return;
+    start = System.currentTimeMillis();
+    entry.m_Result       = entry.getGenerator().generate(entry.getResult());
+    entry.m_GenerateTime = System.currentTimeMillis() - start;
+    entry.m_Error        = entry.m_Result.getError();
+    for (String msg : entry.m_Result.getWarnings())
+      getLogger().warning("Manifest line #" + entry.getLine() + ": " + msg);
+  }
+
+  /**
+   * Waits for the jobs to finish.
+   *
+   * @param jobs	the jobs to wait for
+   * @return		null if successful, otherwise error message
+   */
+  protected String waitFor(List<Future<?>> jobs) {
+    for (Future<?> job : jobs) {
+      try {
+	job.get();
+      }
+      catch (Exception e) {
+	getLogger().log(Level.SEVERE, "Failed to execute job!", e);
+	return "Failed to execute job: " + e;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Outputs a summary of the timings and failures per workflow.
+   */
+  protected void printSummary() {
+    int			failed;
+    GeneratorConfig	config;
+
+    failed = 0;
+    System.out.println();
+    System.out.println("Summary:");
+    for (Entry entry : m_Entries) {
+      config = entry.getConfig();
+      System.out.println("#" + entry.getLine() + " " + config.getInput());
+      System.out.println("  output:   " + config.getOutputDir());
+      System.out.println("  libs:     " + entry.getResolveTime() + "ms" + (entry.isShared() ? " (shared)" : ""));
+      System.out.println("  generate: " + entry.getGenerateTime() + "ms");
+      if (entry.getError() == null) {
+	System.out.println("  status:   OK");
+      }
+      else {
+	System.out.println("  status:   FAILED - " + entry.getError());
+	failed++;
+      }
+    }
+    System.out.println();
+    System.out.println("Workflows: " + m_Entries.size() + ", failed: " + failed);
+    System.out.println();
+  }
+
+  /**
+   * Performs the conversions.
+   *
+   * @return		null if successful, otherwise error message
+   */
+  protected String doExecute() {
+    String			result;
+    List<Entry>			entries;
+    Map<String,List<Entry>>	groups;
+    ExecutorService		executor;
+    List<Future<?>>		jobs;
+    int				failed;
+
+    entries = new ArrayList<>();
+    if ((result = readManifest(entries)) != null)
+      return result;
+    groups = new LinkedHashMap<>();
+    if ((result = groupEntries(entries, groups)) != null)
+      return result;
+    m_Entries = entries;
+
+    executor = Executors.newFixedThreadPool(m_NumThreads);
+    try {
+      // resolve libraries once per group
+      jobs = new ArrayList<>();
+      for (List<Entry> group : groups.values())
+	jobs.add(executor.submit(() -> resolve(group)));
+      if ((result = waitFor(jobs)) != null)
+	return result;
+
+      // generate flow, placeholders and Dockerfile per workflow
+      jobs.clear();
+      for (Entry entry : entries)
+	jobs.add(executor.submit(() -> generate(entry)));
+      if ((result = waitFor(jobs)) != null)
+	return result;
+    }
+    finally {
+      executor.shutdownNow();
+    }
+
+    printSummary();
+
+    failed = 0;
+    for (Entry entry : entries) {
+      if (entry.getError() != null)
+	failed++;
+    }
+    if (failed > 0)
+      return "Failed to convert " + failed + " of " + entries.size() + " workflow(s)!";
+
+    return null;
+  }
+
+  /**
+   * Performs the conversions.
+   *
+   * @return		null if successful, otherwise error message
+   */
+  public String execute() {
+    String		result;
+
+    result = doExecute();
+    if (result != null)
+      getLogger().severe(result);
+
+    return result;
+  }
+
+  /**
+   * Executes the conversions with the specified command-line arguments.
+   *
+   * @param args	the options to use
+   */
+  public static void main(String[] args) {
+    Batch batch = new Batch();
+
+    if (!batch.setOptions(args)) {
+      System.err.println("Failed to parse options!");
+      System.exit(1);
+    }
+    else if (batch.getHelpRequested()) {
+      System.exit(0);
+    }
+
+    String result = batch.execute();
+    if (result != null) {
+      System.err.println("Failed to perform batch Dockerfile generation:\n" + result);
+      System.exit(2);
+    }
+  }
+}
@@ -0,0 +1,484 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * BootstrapCache.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent cache for bootstrapped lib directories. Entries are keyed by a
+ * hash of the modules, version, dependencies, dependency files and the
+ * checksums of the external jars.
+ * <br>
+ * Concurrent generator processes (also on different hosts sharing the cache
+ * via NFS with lock support) are coordinated with file locks on lock files,
+ * which never get removed. The operating system releases the lock if the
+ * process holding it dies, i.e., there are no stale locks to take over.
+ * Generators within the same JVM are coordinated via the set of held locks.
+ * Once the cache exceeds its maximum size, the least recently used entries
+ * get evicted.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class BootstrapCache {
+
+  /** the suffix for lock files. */
+  public final static String LOCK_SUFFIX = ".lock";
+
+  /** the file marking a complete entry. */
+  public final static String COMPLETE = ".complete";
+
+  /** the file whose timestamp records the last use of an entry. */
+  public final static String LAST_USED = ".last_used";
+
+  /** the directory within an entry containing the jars. */
+  public final static String LIB = "lib";
+
+  /** the interval in msec for polling a lock. */
+  public final static long POLL_LOCK = 500;
+
+  /** the lock files held by this JVM (absolute paths). */
+  protected final static Set<String> HELD = new HashSet<>();
+
+  /**
+   * A lock on a cache entry.
+   */
+  public static class Lock {
+
+    /** the lock file. */
+    protected File m_File;
+
+    /** the channel of the lock file. */
+    protected FileChannel m_Channel;
+
+    /** the file lock. */
+    protected FileLock m_Lock;
+
+    /**
+     * Initializes the lock.
+     *
+     * @param file	the lock file
+     * @param channel	the channel of the lock file
+     * @param lock	the file lock
+     */
+    protected Lock(File file, FileChannel channel, FileLock lock) {
+      m_File    = file;
+      m_Channel = channel;
+      m_Lock    = lock;
+    }
+
+    /**
+     * Releases the lock. The lock file remains, removing it would allow
+     * another process to lock a new file while the old one is still locked.
+     */
+    public void release() {
+      try {
+	m_Lock.release();
+	m_Channel.close();
+      }
+      catch (Exception e) {
+	Logger.getLogger(BootstrapCache.class.getName()).log(Level.WARNING, "Failed to release lock: " + m_File, e);
+      }
+      finally {
+	synchronized (HELD) {
+	  HELD.remove(m_File.getAbsolutePath());
+	}
+      }
+    }
+  }
+
+  /** the cache directory. */
+  protected File m_CacheDir;
+
+  /** the maximum size of the cache in bytes (&lt;= 0 for unlimited). */
+  protected long m_MaxSize;
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /**
+   * Initializes the cache.
+   *
+   * @param cacheDir	the directory for the cache
+   * @param maxSize	the maximum size in bytes, &lt;= 0 for unlimited
+   */
+  public BootstrapCache(File cacheDir, long maxSize) {
+    m_CacheDir = cacheDir;
+    m_MaxSize  = maxSize;
+  }
+
+  /**
+   * Returns the logger instance to use.
+   *
+   * @return		the logger
+   */
+  protected Logger getLogger() {
+    if (m_Logger == null)
+      m_Logger = Logger.getLogger(getClass().getName());
+    return m_Logger;
+  }
+
+  /**
+   * Returns the cache directory.
+   *
+   * @return		the directory
+   */
+  public File getCacheDir() {
+    return m_CacheDir;
+  }
+
+  /**
+   * Returns the maximum size of the cache.
+   *
+   * @return		the size in bytes, &lt;= 0 for unlimited
+   */
+  public long getMaxSize() {
+    return m_MaxSize;
+  }
+
+  /**
+   * Adds the string to the digest.
+   *
+   * @param digest	the digest to update
+   * @param s		the string to add
+   */
+  protected static void update(MessageDigest digest, String s) {
+    digest.update(s.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) '\n');
+  }
+
+  /**
+   * Computes the key for the specified bootstrap parameters.
+   *
+   * @param modules		the modules
+   * @param version		the ADAMS version
+   * @param dependencies	the dependencies, can be null
+   * @param dependencyFiles	the dependency files, can be null
+   * @param externalJars	the external jars/dirs, can be null
+   * @return			the key
+   * @throws Exception		if reading of files fails
+   */
+  public static String computeKey(String modules, String version, List<String> dependencies, List<File> dependencyFiles, List<File> externalJars) throws Exception {
+    MessageDigest	digest;
+    List<File>		jars;
+    List<String>	checksums;
+    int			i;
+
+    digest = FileUtils.newDigest();
+    update(digest, "modules=" + modules);
+    update(digest, "version=" + version);
+    if (dependencies != null) {
+      for (String dependency : dependencies)
+	update(digest, "dependency=" + dependency);
+    }
+    if (dependencyFiles != null) {
+      for (String checksum : FileUtils.sha256(dependencyFiles))
+	update(digest, "dependency-file=" + checksum);
+    }
+    jars      = FileUtils.expandJars(externalJars);
+    checksums = FileUtils.sha256(jars);
+    for (i = 0; i < jars.size(); i++)
+      update(digest, "external-jar=" + jars.get(i).getName() + ":" + checksums.get(i));
+
+    return FileUtils.toHex(digest.digest());
+  }
+
+  /**
+   * Returns the directory of the cache entry.
+   *
+   * @param key		the key of the entry
+   * @return		the directory
+   */
+  public File getEntryDir(String key) {
+    return new File(m_CacheDir, key);
+  }
+
+  /**
+   * Returns the lib directory of the cache entry.
+   *
+   * @param key		the key of the entry
+   * @return		the directory
+   */
+  public File getEntryLibDir(String key) {
+    return new File(getEntryDir(key), LIB);
+  }
+
+  /**
+   * Returns the lock file for the cache entry.
+   *
+   * @param key		the key of the entry
+   * @return		the lock file
+   */
+  protected File getLockFile(String key) {
+    return new File(m_CacheDir, key + LOCK_SUFFIX);
+  }
+
+  /**
+   * Attempts to obtain the lock for the entry.
+   *
+   * @param key		the key of the entry
+   * @return		the lock, null if held by someone else
+   * @throws Exception	if opening or locking of lock file fails
+   */
+  public Lock tryLock(String key) throws Exception {
+    File	file;
+    FileChannel	channel;
+    FileLock	lock;
+
+    file = getLockFile(key);
+    // closing a channel can release all locks of the JVM on the file, i.e.,
+    // no channel must get opened for a lock held by this JVM
+    synchronized (HELD) {
+      if (!HELD.add(file.getAbsolutePath()))
+	return null;
+    }
+
+    channel = null;
+    lock    = null;
+    try {
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      lock    = channel.tryLock();
+    }
+    finally {
+      if (lock == null) {
+	if (channel != null)
+	  channel.close();
+	synchronized (HELD) {
+	  HELD.remove(file.getAbsolutePath());
+	}
+      }
+    }
+    if (lock == null)
+      return null;
+
+    return new Lock(file, channel, lock);
+  }
+
+  /**
+   * Obtains the lock for the entry, waiting for other processes to release it.
+   *
+   * @param key		the key of the entry
+   * @return		the lock
+   * @throws Exception	if creating of lock file fails or interrupted
+   */
+  public Lock lock(String key) throws Exception {
+    Lock	result;
+
+    if (!m_CacheDir.exists() && !m_CacheDir.mkdirs() && !m_CacheDir.exists())
+      throw new IllegalStateException("Failed to create cache directory: " + m_CacheDir);
+
+    while ((result = tryLock(key)) == null)
+      Thread.sleep(POLL_LOCK);
+
+    return result;
+  }
+
+  /**
+   * Checks whether a complete entry is available for the key.
+   *
+   * @param key		the key of the entry
+   * @return		true if available
+   */
+  public boolean contains(String key) {
+    return new File(getEntryDir(key), COMPLETE).exists();
+  }
+
+  /**
+   * Updates the last used timestamp of the entry.
+   *
+   * @param key		the key of the entry
+   * @throws Exception	if updating fails
+   */
+  protected void touch(String key) throws Exception {
+    File	file;
+
+    file = new File(getEntryDir(key), LAST_USED);
+    if (!file.exists())
+      Files.createFile(file.toPath());
+    Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+  }
+
+  /**
+   * Populates the lib directory from the cache entry. The lock of the entry
+   * must be held.
+   *
+   * @param key		the key of the entry
+   * @param libDir	the lib directory to populate
+   * @return		null if successful, otherwise error message
+   */
+  public String restore(String key, File libDir) {
+    return restore(key, libDir, new FileStager(FileStager.Strategy.COPY));
+  }
+
+  /**
+   * Populates the lib directory from the cache entry. The lock of the entry
+   * must be held.
+   *
+   * @param key		the key of the entry
+   * @param libDir	the lib directory to populate
+   * @param stager	for staging the jars
+   * @return		null if successful, otherwise error message
+   */
+  public String restore(String key, File libDir, FileStager stager) {
+    String	result;
+
+    if (!contains(key))
+      return "No cache entry available for key: " + key;
+
+    if (!FileUtils.delete(libDir) || !libDir.mkdirs())
+      return "Failed to initialize lib directory: " + libDir;
+
+    if ((result = stager.stage(FileUtils.listJars(getEntryLibDir(key)), libDir)) != null)
+      return result;
+
+    try {
+      touch(key);
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to restore cache entry '" + key + "' to: " + libDir, e);
+      return "Failed to restore cache entry '" + key + "' to: " + libDir;
+    }
+
+    return null;
+  }
+
+  /**
+   * Stores the jars of the lib directory in the cache. The lock of the entry
+   * must be held. Evicts least recently used entries afterwards if the cache
+   * exceeds its maximum size.
+   *
+   * @param key		the key of the entry
+   * @param libDir	the lib directory to store
+   * @return		null if successful, otherwise error message
+   */
+  public String store(String key, File libDir) {
+    return store(key, libDir, new FileStager(FileStager.Strategy.COPY));
+  }
+
+  /**
+   * Stores the jars of the lib directory in the cache. The lock of the entry
+   * must be held. Evicts least recently used entries afterwards if the cache
+   * exceeds its maximum size.
+   *
+   * @param key		the key of the entry
+   * @param libDir	the lib directory to store
+   * @param stager	for staging the jars
+   * @return		null if successful, otherwise error message
+   */
+  public String store(String key, File libDir, FileStager stager) {
+    File	tmpDir;
+    File	tmpLibDir;
+    String	result;
+
+    tmpDir    = new File(m_CacheDir, key + ".tmp-" + UUID.randomUUID());
+    tmpLibDir = new File(tmpDir, LIB);
+    try {
+      if (!tmpLibDir.mkdirs())
+	return "Failed to create temporary cache directory: " + tmpLibDir;
+      if ((result = stager.stage(FileUtils.listJars(libDir), tmpLibDir)) != null)
+	return result;
+      if (!FileUtils.delete(getEntryDir(key)))
+	return "Failed to remove outdated cache entry: " + getEntryDir(key);
+      Files.move(tmpDir.toPath(), getEntryDir(key).toPath(), StandardCopyOption.ATOMIC_MOVE);
+      touch(key);
+      Files.createFile(new File(getEntryDir(key), COMPLETE).toPath());
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to store '" + libDir + "' in cache entry: " + key, e);
+      return "Failed to store '" + libDir + "' in cache entry: " + key;
+    }
+    finally {
+      FileUtils.delete(tmpDir);
+    }
+
+    evict(key);
+
+    return null;
+  }
+
+  /**
+   * Removes the least recently used entries until the cache no longer
+   * exceeds the maximum size. Entries that are locked get skipped.
+   *
+   * @param keep	the key of the entry to keep, can be null
+   */
+  public void evict(String keep) {
+    File[]	dirs;
+    List<File>	entries;
+    long	total;
+    Lock	lock;
+
+    if (m_MaxSize <= 0)
+      return;
+
+    dirs = m_CacheDir.listFiles((File f) -> f.isDirectory() && new File(f, COMPLETE).exists());
+    if (dirs == null)
+      return;
+
+    entries = new ArrayList<>();
+    total   = 0;
+    for (File dir : dirs) {
+      entries.add(dir);
+      total += FileUtils.size(dir);
+    }
+    entries.sort((File o1, File o2) -> Long.compare(new File(o1, LAST_USED).lastModified(), new File(o2, LAST_USED).lastModified()));
+
+    for (File entry : entries) {
+      if (total <= m_MaxSize)
+	break;
+      if (entry.getName().equals(keep))
+	continue;
+      try {
+	lock = tryLock(entry.getName());
+      }
+      catch (Exception e) {
+	lock = null;
+      }
+      if (lock == null)
+	continue;
+      try {
+	total -= FileUtils.size(entry);
+	// remove marker first, so a partially deleted entry is never used
+	if (!new File(entry, COMPLETE).delete() || !FileUtils.delete(entry))
+	  getLogger().warning("Failed to evict cache entry: " + entry);
+	else
+	  getLogger().info("Evicted cache entry: " + entry);
+      }
+      finally {
+	lock.release();
+      }
+    }
+  }
+}
@@ -0,0 +1,355 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * ContextArchive.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Restricts the Docker build context to the files that the Dockerfile
+ * references: writes a .dockerignore that excludes everything else in the
+ * output directory (e.g., what the bootstrapping leaves behind) and streams
+ * the files straight from the output directory as tar archive (to a file or
+ * stdout) for "docker build -". The sources of COPY/ADD in the custom docker
+ * instructions get added to the build context as well.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class ContextArchive {
+
+  /** the name of the ignore file. */
+  public final static String DOCKERIGNORE = ".dockerignore";
+
+  /** the name for writing the archive to stdout. */
+  public final static String STDOUT = "-";
+
+  /** the output directory. */
+  protected File m_OutputDir;
+
+  /** the modification time for the entries (seconds since epoch). */
+  protected long m_ModTime;
+
+  /** the number of bytes written. */
+  protected long m_Written;
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /**
+   * Initializes the archive.
+   *
+   * @param outputDir	the output directory with the build context
+   * @param modTime	the modification time for the entries (seconds since epoch)
+   */
+  public ContextArchive(File outputDir, long modTime) {
+    m_OutputDir = outputDir.getAbsoluteFile();
+    m_ModTime   = modTime;
+    m_Written   = 0;
+  }
+
+  /**
+   * Returns the logger instance to use.
+   *
+   * @return		the logger
+   */
+  protected Logger getLogger() {
+    if (m_Logger == null)
+      m_Logger = Logger.getLogger(getClass().getName());
+    return m_Logger;
+  }
+
+  /**
+   * Returns whether the archive gets written to stdout.
+   *
+   * @param file	the archive file
+   * @return		true if stdout
+   */
+  public static boolean isStdout(File file) {
+    return (file != null) && file.getPath().equals(STDOUT);
+  }
+
+  /**
+   * Returns the path of the file relative to the output directory, using
+   * forward slashes.
+   *
+   * @param file	the file
+   * @return		the relative path
+   */
+  protected String relativize(File file) {
+    return m_OutputDir.toPath().relativize(file.getAbsoluteFile().toPath()).toString().replace(File.separatorChar, '/');
+  }
+
+  /**
+   * Splits the arguments of a COPY/ADD instruction, either in JSON array or
+   * in shell form.
+   *
+   * @param args	the arguments
+   * @return		the split arguments
+   */
+  protected static List<String> splitArguments(String args) {
+    List<String>	result;
+
+    result = new ArrayList<>();
+    if (args.startsWith("[") && args.endsWith("]")) {
+      for (String arg : args.substring(1, args.length() - 1).split(",")) {
+	arg = arg.trim();
+	if (arg.startsWith("\"") && arg.endsWith("\"") && (arg.length() > 1))
+	  arg = arg.substring(1, arg.length() - 1);
+	result.add(arg);
+      }
+    }
+    else {
+      result.addAll(Arrays.asList(args.split("\\s+")));
+    }
+
+    return result;
+  }
+
+  /**
+   * Determines the sources of the COPY/ADD instructions that come from the
+   * build context, i.e., ignores instructions that copy from other stages
+   * or images and remote URLs. The sources are relative to the build context
+   * and can contain wildcards.
+   *
+   * @param instructions	the docker instructions
+   * @return			the sources
+   */
+  public static List<String> parseSources(List<String> instructions) {
+    List<String>	result;
+    List<String>	lines;
+    List<String>	args;
+    StringBuilder	line;
+    String[]		parts;
+    String		rest;
+    String		source;
+    boolean		other;
+    int			i;
+
+    // join continued lines
+    lines = new ArrayList<>();
+    line  = new StringBuilder();
+    for (String instruction : instructions) {
+      instruction = instruction.trim();
+      if (instruction.startsWith("#"))
+	continue;
+      if (instruction.endsWith("\\")) {
+	line.append(instruction, 0, instruction.length() - 1).append(" ");
+	continue;
+      }
+      line.append(instruction);
+      lines.add(line.toString().trim());
+      line = new StringBuilder();
+    }
+    if (line.length() > 0)
+      lines.add(line.toString().trim());
+
+    result = new ArrayList<>();
+    for (String l : lines) {
+      parts = l.split("\\s+", 2);
+      if ((parts.length < 2) || !parts[0].equalsIgnoreCase("COPY") && !parts[0].equalsIgnoreCase("ADD"))
+	continue;
+      // flags, e.g., --chown=...; --from=... copies from another stage/image
+      rest  = parts[1].trim();
+      other = false;
+      while (rest.startsWith("--")) {
+	parts = rest.split("\\s+", 2);
+	if (parts[0].startsWith("--from="))
+	  other = true;
+	rest = (parts.length > 1) ? parts[1].trim() : "";
+      }
+      if (other)
+	continue;
+      args = splitArguments(rest);
+      for (i = 0; i < args.size() - 1; i++) {
+	source = args.get(i);
+	if (source.startsWith("<<") || source.contains("://"))
+	  continue;
+	while (source.startsWith("/") || source.startsWith("./"))
+	  source = source.substring(source.startsWith("/") ? 1 : 2);
+	while (source.endsWith("/") && (source.length() > 1))
+	  source = source.substring(0, source.length() - 1);
+	// the complete build context
+	if (source.isEmpty() || source.equals(".") || source.equals("*"))
+	  source = "**";
+	if (!result.contains(source))
+	  result.add(source);
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Returns the files of the sources (without wildcards) that exist in the
+   * output directory, directories get listed recursively.
+   *
+   * @param sources	the sources, see {@link #parseSources(List)}
+   * @return		the files
+   * @throws Exception	if listing a directory fails
+   */
+  public List<File> resolveSources(List<String> sources) throws Exception {
+    List<File>		result;
+    File		file;
+
+    result = new ArrayList<>();
+    for (String source : sources) {
+      if (source.contains("*") || source.contains("?") || source.contains("["))
+	continue;
+      file = new File(m_OutputDir, source);
+      if (file.isDirectory()) {
+	try (Stream<Path> paths = Files.walk(file.toPath())) {
+	  paths.filter(Files::isRegularFile).sorted().forEach((Path path) -> result.add(path.toFile()));
+	}
+      }
+      else if (file.isFile()) {
+	result.add(file);
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Generates the content of the .dockerignore, which excludes everything but
+   * the specified files and sources.
+   *
+   * @param files	the files of the build context
+   * @param sources	the sources of the custom docker instructions, see {@link #parseSources(List)}
+   * @return		the lines
+   */
+  public List<String> generateDockerIgnore(List<File> files, List<String> sources) {
+    List<String>	result;
+
+    result = new ArrayList<>();
+    result.add("# only the files referenced by the Dockerfile");
+    result.add("*");
+    for (File file : files)
+      result.add("!" + relativize(file));
+    for (String source : sources)
+      result.add("!" + source);
+
+    return result;
+  }
+
+  /**
+   * Writes the .dockerignore to the output directory.
+   *
+   * @param files	the files of the build context
+   * @param sources	the sources of the custom docker instructions, see {@link #parseSources(List)}
+   * @return		null if successful, otherwise error message
+   */
+  public String writeDockerIgnore(List<File> files, List<String> sources) {
+    File	file;
+
+    file = new File(m_OutputDir, DOCKERIGNORE);
+    try {
+      Files.write(file.toPath(), (String.join("\n", generateDockerIgnore(files, sources)) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to write " + file, e);
+      return "Failed to write " + file;
+    }
+
+    return null;
+  }
+
+  /**
+   * Streams the files into the tar archive, preceded by their directories.
+   *
+   * @param files	the files of the build context
+   * @param out		the stream to write to, does not get closed
+   * @throws Exception	if reading/writing fails
+   */
+  public void write(List<File> files, OutputStream out) throws Exception {
+    TarArchiveWriter	writer;
+    Set<String>		dirs;
+    String		path;
+    int			pos;
+
+    writer = new TarArchiveWriter(out, m_ModTime);
+    dirs   = new HashSet<>();
+    for (File file : files) {
+      path = relativize(file);
+      pos  = path.indexOf('/');
+      while (pos > -1) {
+	if (dirs.add(path.substring(0, pos)))
+	  writer.addDirectory(path.substring(0, pos));
+	pos = path.indexOf('/', pos + 1);
+      }
+      writer.addFile(path, file, file.canExecute() ? TarArchiveWriter.MODE_EXECUTABLE : TarArchiveWriter.MODE_FILE);
+    }
+    writer.finish();
+    m_Written = writer.getWritten();
+  }
+
+  /**
+   * Writes the tar archive to the file or stdout.
+   *
+   * @param files	the files of the build context
+   * @param archive	the archive file, see {@link #STDOUT}
+   * @return		null if successful, otherwise error message
+   */
+  public String write(List<File> files, File archive) {
+    OutputStream	out;
+
+    try {
+      if (isStdout(archive)) {
+	// the raw file descriptor, System.out may have been redirected
+	out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 65536);
+	write(files, out);
+      }
+      else {
+	try (OutputStream fout = new BufferedOutputStream(new FileOutputStream(archive), 65536)) {
+	  write(files, fout);
+	}
+      }
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to write build context to: " + archive, e);
+      return "Failed to write build context to: " + archive;
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns the number of bytes written to the archive.
+   *
+   * @return		the bytes
+   */
+  public long getWritten() {
+    return m_Written;
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * EventTrigger.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.Attributes;
+
+/**
+ * Generates the runtime for the event-driven trigger: a jar with the
+ * {@link InputTrigger} class and a wrapper script that creates the FIFO
+ * (path in the TRIGGER environment variable), starts the trigger on the
+ * INPUT directory in the background and then runs the workflow. The workflow
+ * reads the names of the complete files from the FIFO line by line instead of
+ * polling the directory, see src/main/flows/weka_filter_pipeline.flow.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class EventTrigger {
+
+  /** the name of the script. */
+  public final static String SCRIPT = "trigger.sh";
+
+  /** the name of the jar. */
+  public final static String JAR = "trigger.jar";
+
+  /** the default FIFO in the image. */
+  public final static String FIFO = "/tmp/adamsflow2docker-trigger.fifo";
+
+  /**
+   * Generates the wrapper script. The command to run gets supplied as
+   * arguments to the script.
+   *
+   * @return		the lines of the script
+   */
+  public static List<String> generateScript() {
+    List<String>	result;
+
+    result = new ArrayList<>();
+    result.add("#!/bin/sh");
+    result.add("# Starts the event-driven trigger for the INPUT directory and runs the command (the workflow),");
+    result.add("# which reads the names of the complete files from the FIFO in TRIGGER.");
+    result.add("");
+    result.add("TRIGGER=${TRIGGER:-" + FIFO + "}");
+    result.add("export TRIGGER");
+    result.add("rm -f \"$TRIGGER\"");
+    result.add("mkfifo \"$TRIGGER\" || exit 1");
+    result.add("TPID=\"\"");
+    result.add("if [ -n \"$INPUT\" ] && [ -d \"$INPUT\" ]; then");
+    result.add("  # without the flags of the JVM profile, see JvmProfile");
+    result.add("  (unset JAVA_TOOL_OPTIONS; exec java -Xmx16m -XX:+UseSerialGC -XX:TieredStopAtLevel=1 -cp " + WorkerLauncher.HOME + "/" + JAR + " " + InputTrigger.class.getName()
+      + " \"$INPUT\" \"$TRIGGER\" \"${TRIGGER_REGEXP:-" + InputTrigger.DEFAULT_REGEXP + "}\""
+      + " \"${TRIGGER_SETTLE:-" + InputTrigger.DEFAULT_SETTLE + "}\" \"${TRIGGER_BATCH:-" + InputTrigger.DEFAULT_BATCH + "}\") &");
+    result.add("  TPID=$!");
+    result.add("else");
+    result.add("  echo \"[trigger] INPUT is not a directory: $INPUT\"");
+    result.add("fi");
+    result.add("");
+    result.add("\"$@\" &");
+    result.add("PID=$!");
+    result.add("trap 'kill $PID 2> /dev/null' TERM INT");
+    result.add("wait $PID");
+    result.add("CODE=$?");
+    result.add("# wait got interrupted by the trap");
+    result.add("while kill -0 $PID 2> /dev/null; do wait $PID; CODE=$?; done");
+    result.add("[ -n \"$TPID\" ] && kill $TPID 2> /dev/null");
+    result.add("rm -f \"$TRIGGER\"");
+    result.add("exit $CODE");
+
+    return result;
+  }
+
+  /**
+   * Writes the jar with the {@link InputTrigger} class, using fixed
+   * timestamps.
+   *
+   * @param jar		the jar to write
+   * @return		null if successful, otherwise error message
+   * @throws Exception	if writing fails
+   */
+  public static String writeJar(File jar) throws Exception {
+    Attributes	attributes;
+
+    attributes = new Attributes();
+    attributes.put(Attributes.Name.MAIN_CLASS, InputTrigger.class.getName());
+    return FileUtils.writeClassJar(jar, attributes, Collections.singletonList(InputTrigger.class.getName()));
+  }
+}
@@ -0,0 +1,351 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * FileStager.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stages files (e.g., jars from the cache or another output directory) into
+ * the output directory, either as hard links, copy-on-write clones (reflinks,
+ * e.g., on btrfs or XFS) or plain copies. Links and clones require source and
+ * target to reside on the same file system; if not possible, a plain copy
+ * gets created and verified with its SHA-256 checksum.
+ * <br>
+ * Note: hard links share content and metadata with the source, i.e., files
+ * staged that way must only get replaced (move/delete), never modified in
+ * place.
+ * <br>
+ * Lists of files get staged in parallel, the stager is thread-safe.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class FileStager {
+
+  /**
+   * The available strategies.
+   */
+  public enum Strategy {
+    /** plain copies. */
+    COPY,
+    /** hard links. */
+    HARDLINK,
+    /** copy-on-write clones. */
+    REFLINK,
+    /** reflink, then hard link, then copy. */
+    AUTO,
+  }
+
+  /** the strategy. */
+  protected Strategy m_Strategy;
+
+  /** whether hard links can be used. */
+  protected boolean m_HardLinks;
+
+  /** whether hard links failed before (e.g., different file systems). */
+  protected volatile boolean m_HardLinkFailed;
+
+  /** whether reflinks failed before (e.g., not supported by file system). */
+  protected volatile boolean m_ReflinkFailed;
+
+  /** the number of files hard linked. */
+  protected int m_Linked;
+
+  /** the number of files cloned. */
+  protected int m_Cloned;
+
+  /** the number of files copied. */
+  protected int m_Copied;
+
+  /** the bytes that share storage with the source (links, clones). */
+  protected long m_BytesShared;
+
+  /** the bytes that got written (copies). */
+  protected long m_BytesCopied;
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /**
+   * Initializes the stager.
+   *
+   * @param strategy	the strategy to use
+   */
+  public FileStager(Strategy strategy) {
+    this(strategy, true);
+  }
+
+  /**
+   * Initializes the stager.
+   *
+   * @param strategy	the strategy to use
+   * @param hardLinks	whether hard links are allowed (eg not for files whose metadata gets modified)
+   */
+  public FileStager(Strategy strategy, boolean hardLinks) {
+    m_Strategy  = (strategy == null) ? Strategy.COPY : strategy;
+    m_HardLinks = hardLinks;
+  }
+
+  /**
+   * Returns the logger instance to use.
+   *
+   * @return		the logger
+   */
+  protected Logger getLogger() {
+    if (m_Logger == null)
+      m_Logger = Logger.getLogger(getClass().getName());
+    return m_Logger;
+  }
+
+  /**
+   * Returns the strategy.
+   *
+   * @return		the strategy
+   */
+  public Strategy getStrategy() {
+    return m_Strategy;
+  }
+
+  /**
+   * Creates a hard link, replacing the target.
+   *
+   * @param source	the file to link to
+   * @param target	the link to create
+   * @return		true if successful
+   */
+  protected boolean link(File source, File target) {
+    if (!m_HardLinks || m_HardLinkFailed)
+      return false;
+    try {
+      Files.deleteIfExists(target.toPath());
+      Files.createLink(target.toPath(), source.toPath());
+      return true;
+    }
+    catch (Exception e) {
+      getLogger().info("Hard links not possible, falling back: " + e);
+      m_HardLinkFailed = true;
+      return false;
+    }
+  }
+
+  /**
+   * Creates a copy-on-write clone using "cp --reflink=always", replacing the
+   * target.
+   *
+   * @param source	the file to clone
+   * @param target	the clone to create
+   * @return		true if successful
+   */
+  protected boolean reflink(File source, File target) {
+    ProcessBuilder	builder;
+    Process		process;
+
+    if (m_ReflinkFailed)
+      return false;
+    try {
+      Files.deleteIfExists(target.toPath());
+      builder = new ProcessBuilder("cp", "--reflink=always", source.getAbsolutePath(), target.getAbsolutePath());
+      builder.redirectErrorStream(true);
+      builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+      process = builder.start();
+      if (process.waitFor() == 0)
+	return true;
+      getLogger().info("Reflinks not possible (exit code " + process.exitValue() + "), falling back");
+    }
+    catch (Exception e) {
+      getLogger().info("Reflinks not possible, falling back: " + e);
+    }
+    m_ReflinkFailed = true;
+
+    return false;
+  }
+
+  /**
+   * Copies the file, replacing the target, and verifies the checksum.
+   *
+   * @param source	the file to copy
+   * @param target	the copy to create
+   * @param verify	whether to verify the checksum
+   * @return		null if successful, otherwise error message
+   * @throws Exception	if copying fails
+   */
+  protected String copy(File source, File target, boolean verify) throws Exception {
+    Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    if (verify && !FileUtils.sha256(source).equals(FileUtils.sha256(target)))
+      return "Checksum mismatch after copying '" + source + "' to: " + target;
+    return null;
+  }
+
+  /**
+   * Updates the statistics for a staged file.
+   *
+   * @param strategy	how the file got staged (HARDLINK, REFLINK or COPY)
+   * @param size	the size of the file
+   */
+  protected synchronized void count(Strategy strategy, long size) {
+    switch (strategy) {
+      case HARDLINK:
+	m_Linked++;
+	m_BytesShared += size;
+	break;
+      case REFLINK:
+	m_Cloned++;
+	m_BytesShared += size;
+	break;
+      default:
+	m_Copied++;
+	m_BytesCopied += size;
+	break;
+    }
+  }
+
+  /**
+   * Stages the file.
+   *
+   * @param source	the file to stage
+   * @param target	the target file
+   * @return		null if successful, otherwise error message
+   */
+  public String stage(File source, File target) {
+    String	result;
+    Strategy	staged;
+    long	size;
+
+    size   = source.length();
+    staged = Strategy.COPY;
+    try {
+      switch (m_Strategy) {
+	case HARDLINK:
+	  if (link(source, target))
+	    staged = Strategy.HARDLINK;
+	  break;
+	case REFLINK:
+	  if (reflink(source, target))
+	    staged = Strategy.REFLINK;
+	  break;
+	case AUTO:
+	  if (reflink(source, target))
+	    staged = Strategy.REFLINK;
+	  else if (link(source, target))
+	    staged = Strategy.HARDLINK;
+	  break;
+	case COPY:
+	  break;
+	default:
+	  throw new IllegalStateException("Unhandled strategy: " + m_Strategy);
+      }
+
+      if (staged == Strategy.COPY) {
+	// only verify fallback copies, plain copies behave as before
+	if ((result = copy(source, target, m_Strategy != Strategy.COPY)) != null)
+	  return result;
+      }
+      count(staged, size);
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to stage '" + source + "' as: " + target, e);
+      return "Failed to stage '" + source + "' as: " + target;
+    }
+
+    return null;
+  }
+
+  /**
+   * Stages the files into the directory in parallel, using the same names.
+   * Stops staging after the first failure.
+   *
+   * @param files	the files to stage
+   * @param dir		the target directory
+   * @return		null if successful, otherwise error message (of the first failed file in the list)
+   */
+  public String stage(List<File> files, File dir) {
+    return files.parallelStream()
+      .map((File file) -> stage(file, new File(dir, file.getName())))
+      .filter(Objects::nonNull)
+      .findFirst()
+      .orElse(null);
+  }
+
+  /**
+   * Returns the number of hard linked files.
+   *
+   * @return		the number of files
+   */
+  public int getLinked() {
+    return m_Linked;
+  }
+
+  /**
+   * Returns the number of cloned files (reflinks).
+   *
+   * @return		the number of files
+   */
+  public int getCloned() {
+    return m_Cloned;
+  }
+
+  /**
+   * Returns the number of copied files.
+   *
+   * @return		the number of files
+   */
+  public int getCopied() {
+    return m_Copied;
+  }
+
+  /**
+   * Returns the bytes that share the storage with the source (links, clones),
+   * i.e., the disk space saved.
+   *
+   * @return		the bytes
+   */
+  public long getBytesShared() {
+    return m_BytesShared;
+  }
+
+  /**
+   * Returns the bytes that got written (copies).
+   *
+   * @return		the bytes
+   */
+  public long getBytesCopied() {
+    return m_BytesCopied;
+  }
+
+  /**
+   * Records the statistics in the current phase of the metrics.
+   *
+   * @param metrics	the metrics to update
+   */
+  public void record(Metrics metrics) {
+    metrics.set("staging", m_Strategy.toString().toLowerCase());
+    metrics.set("files_linked", m_Linked);
+    metrics.set("files_cloned", m_Cloned);
+    metrics.set("files_copied", m_Copied);
+    metrics.set("bytes_shared", m_BytesShared);
+    metrics.set("bytes_copied", m_BytesCopied);
+  }
+}
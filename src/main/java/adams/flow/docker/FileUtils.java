@@ -0,0 +1,256 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * FileUtils.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+
+/**
+ * Helper methods for dealing with files and directories.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class FileUtils {
+
+  /** the fixed timestamp for the entries of generated jars (for reproducible builds). */
+  public final static LocalDateTime JAR_TIMESTAMP = LocalDateTime.of(1980, 1, 1, 0, 0);
+
+  /**
+   * Turns the bytes into a hexadecimal string.
+   *
+   * @param data	the bytes to convert
+   * @return		the hex string
+   */
+  public static String toHex(byte[] data) {
+    StringBuilder	result;
+
+    result = new StringBuilder();
+    for (byte b : data)
+      result.append(String.format("%02x", b & 0xff));
+
+    return result.toString();
+  }
+
+  /**
+   * Returns a SHA-256 message digest.
+   *
+   * @return		the digest
+   */
+  public static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    }
+    catch (Exception e) {
+      // every JVM has to support SHA-256
+      throw new IllegalStateException("SHA-256 not available!", e);
+    }
+  }
+
+  /**
+   * Computes the SHA-256 checksum of the file.
+   *
+   * @param file	the file to compute the checksum for
+   * @return		the checksum as hex string
+   * @throws IOException	if reading of file fails
+   */
+  public static String sha256(File file) throws IOException {
+    MessageDigest	digest;
+    byte[]		buffer;
+    int			read;
+
+    digest = newDigest();
+    buffer = new byte[65536];
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      while ((read = in.read(buffer)) != -1)
+	digest.update(buffer, 0, read);
+    }
+
+    return toHex(digest.digest());
+  }
+
+  /**
+   * Computes the SHA-256 checksums of the files in parallel.
+   *
+   * @param files	the files to compute the checksums for
+   * @return		the checksums as hex strings, in the same order as the files
+   * @throws IOException	if reading of a file fails
+   */
+  public static List<String> sha256(List<File> files) throws IOException {
+    try {
+      return files.parallelStream()
+	.map((File file) -> {
+	  try {
+	    return sha256(file);
+	  }
+	  catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	  }
+	})
+	.collect(Collectors.toList());
+    }
+    catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Returns the jar files in the directory, sorted by name.
+   *
+   * @param dir		the directory to list
+   * @return		the jars, empty if none or directory does not exist
+   */
+  public static List<File> listJars(File dir) {
+    File[]	files;
+
+    files = dir.listFiles((File f) -> f.isFile() && f.getName().toLowerCase().endsWith(".jar"));
+    if (files == null)
+      return new ArrayList<>();
+    Arrays.sort(files);
+
+    return new ArrayList<>(Arrays.asList(files));
+  }
+
+  /**
+   * Expands the external jar files/dirs into the actual jar files, sorted by
+   * name within each directory.
+   *
+   * @param external	the files/dirs, can be null
+   * @return		the jar files
+   */
+  public static List<File> expandJars(List<File> external) {
+    List<File>	result;
+
+    result = new ArrayList<>();
+    if (external == null)
+      return result;
+    for (File file : external) {
+      if (file.isDirectory())
+	result.addAll(listJars(file));
+      else
+	result.add(file);
+    }
+
+    return result;
+  }
+
+  /**
+   * Returns the total size of the file or directory.
+   *
+   * @param file	the file/dir to determine the size for
+   * @return		the size in bytes
+   */
+  public static long size(File file) {
+    long	result;
+    File[]	files;
+
+    if (!file.isDirectory())
+      return file.length();
+
+    result = 0;
+    files  = file.listFiles();
+    if (files != null) {
+      for (File f : files)
+	result += size(f);
+    }
+
+    return result;
+  }
+
+  /**
+   * Deletes the file or directory (recursively).
+   *
+   * @param file	the file/dir to delete
+   * @return		true if successfully deleted (or not present)
+   */
+  public static boolean delete(File file) {
+    File[]	files;
+
+    if (!file.exists() && !Files.isSymbolicLink(file.toPath()))
+      return true;
+    if (file.isDirectory() && !Files.isSymbolicLink(file.toPath())) {
+      files = file.listFiles();
+      if (files != null) {
+	for (File f : files) {
+	  if (!delete(f))
+	    return false;
+	}
+      }
+    }
+
+    return file.delete();
+  }
+
+  /**
+   * Writes a jar with the specified classes of the generator (located as
+   * resources, i.e., without loading them), using fixed timestamps.
+   *
+   * @param jar		the jar to write
+   * @param attributes	the additional main attributes of the manifest (eg Main-Class)
+   * @param classes	the names of the classes to add
+   * @return		null if successful, otherwise error message
+   * @throws Exception	if writing fails
+   */
+  public static String writeClassJar(File jar, Attributes attributes, List<String> classes) throws Exception {
+    Manifest	manifest;
+    JarEntry	entry;
+    String	name;
+
+    manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().putAll(attributes);
+
+    try (OutputStream out = Files.newOutputStream(jar.toPath()); JarOutputStream jout = new JarOutputStream(out)) {
+      entry = new JarEntry("META-INF/MANIFEST.MF");
+      entry.setTimeLocal(JAR_TIMESTAMP);
+      jout.putNextEntry(entry);
+      manifest.write(jout);
+      jout.closeEntry();
+      for (String cls : classes) {
+	name = cls.replace('.', '/') + ".class";
+	try (InputStream in = FileUtils.class.getClassLoader().getResourceAsStream(name)) {
+	  if (in == null)
+	    return "Failed to locate class: " + name;
+	  entry = new JarEntry(name);
+	  entry.setTimeLocal(JAR_TIMESTAMP);
+	  jout.putNextEntry(entry);
+	  in.transferTo(jout);
+	  jout.closeEntry();
+	}
+      }
+    }
+
+    return null;
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * FlowCompiler.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import adams.core.MessageCollection;
+import adams.core.SerializationHelper;
+import adams.env.Environment;
+import adams.flow.core.Actor;
+import adams.flow.core.ActorUtils;
+
+import java.io.File;
+
+/**
+ * Parses the workflow with the libraries of the image, outputting errors
+ * and warnings, and serializes the actor tree. Verifies that the serialized
+ * flow can be read again. Gets executed by {@link FlowPreparser} in a separate
+ * JVM at generation time, as it requires ADAMS.
+ * <br>
+ * Usage: FlowCompiler FLOW SERIALIZED
+ * <br>
+ * Exit codes: 0 if successful, {@link FlowPreparser#EXIT_INVALID} if the flow
+ * has errors, {@link FlowPreparser#EXIT_UNSUPPORTED} if serialized flows
+ * cannot be read, {@link FlowPreparser#EXIT_FAILED} if an exception occurred.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class FlowCompiler {
+
+  /**
+   * Outputs the messages with the prefix.
+   *
+   * @param prefix	the prefix for the lines
+   * @param messages	the messages
+   */
+  protected static void output(String prefix, MessageCollection messages) {
+    if (messages.isEmpty())
+      return;
+    for (String line : messages.toString().split("\n")) {
+      if (!line.trim().isEmpty())
+	System.out.println(prefix + line);
+    }
+  }
+
+  /**
+   * Parses and serializes the flow.
+   *
+   * @param args	FLOW SERIALIZED
+   * @return		the exit code
+   * @throws Exception	if serializing fails
+   */
+  protected static int compile(String[] args) throws Exception {
+    MessageCollection	errors;
+    MessageCollection	warnings;
+    Actor		actor;
+    File		serialized;
+
+    if (args.length != 2) {
+      System.err.println("Usage: " + FlowCompiler.class.getName() + " FLOW SERIALIZED");
+      return FlowPreparser.EXIT_INVALID;
+    }
+
+    Environment.setEnvironmentClass(Environment.class);
+    errors   = new MessageCollection();
+    warnings = new MessageCollection();
+    actor    = ActorUtils.read(args[0], errors, warnings);
+    output(FlowPreparser.PREFIX_WARNING, warnings);
+    if ((actor == null) || !errors.isEmpty()) {
+      if (errors.isEmpty())
+	System.out.println(FlowPreparser.PREFIX_ERROR + "Failed to read flow: " + args[0]);
+      output(FlowPreparser.PREFIX_ERROR, errors);
+      return FlowPreparser.EXIT_INVALID;
+    }
+
+    serialized = new File(args[1]);
+    SerializationHelper.write(serialized.getAbsolutePath(), actor);
+
+    // can the serialized flow be read again?
+    errors   = new MessageCollection();
+    warnings = new MessageCollection();
+    actor    = ActorUtils.read(serialized.getAbsolutePath(), errors, warnings);
+    if ((actor == null) || !errors.isEmpty()) {
+      serialized.delete();
+      System.out.println(FlowPreparser.PREFIX_WARNING + "Serialized flows cannot be read with this version of ADAMS, using the text flow");
+      output(FlowPreparser.PREFIX_WARNING, errors);
+      return FlowPreparser.EXIT_UNSUPPORTED;
+    }
+
+    return 0;
+  }
+
+  /**
+   * Parses and serializes the flow, outputs any exception as error.
+   *
+   * @param args	FLOW SERIALIZED
+   */
+  public static void main(String[] args) {
+    int		exit;
+
+    try {
+      exit = compile(args);
+    }
+    catch (Throwable t) {
+      System.out.println(FlowPreparser.PREFIX_ERROR + t);
+      t.printStackTrace(System.out);
+      exit = FlowPreparser.EXIT_FAILED;
+    }
+    System.out.flush();
+    System.exit(exit);
+  }
+}
@@ -0,0 +1,291 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * FlowPreparser.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Parses and validates the workflow at generation time with the libraries
+ * of the image ({@link FlowCompiler}, in a separate JVM) and generates the
+ * serialized flow that {@link PreparsedFlowRunner} loads in the image instead
+ * of parsing the text flow. The digest of the libraries (names and sizes)
+ * gets stored alongside, the runner falls back to the text flow if the
+ * libraries in the image differ.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class FlowPreparser {
+
+  /** the name of the jar. */
+  public final static String JAR = "preparse.jar";
+
+  /** the extension of the serialized flow. */
+  public final static String EXT = ".sflow";
+
+  /** the extension of the file with the digest of the libraries. */
+  public final static String DIGEST_EXT = ".digest";
+
+  /** the classname of the runner (not loaded by the generator, requires ADAMS). */
+  public final static String RUNNER = "adams.flow.docker.PreparsedFlowRunner";
+
+  /** the classname of the compiler (not loaded by the generator, requires ADAMS). */
+  public final static String COMPILER = "adams.flow.docker.FlowCompiler";
+
+  /** the classname of the ADAMS reader for serialized flows. */
+  public final static String READER = "adams.data.io.input.SerializedFlowReader";
+
+  /** the directory with the libraries in the image, relative to the flow. */
+  public final static String LIB_DIR = "lib";
+
+  /** the prefix for errors output by the compiler. */
+  public final static String PREFIX_ERROR = "ERROR: ";
+
+  /** the prefix for warnings output by the compiler. */
+  public final static String PREFIX_WARNING = "WARNING: ";
+
+  /** the exit code of the compiler for invalid flows (1 is used by the JVM for uncaught exceptions). */
+  public final static int EXIT_INVALID = 3;
+
+  /** the exit code of the compiler if serialized flows are not supported. */
+  public final static int EXIT_UNSUPPORTED = 4;
+
+  /** the exit code of the compiler if parsing or serializing failed with an exception. */
+  public final static int EXIT_FAILED = 5;
+
+  /** the timeout in minutes for the compiler. */
+  public final static int TIMEOUT = 5;
+
+  /** the Java home with the java binary, null for the current one. */
+  protected File m_JavaHome;
+
+  /** the warnings of the last run. */
+  protected List<String> m_Warnings;
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /**
+   * Initializes the preparser.
+   *
+   * @param javaHome	the Java home with the java binary, null for the current one
+   */
+  public FlowPreparser(File javaHome) {
+    m_JavaHome = javaHome;
+    m_Warnings = new ArrayList<>();
+  }
+
+  /**
+   * Returns the logger instance to use.
+   *
+   * @return		the logger
+   */
+  protected Logger getLogger() {
+    if (m_Logger == null)
+      m_Logger = Logger.getLogger(getClass().getName());
+    return m_Logger;
+  }
+
+  /**
+   * Returns the java executable.
+   *
+   * @return		the executable
+   */
+  protected String getJava() {
+    File	home;
+
+    if (m_JavaHome != null)
+      home = m_JavaHome;
+    else
+      home = new File(System.getProperty("java.home"));
+
+    return home.getAbsolutePath() + File.separator + "bin" + File.separator + "java";
+  }
+
+  /**
+   * Returns the serialized flow for the text flow.
+   *
+   * @param flow	the text flow
+   * @return		the serialized flow
+   */
+  public static File getSerialized(File flow) {
+    String	name;
+
+    name = flow.getName();
+    if (name.endsWith(".flow"))
+      name = name.substring(0, name.length() - ".flow".length());
+    return new File(flow.getParentFile(), name + EXT);
+  }
+
+  /**
+   * Returns the file with the digest of the libraries for the serialized flow.
+   *
+   * @param serialized	the serialized flow
+   * @return		the digest file
+   */
+  public static File getDigestFile(File serialized) {
+    return new File(serialized.getAbsolutePath() + DIGEST_EXT);
+  }
+
+  /**
+   * Computes the digest of the libraries, using the names and sizes.
+   *
+   * @param jars	the jars
+   * @return		the digest (hex)
+   */
+  public static String digest(List<File> jars) {
+    TreeMap<String,Long>	sorted;
+    MessageDigest		digest;
+
+    sorted = new TreeMap<>();
+    for (File jar : jars)
+      sorted.put(jar.getName(), jar.length());
+    digest = FileUtils.newDigest();
+    for (String name : sorted.keySet())
+      digest.update((name + ":" + sorted.get(name) + "\n").getBytes(StandardCharsets.UTF_8));
+
+    return FileUtils.toHex(digest.digest());
+  }
+
+  /**
+   * Writes the jar with the compiler and the runner, using fixed timestamps.
+   *
+   * @param jar		the jar to write
+   * @return		null if successful, otherwise error message
+   * @throws Exception	if writing fails
+   */
+  public static String writeJar(File jar) throws Exception {
+    return FileUtils.writeClassJar(jar, new Attributes(), Arrays.asList(
+      COMPILER, RUNNER, FlowPreparser.class.getName(), FileUtils.class.getName()));
+  }
+
+  /**
+   * Returns the warnings of the last run.
+   *
+   * @return		the warnings
+   */
+  public List<String> getWarnings() {
+    return m_Warnings;
+  }
+
+  /**
+   * Parses and validates the flow with the libraries and writes the
+   * serialized flow and the digest of the libraries. If serialized flows are
+   * not supported, no serialized flow gets written (warning).
+   *
+   * @param jar		the jar with the compiler, see {@link #writeJar(File)}
+   * @param libraries	the libraries of the image
+   * @param extra	additional jars for the classpath (eg the metrics agent), can be null
+   * @param flow	the text flow
+   * @return		null if successful, otherwise error message (eg the flow errors)
+   */
+  public String preparse(File jar, List<File> libraries, List<File> extra, File flow) {
+    List<String>	cmd;
+    List<String>	classpath;
+    List<String>	errors;
+    Process		process;
+    String		output;
+    File		serialized;
+    File		log;
+    int			exit;
+
+    m_Warnings.clear();
+    serialized = getSerialized(flow);
+    FileUtils.delete(serialized);
+    FileUtils.delete(getDigestFile(serialized));
+
+    classpath = new ArrayList<>();
+    for (File lib : libraries)
+      classpath.add(lib.getAbsolutePath());
+    if (extra != null) {
+      for (File lib : extra)
+	classpath.add(lib.getAbsolutePath());
+    }
+    classpath.add(jar.getAbsolutePath());
+
+    cmd = new ArrayList<>();
+    cmd.add(getJava());
+    cmd.add("-Djava.awt.headless=true");
+    cmd.add("-cp");
+    cmd.add(String.join(File.pathSeparator, classpath));
+    cmd.add(COMPILER);
+    cmd.add(flow.getAbsolutePath());
+    cmd.add(serialized.getAbsolutePath());
+
+    // the output goes to a file, reading the stream would block until the compiler exits
+    log = null;
+    try {
+      log     = File.createTempFile("preparse", ".log");
+      process = new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(log).start();
+      if (!process.waitFor(TIMEOUT, TimeUnit.MINUTES)) {
+	process.destroyForcibly();
+	return "Parsing of flow timed out after " + TIMEOUT + " minutes: " + flow;
+      }
+      exit   = process.exitValue();
+      output = new String(Files.readAllBytes(log.toPath()), Charset.defaultCharset()).trim();
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to execute flow compiler: " + cmd.get(0), e);
+      return "Failed to execute flow compiler: " + cmd.get(0);
+    }
+    finally {
+      if (log != null)
+	FileUtils.delete(log);
+    }
+
+    errors = new ArrayList<>();
+    for (String line : output.split("\n")) {
+      if (line.startsWith(PREFIX_ERROR))
+	errors.add(line.substring(PREFIX_ERROR.length()));
+      else if (line.startsWith(PREFIX_WARNING))
+	m_Warnings.add(line.substring(PREFIX_WARNING.length()));
+    }
+    if (exit == EXIT_UNSUPPORTED)
+      return null;
+    if (exit == EXIT_INVALID)
+      return "Flow failed validation: " + flow + "\n" + String.join("\n", errors);
+    if (exit == EXIT_FAILED)
+      return "Flow compiler failed: " + flow + "\n" + String.join("\n", errors);
+    if (exit != 0)
+      return "Flow compiler failed with exit code " + exit + ":\n" + output;
+
+    try {
+      Files.write(getDigestFile(serialized).toPath(), (digest(libraries) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to write digest for: " + serialized, e);
+      return "Failed to write digest for: " + serialized;
+    }
+
+    return null;
+  }
+}
@@ -0,0 +1,249 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * FlowWatcher.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the generator resident and watches the flow, the docker instructions,
+ * the dependency files and the external jars for changes. Only the phases
+ * affected by a change get rerun (see {@link Generator#regenerate(GeneratorResult, Set)}).
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class FlowWatcher {
+
+  /**
+   * The kind of change.
+   */
+  public enum Change {
+    /** the flow changed. */
+    FLOW,
+    /** the docker instructions changed. */
+    INSTRUCTIONS,
+    /** the dependency files or external jars changed. */
+    LIBRARIES,
+  }
+
+  /**
+   * A watched file or directory.
+   */
+  protected static class Target {
+
+    /** the file, null for any jar in the directory. */
+    protected Path m_File;
+
+    /** the change it triggers. */
+    protected Change m_Change;
+
+    /**
+     * Initializes the target.
+     *
+     * @param file	the file, null for any jar in the directory
+     * @param change	the change it triggers
+     */
+    public Target(Path file, Change change) {
+      m_File   = file;
+      m_Change = change;
+    }
+
+    /**
+     * Returns the file.
+     *
+     * @return		the file, null for any jar in the directory
+     */
+    public Path getFile() {
+      return m_File;
+    }
+
+    /**
+     * Returns the change it triggers.
+     *
+     * @return		the change
+     */
+    public Change getChange() {
+      return m_Change;
+    }
+  }
+
+  /** the time in msec to wait for further events (editors often write several times). */
+  public final static int DEBOUNCE = 50;
+
+  /** the generator to use. */
+  protected Generator m_Generator;
+
+  /** the result of the last run. */
+  protected GeneratorResult m_Result;
+
+  /** directory -&gt; targets. */
+  protected Map<Path,List<Target>> m_Targets;
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /**
+   * Initializes the watcher.
+   *
+   * @param generator	the generator to use
+   * @param result	the result of the initial run
+   */
+  public FlowWatcher(Generator generator, GeneratorResult result) {
+    m_Generator = generator;
+    m_Result    = result;
+    m_Targets   = new HashMap<>();
+  }
+
+  /**
+   * Returns the logger instance to use.
+   *
+   * @return		the logger
+   */
+  protected Logger getLogger() {
+    if (m_Logger == null)
+      m_Logger = Logger.getLogger(getClass().getName());
+    return m_Logger;
+  }
+
+  /**
+   * Adds the file or directory to watch.
+   *
+   * @param file	the file/dir, ignored if null
+   * @param change	the change it triggers
+   */
+  protected void add(File file, Change change) {
+    Path	path;
+
+    if (file == null)
+      return;
+    path = file.getAbsoluteFile().toPath().normalize();
+    if (file.isDirectory())
+      m_Targets.computeIfAbsent(path, (Path p) -> new ArrayList<>()).add(new Target(null, change));
+    else
+      m_Targets.computeIfAbsent(path.getParent(), (Path p) -> new ArrayList<>()).add(new Target(path, change));
+  }
+
+  /**
+   * Determines the changes that the events of the directory trigger.
+   *
+   * @param dir		the directory
+   * @param events	the events
+   * @param changes	the changes to add to
+   */
+  protected void determineChanges(Path dir, List<WatchEvent<?>> events, Set<Change> changes) {
+    Path	path;
+
+    for (WatchEvent<?> event : events) {
+      for (Target target : m_Targets.get(dir)) {
+	if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+	  changes.add(target.getChange());
+	  continue;
+	}
+	path = dir.resolve((Path) event.context());
+	if (target.getFile() == null) {
+	  if (path.getFileName().toString().toLowerCase().endsWith(".jar"))
+	    changes.add(target.getChange());
+	}
+	else if (target.getFile().equals(path)) {
+	  changes.add(target.getChange());
+	}
+      }
+    }
+  }
+
+  /**
+   * Watches the files and regenerates the output when they change. Only
+   * returns if watching fails or the thread gets interrupted; errors during
+   * regeneration get output, but do not stop the watching.
+   *
+   * @return		null if successful, otherwise error message
+   */
+  public String watch() {
+    GeneratorConfig	config;
+    Set<Change>		changes;
+    WatchKey		key;
+    long		start;
+
+    config = m_Generator.getConfig();
+    m_Targets.clear();
+    add(config.getInput(), Change.FLOW);
+    add(config.getDockerInstructions(), Change.INSTRUCTIONS);
+    if (config.getDependencyFiles() != null) {
+      for (File file : config.getDependencyFiles())
+	add(file, Change.LIBRARIES);
+    }
+    if (config.getExternalJars() != null) {
+      for (File file : config.getExternalJars())
+	add(file, Change.LIBRARIES);
+    }
+
+    try (WatchService service = FileSystems.getDefault().newWatchService()) {
+      for (Path dir : m_Targets.keySet())
+	dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+      System.out.println("Watching for changes, press Ctrl+C to stop...");
+
+      while (true) {
+	key     = service.take();
+	changes = EnumSet.noneOf(Change.class);
+	while (key != null) {
+	  determineChanges((Path) key.watchable(), key.pollEvents(), changes);
+	  key.reset();
+	  key = service.poll(DEBOUNCE, TimeUnit.MILLISECONDS);
+	}
+	if (changes.isEmpty())
+	  continue;
+	// editors may replace the file, i.e., it doesn't exist for a moment
+	if (!config.getInput().exists())
+	  continue;
+
+	start    = System.currentTimeMillis();
+	m_Result = m_Generator.regenerate(m_Result, changes);
+	for (String msg : m_Result.getWarnings())
+	  getLogger().warning(msg);
+	if (!m_Result.isSuccessful())
+	  System.err.println("Failed to regenerate " + changes + ": " + m_Result.getError());
+	else
+	  System.out.println("Regenerated " + changes + " in " + (System.currentTimeMillis() - start) + "ms");
+      }
+    }
+    catch (InterruptedException e) {
+      return null;
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to watch files!", e);
+      return "Failed to watch files!";
+    }
+  }
+}
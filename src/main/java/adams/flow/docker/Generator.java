@@ -0,0 +1,1364 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Generator.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import com.github.fracpete.resourceextractor4j.IOUtils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generates the Docker build context for an ADAMS workflow. The generator
+ * only holds the immutable {@link GeneratorConfig}, all the state of a run is
+ * kept in its {@link GeneratorResult}, i.e., a single instance can be used
+ * for parallel conversions from multiple threads (as long as the output
+ * directories differ). Nothing gets output on the console, informational
+ * messages and warnings are collected in the result instead.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class Generator {
+
+  /** the classpath in the image. */
+  public final static String CLASSPATH = "/adamsflow2docker/lib/*";
+
+  /** the configuration. */
+  protected final GeneratorConfig m_Config;
+
+  /**
+   * Initializes the generator.
+   *
+   * @param config	the configuration to use
+   */
+  public Generator(GeneratorConfig config) {
+    m_Config = config;
+  }
+
+  /**
+   * Returns the configuration.
+   *
+   * @return		the configuration
+   */
+  public GeneratorConfig getConfig() {
+    return m_Config;
+  }
+
+  /**
+   * Returns the logger instance to use.
+   *
+   * @return		the logger
+   */
+  protected Logger getLogger() {
+    return Logger.getLogger(getClass().getName());
+  }
+
+  /**
+   * Generates the lib directory based on the dependencies, using the cache
+   * if enabled.
+   *
+   * @param result	the result to update
+   * @return		null if successful, otherwise error message
+   */
+  protected String initLibraries(GeneratorResult result) {
+    BootstrapCache		cache;
+    BootstrapCache.Lock		lock;
+    String			key;
+    String			msg;
+    File			libDir;
+
+    if (m_Config.getCacheDir() == null) {
+      result.m_Metrics.set("source", "bootstrap");
+      return bootstrap(result);
+    }
+
+    // no hard links in reproducible mode, as the metadata gets normalized
+    cache    = new BootstrapCache(m_Config.getCacheDir(), m_Config.getCacheMaxSize() * 1024L * 1024L);
+    result.m_Stager = new FileStager(m_Config.getStaging(), !m_Config.getReproducible());
+    libDir = new File(m_Config.getOutputDir().getAbsolutePath() + "/target/lib");
+    try {
+      key  = BootstrapCache.computeKey(m_Config.getModules(), m_Config.getVersion(), m_Config.getDependencies(), m_Config.getDependencyFiles(), m_Config.getExternalJars());
+      lock = cache.lock(key);
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to lock cache entry in: " + m_Config.getCacheDir(), e);
+      return "Failed to lock cache entry in: " + m_Config.getCacheDir();
+    }
+
+    try {
+      if (cache.contains(key)) {
+	result.addMessage("Using cached libraries: " + cache.getEntryDir(key));
+	result.m_Metrics.set("source", "cache");
+	return cache.restore(key, libDir, result.m_Stager);
+      }
+      result.m_Metrics.set("source", "bootstrap");
+      if ((msg = bootstrap(result)) != null)
+	return msg;
+      return cache.store(key, libDir, result.m_Stager);
+    }
+    finally {
+      lock.release();
+    }
+  }
+
+  /**
+   * Populates the lib directory with the jars that got bootstrapped in
+   * another output directory with the same modules, version and dependencies.
+   *
+   * @param result	the result to update
+   * @param outputDir	the output directory to copy the jars from
+   * @return		null if successful, otherwise error message
+   */
+  protected String initLibraries(GeneratorResult result, File outputDir) {
+    File	source;
+    File	target;
+
+    source   = new File(outputDir.getAbsolutePath() + "/target/lib");
+    target   = new File(m_Config.getOutputDir().getAbsolutePath() + "/target/lib");
+    // no hard links in reproducible mode, as the metadata gets normalized
+    result.m_Stager = new FileStager(m_Config.getStaging(), !m_Config.getReproducible());
+    result.m_Metrics.set("source", "shared");
+    if (!FileUtils.delete(target) || !target.mkdirs())
+      return "Failed to initialize lib directory: " + target;
+
+    return result.m_Stager.stage(FileUtils.listJars(source), target);
+  }
+
+  /**
+   * Bootstraps the lib directory using Maven.
+   *
+   * @param result	the result to update
+   * @return		null if successful, otherwise error message
+   */
+  protected String bootstrap(GeneratorResult result) {
+    adams.bootstrap.Main		main;
+    String			msg;
+    long			start;
+
+    start = System.currentTimeMillis();
+    main  = new adams.bootstrap.Main()
+      .clean(true)
+      .modules(m_Config.getModules())
+      .version(m_Config.getVersion())
+      .dependencies(m_Config.getDependencies())
+      .externalJars(m_Config.getExternalJars())
+      .javaHome(m_Config.getJavaHome())
+      .mavenHome(m_Config.getMavenHome())
+      .mavenUserSettings(m_Config.getMavenUserSettings())
+      .outputDir(m_Config.getOutputDir());
+    msg   = main.execute();
+    result.m_Metrics.set("resolution_ms", System.currentTimeMillis() - start);
+
+    return msg;
+  }
+
+  /**
+   * Runs the phase and records its metrics.
+   *
+   * @param result	the result to record the metrics in
+   * @param name	the name of the phase
+   * @param phase	the phase to run
+   * @return		null if successful, otherwise error message
+   */
+  protected String runPhase(GeneratorResult result, String name, Supplier<String> phase) {
+    String	msg;
+
+    result.m_Metrics.start(name);
+    msg = null;
+    try {
+      msg = phase.get();
+    }
+    finally {
+      result.m_Metrics.stop(msg);
+    }
+
+    return msg;
+  }
+
+  /**
+   * Records the number and size of the jars for the current phase.
+   *
+   * @param result	the result to record the metrics in
+   */
+  protected void recordLibraries(GeneratorResult result) {
+    List<File>	jars;
+    long	size;
+
+    jars = listLibraries();
+    size = 0;
+    for (File jar : jars)
+      size += jar.length();
+    result.m_Metrics.set("jars", jars.size());
+    result.m_Metrics.set("bytes", size);
+  }
+
+  /**
+   * Returns all the jars of the application, either from the lib directory
+   * or from the directories of the docker layers.
+   *
+   * @return		the jars
+   */
+  protected List<File> listLibraries() {
+    List<File>	result;
+
+    result = FileUtils.listJars(new File(m_Config.getOutputDir().getAbsolutePath() + "/target/lib"));
+    for (LibraryLayers.Group group : LibraryLayers.Group.values())
+      result.addAll(FileUtils.listJars(LibraryLayers.getLayerDir(m_Config.getOutputDir(), group)));
+
+    return result;
+  }
+
+  /**
+   * Detects duplicate and conflicting jars and removes the duplicates,
+   * depending on the policy.
+   *
+   * @param result	the result to update
+   * @return		null if successful, otherwise error message
+   */
+  protected String initDuplicates(GeneratorResult result) {
+    LibraryDeduplicator	dedup;
+    String		msg;
+    File		report;
+
+    if (m_Config.getDuplicates() == LibraryDeduplicator.Policy.OFF)
+      return null;
+
+    dedup = new LibraryDeduplicator(m_Config.getDuplicates());
+    msg   = dedup.analyze(listLibraries());
+    if (msg == null)
+      msg = dedup.remove(m_Config.getOutputDir());
+
+    // only write a report if there are findings, removing one of a previous run
+    report = new File(m_Config.getOutputDir().getAbsolutePath() + "/" + LibraryDeduplicator.REPORT);
+    if (dedup.getDuplicates().isEmpty() && dedup.getVersions().isEmpty() && dedup.getConflicts().isEmpty()) {
+      FileUtils.delete(report);
+    }
+    else {
+      try {
+	Files.write(report.toPath(), dedup.generateReport(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+      }
+      catch (Exception e) {
+	getLogger().log(Level.SEVERE, "Failed to write " + report, e);
+	return "Failed to write " + report;
+      }
+    }
+    if (msg != null)
+      return msg;
+
+    if (!dedup.getRemoved().isEmpty())
+      result.addMessage("Removed " + dedup.getRemoved().size() + " duplicate jar(s), " + dedup.getRemovedSize() + " bytes, see: " + report);
+    else if (!dedup.getDuplicates().isEmpty())
+      result.addWarning(dedup.getDuplicates().size() + " duplicate jar(s) in the libraries, see: " + report);
+    if (!dedup.getVersions().isEmpty())
+      result.addWarning("Several versions of " + dedup.getVersions().size() + " artifact(s) in the libraries, see: " + report);
+    if (!dedup.getConflicts().isEmpty())
+      result.addWarning(dedup.getConflicts().size() + " pair(s) of jars with conflicting classes in the libraries, see: " + report);
+    result.m_Metrics.set("duplicates", dedup.getDuplicates().size());
+    result.m_Metrics.set("versions", dedup.getVersions().size());
+    result.m_Metrics.set("conflicts", dedup.getConflicts().size());
+    result.m_Metrics.set("jars_removed", dedup.getRemoved().size());
+    result.m_Metrics.set("bytes_removed", dedup.getRemovedSize());
+
+    return null;
+  }
+
+  /**
+   * Removes the jars that are not reachable from the workflow, if enabled.
+   *
+   * @param result	the result to update
+   * @return		null if successful, otherwise error message
+   */
+  protected String initPruning(GeneratorResult result) {
+    LibraryPruner	pruner;
+    JarIndex		index;
+    String		flow;
+    String		msg;
+    File		report;
+
+    if (!m_Config.getPrune())
+      return null;
+
+    pruner = new LibraryPruner(m_Config.getKeep());
+    index  = new JarIndex();
+    try {
+      flow = new String(Files.readAllBytes(m_Config.getInput().toPath()), StandardCharsets.UTF_8);
+      index.index(listLibraries());
+      msg = pruner.analyze(flow, index);
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to analyze libraries for pruning!", e);
+      return "Failed to analyze libraries for pruning!";
+    }
+    finally {
+      index.close();
+    }
+    if (msg != null)
+      return msg;
+    if ((msg = pruner.prune(index, m_Config.getOutputDir())) != null)
+      return msg;
+
+    report = new File(m_Config.getOutputDir().getAbsolutePath() + "/" + LibraryPruner.REPORT);
+    try {
+      Files.write(report.toPath(), pruner.generateReport(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to write " + report, e);
+      return "Failed to write " + report;
+    }
+    result.addMessage("Pruned " + pruner.getRemoved().size() + " jar(s), " + pruner.getRemovedSize() + " bytes, see: " + report);
+    result.m_Metrics.set("jars_removed", pruner.getRemoved().size());
+    result.m_Metrics.set("bytes_removed", pruner.getRemovedSize());
+
+    return null;
+  }
+
+  /**
+   * Repacks the jars for layer compression and class loading, if enabled.
+   *
+   * @param result	the result to update
+   * @return		null if successful, otherwise error message
+   */
+  protected String initRepack(GeneratorResult result) {
+    JarRepacker	repacker;
+    String	msg;
+    File	report;
+
+    if (m_Config.getRepack() == JarRepacker.Mode.OFF)
+      return null;
+
+    repacker = new JarRepacker(m_Config.getRepack(), m_Config.getStripJars());
+    if ((msg = repacker.repack(listLibraries())) != null)
+      return msg;
+
+    report = new File(m_Config.getOutputDir().getAbsolutePath() + "/" + JarRepacker.REPORT);
+    try {
+      Files.write(report.toPath(), repacker.generateReport(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to write " + report, e);
+      return "Failed to write " + report;
+    }
+    result.addMessage("Repacked jars: " + repacker.getSizeBefore() + " -> " + repacker.getSizeAfter() + " bytes, "
+      + "layer (gzip) " + repacker.getGzipBefore() + " -> " + repacker.getGzipAfter() + " bytes, "
+      + "reading classes " + repacker.getReadBefore() + " -> " + repacker.getReadAfter() + "ms, see: " + report);
+    result.m_Metrics.set("bytes_before", repacker.getSizeBefore());
+    result.m_Metrics.set("bytes", repacker.getSizeAfter());
+    result.m_Metrics.set("gzip_before", repacker.getGzipBefore());
+    result.m_Metrics.set("gzip", repacker.getGzipAfter());
+    result.m_Metrics.set("read_ms_before", repacker.getReadBefore());
+    result.m_Metrics.set("read_ms", repacker.getReadAfter());
+    result.m_Metrics.set("jars_removed", repacker.getRemoved().size());
+    result.m_Metrics.set("stripped", repacker.getStripped());
+
+    return null;
+  }
+
+  /**
+   * Moves the jars from the lib directory into the directories of their
+   * docker layers, if layers are to be used.
+   *
+   * @param result	the result to update
+   * @return		null if successful, otherwise error message
+   */
+  protected String initLayers(GeneratorResult result) {
+    LibraryLayers	layers;
+    String		msg;
+
+    if (!m_Config.getLayered())
+      return null;
+
+    layers = new LibraryLayers(m_Config.getVersion(), m_Config.getDependencies(), m_Config.getExternalJars());
+    if (m_Config.getDependencyFiles() != null) {
+      for (File file : m_Config.getDependencyFiles()) {
+	if ((msg = layers.addDependencies(file)) != null)
+	  return msg;
+      }
+    }
+
+    if ((msg = layers.stage(new File(m_Config.getOutputDir().getAbsolutePath() + "/target/lib"), m_Config.getOutputDir())) != null)
+      return msg;
+    recordLibraries(result);
+
+    return null;
+  }
+
+  /**
+   * Copies the flow into the output directory for docker.
+   *
+   * @param result	the result to update
+   * @return		null if successful, otherwise error message
+   */
+  protected String initFlow(GeneratorResult result) {
+    File 	flowFile;
+    FileStager	stager;
+    String	msg;
+
+    // no hard links, as metadata gets normalized and the flow may get edited
+    flowFile = new File(m_Config.getOutputDir() + "/worker.flow");
+    stager   = new FileStager(m_Config.getStaging(), false);
+    if ((msg = stager.stage(m_Config.getInput(), flowFile)) != null)
+      return msg;
+    if (m_Config.getMetricsPort() > 0) {
+      try {
+	if ((msg = MetricsAgent.injectListener(flowFile)) != null)
+	  result.addWarning(msg);
+      }
+      catch (Exception e) {
+	getLogger().log(Level.SEVERE, "Failed to set metrics listener in: " + flowFile, e);
+	return "Failed to set metrics listener in: " + flowFile;
+      }
+    }
+    result.m_Metrics.set("bytes", flowFile.length());
+
+    return null;
+  }
+
+  /**
+   * Copies the flow into the output directory for docker.
+   *
+   * @param result	the result to update
+   * @return		null if successful, otherwise error message
+   */
+  protected String initPlaceholders(GeneratorResult result) {
+    Properties		props;
+    File		propsFile;
+    FileWriter		fwriter;
+    BufferedWriter	bwriter;
+
+    props = new Properties();
+    props.setProperty("CWD", "/adamsflow2docker");
+    props.setProperty("TMP", "/tmp");
+
+    propsFile = new File(m_Config.getOutputDir() + "/Placeholders.props");
+    if (m_Config.getReproducible()) {
+      try {
+	ReproducibleContext.storeProperties(props, propsFile);
+      }
+      catch (Exception e) {
+	getLogger().log(Level.SEVERE, "Failed to store placeholders in: " + propsFile, e);
+	return "Failed to store placeholders in: " + propsFile;
+      }
+      return null;
+    }
+
+    fwriter   = null;
+    bwriter   = null;
+    try {
+      fwriter = new FileWriter(propsFile);
+      bwriter = new BufferedWriter(fwriter);
+      props.store(bwriter, null);
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to store placeholders in: " + propsFile, e);
+      return "Failed to store placeholders in: " + propsFile;
+    }
+    finally {
+      IOUtils.closeQuietly(bwriter);
+      IOUtils.closeQuietly(fwriter);
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns the serialized flow in the output directory.
+   *
+   * @return		the file, may not exist
+   */
+  protected File getSerializedFlow() {
+    return FlowPreparser.getSerialized(new File(m_Config.getOutputDir() + "/worker.flow"));
+  }
+
+  /**
+   * Returns the main class and its options for running the workflow.
+   *
+   * @return		the main class and options
+   */
+  protected List<String> getRunner() {
+    return getRunner(WorkerLauncher.HOME);
+  }
+
+  /**
+   * Returns the classpath for running the workflow in the image.
+   *
+   * @return		the classpath
+   */
+  protected String getClasspath() {
+    if (m_Config.getPreparse())
+      return CLASSPATH + ":" + WorkerLauncher.HOME + "/" + FlowPreparser.JAR;
+    else
+      return CLASSPATH;
+  }
+
+  /**
+   * Returns the main class and its options for running the workflow.
+   *
+   * @param home	the ADAMS home directory, null to omit (the launcher uses one per worker)
+   * @return		the main class and options
+   */
+  protected List<String> getRunner(String home) {
+    List<String>	result;
+
+    result = new ArrayList<>();
+    result.add(m_Config.getPreparse() ? FlowPreparser.RUNNER : "adams.flow.FlowRunner");
+    result.add("-headless");
+    result.add("true");
+    result.add("-non-interactive");
+    result.add("true");
+    result.add("-clean-up");
+    result.add("true");
+    if (home != null) {
+      result.add("-home");
+      result.add(home);
+    }
+    result.add("-input");
+    result.add("/adamsflow2docker/worker.flow");
+
+    return result;
+  }
+
+  /**
+   * Returns the command for running the workflow in the image.
+   *
+   * @return		the command
+   */
+  protected List<String> getCommand() {
+    List<String>	result;
+
+    result = new ArrayList<>();
+    if (m_Config.getJvmProfile() != JvmProfile.Profile.NONE) {
+      result.add("sh");
+      result.add(WorkerLauncher.HOME + "/" + JvmProfile.SCRIPT);
+    }
+    if (m_Config.getWorkers() != 1) {
+      result.add("sh");
+      result.add(WorkerLauncher.HOME + "/" + WorkerLauncher.SCRIPT);
+      return result;
+    }
+    if (m_Config.getEventTrigger()) {
+      result.add("sh");
+      result.add(WorkerLauncher.HOME + "/" + EventTrigger.SCRIPT);
+    }
+    result.add("java");
+    result.add("-cp");
+    result.add(getClasspath());
+    if (m_Config.getAppCDS())
+      result.add("-XX:SharedArchiveFile=" + AppCDS.ARCHIVE);
+    if (m_Config.getJvm() != null)
+      result.addAll(m_Config.getJvm());
+    if (m_Config.getMetricsPort() > 0)
+      result.add(MetricsAgent.getAgentOption("" + m_Config.getMetricsPort()));
+    result.addAll(getRunner());
+
+    return result;
+  }
+
+  /**
+   * Writes the script for generating the AppCDS archive, if enabled.
+   *
+   * @param result	the result to update
+   * @return		null if successful, otherwise error message
+   */
+  protected String initAppCDS(GeneratorResult result) {
+    File	script;
+
+    if (!m_Config.getAppCDS())
+      return null;
+
+    script = new File(m_Config.getOutputDir().getAbsolutePath() + "/" + AppCDS.SCRIPT);
+    try {
+      Files.write(script.toPath(), AppCDS.generateScript(getClasspath(), m_Config.getJvm(), getRunner(), m_Config.getAppCDSTraining()), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to write " + script, e);
+      return "Failed to write " + script;
+    }
+    result.m_Metrics.set("bytes", script.length());
+
+    return null;
+  }
+
+  /**
+   * Writes the launcher script for running multiple workers, if enabled.
+   *
+   * @param result	the result to update
+   * @return		null if successful, otherwise error message
+   */
+  protected String initLauncher(GeneratorResult result) {
+    List<String>	jvm;
+    File		script;
+
+    if (m_Config.getWorkers() == 1)
+      return null;
+
+    jvm = new ArrayList<>();
+    if (m_Config.getAppCDS())
+      jvm.add("-XX:SharedArchiveFile=" + AppCDS.ARCHIVE);
+    if (m_Config.getJvm() != null)
+      jvm.addAll(m_Config.getJvm());
+    script = new File(m_Config.getOutputDir().getAbsolutePath() + "/" + WorkerLauncher.SCRIPT);
+    try {
+      Files.write(script.toPath(), WorkerLauncher.generateScript(getClasspath(), jvm, getRunner(null), m_Config.getWorkers(), m_Config.getEventTrigger(), m_Config.getMetricsPort()), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to write " + script, e);
+      return "Failed to write " + script;
+    }
+    result.m_Metrics.set("bytes", script.length());
+
+    return null;
+  }
+
+  /**
+   * Writes the jar and the wrapper script of the event-driven trigger, if
+   * enabled.
+   *
+   * @param result	the result to update
+   * @return		null if successful, otherwise error message
+   */
+  protected String initTrigger(GeneratorResult result) {
+    File	script;
+    File	jar;
+    String	msg;
+
+    if (!m_Config.getEventTrigger())
+      return null;
+
+    script = new File(m_Config.getOutputDir().getAbsolutePath() + "/" + EventTrigger.SCRIPT);
+    jar    = new File(m_Config.getOutputDir().getAbsolutePath() + "/" + EventTrigger.JAR);
+    try {
+      Files.write(script.toPath(), EventTrigger.generateScript(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+      if ((msg = EventTrigger.writeJar(jar)) != null)
+	return msg;
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to write event trigger to: " + m_Config.getOutputDir(), e);
+      return "Failed to write event trigger to: " + m_Config.getOutputDir();
+    }
+    result.m_Metrics.set("bytes", script.length() + jar.length());
+
+    return null;
+  }
+
+  /**
+   * Writes the wrapper script that applies the JVM profile, if enabled.
+   *
+   * @param result	the result to update
+   * @return		null if successful, otherwise error message
+   */
+  protected String initJvmProfile(GeneratorResult result) {
+    File	script;
+
+    if (m_Config.getJvmProfile() == JvmProfile.Profile.NONE)
+      return null;
+
+    script = new File(m_Config.getOutputDir().getAbsolutePath() + "/" + JvmProfile.SCRIPT);
+    try {
+      Files.write(script.toPath(), JvmProfile.generateScript(m_Config.getJvmProfile(), m_Config.getJvm()), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to write " + script, e);
+      return "Failed to write " + script;
+    }
+    result.m_Metrics.set("profile", m_Config.getJvmProfile().getName());
+    result.m_Metrics.set("bytes", script.length());
+
+    return null;
+  }
+
+  /**
+   * Writes the jar with the agent for the metrics endpoint, if enabled.
+   *
+   * @param result	the result to update
+   * @return		null if successful, otherwise error message
+   */
+  protected String initMetricsAgent(GeneratorResult result) {
+    File	jar;
+    String	msg;
+
+    if (m_Config.getMetricsPort() <= 0)
+      return null;
+
+    jar = new File(m_Config.getOutputDir().getAbsolutePath() + "/" + MetricsAgent.JAR);
+    try {
+      if ((msg = MetricsAgent.writeJar(jar)) != null)
+	return msg;
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to write " + jar, e);
+      return "Failed to write " + jar;
+    }
+    result.m_Metrics.set("bytes", jar.length());
+
+    return null;
+  }
+
+  /**
+   * Parses and validates the flow with the libraries of the image and writes
+   * the serialized flow, if enabled.
+   *
+   * @param result	the result to update
+   * @return		null if successful, otherwise error message
+   */
+  protected String initPreparse(GeneratorResult result) {
+    FlowPreparser	preparser;
+    List<File>		extra;
+    File		jar;
+    File		flowFile;
+    String		msg;
+
+    flowFile = new File(m_Config.getOutputDir() + "/worker.flow");
+    if (!m_Config.getPreparse()) {
+      FileUtils.delete(FlowPreparser.getSerialized(flowFile));
+      FileUtils.delete(FlowPreparser.getDigestFile(FlowPreparser.getSerialized(flowFile)));
+      return null;
+    }
+
+    jar = new File(m_Config.getOutputDir().getAbsolutePath() + "/" + FlowPreparser.JAR);
+    try {
+      if ((msg = FlowPreparser.writeJar(jar)) != null)
+	return msg;
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to write " + jar, e);
+      return "Failed to write " + jar;
+    }
+
+    extra = new ArrayList<>();
+    if (m_Config.getMetricsPort() > 0)
+      extra.add(new File(m_Config.getOutputDir().getAbsolutePath() + "/" + MetricsAgent.JAR));
+    preparser = new FlowPreparser(m_Config.getJavaHome());
+    msg       = preparser.preparse(jar, listLibraries(), extra, flowFile);
+    for (String warning : preparser.getWarnings())
+      result.addWarning(warning);
+    if (msg != null)
+      return msg;
+    result.m_Metrics.set("serialized", FlowPreparser.getSerialized(flowFile).exists());
+    result.m_Metrics.set("bytes", FlowPreparser.getSerialized(flowFile).length());
+
+    return null;
+  }
+
+  /**
+   * Reads the additional docker instructions, if any.
+   *
+   * @param content	the list to add the instructions to
+   * @return		null if successful, otherwise error message
+   */
+  protected String readDockerInstructions(List<String> content) {
+    if ((m_Config.getDockerInstructions() != null) && (m_Config.getDockerInstructions().exists()) && !m_Config.getDockerInstructions().isDirectory()) {
+      try {
+        content.addAll(Files.readAllLines(m_Config.getDockerInstructions().toPath()));
+      }
+      catch (Exception e) {
+        getLogger().log(Level.SEVERE, "Failed to read docker instructions from: " + m_Config.getDockerInstructions(), e);
+        return "Failed to read docker instructions from: " + m_Config.getDockerInstructions();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Creates the Dockerfile.
+   *
+   * @param result	the result to update
+   * @return		null if successful, otherwise error message
+   */
+  protected String createDockerfile(GeneratorResult result) {
+    List<String>	content;
+    List<String>	cmd;
+    List<String>	modules;
+    List<String>	libs;
+    StringBuilder	cmdLine;
+    JLink		jlink;
+    String		msg;
+    int			i;
+
+    content      = new ArrayList<>();
+    result.m_DockerFile = new File(m_Config.getOutputDir().getAbsolutePath() + "/Dockerfile");
+
+    libs = new ArrayList<>();
+    if (m_Config.getLayered()) {
+      for (LibraryLayers.Group group : LibraryLayers.getStagedGroups(m_Config.getOutputDir()))
+	libs.add(LibraryLayers.LAYERS_DIR + "/" + group.getDirName() + "/*");
+    }
+    else {
+      libs.add("target/lib/*");
+    }
+
+    if (m_Config.getJLink()) {
+      modules = new ArrayList<>();
+      if (m_Config.getJLinkModules() != null)
+	modules.addAll(m_Config.getJLinkModules());
+      if (m_Config.getMetricsPort() > 0)
+	modules.addAll(Arrays.asList(MetricsAgent.MODULES));
+      jlink = new JLink(modules);
+      content.addAll(jlink.generateBuildStage(m_Config.getDockerBaseImage(), libs));
+      content.addAll(jlink.generateRuntimeStage(m_Config.getRuntimeImage()));
+    }
+    else {
+      content.add("FROM " + m_Config.getDockerBaseImage());
+    }
+    if ((msg = readDockerInstructions(content)) != null)
+      return msg;
+
+    for (String lib : libs)
+      content.add("COPY \"" + lib + "\" /adamsflow2docker/lib/");
+    content.add("COPY Placeholders.props /adamsflow2docker/Placeholders.props");
+    content.add("COPY worker.flow /adamsflow2docker/worker.flow");
+    if (m_Config.getPreparse()) {
+      content.add("COPY " + FlowPreparser.JAR + " /adamsflow2docker/" + FlowPreparser.JAR);
+      if (getSerializedFlow().exists())
+	content.add("COPY worker" + FlowPreparser.EXT + " worker" + FlowPreparser.EXT + FlowPreparser.DIGEST_EXT + " /adamsflow2docker/");
+    }
+
+    if (m_Config.getAppCDS()) {
+      content.add("COPY " + AppCDS.SCRIPT + " /adamsflow2docker/" + AppCDS.SCRIPT);
+      content.add("RUN sh /adamsflow2docker/" + AppCDS.SCRIPT);
+    }
+    if (m_Config.getEventTrigger()) {
+      content.add("COPY " + EventTrigger.JAR + " /adamsflow2docker/" + EventTrigger.JAR);
+      content.add("COPY " + EventTrigger.SCRIPT + " /adamsflow2docker/" + EventTrigger.SCRIPT);
+    }
+    if (m_Config.getWorkers() != 1)
+      content.add("COPY " + WorkerLauncher.SCRIPT + " /adamsflow2docker/" + WorkerLauncher.SCRIPT);
+    if (m_Config.getJvmProfile() != JvmProfile.Profile.NONE)
+      content.add("COPY " + JvmProfile.SCRIPT + " /adamsflow2docker/" + JvmProfile.SCRIPT);
+    if (m_Config.getMetricsPort() > 0) {
+      content.add("COPY " + MetricsAgent.JAR + " /adamsflow2docker/" + MetricsAgent.JAR);
+      content.add("EXPOSE " + m_Config.getMetricsPort());
+      content.add(MetricsAgent.generateHealthcheck(m_Config.getMetricsPort()));
+    }
+
+    cmd     = getCommand();
+    cmdLine = new StringBuilder();
+    cmdLine.append("CMD [");
+    for (i = 0; i < cmd.size(); i++) {
+      if (i > 0)
+        cmdLine.append(", ");
+      cmdLine.append("\"");
+      cmdLine.append(cmd.get(i));
+      cmdLine.append("\"");
+    }
+    cmdLine.append("]");
+    content.add(cmdLine.toString());
+
+    try {
+      Files.write(result.m_DockerFile.toPath(), content, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to write " + result.m_DockerFile, e);
+      return "Failed to write " + result.m_DockerFile;
+    }
+    result.m_DockerFileContent = String.join("\n", content) + "\n";
+    result.m_Metrics.set("bytes", result.m_DockerFile.length());
+
+    return null;
+  }
+
+  /**
+   * Returns the files of the build context, i.e., the ones that the
+   * Dockerfile references.
+   *
+   * @param result	the result with the generated Dockerfile
+   * @return		the files
+   */
+  protected List<File> listContextFiles(GeneratorResult result) {
+    List<File>	files;
+
+    files = new ArrayList<>();
+    files.add(result.m_DockerFile);
+    files.addAll(listLibraries());
+    files.add(new File(m_Config.getOutputDir(), "Placeholders.props"));
+    files.add(new File(m_Config.getOutputDir(), "worker.flow"));
+    if (m_Config.getPreparse()) {
+      files.add(new File(m_Config.getOutputDir(), FlowPreparser.JAR));
+      if (getSerializedFlow().exists()) {
+	files.add(getSerializedFlow());
+	files.add(FlowPreparser.getDigestFile(getSerializedFlow()));
+      }
+    }
+    if (m_Config.getAppCDS())
+      files.add(new File(m_Config.getOutputDir(), AppCDS.SCRIPT));
+    if (m_Config.getEventTrigger()) {
+      files.add(new File(m_Config.getOutputDir(), EventTrigger.JAR));
+      files.add(new File(m_Config.getOutputDir(), EventTrigger.SCRIPT));
+    }
+    if (m_Config.getWorkers() != 1)
+      files.add(new File(m_Config.getOutputDir(), WorkerLauncher.SCRIPT));
+    if (m_Config.getJvmProfile() != JvmProfile.Profile.NONE)
+      files.add(new File(m_Config.getOutputDir(), JvmProfile.SCRIPT));
+    if (m_Config.getMetricsPort() > 0)
+      files.add(new File(m_Config.getOutputDir(), MetricsAgent.JAR));
+
+    return files;
+  }
+
+  /**
+   * Normalizes the build context and writes the manifest of content hashes,
+   * if enabled.
+   *
+   * @param result	the result to update
+   * @return		null if successful, otherwise error message
+   */
+  protected String initReproducible(GeneratorResult result) {
+    String	msg;
+
+    result.m_Context = null;
+    if (!m_Config.getReproducible())
+      return null;
+
+    result.m_Context = new ReproducibleContext(m_Config.getOutputDir());
+    if ((msg = result.m_Context.process(listContextFiles(result))) != null)
+      return msg;
+    if (result.m_Context.isUnchanged())
+      result.addMessage("Build context unchanged since last run (" + result.m_Context.getDigest() + "), see: " + ReproducibleContext.UNCHANGED);
+    else
+      result.addMessage("Build context digest: " + result.m_Context.getDigest());
+    result.m_Metrics.set("files", result.m_Context.getHashes().size());
+    result.m_Metrics.set("unchanged", result.m_Context.isUnchanged());
+
+    return null;
+  }
+
+  /**
+   * Writes the .dockerignore that restricts the build context to the files
+   * that the Dockerfile references (including the sources of COPY/ADD in the
+   * custom docker instructions) and streams these files as tar archive,
+   * if enabled.
+   *
+   * @param result	the result to update
+   * @return		null if successful, otherwise error message
+   */
+  protected String initContext(GeneratorResult result) {
+    ContextArchive	archive;
+    List<File>		files;
+    List<String>	instructions;
+    List<String>	sources;
+    Set<File>		listed;
+    long		size;
+    String		msg;
+
+    archive      = new ContextArchive(m_Config.getOutputDir(), (result.m_Context != null) ? result.m_Context.getTimestamp() : System.currentTimeMillis() / 1000);
+    files        = listContextFiles(result);
+    instructions = new ArrayList<>();
+    if ((msg = readDockerInstructions(instructions)) != null)
+      return msg;
+    sources = ContextArchive.parseSources(instructions);
+    try {
+      listed = new HashSet<>();
+      for (File file : files)
+	listed.add(file.getAbsoluteFile());
+      for (File file : archive.resolveSources(sources)) {
+	if (listed.add(file.getAbsoluteFile()))
+	  files.add(file);
+      }
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to list sources of docker instructions: " + sources, e);
+      return "Failed to list sources of docker instructions: " + sources;
+    }
+    if ((msg = archive.writeDockerIgnore(files, sources)) != null)
+      return msg;
+    size = 0;
+    for (File file : files)
+      size += file.length();
+    result.m_Metrics.set("files", files.size());
+    result.m_Metrics.set("bytes", size);
+    result.m_Metrics.set("output_dir_bytes", FileUtils.size(m_Config.getOutputDir()));
+
+    if (m_Config.getContextTar() == null)
+      return null;
+    if ((msg = archive.write(files, m_Config.getContextTar())) != null)
+      return msg;
+    if (!ContextArchive.isStdout(m_Config.getContextTar()))
+      result.addMessage("Wrote build context (" + files.size() + " files) to " + m_Config.getContextTar());
+    result.m_Metrics.set("archive_bytes", archive.getWritten());
+
+    return null;
+  }
+
+  /**
+   * Writes the image as OCI image layout, if enabled.
+   *
+   * @param result	the result to update
+   * @return		null if successful, otherwise error message
+   */
+  protected String createOciImage(GeneratorResult result) {
+    OciImageWriter		writer;
+    OciImageWriter.Layer	layer;
+    List<String>		instructions;
+    String			msg;
+
+    if (m_Config.getOciOutput() == null)
+      return null;
+
+    writer       = new OciImageWriter(m_Config.getOciBase(), m_Config.getOciOutput(), m_Config.getOciTag());
+    if (result.m_Context != null) {
+      writer.setTimestamp(result.m_Context.getTimestamp());
+      writer.setHashes(result.m_Context.getHashes());
+    }
+    instructions = new ArrayList<>();
+    if ((msg = readDockerInstructions(instructions)) != null)
+      return msg;
+    if ((msg = writer.applyInstructions(instructions)) != null)
+      return msg;
+
+    // libraries, from least to most volatile
+    if (m_Config.getLayered()) {
+      for (LibraryLayers.Group group : LibraryLayers.getStagedGroups(m_Config.getOutputDir())) {
+	layer = new OciImageWriter.Layer("COPY " + LibraryLayers.LAYERS_DIR + "/" + group.getDirName() + "/* /adamsflow2docker/lib/");
+	for (File jar : FileUtils.listJars(LibraryLayers.getLayerDir(m_Config.getOutputDir(), group)))
+	  layer.add("/adamsflow2docker/lib/" + jar.getName(), jar);
+	writer.addLayer(layer);
+      }
+    }
+    else {
+      layer = new OciImageWriter.Layer("COPY target/lib/* /adamsflow2docker/lib/");
+      for (File jar : FileUtils.listJars(new File(m_Config.getOutputDir().getAbsolutePath() + "/target/lib")))
+	layer.add("/adamsflow2docker/lib/" + jar.getName(), jar);
+      writer.addLayer(layer);
+    }
+    writer.addLayer(new OciImageWriter.Layer("COPY Placeholders.props /adamsflow2docker/Placeholders.props")
+      .add("/adamsflow2docker/Placeholders.props", new File(m_Config.getOutputDir(), "Placeholders.props")));
+    writer.addLayer(new OciImageWriter.Layer("COPY worker.flow /adamsflow2docker/worker.flow")
+      .add("/adamsflow2docker/worker.flow", new File(m_Config.getOutputDir(), "worker.flow")));
+    if (m_Config.getPreparse()) {
+      layer = new OciImageWriter.Layer("COPY pre-parsed flow")
+	.add("/adamsflow2docker/" + FlowPreparser.JAR, new File(m_Config.getOutputDir(), FlowPreparser.JAR));
+      if (getSerializedFlow().exists()) {
+	layer.add("/adamsflow2docker/" + getSerializedFlow().getName(), getSerializedFlow());
+	layer.add("/adamsflow2docker/" + FlowPreparser.getDigestFile(getSerializedFlow()).getName(), FlowPreparser.getDigestFile(getSerializedFlow()));
+      }
+      writer.addLayer(layer);
+    }
+    if (m_Config.getEventTrigger()) {
+      writer.addLayer(new OciImageWriter.Layer("COPY event trigger")
+	.add("/adamsflow2docker/" + EventTrigger.JAR, new File(m_Config.getOutputDir(), EventTrigger.JAR))
+	.add("/adamsflow2docker/" + EventTrigger.SCRIPT, new File(m_Config.getOutputDir(), EventTrigger.SCRIPT)));
+    }
+    if (m_Config.getWorkers() != 1) {
+      writer.addLayer(new OciImageWriter.Layer("COPY " + WorkerLauncher.SCRIPT + " /adamsflow2docker/" + WorkerLauncher.SCRIPT)
+	.add("/adamsflow2docker/" + WorkerLauncher.SCRIPT, new File(m_Config.getOutputDir(), WorkerLauncher.SCRIPT)));
+    }
+    if (m_Config.getJvmProfile() != JvmProfile.Profile.NONE) {
+      writer.addLayer(new OciImageWriter.Layer("COPY " + JvmProfile.SCRIPT + " /adamsflow2docker/" + JvmProfile.SCRIPT)
+	.add("/adamsflow2docker/" + JvmProfile.SCRIPT, new File(m_Config.getOutputDir(), JvmProfile.SCRIPT)));
+    }
+    if (m_Config.getMetricsPort() > 0) {
+      writer.addLayer(new OciImageWriter.Layer("COPY " + MetricsAgent.JAR + " /adamsflow2docker/" + MetricsAgent.JAR)
+	.add("/adamsflow2docker/" + MetricsAgent.JAR, new File(m_Config.getOutputDir(), MetricsAgent.JAR)));
+      writer.addExposedPort("" + m_Config.getMetricsPort());
+      writer.setHealthcheck(
+	MetricsAgent.getHealthcheckCommand(m_Config.getMetricsPort()),
+	MetricsAgent.HEALTHCHECK_INTERVAL, MetricsAgent.HEALTHCHECK_TIMEOUT,
+	MetricsAgent.HEALTHCHECK_START_PERIOD, MetricsAgent.HEALTHCHECK_RETRIES);
+    }
+    writer.setCmd(getCommand());
+
+    if ((msg = writer.write()) != null)
+      return msg;
+    result.addMessage("Wrote OCI image to " + m_Config.getOciOutput() + ", reused " + writer.getReused() + " layer(s)");
+    result.m_Metrics.set("layers", writer.getLayers().size());
+    result.m_Metrics.set("layers_reused", writer.getReused());
+    result.m_Metrics.set("bytes", writer.getBytesWritten());
+
+    return null;
+  }
+
+  /**
+   * Sets up the graph of the generation phases, recording their metrics.
+   * The flow, placeholders and scripts wait for the resolution of the
+   * libraries, as the bootstrapping cleans the output directory, and overlap
+   * with the processing of the libraries (duplicates, pruning, repacking,
+   * layers). The Dockerfile needs the final layout of the libraries and
+   * the pre-parsed flow, the build context everything.
+   *
+   * @param result	the result to update
+   * @param libraries	the phase for the libraries, null if already resolved
+   * @return		the graph
+   */
+  protected PhaseGraph createPhases(GeneratorResult result, Supplier<String> libraries) {
+    PhaseGraph	graph;
+    String[]	resolved;
+    String[]	all;
+
+    graph    = new PhaseGraph();
+    resolved = new String[0];
+    if (libraries != null) {
+      graph.add(Metrics.LIBRARIES, () -> runPhase(result, Metrics.LIBRARIES, libraries));
+      resolved = new String[]{Metrics.LIBRARIES};
+    }
+
+    // removes duplicate jars, detects conflicts
+    graph.add("duplicates", () -> runPhase(result, "duplicates", () -> initDuplicates(result)), resolved);
+
+    // removes jars not reachable from the workflow
+    graph.add("pruning", () -> runPhase(result, "pruning", () -> initPruning(result)), "duplicates");
+
+    // repacks the jars
+    graph.add("repack", () -> runPhase(result, "repack", () -> initRepack(result)), "pruning");
+
+    // splits the libraries into docker layers
+    graph.add("layers", () -> runPhase(result, "layers", () -> initLayers(result)), "repack");
+
+    // copies the flow
+    graph.add("flow", () -> runPhase(result, "flow", () -> initFlow(result)), resolved);
+
+    // creates the placeholders to use in the docker image
+    graph.add("placeholders", () -> runPhase(result, "placeholders", () -> initPlaceholders(result)), resolved);
+
+    // creates the script for the AppCDS archive
+    graph.add("appcds", () -> runPhase(result, "appcds", () -> initAppCDS(result)), resolved);
+
+    // creates the event-driven trigger
+    graph.add("trigger", () -> runPhase(result, "trigger", () -> initTrigger(result)), resolved);
+
+    // creates the agent for the metrics endpoint
+    graph.add("metrics_agent", () -> runPhase(result, "metrics_agent", () -> initMetricsAgent(result)), resolved);
+
+    // validates the flow and serializes it
+    graph.add("preparse", () -> runPhase(result, "preparse", () -> initPreparse(result)), "layers", "flow", "metrics_agent");
+
+    // writes the wrapper for the JVM profile
+    graph.add("jvm_profile", () -> runPhase(result, "jvm_profile", () -> initJvmProfile(result)), resolved);
+
+    // creates the launcher for multiple workers
+    graph.add("launcher", () -> runPhase(result, "launcher", () -> initLauncher(result)), resolved);
+
+    // generate Dockerfile
+    graph.add("dockerfile", () -> runPhase(result, "dockerfile", () -> createDockerfile(result)), "layers", "preparse");
+
+    // normalizes the build context
+    all = graph.getPhases().toArray(new String[0]);
+    graph.add("reproducible", () -> runPhase(result, "reproducible", () -> initReproducible(result)), all);
+
+    // restricts the build context to the referenced files
+    graph.add("context", () -> runPhase(result, "context", () -> initContext(result)), "reproducible");
+
+    // write OCI image layout
+    graph.add("oci", () -> runPhase(result, "oci", () -> createOciImage(result)), "reproducible");
+
+    return graph;
+  }
+
+  /**
+   * Runs the generation phases, recording their metrics.
+   *
+   * @param result	the result to update
+   * @return		null if successful, otherwise error message
+   */
+  protected String generatePhases(GeneratorResult result) {
+    return createPhases(result, null).execute(m_Config.getPhaseThreads());
+  }
+
+  /**
+   * Writes the metrics report and pushes the metrics, if an endpoint is set.
+   * Failing to push only results in a warning.
+   *
+   * @param result	the result with the metrics
+   * @return		null if successful, otherwise error message
+   */
+  protected String writeMetrics(GeneratorResult result) {
+    String	msg;
+    String	push;
+
+    msg = result.m_Metrics.write(result.getMetricsFile());
+    if (m_Config.getMetricsEndpoint() != null) {
+      if ((push = result.m_Metrics.push(m_Config.getMetricsEndpoint())) != null)
+	result.addWarning(push);
+    }
+
+    return msg;
+  }
+
+  /**
+   * Sets the error (if any) and writes the metrics.
+   *
+   * @param result	the result to finish
+   * @param error	the error, null if successful
+   * @return		the result
+   */
+  protected GeneratorResult finish(GeneratorResult result, String error) {
+    String	msg;
+
+    msg            = writeMetrics(result);
+    result.m_Error = (error != null) ? error : msg;
+
+    return result;
+  }
+
+  /**
+   * Generates the lib directory and records the libraries and the staging
+   * statistics.
+   *
+   * @param result	the result to update
+   * @return		null if successful, otherwise error message
+   */
+  protected String resolve(GeneratorResult result) {
+    String	msg;
+
+    msg = initLibraries(result);
+    if (msg == null)
+      recordLibraries(result);
+    if (result.m_Stager != null)
+      result.m_Stager.record(result.m_Metrics);
+
+    return msg;
+  }
+
+  /**
+   * Generates the lib directory based on the dependencies, using the cache
+   * if enabled. Use {@link #generate(GeneratorResult)} to perform the
+   * remaining phases.
+   *
+   * @return		the result
+   */
+  public GeneratorResult resolveLibraries() {
+    GeneratorResult	result;
+    String		msg;
+
+    result = new GeneratorResult(m_Config);
+    if ((msg = m_Config.check()) != null) {
+      result.m_Error = msg;
+      return result;
+    }
+    msg = runPhase(result, Metrics.LIBRARIES, () -> resolve(result));
+    if (msg != null)
+      return finish(result, msg);
+
+    return result;
+  }
+
+  /**
+   * Populates the lib directory with the jars that got bootstrapped in
+   * another output directory with the same modules, version and dependencies.
+   * Use {@link #generate(GeneratorResult)} to perform the remaining phases.
+   *
+   * @param outputDir	the output directory to copy the jars from
+   * @return		the result
+   */
+  public GeneratorResult resolveLibraries(File outputDir) {
+    GeneratorResult	result;
+    String		msg;
+
+    result = new GeneratorResult(m_Config);
+    if ((msg = m_Config.check()) != null) {
+      result.m_Error = msg;
+      return result;
+    }
+    msg = runPhase(result, Metrics.LIBRARIES, () -> {
+      String error = initLibraries(result, outputDir);
+      if (error == null)
+	recordLibraries(result);
+      if (result.m_Stager != null)
+	result.m_Stager.record(result.m_Metrics);
+      return error;
+    });
+    if (msg != null)
+      return finish(result, msg);
+
+    return result;
+  }
+
+  /**
+   * Performs the generation phases that follow the setup of the lib
+   * directory and writes the metrics.
+   *
+   * @param result	the result of {@link #resolveLibraries()}
+   * @return		the (updated) result
+   */
+  public GeneratorResult generate(GeneratorResult result) {
+    if (!result.isSuccessful())
+      return result;
+    return finish(result, generatePhases(result));
+  }
+
+  /**
+   * Performs all the generation phases.
+   *
+   * @return		the result
+   */
+  public GeneratorResult generate() {
+    GeneratorResult	result;
+    String		msg;
+
+    result = new GeneratorResult(m_Config);
+    if ((msg = m_Config.check()) != null) {
+      result.m_Error = msg;
+      return result;
+    }
+
+    return finish(result, createPhases(result, () -> resolve(result)).execute(m_Config.getPhaseThreads()));
+  }
+
+  /**
+   * Reruns the phases affected by the changes, see {@link FlowWatcher}.
+   * Changes to dependency files or external jars (or the flow, when pruning)
+   * require a full regeneration, changes to the flow or docker instructions
+   * only update the respective files and the build context.
+   *
+   * @param previous	the result of the previous run
+   * @param changes	the changes
+   * @return		the new result
+   */
+  public GeneratorResult regenerate(GeneratorResult previous, Set<FlowWatcher.Change> changes) {
+    GeneratorResult	result;
+    String		msg;
+
+    if (changes.contains(FlowWatcher.Change.LIBRARIES) || (changes.contains(FlowWatcher.Change.FLOW) && m_Config.getPrune()))
+      return generate();
+
+    result                     = new GeneratorResult(m_Config);
+    result.m_DockerFile        = previous.m_DockerFile;
+    result.m_DockerFileContent = previous.m_DockerFileContent;
+    result.m_Stager            = previous.m_Stager;
+    msg                        = null;
+    if (changes.contains(FlowWatcher.Change.FLOW)) {
+      msg = runPhase(result, "flow", () -> initFlow(result));
+      if (msg == null)
+	msg = runPhase(result, "preparse", () -> initPreparse(result));
+    }
+    // with pre-parsing, whether a serialized flow is present may have changed
+    if ((msg == null) && (changes.contains(FlowWatcher.Change.INSTRUCTIONS) || (changes.contains(FlowWatcher.Change.FLOW) && m_Config.getPreparse())))
+      msg = runPhase(result, "dockerfile", () -> createDockerfile(result));
+    if (msg == null)
+      msg = runPhase(result, "reproducible", () -> initReproducible(result));
+    if (msg == null)
+      msg = runPhase(result, "context", () -> initContext(result));
+    if (msg == null)
+      msg = runPhase(result, "oci", () -> createOciImage(result));
+
+    return finish(result, msg);
+  }
+}
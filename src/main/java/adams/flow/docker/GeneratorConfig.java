@@ -0,0 +1,1800 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * GeneratorConfig.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable configuration of the {@link Generator}, created with the
+ * {@link Builder} (which {@link Main} delegates its options to). Lists are
+ * unmodifiable copies, i.e., a configuration can be shared between threads;
+ * {@link #toBuilder()} derives modified configurations.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class GeneratorConfig {
+
+  /** the default image for the final stage when using jlink. */
+  public final static String DEFAULT_RUNTIME_IMAGE = "debian:buster-slim";
+
+  /**
+   * Builder for the configuration, with the same defaults as the
+   * command-line options of {@link Main}.
+   */
+  public static class Builder {
+
+    /** the alternative maven installation. */
+    protected File m_MavenHome;
+
+    /** the maven user settings to use. */
+    protected File m_MavenUserSettings;
+
+    /** the alternative java installation. */
+    protected File m_JavaHome;
+
+    /** the modules. */
+    protected String m_Modules;
+
+    /** the version to use. */
+    protected String m_Version;
+
+    /** the dependencies. */
+    protected List<String> m_Dependencies;
+
+    /** the dependency files. */
+    protected List<File> m_DependencyFiles;
+
+    /** the external jar files/dirs. */
+    protected List<File> m_ExternalJars;
+
+    /** the JVM options. */
+    protected List<String> m_JVM;
+
+    /** the flow to use. */
+    protected File m_Input;
+
+    /** the docker base image to use. */
+    protected String m_DockerBaseImage;
+
+    /** any Dockerfile instructions to add beforehand. */
+    protected File m_DockerInstructions;
+
+    /** the output directory. */
+    protected File m_OutputDir;
+
+    /** whether to split the libraries into separate docker layers. */
+    protected boolean m_Layered;
+
+    /** the directory for caching bootstrapped libraries. */
+    protected File m_CacheDir;
+
+    /** the maximum size of the cache in MB. */
+    protected int m_CacheMaxSize;
+
+    /** whether to generate a multi-stage build with a jlink runtime. */
+    protected boolean m_JLink;
+
+    /** the additional JDK modules for the jlink runtime. */
+    protected List<String> m_JLinkModules;
+
+    /** the image for the final stage when using jlink. */
+    protected String m_RuntimeImage;
+
+    /** whether to generate an AppCDS archive while building the image. */
+    protected boolean m_AppCDS;
+
+    /** the time in seconds to run the workflow for recording the classes. */
+    protected int m_AppCDSTraining;
+
+    /** whether to remove jars that are not reachable from the workflow. */
+    protected boolean m_Prune;
+
+    /** the classes/jar regexps to keep when pruning. */
+    protected List<String> m_Keep;
+
+    /** the directory to write the OCI image layout to. */
+    protected File m_OciOutput;
+
+    /** the base image (OCI image layout directory or tar archive). */
+    protected File m_OciBase;
+
+    /** the tag for the OCI image. */
+    protected String m_OciTag;
+
+    /** whether to generate a reproducible build context. */
+    protected boolean m_Reproducible;
+
+    /** the endpoint to push the metrics to (StatsD or pushgateway). */
+    protected String m_MetricsEndpoint;
+
+    /** how to stage the jars from the cache or other output directories. */
+    protected FileStager.Strategy m_Staging;
+
+    /** the number of workers (1 = no launcher, 0 = CPU quota). */
+    protected int m_Workers;
+
+    /** whether to ship the event-driven trigger for the input directory. */
+    protected boolean m_EventTrigger;
+
+    /** the port of the metrics endpoint in the image (0 = disabled). */
+    protected int m_MetricsPort;
+
+    /** whether to validate the flow and ship it pre-parsed (serialized). */
+    protected boolean m_Preparse;
+
+    /** the default JVM profile of the image. */
+    protected JvmProfile.Profile m_JvmProfile;
+
+    /** how to handle duplicate and conflicting jars. */
+    protected LibraryDeduplicator.Policy m_Duplicates;
+
+    /** how to repack the jars. */
+    protected JarRepacker.Mode m_Repack;
+
+    /** whether to strip sources, javadoc and signatures when repacking. */
+    protected boolean m_StripJars;
+
+    /** the number of threads for the generation phases. */
+    protected int m_PhaseThreads;
+
+    /** the tar archive to write the build context to ("-" for stdout). */
+    protected File m_ContextTar;
+
+    /**
+     * Initializes the builder with the defaults.
+     */
+    public Builder() {
+      m_MavenHome          = null;
+      m_MavenUserSettings  = null;
+      m_JavaHome           = null;
+      m_Modules            = null;
+      m_Version            = null;
+      m_Dependencies       = null;
+      m_DependencyFiles    = null;
+      m_ExternalJars       = null;
+      m_JVM                = null;
+      m_Input              = null;
+      m_DockerBaseImage    = null;
+      m_DockerInstructions = null;
+      m_OutputDir          = null;
+      m_Layered            = false;
+      m_CacheDir           = null;
+      m_CacheMaxSize       = 0;
+      m_JLink              = false;
+      m_JLinkModules       = null;
+      m_RuntimeImage       = DEFAULT_RUNTIME_IMAGE;
+      m_AppCDS             = false;
+      m_AppCDSTraining     = AppCDS.DEFAULT_TRAINING;
+      m_Prune              = false;
+      m_Keep               = null;
+      m_OciOutput          = null;
+      m_OciBase            = null;
+      m_OciTag             = OciImageWriter.DEFAULT_TAG;
+      m_Reproducible       = false;
+      m_MetricsEndpoint    = null;
+      m_Staging            = FileStager.Strategy.COPY;
+      m_Workers            = 1;
+      m_EventTrigger       = false;
+      m_MetricsPort        = 0;
+      m_Preparse           = false;
+      m_JvmProfile         = JvmProfile.Profile.NONE;
+      m_Duplicates         = LibraryDeduplicator.Policy.OFF;
+      m_Repack             = JarRepacker.Mode.OFF;
+      m_StripJars          = false;
+      m_PhaseThreads       = Runtime.getRuntime().availableProcessors();
+      m_ContextTar         = null;
+    }
+
+    /**
+     * Initializes the builder with the values of the configuration.
+     *
+     * @param config	the configuration to copy
+     */
+    public Builder(GeneratorConfig config) {
+      m_MavenHome          = config.m_MavenHome;
+      m_MavenUserSettings  = config.m_MavenUserSettings;
+      m_JavaHome           = config.m_JavaHome;
+      m_Modules            = config.m_Modules;
+      m_Version            = config.m_Version;
+      m_Dependencies       = modifiable(config.m_Dependencies);
+      m_DependencyFiles    = modifiable(config.m_DependencyFiles);
+      m_ExternalJars       = modifiable(config.m_ExternalJars);
+      m_JVM                = modifiable(config.m_JVM);
+      m_Input              = config.m_Input;
+      m_DockerBaseImage    = config.m_DockerBaseImage;
+      m_DockerInstructions = config.m_DockerInstructions;
+      m_OutputDir          = config.m_OutputDir;
+      m_Layered            = config.m_Layered;
+      m_CacheDir           = config.m_CacheDir;
+      m_CacheMaxSize       = config.m_CacheMaxSize;
+      m_JLink              = config.m_JLink;
+      m_JLinkModules       = modifiable(config.m_JLinkModules);
+      m_RuntimeImage       = config.m_RuntimeImage;
+      m_AppCDS             = config.m_AppCDS;
+      m_AppCDSTraining     = config.m_AppCDSTraining;
+      m_Prune              = config.m_Prune;
+      m_Keep               = modifiable(config.m_Keep);
+      m_OciOutput          = config.m_OciOutput;
+      m_OciBase            = config.m_OciBase;
+      m_OciTag             = config.m_OciTag;
+      m_Reproducible       = config.m_Reproducible;
+      m_MetricsEndpoint    = config.m_MetricsEndpoint;
+      m_Staging            = config.m_Staging;
+      m_Workers            = config.m_Workers;
+      m_EventTrigger       = config.m_EventTrigger;
+      m_MetricsPort        = config.m_MetricsPort;
+      m_Preparse           = config.m_Preparse;
+      m_JvmProfile         = config.m_JvmProfile;
+      m_Duplicates         = config.m_Duplicates;
+      m_Repack             = config.m_Repack;
+      m_StripJars          = config.m_StripJars;
+      m_PhaseThreads       = config.m_PhaseThreads;
+      m_ContextTar         = config.m_ContextTar;
+    }
+
+    /**
+     * Sets the alternative maven installation to use.
+     *
+     * @param dir		the top-level directory (above "bin")
+     * @return		itself
+     */
+    public Builder mavenHome(File dir) {
+      m_MavenHome = dir;
+      return this;
+    }
+
+    /**
+     * Returns the alternative maven installation to use.
+     *
+     * @return		the directory, null to use bundled one
+     */
+    public File getMavenHome() {
+      return m_MavenHome;
+    }
+
+    /**
+     * Sets the alternative maven user settings to use.
+     *
+     * @param dir		the XML file, null to use default ($HOME/.m2/settings.xml)
+     * @return		itself
+     */
+    public Builder mavenUserSettings(File dir) {
+      m_MavenUserSettings = dir;
+      return this;
+    }
+
+    /**
+     * Returns the alternative maven user settings to use.
+     *
+     * @return		the file, null to use default ($HOME/.m2/settings.xml)
+     */
+    public File getMavenUserSettings() {
+      return m_MavenUserSettings;
+    }
+
+    /**
+     * Sets the alternative java installation to use.
+     *
+     * @param dir		the top-level directory (above "bin")
+     * @return		itself
+     */
+    public Builder javaHome(File dir) {
+      m_JavaHome = dir;
+      return this;
+    }
+
+    /**
+     * Returns the alternative java installation to use.
+     *
+     * @return		the directory, null if using one that class was started with
+     */
+    public File getJavaHome() {
+      return m_JavaHome;
+    }
+
+    /**
+     * Sets the modules to use for bootstrapping.
+     *
+     * @param modules	the modules (comma-separated list)
+     * @return		itself
+     */
+    public Builder modules(String modules) {
+      m_Modules = modules;
+      return this;
+    }
+
+    /**
+     * Sets the modules to use for bootstrapping.
+     *
+     * @param modules	the modules
+     * @return		itself
+     */
+    public Builder modules(String... modules) {
+      StringBuilder	all;
+
+      if (modules != null) {
+	all = new StringBuilder();
+	for (String module : modules) {
+	  if (all.length() > 0)
+	    all.append(",");
+	  all.append(module);
+	}
+	m_Modules = all.toString();
+      }
+      else {
+	m_Modules = null;
+      }
+      return this;
+    }
+
+    /**
+     * Sets the modules to use for bootstrapping.
+     *
+     * @param modules	the modules
+     * @return		itself
+     */
+    public Builder modules(List<String> modules) {
+      if (modules != null)
+	modules(modules.toArray(new String[0]));
+      else
+	m_Modules = null;
+      return this;
+    }
+
+    /**
+     * Returns the modules.
+     *
+     * @return		the modules (comma-separated list), if not yet set
+     */
+    public String getModules() {
+      return m_Modules;
+    }
+
+    /**
+     * Sets the version of ADAMS to use.
+     *
+     * @param version	the version
+     * @return		itself
+     */
+    public Builder version(String version) {
+      m_Version = version;
+      return this;
+    }
+
+    /**
+     * Returns the version of ADAMS to use.
+     *
+     * @return		the version
+     */
+    public String getVersion() {
+      return m_Version;
+    }
+
+    /**
+     * Sets the dependencies to use for bootstrapping.
+     *
+     * @param dependencies	the dependencies, can be null
+     * @return		itself
+     */
+    public Builder dependencies(List<String> dependencies) {
+      m_Dependencies = dependencies;
+      return this;
+    }
+
+    /**
+     * Sets the dependencies to use for bootstrapping.
+     *
+     * @param dependencies	the dependencies, can be null
+     * @return		itself
+     */
+    public Builder dependencies(String... dependencies) {
+      if (dependencies != null)
+	m_Dependencies = new ArrayList<>(Arrays.asList(dependencies));
+      else
+	m_Dependencies = null;
+      return this;
+    }
+
+    /**
+     * Returns the dependencies.
+     *
+     * @return		the dependencies, can be null
+     */
+    public List<String> getDependencies() {
+      return m_Dependencies;
+    }
+
+    /**
+     * Sets the dependency files to use for bootstrapping (one dependency per line).
+     *
+     * @param files	the dependencies, can be null
+     * @return		itself
+     */
+    public Builder dependencyFiles(List<File> files) {
+      m_DependencyFiles = files;
+      return this;
+    }
+
+    /**
+     * Sets the dependency files to use for bootstrapping (one dependency per line).
+     *
+     * @param files	the dependency files, can be null
+     * @return		itself
+     */
+    public Builder dependencyFiles(File... files) {
+      if (files != null)
+	m_DependencyFiles = new ArrayList<>(Arrays.asList(files));
+      else
+	m_DependencyFiles = null;
+      return this;
+    }
+
+    /**
+     * Returns the dependency files.
+     *
+     * @return		the files, can be null
+     */
+    public List<File> getDependencyFiles() {
+      return m_DependencyFiles;
+    }
+
+    /**
+     * Sets the external jar files/dirs to use.
+     *
+     * @param external	the files/dirs, null to unset
+     * @return		itself
+     */
+    public Builder externalJars(List<File> external) {
+      m_ExternalJars = external;
+      return this;
+    }
+
+    /**
+     * Sets the external jar files/dirs to use.
+     *
+     * @param external	the files/dirs, null to unset
+     * @return		itself
+     */
+    public Builder externalJars(File... external) {
+      if (external == null)
+	m_ExternalJars = null;
+      else
+	externalJars(Arrays.asList(external));
+      return this;
+    }
+
+    /**
+     * Returns the currently set external jar files/dirs.
+     *
+     * @return		the files/dirs, null if none set
+     */
+    public List<File> getExternalJars() {
+      return m_ExternalJars;
+    }
+
+    /**
+     * Sets the workflow to convert.
+     *
+     * @param input	the notebook
+     * @return		itself
+     */
+    public Builder input(File input) {
+      m_Input = input;
+      return this;
+    }
+
+    /**
+     * Returns the workflow to convert.
+     *
+     * @return		the notebook, null if none set
+     */
+    public File getInput() {
+      return m_Input;
+    }
+
+    /**
+     * Sets the docker base image to use.
+     *
+     * @param image	the base image
+     * @return		itself
+     */
+    public Builder dockerBaseImage(String image) {
+      m_DockerBaseImage = image;
+      return this;
+    }
+
+    /**
+     * Returns the docker base image to use ("FROM ...").
+     *
+     * @return		the base image, null if none set
+     */
+    public String getDockerBaseImage() {
+      return m_DockerBaseImage;
+    }
+
+    /**
+     * Sets the file with instructions for the Dockerfile to generate.
+     *
+     * @param dir		the file
+     * @return		itself
+     */
+    public Builder dockerInstructions(File dir) {
+      m_DockerInstructions = dir;
+      return this;
+    }
+
+    /**
+     * Returns the file with instructions for the Dockerfile to generate.
+     *
+     * @return		the file, null if not used
+     */
+    public File getDockerInstructions() {
+      return m_DockerInstructions;
+    }
+
+    /**
+     * Sets the output directory for the bootstrapped application.
+     *
+     * @param dir		the directory
+     * @return		itself
+     */
+    public Builder outputDir(File dir) {
+      m_OutputDir = dir;
+      return this;
+    }
+
+    /**
+     * Returns the output directory for the bootstrapped application.
+     *
+     * @return		the directory, null if none set
+     */
+    public File getOutputDir() {
+      return m_OutputDir;
+    }
+
+    /**
+     * Sets the JVM options to use for launching the main class.
+     *
+     * @param options	the options, can be null
+     * @return		itself
+     */
+    public Builder jvm(List<String> options) {
+      m_JVM = options;
+      return this;
+    }
+
+    /**
+     * Sets the JVM options to use for launching the main class.
+     *
+     * @param options	the options, can be null
+     * @return		itself
+     */
+    public Builder jvm(String... options) {
+      if (options != null)
+	m_JVM = new ArrayList<>(Arrays.asList(options));
+      else
+	m_JVM = null;
+      return this;
+    }
+
+    /**
+     * Returns the JVM options.
+     *
+     * @return		the options, can be null
+     */
+    public List<String> getJvm() {
+      return m_JVM;
+    }
+
+    /**
+     * Sets whether to split the libraries into separate docker layers
+     * (third-party, ADAMS, dependencies, external jars).
+     *
+     * @param layered	true if to use layers
+     * @return		itself
+     */
+    public Builder layered(boolean layered) {
+      m_Layered = layered;
+      return this;
+    }
+
+    /**
+     * Returns whether to split the libraries into separate docker layers
+     * (third-party, ADAMS, dependencies, external jars).
+     *
+     * @return		true if to use layers
+     */
+    public boolean getLayered() {
+      return m_Layered;
+    }
+
+    /**
+     * Sets the directory for caching the bootstrapped libraries across runs.
+     *
+     * @param dir		the directory, null to disable caching
+     * @return		itself
+     */
+    public Builder cacheDir(File dir) {
+      m_CacheDir = dir;
+      return this;
+    }
+
+    /**
+     * Returns the directory for caching the bootstrapped libraries across runs.
+     *
+     * @return		the directory, null if caching disabled
+     */
+    public File getCacheDir() {
+      return m_CacheDir;
+    }
+
+    /**
+     * Sets the maximum size of the cache, evicting least recently used entries
+     * when exceeded.
+     *
+     * @param size	the size in MB, &lt;= 0 for unlimited
+     * @return		itself
+     */
+    public Builder cacheMaxSize(int size) {
+      m_CacheMaxSize = size;
+      return this;
+    }
+
+    /**
+     * Returns the maximum size of the cache.
+     *
+     * @return		the size in MB, &lt;= 0 for unlimited
+     */
+    public int getCacheMaxSize() {
+      return m_CacheMaxSize;
+    }
+
+    /**
+     * Sets whether to generate a multi-stage build that uses a minimal runtime
+     * created with jlink, using the modules determined by jdeps.
+     *
+     * @param jlink	true if to use jlink
+     * @return		itself
+     */
+    public Builder jlink(boolean jlink) {
+      m_JLink = jlink;
+      return this;
+    }
+
+    /**
+     * Returns whether to generate a multi-stage build that uses a minimal
+     * runtime created with jlink, using the modules determined by jdeps.
+     *
+     * @return		true if to use jlink
+     */
+    public boolean getJLink() {
+      return m_JLink;
+    }
+
+    /**
+     * Sets the additional JDK modules to include in the jlink runtime.
+     *
+     * @param modules	the modules, can be null
+     * @return		itself
+     */
+    public Builder jlinkModules(List<String> modules) {
+      m_JLinkModules = modules;
+      return this;
+    }
+
+    /**
+     * Sets the additional JDK modules to include in the jlink runtime.
+     *
+     * @param modules	the modules, can be null
+     * @return		itself
+     */
+    public Builder jlinkModules(String... modules) {
+      if (modules != null)
+	m_JLinkModules = new ArrayList<>(Arrays.asList(modules));
+      else
+	m_JLinkModules = null;
+      return this;
+    }
+
+    /**
+     * Returns the additional JDK modules to include in the jlink runtime.
+     *
+     * @return		the modules, can be null
+     */
+    public List<String> getJLinkModules() {
+      return m_JLinkModules;
+    }
+
+    /**
+     * Sets the image to use for the final stage when using jlink.
+     *
+     * @param image	the image
+     * @return		itself
+     */
+    public Builder runtimeImage(String image) {
+      if (image == null)
+	image = DEFAULT_RUNTIME_IMAGE;
+      m_RuntimeImage = image;
+      return this;
+    }
+
+    /**
+     * Returns the image to use for the final stage when using jlink.
+     *
+     * @return		the image
+     */
+    public String getRuntimeImage() {
+      return m_RuntimeImage;
+    }
+
+    /**
+     * Sets whether to generate an AppCDS archive while building the image,
+     * which gets used by the workflow for faster startup.
+     *
+     * @param appcds	true if to generate the archive
+     * @return		itself
+     */
+    public Builder appCDS(boolean appcds) {
+      m_AppCDS = appcds;
+      return this;
+    }
+
+    /**
+     * Returns whether to generate an AppCDS archive while building the image,
+     * which gets used by the workflow for faster startup.
+     *
+     * @return		true if to generate the archive
+     */
+    public boolean getAppCDS() {
+      return m_AppCDS;
+    }
+
+    /**
+     * Sets the time to run the workflow for recording the classes to archive.
+     *
+     * @param seconds	the time in seconds
+     * @return		itself
+     */
+    public Builder appCDSTraining(int seconds) {
+      if (seconds <= 0)
+	seconds = AppCDS.DEFAULT_TRAINING;
+      m_AppCDSTraining = seconds;
+      return this;
+    }
+
+    /**
+     * Returns the time to run the workflow for recording the classes to archive.
+     *
+     * @return		the time in seconds
+     */
+    public int getAppCDSTraining() {
+      return m_AppCDSTraining;
+    }
+
+    /**
+     * Sets whether to remove the jars that are not reachable from the classes
+     * referenced in the workflow.
+     *
+     * @param prune	true if to prune
+     * @return		itself
+     */
+    public Builder prune(boolean prune) {
+      m_Prune = prune;
+      return this;
+    }
+
+    /**
+     * Returns whether to remove the jars that are not reachable from the
+     * classes referenced in the workflow.
+     *
+     * @return		true if to prune
+     */
+    public boolean getPrune() {
+      return m_Prune;
+    }
+
+    /**
+     * Sets the keep-list for pruning, i.e., classes (e.g., loaded via
+     * reflection) or regular expressions for jar names.
+     *
+     * @param keep	the classes/regexps, can be null
+     * @return		itself
+     */
+    public Builder keep(List<String> keep) {
+      m_Keep = keep;
+      return this;
+    }
+
+    /**
+     * Sets the keep-list for pruning, i.e., classes (e.g., loaded via
+     * reflection) or regular expressions for jar names.
+     *
+     * @param keep	the classes/regexps, can be null
+     * @return		itself
+     */
+    public Builder keep(String... keep) {
+      if (keep != null)
+	m_Keep = new ArrayList<>(Arrays.asList(keep));
+      else
+	m_Keep = null;
+      return this;
+    }
+
+    /**
+     * Returns the keep-list for pruning.
+     *
+     * @return		the classes/regexps, can be null
+     */
+    public List<String> getKeep() {
+      return m_Keep;
+    }
+
+    /**
+     * Sets the directory to write the image to as OCI image layout, without
+     * requiring a docker daemon.
+     *
+     * @param dir		the directory, null to only generate the Dockerfile
+     * @return		itself
+     */
+    public Builder ociOutput(File dir) {
+      m_OciOutput = dir;
+      return this;
+    }
+
+    /**
+     * Returns the directory to write the image to as OCI image layout.
+     *
+     * @return		the directory, null if only generating the Dockerfile
+     */
+    public File getOciOutput() {
+      return m_OciOutput;
+    }
+
+    /**
+     * Sets the base image for the OCI image, either an OCI image layout
+     * directory or a tar archive of one.
+     *
+     * @param base	the directory or archive
+     * @return		itself
+     */
+    public Builder ociBase(File base) {
+      m_OciBase = base;
+      return this;
+    }
+
+    /**
+     * Returns the base image for the OCI image.
+     *
+     * @return		the directory or archive, null if not set
+     */
+    public File getOciBase() {
+      return m_OciBase;
+    }
+
+    /**
+     * Sets the tag for the OCI image.
+     *
+     * @param tag		the tag
+     * @return		itself
+     */
+    public Builder ociTag(String tag) {
+      if (tag == null)
+	tag = OciImageWriter.DEFAULT_TAG;
+      m_OciTag = tag;
+      return this;
+    }
+
+    /**
+     * Returns the tag for the OCI image.
+     *
+     * @return		the tag
+     */
+    public String getOciTag() {
+      return m_OciTag;
+    }
+
+    /**
+     * Sets whether to generate a reproducible build context, i.e., normalized
+     * timestamps (SOURCE_DATE_EPOCH if set) and deterministic file content,
+     * along with a manifest of content hashes.
+     *
+     * @param reproducible	true if reproducible
+     * @return		itself
+     */
+    public Builder reproducible(boolean reproducible) {
+      m_Reproducible = reproducible;
+      return this;
+    }
+
+    /**
+     * Returns whether to generate a reproducible build context.
+     *
+     * @return		true if reproducible
+     */
+    public boolean getReproducible() {
+      return m_Reproducible;
+    }
+
+    /**
+     * Sets the endpoint to push the metrics of the phases to, either StatsD
+     * (udp://host:port) or a Prometheus pushgateway
+     * (http://host:port/metrics/job/NAME).
+     *
+     * @param endpoint	the endpoint, null to only write the report
+     * @return		itself
+     */
+    public Builder metricsEndpoint(String endpoint) {
+      m_MetricsEndpoint = endpoint;
+      return this;
+    }
+
+    /**
+     * Returns the endpoint to push the metrics of the phases to.
+     *
+     * @return		the endpoint, null if only writing the report
+     */
+    public String getMetricsEndpoint() {
+      return m_MetricsEndpoint;
+    }
+
+    /**
+     * Sets how to stage the jars from the cache or another output directory
+     * (and the flow): plain copies, hard links, copy-on-write clones (reflinks)
+     * or automatic (reflink, hard link, copy). Links and clones fall back to
+     * checksum-verified copies if not possible (e.g., different file systems).
+     *
+     * @param staging	the strategy
+     * @return		itself
+     */
+    public Builder staging(FileStager.Strategy staging) {
+      if (staging == null)
+	staging = FileStager.Strategy.COPY;
+      m_Staging = staging;
+      return this;
+    }
+
+    /**
+     * Returns how to stage the jars from the cache or another output directory.
+     *
+     * @return		the strategy
+     */
+    public FileStager.Strategy getStaging() {
+      return m_Staging;
+    }
+
+    /**
+     * Sets the default number of workers, i.e., instances of the workflow, to
+     * run in the container. With more than one (or 0 for the CPU quota of the
+     * container), a launcher script gets used as entrypoint that partitions the
+     * input directory across the workers. Can be overridden with the WORKERS
+     * environment variable.
+     *
+     * @param workers	the number of workers, 1 for no launcher, 0 for the CPU quota
+     * @return		itself
+     */
+    public Builder workers(int workers) {
+      if (workers < 0)
+	workers = 1;
+      m_Workers = workers;
+      return this;
+    }
+
+    /**
+     * Returns the default number of workers to run in the container.
+     *
+     * @return		the number of workers, 1 for no launcher, 0 for the CPU quota
+     */
+    public int getWorkers() {
+      return m_Workers;
+    }
+
+    /**
+     * Sets whether to ship the event-driven trigger, which watches the INPUT
+     * directory and writes the names of complete files to the FIFO in the
+     * TRIGGER environment variable, for the workflow to read instead of
+     * polling the directory.
+     *
+     * @param trigger	true if to ship the trigger
+     * @return		itself
+     */
+    public Builder eventTrigger(boolean trigger) {
+      m_EventTrigger = trigger;
+      return this;
+    }
+
+    /**
+     * Returns whether to ship the event-driven trigger for the input directory.
+     *
+     * @return		true if to ship the trigger
+     */
+    public boolean getEventTrigger() {
+      return m_EventTrigger;
+    }
+
+    /**
+     * Sets the port of the metrics endpoint that the workflow in the image
+     * serves (Prometheus format under /metrics, plus /health), 0 to disable.
+     *
+     * @param port	the port, 0 to disable
+     * @return		itself
+     */
+    public Builder metricsPort(int port) {
+      if ((port < 0) || (port > 65535))
+	port = 0;
+      m_MetricsPort = port;
+      return this;
+    }
+
+    /**
+     * Returns the port of the metrics endpoint that the workflow in the image
+     * serves.
+     *
+     * @return		the port, 0 if disabled
+     */
+    public int getMetricsPort() {
+      return m_MetricsPort;
+    }
+
+    /**
+     * Sets whether to parse and validate the flow with the libraries of the
+     * image at generation time and ship it serialized, for the image to load
+     * instead of parsing the text flow (fallback if the libraries differ).
+     *
+     * @param preparse	true if to pre-parse the flow
+     * @return		itself
+     */
+    public Builder preparse(boolean preparse) {
+      m_Preparse = preparse;
+      return this;
+    }
+
+    /**
+     * Returns whether to validate the flow and ship it pre-parsed (serialized).
+     *
+     * @return		true if to pre-parse the flow
+     */
+    public boolean getPreparse() {
+      return m_Preparse;
+    }
+
+    /**
+     * Sets the default JVM profile of the image (GC, heap sizing, processor
+     * count), applied by a wrapper script to all JVMs of the workflow. Can be
+     * overridden with the JVM_PROFILE environment variable.
+     *
+     * @param profile	the profile, NONE for no wrapper script
+     * @return		itself
+     */
+    public Builder jvmProfile(JvmProfile.Profile profile) {
+      if (profile == null)
+	profile = JvmProfile.Profile.NONE;
+      m_JvmProfile = profile;
+      return this;
+    }
+
+    /**
+     * Returns the default JVM profile of the image.
+     *
+     * @return		the profile
+     */
+    public JvmProfile.Profile getJvmProfile() {
+      return m_JvmProfile;
+    }
+
+    /**
+     * Sets how to handle duplicate jars (identical content or several versions
+     * of the same artifact) and jars with conflicting classes in the libraries:
+     * no analysis, report only, remove identical copies and older versions, or
+     * fail on different versions and conflicts.
+     *
+     * @param policy	the policy
+     * @return		itself
+     */
+    public Builder duplicates(LibraryDeduplicator.Policy policy) {
+      if (policy == null)
+	policy = LibraryDeduplicator.Policy.OFF;
+      m_Duplicates = policy;
+      return this;
+    }
+
+    /**
+     * Returns how to handle duplicate and conflicting jars.
+     *
+     * @return		the policy
+     */
+    public LibraryDeduplicator.Policy getDuplicates() {
+      return m_Duplicates;
+    }
+
+    /**
+     * Sets how to repack the jars: not at all, with stored entries (better
+     * compression of the docker layers, no inflating when loading classes) or
+     * with the best deflate compression (smaller uncompressed image).
+     *
+     * @param mode	the mode
+     * @return		itself
+     */
+    public Builder repack(JarRepacker.Mode mode) {
+      if (mode == null)
+	mode = JarRepacker.Mode.OFF;
+      m_Repack = mode;
+      return this;
+    }
+
+    /**
+     * Returns how to repack the jars.
+     *
+     * @return		the mode
+     */
+    public JarRepacker.Mode getRepack() {
+      return m_Repack;
+    }
+
+    /**
+     * Sets whether to strip source/javadoc jars, source files and signatures
+     * (except of security providers) when repacking.
+     *
+     * @param strip	true if to strip
+     * @return		itself
+     */
+    public Builder stripJars(boolean strip) {
+      m_StripJars = strip;
+      return this;
+    }
+
+    /**
+     * Returns whether to strip sources, javadoc and signatures when repacking.
+     *
+     * @return		true if to strip
+     */
+    public boolean getStripJars() {
+      return m_StripJars;
+    }
+
+    /**
+     * Sets the number of threads for running the generation phases, allowing
+     * independent phases to overlap with the processing of the libraries.
+     *
+     * @param num		the number of threads, &lt;= 0 for number of available processors, 1 for sequential
+     * @return		itself
+     */
+    public Builder phaseThreads(int num) {
+      if (num <= 0)
+	num = Runtime.getRuntime().availableProcessors();
+      m_PhaseThreads = num;
+      return this;
+    }
+
+    /**
+     * Returns the number of threads for running the generation phases.
+     *
+     * @return		the number of threads
+     */
+    public int getPhaseThreads() {
+      return m_PhaseThreads;
+    }
+
+    /**
+     * Sets the tar archive to write the build context to, i.e., the Dockerfile
+     * and the files that it references, for "docker build -".
+     *
+     * @param file	the archive, "-" for stdout, null to not write one
+     * @return		itself
+     */
+    public Builder contextTar(File file) {
+      m_ContextTar = file;
+      return this;
+    }
+
+    /**
+     * Returns the tar archive to write the build context to.
+     *
+     * @return		the archive, "-" for stdout, null if not to write one
+     */
+    public File getContextTar() {
+      return m_ContextTar;
+    }
+
+    /**
+     * Returns an immutable snapshot of the current values.
+     *
+     * @return		the configuration
+     */
+    public GeneratorConfig build() {
+      return new GeneratorConfig(this);
+    }
+  }
+
+  /** the alternative maven installation. */
+  protected final File m_MavenHome;
+
+  /** the maven user settings to use. */
+  protected final File m_MavenUserSettings;
+
+  /** the alternative java installation. */
+  protected final File m_JavaHome;
+
+  /** the modules. */
+  protected final String m_Modules;
+
+  /** the version to use. */
+  protected final String m_Version;
+
+  /** the dependencies. */
+  protected final List<String> m_Dependencies;
+
+  /** the dependency files. */
+  protected final List<File> m_DependencyFiles;
+
+  /** the external jar files/dirs. */
+  protected final List<File> m_ExternalJars;
+
+  /** the JVM options. */
+  protected final List<String> m_JVM;
+
+  /** the flow to use. */
+  protected final File m_Input;
+
+  /** the docker base image to use. */
+  protected final String m_DockerBaseImage;
+
+  /** any Dockerfile instructions to add beforehand. */
+  protected final File m_DockerInstructions;
+
+  /** the output directory. */
+  protected final File m_OutputDir;
+
+  /** whether to split the libraries into separate docker layers. */
+  protected final boolean m_Layered;
+
+  /** the directory for caching bootstrapped libraries. */
+  protected final File m_CacheDir;
+
+  /** the maximum size of the cache in MB. */
+  protected final int m_CacheMaxSize;
+
+  /** whether to generate a multi-stage build with a jlink runtime. */
+  protected final boolean m_JLink;
+
+  /** the additional JDK modules for the jlink runtime. */
+  protected final List<String> m_JLinkModules;
+
+  /** the image for the final stage when using jlink. */
+  protected final String m_RuntimeImage;
+
+  /** whether to generate an AppCDS archive while building the image. */
+  protected final boolean m_AppCDS;
+
+  /** the time in seconds to run the workflow for recording the classes. */
+  protected final int m_AppCDSTraining;
+
+  /** whether to remove jars that are not reachable from the workflow. */
+  protected final boolean m_Prune;
+
+  /** the classes/jar regexps to keep when pruning. */
+  protected final List<String> m_Keep;
+
+  /** the directory to write the OCI image layout to. */
+  protected final File m_OciOutput;
+
+  /** the base image (OCI image layout directory or tar archive). */
+  protected final File m_OciBase;
+
+  /** the tag for the OCI image. */
+  protected final String m_OciTag;
+
+  /** whether to generate a reproducible build context. */
+  protected final boolean m_Reproducible;
+
+  /** the endpoint to push the metrics to (StatsD or pushgateway). */
+  protected final String m_MetricsEndpoint;
+
+  /** how to stage the jars from the cache or other output directories. */
+  protected final FileStager.Strategy m_Staging;
+
+  /** the number of workers (1 = no launcher, 0 = CPU quota). */
+  protected final int m_Workers;
+
+  /** whether to ship the event-driven trigger for the input directory. */
+  protected final boolean m_EventTrigger;
+
+  /** the port of the metrics endpoint in the image (0 = disabled). */
+  protected final int m_MetricsPort;
+
+  /** whether to validate the flow and ship it pre-parsed (serialized). */
+  protected final boolean m_Preparse;
+
+  /** the default JVM profile of the image. */
+  protected final JvmProfile.Profile m_JvmProfile;
+
+  /** how to handle duplicate and conflicting jars. */
+  protected final LibraryDeduplicator.Policy m_Duplicates;
+
+  /** how to repack the jars. */
+  protected final JarRepacker.Mode m_Repack;
+
+  /** whether to strip sources, javadoc and signatures when repacking. */
+  protected final boolean m_StripJars;
+
+  /** the number of threads for the generation phases. */
+  protected final int m_PhaseThreads;
+
+  /** the tar archive to write the build context to ("-" for stdout). */
+  protected final File m_ContextTar;
+
+  /**
+   * Initializes the configuration with the current values of the builder.
+   *
+   * @param builder	the builder to take the values from
+   */
+  protected GeneratorConfig(Builder builder) {
+    m_MavenHome          = builder.getMavenHome();
+    m_MavenUserSettings  = builder.getMavenUserSettings();
+    m_JavaHome           = builder.getJavaHome();
+    m_Modules            = builder.getModules();
+    m_Version            = builder.getVersion();
+    m_Dependencies       = copy(builder.getDependencies());
+    m_DependencyFiles    = copy(builder.getDependencyFiles());
+    m_ExternalJars       = copy(builder.getExternalJars());
+    m_JVM                = copy(builder.getJvm());
+    m_Input              = builder.getInput();
+    m_DockerBaseImage    = builder.getDockerBaseImage();
+    m_DockerInstructions = builder.getDockerInstructions();
+    m_OutputDir          = builder.getOutputDir();
+    m_Layered            = builder.getLayered();
+    m_CacheDir           = builder.getCacheDir();
+    m_CacheMaxSize       = builder.getCacheMaxSize();
+    m_JLink              = builder.getJLink();
+    m_JLinkModules       = copy(builder.getJLinkModules());
+    m_RuntimeImage       = builder.getRuntimeImage();
+    m_AppCDS             = builder.getAppCDS();
+    m_AppCDSTraining     = builder.getAppCDSTraining();
+    m_Prune              = builder.getPrune();
+    m_Keep               = copy(builder.getKeep());
+    m_OciOutput          = builder.getOciOutput();
+    m_OciBase            = builder.getOciBase();
+    m_OciTag             = builder.getOciTag();
+    m_Reproducible       = builder.getReproducible();
+    m_MetricsEndpoint    = builder.getMetricsEndpoint();
+    m_Staging            = builder.getStaging();
+    m_Workers            = builder.getWorkers();
+    m_EventTrigger       = builder.getEventTrigger();
+    m_MetricsPort        = builder.getMetricsPort();
+    m_Preparse           = builder.getPreparse();
+    m_JvmProfile         = builder.getJvmProfile();
+    m_Duplicates         = builder.getDuplicates();
+    m_Repack             = builder.getRepack();
+    m_StripJars          = builder.getStripJars();
+    m_PhaseThreads       = builder.getPhaseThreads();
+    m_ContextTar         = builder.getContextTar();
+  }
+
+  /**
+   * Returns a builder initialized with the values of this configuration,
+   * for deriving a modified configuration.
+   *
+   * @return		the builder
+   */
+  public Builder toBuilder() {
+    return new Builder(this);
+  }
+
+  /**
+   * Returns a modifiable copy of the list.
+   *
+   * @param list	the list to copy, can be null
+   * @return		the copy, null if list was null
+   */
+  protected static <T> List<T> modifiable(List<T> list) {
+    if (list == null)
+      return null;
+    return new ArrayList<>(list);
+  }
+
+  /**
+   * Returns an unmodifiable copy of the list.
+   *
+   * @param list	the list to copy, can be null
+   * @return		the copy, null if list was null
+   */
+  protected static <T> List<T> copy(List<T> list) {
+    if (list == null)
+      return null;
+    return Collections.unmodifiableList(new ArrayList<>(list));
+  }
+
+  /**
+   * Returns the alternative maven installation to use.
+   *
+   * @return		the directory, null to use bundled one
+   */
+  public File getMavenHome() {
+    return m_MavenHome;
+  }
+
+  /**
+   * Returns the alternative maven user settings to use.
+   *
+   * @return		the file, null to use default ($HOME/.m2/settings.xml)
+   */
+  public File getMavenUserSettings() {
+    return m_MavenUserSettings;
+  }
+
+  /**
+   * Returns the alternative java installation to use.
+   *
+   * @return		the directory, null if using one that class was started with
+   */
+  public File getJavaHome() {
+    return m_JavaHome;
+  }
+
+  /**
+   * Returns the modules.
+   *
+   * @return		the modules (comma-separated list), if not yet set
+   */
+  public String getModules() {
+    return m_Modules;
+  }
+
+  /**
+   * Returns the version of ADAMS to use.
+   *
+   * @return		the version
+   */
+  public String getVersion() {
+    return m_Version;
+  }
+
+  /**
+   * Returns the dependencies.
+   *
+   * @return		the dependencies, can be null
+   */
+  public List<String> getDependencies() {
+    return m_Dependencies;
+  }
+
+  /**
+   * Returns the dependency files.
+   *
+   * @return		the files, can be null
+   */
+  public List<File> getDependencyFiles() {
+    return m_DependencyFiles;
+  }
+
+  /**
+   * Returns the currently set external jar files/dirs.
+   *
+   * @return		the files/dirs, null if none set
+   */
+  public List<File> getExternalJars() {
+    return m_ExternalJars;
+  }
+
+  /**
+   * Returns the JVM options.
+   *
+   * @return		the options, can be null
+   */
+  public List<String> getJvm() {
+    return m_JVM;
+  }
+
+  /**
+   * Returns the workflow to convert.
+   *
+   * @return		the notebook, null if none set
+   */
+  public File getInput() {
+    return m_Input;
+  }
+
+  /**
+   * Returns the docker base image to use ("FROM ...").
+   *
+   * @return		the base image, null if none set
+   */
+  public String getDockerBaseImage() {
+    return m_DockerBaseImage;
+  }
+
+  /**
+   * Returns the file with instructions for the Dockerfile to generate.
+   *
+   * @return		the file, null if not used
+   */
+  public File getDockerInstructions() {
+    return m_DockerInstructions;
+  }
+
+  /**
+   * Returns the output directory for the bootstrapped application.
+   *
+   * @return		the directory, null if none set
+   */
+  public File getOutputDir() {
+    return m_OutputDir;
+  }
+
+  /**
+   * Returns whether to split the libraries into separate docker layers
+   * (third-party, ADAMS, dependencies, external jars).
+   *
+   * @return		true if to use layers
+   */
+  public boolean getLayered() {
+    return m_Layered;
+  }
+
+  /**
+   * Returns the directory for caching the bootstrapped libraries across runs.
+   *
+   * @return		the directory, null if caching disabled
+   */
+  public File getCacheDir() {
+    return m_CacheDir;
+  }
+
+  /**
+   * Returns the maximum size of the cache.
+   *
+   * @return		the size in MB, &lt;= 0 for unlimited
+   */
+  public int getCacheMaxSize() {
+    return m_CacheMaxSize;
+  }
+
+  /**
+   * Returns whether to generate a multi-stage build that uses a minimal
+   * runtime created with jlink, using the modules determined by jdeps.
+   *
+   * @return		true if to use jlink
+   */
+  public boolean getJLink() {
+    return m_JLink;
+  }
+
+  /**
+   * Returns the additional JDK modules to include in the jlink runtime.
+   *
+   * @return		the modules, can be null
+   */
+  public List<String> getJLinkModules() {
+    return m_JLinkModules;
+  }
+
+  /**
+   * Returns the image to use for the final stage when using jlink.
+   *
+   * @return		the image
+   */
+  public String getRuntimeImage() {
+    return m_RuntimeImage;
+  }
+
+  /**
+   * Returns whether to generate an AppCDS archive while building the image,
+   * which gets used by the workflow for faster startup.
+   *
+   * @return		true if to generate the archive
+   */
+  public boolean getAppCDS() {
+    return m_AppCDS;
+  }
+
+  /**
+   * Returns the time to run the workflow for recording the classes to archive.
+   *
+   * @return		the time in seconds
+   */
+  public int getAppCDSTraining() {
+    return m_AppCDSTraining;
+  }
+
+  /**
+   * Returns whether to remove the jars that are not reachable from the
+   * classes referenced in the workflow.
+   *
+   * @return		true if to prune
+   */
+  public boolean getPrune() {
+    return m_Prune;
+  }
+
+  /**
+   * Returns the keep-list for pruning.
+   *
+   * @return		the classes/regexps, can be null
+   */
+  public List<String> getKeep() {
+    return m_Keep;
+  }
+
+  /**
+   * Returns the directory to write the image to as OCI image layout.
+   *
+   * @return		the directory, null if only generating the Dockerfile
+   */
+  public File getOciOutput() {
+    return m_OciOutput;
+  }
+
+  /**
+   * Returns the base image for the OCI image.
+   *
+   * @return		the directory or archive, null if not set
+   */
+  public File getOciBase() {
+    return m_OciBase;
+  }
+
+  /**
+   * Returns the tag for the OCI image.
+   *
+   * @return		the tag
+   */
+  public String getOciTag() {
+    return m_OciTag;
+  }
+
+  /**
+   * Returns whether to generate a reproducible build context.
+   *
+   * @return		true if reproducible
+   */
+  public boolean getReproducible() {
+    return m_Reproducible;
+  }
+
+  /**
+   * Returns the endpoint to push the metrics of the phases to.
+   *
+   * @return		the endpoint, null if only writing the report
+   */
+  public String getMetricsEndpoint() {
+    return m_MetricsEndpoint;
+  }
+
+  /**
+   * Returns how to stage the jars from the cache or another output directory.
+   *
+   * @return		the strategy
+   */
+  public FileStager.Strategy getStaging() {
+    return m_Staging;
+  }
+
+  /**
+   * Returns the default number of workers to run in the container.
+   *
+   * @return		the number of workers, 1 for no launcher, 0 for the CPU quota
+   */
+  public int getWorkers() {
+    return m_Workers;
+  }
+
+  /**
+   * Returns whether to ship the event-driven trigger for the input directory.
+   *
+   * @return		true if to ship the trigger
+   */
+  public boolean getEventTrigger() {
+    return m_EventTrigger;
+  }
+
+  /**
+   * Returns the port of the metrics endpoint that the workflow in the image
+   * serves.
+   *
+   * @return		the port, 0 if disabled
+   */
+  public int getMetricsPort() {
+    return m_MetricsPort;
+  }
+
+  /**
+   * Returns whether to validate the flow and ship it pre-parsed (serialized).
+   *
+   * @return		true if to pre-parse the flow
+   */
+  public boolean getPreparse() {
+    return m_Preparse;
+  }
+
+  /**
+   * Returns the default JVM profile of the image.
+   *
+   * @return		the profile
+   */
+  public JvmProfile.Profile getJvmProfile() {
+    return m_JvmProfile;
+  }
+
+  /**
+   * Returns how to handle duplicate and conflicting jars.
+   *
+   * @return		the policy
+   */
+  public LibraryDeduplicator.Policy getDuplicates() {
+    return m_Duplicates;
+  }
+
+  /**
+   * Returns how to repack the jars.
+   *
+   * @return		the mode
+   */
+  public JarRepacker.Mode getRepack() {
+    return m_Repack;
+  }
+
+  /**
+   * Returns whether to strip sources, javadoc and signatures when repacking.
+   *
+   * @return		true if to strip
+   */
+  public boolean getStripJars() {
+    return m_StripJars;
+  }
+
+  /**
+   * Returns the number of threads for running the generation phases.
+   *
+   * @return		the number of threads, 1 for sequential
+   */
+  public int getPhaseThreads() {
+    return m_PhaseThreads;
+  }
+
+  /**
+   * Returns the tar archive to write the build context to.
+   *
+   * @return		the archive, "-" for stdout, null if not to write one
+   */
+  public File getContextTar() {
+    return m_ContextTar;
+  }
+
+  /**
+   * Checks whether the options are compatible.
+   *
+   * @return		null if compatible, otherwise error message
+   */
+  public String check() {
+    if (m_OciOutput != null) {
+      if (m_OciBase == null)
+	return "OCI output requires a base image (OCI image layout directory or tar archive)!";
+      if (m_JLink || m_AppCDS)
+	return "OCI output cannot be combined with jlink or AppCDS, as these run commands during the docker build!";
+    }
+    if (m_StripJars && (m_Repack == JarRepacker.Mode.OFF))
+      return "Stripping jars requires repacking!";
+    return null;
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * GeneratorResult.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The result of a single run of the {@link Generator}: paths, Dockerfile
+ * content, timings (metrics of the phases), messages and warnings. Also
+ * holds the state of the run while the phases get executed, i.e., every run
+ * uses its own result object.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class GeneratorResult {
+
+  /** the configuration used. */
+  protected GeneratorConfig m_Config;
+
+  /** the generated Dockerfile. */
+  protected File m_DockerFile;
+
+  /** the content of the Dockerfile. */
+  protected String m_DockerFileContent;
+
+  /** the reproducible build context. */
+  protected ReproducibleContext m_Context;
+
+  /** the metrics of the phases. */
+  protected Metrics m_Metrics;
+
+  /** for staging the jars. */
+  protected FileStager m_Stager;
+
+  /** the informational messages. */
+  protected List<String> m_Messages;
+
+  /** the warnings. */
+  protected List<String> m_Warnings;
+
+  /** the error, null if successful. */
+  protected String m_Error;
+
+  /**
+   * Initializes the result.
+   *
+   * @param config	the configuration used
+   */
+  public GeneratorResult(GeneratorConfig config) {
+    m_Config   = config;
+    m_Metrics  = new Metrics();
+    m_Messages = new ArrayList<>();
+    m_Warnings = new ArrayList<>();
+  }
+
+  /**
+   * Returns the configuration used.
+   *
+   * @return		the configuration
+   */
+  public GeneratorConfig getConfig() {
+    return m_Config;
+  }
+
+  /**
+   * Returns the output directory.
+   *
+   * @return		the directory
+   */
+  public File getOutputDir() {
+    return m_Config.getOutputDir();
+  }
+
+  /**
+   * Returns the generated Dockerfile.
+   *
+   * @return		the file, null if not generated
+   */
+  public File getDockerFile() {
+    return m_DockerFile;
+  }
+
+  /**
+   * Returns the content of the generated Dockerfile.
+   *
+   * @return		the content, null if not generated
+   */
+  public String getDockerFileContent() {
+    return m_DockerFileContent;
+  }
+
+  /**
+   * Returns the metrics report.
+   *
+   * @return		the file
+   */
+  public File getMetricsFile() {
+    return new File(m_Config.getOutputDir().getAbsolutePath() + "/" + Metrics.REPORT);
+  }
+
+  /**
+   * Returns the directory with the OCI image layout.
+   *
+   * @return		the directory, null if not generated
+   */
+  public File getOciOutput() {
+    return m_Config.getOciOutput();
+  }
+
+  /**
+   * Returns the reproducible build context.
+   *
+   * @return		the context, null if not reproducible
+   */
+  public ReproducibleContext getContext() {
+    return m_Context;
+  }
+
+  /**
+   * Returns whether the build context is unchanged since the last run.
+   *
+   * @return		true if unchanged (only in reproducible mode)
+   */
+  public boolean isUnchanged() {
+    return (m_Context != null) && m_Context.isUnchanged();
+  }
+
+  /**
+   * Returns the metrics (timings) of the phases.
+   *
+   * @return		the metrics
+   */
+  public Metrics getMetrics() {
+    return m_Metrics;
+  }
+
+  /**
+   * Returns the stager used for the libraries.
+   *
+   * @return		the stager, null if none used
+   */
+  public FileStager getStager() {
+    return m_Stager;
+  }
+
+  /**
+   * Adds the informational message.
+   *
+   * @param msg		the message
+   */
+  public synchronized void addMessage(String msg) {
+    m_Messages.add(msg);
+  }
+
+  /**
+   * Returns the informational messages.
+   *
+   * @return		the messages
+   */
+  public synchronized List<String> getMessages() {
+    return new ArrayList<>(m_Messages);
+  }
+
+  /**
+   * Adds the warning.
+   *
+   * @param msg		the warning
+   */
+  public synchronized void addWarning(String msg) {
+    m_Warnings.add(msg);
+  }
+
+  /**
+   * Returns the warnings.
+   *
+   * @return		the warnings
+   */
+  public synchronized List<String> getWarnings() {
+    return new ArrayList<>(m_Warnings);
+  }
+
+  /**
+   * Returns the error.
+   *
+   * @return		the error, null if successful
+   */
+  public String getError() {
+    return m_Error;
+  }
+
+  /**
+   * Returns whether the run was successful.
+   *
+   * @return		true if successful
+   */
+  public boolean isSuccessful() {
+    return (m_Error == null);
+  }
+}
@@ -0,0 +1,287 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * InputTrigger.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Event-driven replacement for polling the input directory, running inside
+ * the image next to the workflow (see {@link EventTrigger}). Watches the
+ * directory (inotify on Linux) and writes the names of the files that are
+ * fully written, i.e., haven't been modified for the settle time, to the
+ * output (usually a FIFO that the workflow reads from line by line). Files
+ * becoming ready within the batch window get written in one go, i.e., bursts
+ * of arrivals get processed as a single batch. Blocks while idle. Hidden files
+ * and directories get ignored.
+ * <br>
+ * Only depends on the JDK, as it gets shipped in its own jar.
+ * <br>
+ * Usage: InputTrigger DIR OUTPUT [REGEXP [SETTLE_MS [BATCH_MS]]]
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class InputTrigger {
+
+  /** the default regular expression for the file names. */
+  public final static String DEFAULT_REGEXP = ".*";
+
+  /** the default time in msec without modifications before a file is considered complete. */
+  public final static int DEFAULT_SETTLE = 100;
+
+  /** the default time in msec to wait for further files once a file is ready. */
+  public final static int DEFAULT_BATCH = 50;
+
+  /** the directory to watch. */
+  protected Path m_Dir;
+
+  /** the file to write the names to. */
+  protected File m_Output;
+
+  /** the pattern for the file names. */
+  protected Pattern m_Pattern;
+
+  /** the settle time in msec. */
+  protected int m_Settle;
+
+  /** the batch window in msec. */
+  protected int m_Batch;
+
+  /** file -&gt; time of last event (msec), for files not yet complete. */
+  protected Map<Path,Long> m_Pending;
+
+  /** the files that have been output already (until deleted/moved). */
+  protected Set<Path> m_Emitted;
+
+  /**
+   * Initializes the trigger.
+   *
+   * @param dir		the directory to watch
+   * @param output	the file (FIFO) to write the names to
+   * @param regexp	the regular expression for the file names
+   * @param settle	the time in msec without modifications before a file is complete
+   * @param batch	the time in msec to wait for further files once a file is ready
+   */
+  public InputTrigger(File dir, File output, String regexp, int settle, int batch) {
+    m_Dir     = dir.getAbsoluteFile().toPath().normalize();
+    m_Output  = output;
+    m_Pattern = Pattern.compile(regexp);
+    m_Settle  = Math.max(0, settle);
+    m_Batch   = Math.max(0, batch);
+    m_Pending = new LinkedHashMap<>();
+    m_Emitted = new HashSet<>();
+  }
+
+  /**
+   * Returns whether the file is of interest.
+   *
+   * @param file	the file to check
+   * @return		true if to be output once complete
+   */
+  protected boolean accept(Path file) {
+    String	name;
+
+    name = file.getFileName().toString();
+    return !name.startsWith(".") && m_Pattern.matcher(name).matches() && !Files.isDirectory(file);
+  }
+
+  /**
+   * Adds the files that are already present.
+   *
+   * @throws Exception	if listing fails
+   */
+  protected void scan() throws Exception {
+    long	now;
+
+    now = System.currentTimeMillis();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(m_Dir)) {
+      for (Path file : stream) {
+	if (accept(file) && !m_Emitted.contains(file))
+	  m_Pending.putIfAbsent(file, now);
+      }
+    }
+  }
+
+  /**
+   * Processes the events of the key.
+   *
+   * @param key		the key to process
+   * @throws Exception	if rescanning fails
+   */
+  protected void process(WatchKey key) throws Exception {
+    Path	file;
+    long	now;
+
+    now = System.currentTimeMillis();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+	scan();
+	continue;
+      }
+      file = m_Dir.resolve((Path) event.context());
+      if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+	m_Pending.remove(file);
+	m_Emitted.remove(file);
+      }
+      else if (!m_Emitted.contains(file) && accept(file)) {
+	m_Pending.put(file, now);
+      }
+    }
+    key.reset();
+  }
+
+  /**
+   * Returns the files that haven't been modified for the settle time.
+   *
+   * @return		the complete files
+   */
+  protected List<Path> ready() {
+    List<Path>				result;
+    Iterator<Map.Entry<Path,Long>>	iter;
+    Map.Entry<Path,Long>		entry;
+    long				now;
+
+    result = new ArrayList<>();
+    now    = System.currentTimeMillis();
+    iter   = m_Pending.entrySet().iterator();
+    while (iter.hasNext()) {
+      entry = iter.next();
+      if (now - entry.getValue() < m_Settle)
+	continue;
+      iter.remove();
+      if (Files.isRegularFile(entry.getKey()))
+	result.add(entry.getKey());
+    }
+
+    return result;
+  }
+
+  /**
+   * Returns the time in msec until the next pending file is complete.
+   *
+   * @return		the time, -1 if nothing pending
+   */
+  protected long nextReady() {
+    long	result;
+    long	now;
+
+    if (m_Pending.isEmpty())
+      return -1;
+    now    = System.currentTimeMillis();
+    result = Long.MAX_VALUE;
+    for (long time : m_Pending.values())
+      result = Math.min(result, time + m_Settle - now);
+
+    return Math.max(1, result);
+  }
+
+  /**
+   * Writes the file names to the output, opening it for each batch (a FIFO
+   * blocks until the workflow opens it for reading).
+   *
+   * @param files	the files to write
+   * @throws Exception	if writing fails
+   */
+  protected void write(List<Path> files) throws Exception {
+    try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(m_Output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE), StandardCharsets.UTF_8))) {
+      for (Path file : files)
+	writer.write(file.toString() + "\n");
+    }
+    m_Emitted.addAll(files);
+  }
+
+  /**
+   * Watches the directory until interrupted.
+   *
+   * @throws Exception	if watching fails
+   */
+  public void run() throws Exception {
+    WatchKey		key;
+    List<Path>		files;
+    long		wait;
+    long		end;
+
+    try (WatchService service = FileSystems.getDefault().newWatchService()) {
+      m_Dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+      scan();
+
+      while (true) {
+	wait = nextReady();
+	key  = (wait == -1) ? service.take() : service.poll(wait, TimeUnit.MILLISECONDS);
+	if (key != null)
+	  process(key);
+	files = ready();
+	if (files.isEmpty())
+	  continue;
+
+	// collect the files of a burst
+	end = System.currentTimeMillis() + m_Batch;
+	while ((wait = end - System.currentTimeMillis()) > 0) {
+	  key = service.poll(wait, TimeUnit.MILLISECONDS);
+	  if (key != null)
+	    process(key);
+	  files.addAll(ready());
+	}
+	write(files);
+      }
+    }
+  }
+
+  /**
+   * Runs the trigger.
+   *
+   * @param args	DIR OUTPUT [REGEXP [SETTLE_MS [BATCH_MS]]]
+   * @throws Exception	if watching fails
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Usage: " + InputTrigger.class.getName() + " DIR OUTPUT [REGEXP [SETTLE_MS [BATCH_MS]]]");
+      System.exit(1);
+    }
+    new InputTrigger(
+      new File(args[0]),
+      new File(args[1]),
+      (args.length > 2) ? args[2] : DEFAULT_REGEXP,
+      (args.length > 3) ? Integer.parseInt(args[3]) : DEFAULT_SETTLE,
+      (args.length > 4) ? Integer.parseInt(args[4]) : DEFAULT_BATCH).run();
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * JLink.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Generates the Dockerfile instructions for a multi-stage build that creates
+ * a minimal runtime with jlink. The JDK modules required by the libraries get
+ * determined with jdeps in the build stage, i.e., with the same JDK that
+ * jlink uses (the base image), not the one of the generator.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class JLink {
+
+  /** the modules that always get added, as they are only used via reflection/services. */
+  public final static String[] DEFAULT_MODULES = {
+    "jdk.crypto.ec",
+    "jdk.unsupported",
+    "jdk.zipfs",
+  };
+
+  /** the name of the build stage. */
+  public final static String STAGE = "jlink";
+
+  /** the directory of the runtime in the image. */
+  public final static String RUNTIME_DIR = "/opt/jre";
+
+  /** the directory for the libraries in the build stage. */
+  public final static String LIB_DIR = "/tmp/jlink-lib";
+
+  /** the additional modules. */
+  protected List<String> m_Modules;
+
+  /**
+   * Initializes the object.
+   *
+   * @param additional	additional modules to include, can be null
+   */
+  public JLink(List<String> additional) {
+    TreeSet<String>	modules;
+
+    modules = new TreeSet<>(Arrays.asList(DEFAULT_MODULES));
+    if (additional != null)
+      modules.addAll(additional);
+    m_Modules = new ArrayList<>(modules);
+  }
+
+  /**
+   * Returns the modules that get added to the ones determined by jdeps.
+   *
+   * @return		the modules
+   */
+  public List<String> getModules() {
+    return m_Modules;
+  }
+
+  /**
+   * Generates the build stage that determines the required modules with
+   * jdeps and creates the runtime with jlink.
+   *
+   * @param baseImage	the image with the full JDK
+   * @param libs	the sources (in the build context) of the libraries, e.g., "target/lib/*"
+   * @return		the Dockerfile instructions
+   */
+  public List<String> generateBuildStage(String baseImage, List<String> libs) {
+    List<String>	result;
+
+    result = new ArrayList<>();
+    result.add("FROM " + baseImage + " AS " + STAGE);
+    for (String lib : libs)
+      result.add("COPY \"" + lib + "\" " + LIB_DIR + "/");
+    // the module list is output on the last line, can be empty
+    result.add("RUN MODULES=\"$(jdeps --ignore-missing-deps --multi-release base --print-module-deps -q " + LIB_DIR + "/*.jar)\" \\");
+    result.add("  && MODULES=\"$(echo \"$MODULES\" | tail -n 1)\" \\");
+    result.add("  && echo \"JDK modules for runtime: ${MODULES:+$MODULES,}" + String.join(",", m_Modules) + "\" \\");
+    result.add("  && jlink --add-modules \"${MODULES:+$MODULES,}" + String.join(",", m_Modules) + "\" --strip-debug --no-man-pages --no-header-files --compress=2 --output " + RUNTIME_DIR + " \\");
+    result.add("  && rm -rf " + LIB_DIR);
+
+    return result;
+  }
+
+  /**
+   * Generates the instructions for the final image that install the runtime
+   * from the build stage.
+   *
+   * @param runtimeImage	the image for the final stage
+   * @return			the Dockerfile instructions
+   */
+  public List<String> generateRuntimeStage(String runtimeImage) {
+    List<String>	result;
+
+    result = new ArrayList<>();
+    result.add("FROM " + runtimeImage);
+    result.add("COPY --from=" + STAGE + " " + RUNTIME_DIR + " " + RUNTIME_DIR);
+    result.add("ENV JAVA_HOME=\"" + RUNTIME_DIR + "\"");
+    result.add("ENV PATH=\"" + RUNTIME_DIR + "/bin:${PATH}\"");
+
+    return result;
+  }
+}
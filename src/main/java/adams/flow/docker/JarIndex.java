@@ -0,0 +1,372 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * JarIndex.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Index of the classes contained in a set of jars, with the ability to
+ * determine the classes referenced by a class (from its constant pool).
+ * Class names are stored in internal form, i.e., with '/' as separator.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class JarIndex {
+
+  /** the prefix for multi-release classes. */
+  public final static String VERSIONS = "META-INF/versions/";
+
+  /** the prefix for service definitions. */
+  public final static String SERVICES = "META-INF/services/";
+
+  /** for extracting class names from descriptors/signatures. */
+  protected final static Pattern DESCRIPTOR = Pattern.compile("L([A-Za-z0-9_$/]+)[;<]");
+
+  /** the jars. */
+  protected List<File> m_Jars;
+
+  /** the opened jars. */
+  protected Map<File,ZipFile> m_Zips;
+
+  /** class name -&gt; jar (first one on the classpath wins). */
+  protected Map<String,File> m_Classes;
+
+  /** class name -&gt; entry name in jar. */
+  protected Map<String,String> m_Entries;
+
+  /** jar -&gt; class names. */
+  protected Map<File,Set<String>> m_JarClasses;
+
+  /** service interface -&gt; implementations. */
+  protected Map<String,Set<String>> m_Services;
+
+  /**
+   * Initializes the index.
+   */
+  public JarIndex() {
+    m_Jars       = new ArrayList<>();
+    m_Zips       = new HashMap<>();
+    m_Classes    = new HashMap<>();
+    m_Entries    = new HashMap<>();
+    m_JarClasses = new HashMap<>();
+    m_Services   = new HashMap<>();
+  }
+
+  /**
+   * Turns the class name into internal form.
+   *
+   * @param name	the class name (with '.' or '/')
+   * @return		the internal name
+   */
+  public static String toInternal(String name) {
+    return name.replace('.', '/');
+  }
+
+  /**
+   * Turns the internal class name into a regular one.
+   *
+   * @param name	the internal name
+   * @return		the class name
+   */
+  public static String toClassName(String name) {
+    return name.replace('/', '.');
+  }
+
+  /**
+   * Adds the jars to the index.
+   *
+   * @param jars	the jars to index, in classpath order
+   * @throws IOException	if reading of jar fails
+   */
+  public void index(List<File> jars) throws IOException {
+    for (File jar : jars)
+      index(jar);
+  }
+
+  /**
+   * Adds the jar to the index.
+   *
+   * @param jar		the jar to index
+   * @throws IOException	if reading of jar fails
+   */
+  public void index(File jar) throws IOException {
+    ZipFile			zip;
+    Enumeration<? extends ZipEntry>	entries;
+    ZipEntry			entry;
+    String			name;
+    String			cls;
+    Set<String>			classes;
+
+    zip     = new ZipFile(jar);
+    classes = new LinkedHashSet<>();
+    m_Jars.add(jar);
+    m_Zips.put(jar, zip);
+    m_JarClasses.put(jar, classes);
+
+    entries = zip.entries();
+    while (entries.hasMoreElements()) {
+      entry = entries.nextElement();
+      name  = entry.getName();
+      if (entry.isDirectory())
+	continue;
+      if (name.startsWith(SERVICES) && (name.length() > SERVICES.length())) {
+	indexServices(zip, entry);
+	continue;
+      }
+      if (!name.endsWith(".class") || name.endsWith("module-info.class"))
+	continue;
+      cls = name.substring(0, name.length() - ".class".length());
+      if (cls.startsWith(VERSIONS))
+	cls = cls.substring(cls.indexOf('/', VERSIONS.length()) + 1);
+      classes.add(cls);
+      if (!m_Classes.containsKey(cls)) {
+	m_Classes.put(cls, jar);
+	m_Entries.put(cls, name);
+      }
+    }
+  }
+
+  /**
+   * Reads the implementations from the service definition.
+   *
+   * @param zip		the jar
+   * @param entry	the service definition
+   * @throws IOException	if reading fails
+   */
+  protected void indexServices(ZipFile zip, ZipEntry entry) throws IOException {
+    String		service;
+    String		line;
+    Set<String>		impls;
+
+    service = toInternal(entry.getName().substring(SERVICES.length()));
+    impls   = m_Services.computeIfAbsent(service, (String k) -> new HashSet<>());
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(zip.getInputStream(entry), StandardCharsets.UTF_8))) {
+      while ((line = reader.readLine()) != null) {
+	if (line.contains("#"))
+	  line = line.substring(0, line.indexOf('#'));
+	line = line.trim();
+	if (!line.isEmpty())
+	  impls.add(toInternal(line));
+      }
+    }
+  }
+
+  /**
+   * Returns the indexed jars.
+   *
+   * @return		the jars
+   */
+  public List<File> getJars() {
+    return m_Jars;
+  }
+
+  /**
+   * Returns whether the class is available.
+   *
+   * @param name	the class name (with '.' or '/')
+   * @return		true if available
+   */
+  public boolean contains(String name) {
+    return m_Classes.containsKey(toInternal(name));
+  }
+
+  /**
+   * Returns the jar that provides the class.
+   *
+   * @param name	the class name (with '.' or '/')
+   * @return		the jar, null if not available
+   */
+  public File getJar(String name) {
+    return m_Classes.get(toInternal(name));
+  }
+
+  /**
+   * Returns the classes stored in the jar.
+   *
+   * @param jar		the jar
+   * @return		the internal class names, null if jar not indexed
+   */
+  public Set<String> getClasses(File jar) {
+    return m_JarClasses.get(jar);
+  }
+
+  /**
+   * Returns the implementations registered for the service.
+   *
+   * @param service	the internal name of the service interface
+   * @return		the internal names of the implementations, null if none
+   */
+  public Set<String> getServiceImplementations(String service) {
+    return m_Services.get(service);
+  }
+
+  /**
+   * Reads the raw bytes of the class.
+   *
+   * @param name	the class name (with '.' or '/')
+   * @return		the bytes, null if not available
+   * @throws IOException	if reading fails
+   */
+  public byte[] getBytes(String name) throws IOException {
+    ZipFile	zip;
+
+    name = toInternal(name);
+    if (!m_Classes.containsKey(name))
+      return null;
+    zip = m_Zips.get(m_Classes.get(name));
+    try (InputStream in = zip.getInputStream(zip.getEntry(m_Entries.get(name)))) {
+      return in.readAllBytes();
+    }
+  }
+
+  /**
+   * Reads the UTF8 entries from the constant pool of the class.
+   *
+   * @param data	the class bytes
+   * @return		the strings
+   * @throws IOException	if parsing fails
+   */
+  public static List<String> readConstantPoolStrings(byte[] data) throws IOException {
+    List<String>	result;
+    DataInputStream	in;
+    int			count;
+    int			tag;
+    int			i;
+
+    result = new ArrayList<>();
+    in     = new DataInputStream(new ByteArrayInputStream(data));
+    if (in.readInt() != 0xCAFEBABE)
+      throw new IOException("Not a class file!");
+    in.readUnsignedShort();  // minor
+    in.readUnsignedShort();  // major
+    count = in.readUnsignedShort();
+    for (i = 1; i < count; i++) {
+      tag = in.readUnsignedByte();
+      switch (tag) {
+	case 1:   // Utf8
+	  result.add(in.readUTF());
+	  break;
+	case 7:   // Class
+	case 8:   // String
+	case 16:  // MethodType
+	case 19:  // Module
+	case 20:  // Package
+	  in.skipBytes(2);
+	  break;
+	case 15:  // MethodHandle
+	  in.skipBytes(3);
+	  break;
+	case 3:   // Integer
+	case 4:   // Float
+	case 9:   // Fieldref
+	case 10:  // Methodref
+	case 11:  // InterfaceMethodref
+	case 12:  // NameAndType
+	case 17:  // Dynamic
+	case 18:  // InvokeDynamic
+	  in.skipBytes(4);
+	  break;
+	case 5:   // Long
+	case 6:   // Double
+	  in.skipBytes(8);
+	  i++;
+	  break;
+	default:
+	  throw new IOException("Unknown constant pool tag " + tag + " at index " + i);
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Determines the indexed classes that the class references, either
+   * directly, via descriptors/signatures or via string constants (e.g.,
+   * class names used with reflection).
+   *
+   * @param name	the class name (with '.' or '/')
+   * @return		the internal names of the referenced classes
+   * @throws IOException	if reading/parsing fails
+   */
+  public Set<String> getReferences(String name) throws IOException {
+    Set<String>		result;
+    byte[]		data;
+    Matcher		matcher;
+    String		internal;
+
+    result = new HashSet<>();
+    data   = getBytes(name);
+    if (data == null)
+      return result;
+
+    for (String s : readConstantPoolStrings(data)) {
+      internal = toInternal(s);
+      if (m_Classes.containsKey(internal)) {
+	result.add(internal);
+	continue;
+      }
+      if (s.indexOf('L') > -1) {
+	matcher = DESCRIPTOR.matcher(s);
+	while (matcher.find()) {
+	  if (m_Classes.containsKey(matcher.group(1)))
+	    result.add(matcher.group(1));
+	}
+      }
+    }
+    result.remove(toInternal(name));
+
+    return result;
+  }
+
+  /**
+   * Closes the jars.
+   */
+  public void close() {
+    for (ZipFile zip : m_Zips.values()) {
+      try {
+	zip.close();
+      }
+      catch (Exception e) {
+	// ignored
+      }
+    }
+    m_Zips.clear();
+  }
+}
@@ -0,0 +1,508 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * JarRepacker.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Rewrites the jars in the lib directory, either with stored (uncompressed)
+ * entries, which the gzip compression of the docker layers compresses much
+ * better than already deflated entries and which the JVM does not have to
+ * inflate when loading classes, or with the best deflate compression.
+ * The entries get sorted by name and use fixed timestamps. Optionally,
+ * source and javadoc jars, source files and signatures get stripped
+ * (signatures of jars that provide security providers are kept). The jars
+ * get replaced (write and rename) rather than modified, as they may be hard
+ * links to the cache.
+ * <br>
+ * The report compares the size, the gzip-compressed size (as in the docker
+ * layer), the resulting pull time at {@link #REFERENCE_BANDWIDTH} and the
+ * time for reading all the classes before and after repacking.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class JarRepacker {
+
+  /**
+   * The compression of the repacked jars.
+   */
+  public enum Mode {
+    /** no repacking. */
+    OFF,
+    /** stored entries (no compression). */
+    STORE,
+    /** best deflate compression. */
+    DEFLATE,
+  }
+
+  /** the report file. */
+  public final static String REPORT = "repack-report.txt";
+
+  /** the extension of the temporary file while repacking. */
+  public final static String TMP_EXT = ".repack";
+
+  /** the bandwidth in Mbit/s for estimating the pull time. */
+  public final static int REFERENCE_BANDWIDTH = 100;
+
+  /** the service file of security providers (signatures get kept). */
+  public final static String PROVIDER_SERVICE = JarIndex.SERVICES + "java.security.Provider";
+
+  /** the signature files. */
+  protected final static Pattern SIGNATURE = Pattern.compile("META-INF/([^/]+\\.(SF|RSA|DSA|EC)|SIG-[^/]*)", Pattern.CASE_INSENSITIVE);
+
+  /** the jars without classes for the runtime. */
+  protected final static Pattern SOURCE_JAR = Pattern.compile(".*-(sources|javadoc)\\.jar", Pattern.CASE_INSENSITIVE);
+
+  /** the mode. */
+  protected Mode m_Mode;
+
+  /** whether to strip sources, javadoc and signatures. */
+  protected boolean m_Strip;
+
+  /** jar -&gt; size before repacking. */
+  protected Map<File,Long> m_Before;
+
+  /** jar -&gt; size after repacking (missing if removed). */
+  protected Map<File,Long> m_After;
+
+  /** the removed jars (sources/javadoc). */
+  protected List<File> m_Removed;
+
+  /** the number of stripped entries. */
+  protected int m_Stripped;
+
+  /** the gzip-compressed size before repacking. */
+  protected long m_GzipBefore;
+
+  /** the gzip-compressed size after repacking. */
+  protected long m_GzipAfter;
+
+  /** the time for reading all classes before repacking (msec). */
+  protected long m_ReadBefore;
+
+  /** the time for reading all classes after repacking (msec). */
+  protected long m_ReadAfter;
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /**
+   * Initializes the repacker.
+   *
+   * @param mode	the mode
+   * @param strip	whether to strip sources, javadoc and signatures
+   */
+  public JarRepacker(Mode mode, boolean strip) {
+    m_Mode    = (mode == null) ? Mode.OFF : mode;
+    m_Strip   = strip;
+    m_Before  = new LinkedHashMap<>();
+    m_After   = new LinkedHashMap<>();
+    m_Removed = new ArrayList<>();
+  }
+
+  /**
+   * Returns the logger instance to use.
+   *
+   * @return		the logger
+   */
+  protected Logger getLogger() {
+    if (m_Logger == null)
+      m_Logger = Logger.getLogger(getClass().getName());
+    return m_Logger;
+  }
+
+  /**
+   * Returns the gzip-compressed size of the files.
+   *
+   * @param files	the files
+   * @return		the size in bytes
+   * @throws IOException	if reading fails
+   */
+  public static long gzipSize(List<File> files) throws IOException {
+    long[]		size;
+    OutputStream	counter;
+
+    size    = new long[1];
+    counter = new OutputStream() {
+      @Override
+      public void write(int b) {
+	size[0]++;
+      }
+      @Override
+      public void write(byte[] b, int off, int len) {
+	size[0] += len;
+      }
+    };
+    try (GZIPOutputStream out = new GZIPOutputStream(counter, 65536)) {
+      for (File file : files)
+	Files.copy(file.toPath(), out);
+    }
+
+    return size[0];
+  }
+
+  /**
+   * Reads all the classes of the jars, as the JVM has to when loading them.
+   *
+   * @param files	the jars
+   * @return		the time in msec
+   * @throws IOException	if reading fails
+   */
+  public static long readClasses(List<File> files) throws IOException {
+    long				start;
+    Enumeration<? extends ZipEntry>	entries;
+    ZipEntry				entry;
+
+    start = System.nanoTime();
+    for (File file : files) {
+      try (ZipFile zip = new ZipFile(file)) {
+	entries = zip.entries();
+	while (entries.hasMoreElements()) {
+	  entry = entries.nextElement();
+	  if (!entry.getName().endsWith(".class"))
+	    continue;
+	  try (InputStream in = zip.getInputStream(entry)) {
+	    in.readAllBytes();
+	  }
+	}
+      }
+    }
+
+    return (System.nanoTime() - start) / 1000000;
+  }
+
+  /**
+   * Removes the digests of the signed entries from the manifest.
+   *
+   * @param data	the manifest
+   * @return		the updated manifest
+   * @throws IOException	if reading/writing fails
+   */
+  protected static byte[] stripDigests(byte[] data) throws IOException {
+    Manifest			manifest;
+    Iterator<Map.Entry<String,Attributes>>	iter;
+    Attributes			attributes;
+    ByteArrayOutputStream	out;
+
+    manifest = new Manifest(new ByteArrayInputStream(data));
+    iter     = manifest.getEntries().entrySet().iterator();
+    while (iter.hasNext()) {
+      attributes = iter.next().getValue();
+      attributes.keySet().removeIf((Object key) -> key.toString().toLowerCase().endsWith("-digest"));
+      if (attributes.isEmpty())
+	iter.remove();
+    }
+    out = new ByteArrayOutputStream();
+    manifest.write(out);
+
+    return out.toByteArray();
+  }
+
+  /**
+   * Repacks the jar.
+   *
+   * @param jar		the jar to repack
+   * @return		the number of stripped entries
+   * @throws IOException	if reading/writing fails
+   */
+  protected int repack(File jar) throws IOException {
+    int			result;
+    File		tmp;
+    TreeSet<String>	names;
+    List<String>	sorted;
+    boolean		signatures;
+    ZipEntry		entry;
+    ZipEntry		out;
+    byte[]		data;
+    CRC32		crc;
+
+    result = 0;
+    tmp    = new File(jar.getAbsolutePath() + TMP_EXT);
+    try (ZipFile zip = new ZipFile(jar); ZipOutputStream zout = new ZipOutputStream(Files.newOutputStream(tmp.toPath()))) {
+      names = new TreeSet<>();
+      for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); )
+	names.add(e.nextElement().getName());
+      signatures = m_Strip && (zip.getEntry(PROVIDER_SERVICE) == null);
+
+      // the manifest comes first, as JarInputStream expects it there
+      sorted = new ArrayList<>();
+      if (names.remove("META-INF/"))
+	sorted.add("META-INF/");
+      if (names.remove(JarFile.MANIFEST_NAME))
+	sorted.add(JarFile.MANIFEST_NAME);
+      sorted.addAll(names);
+
+      zout.setLevel(Deflater.BEST_COMPRESSION);
+      for (String name : sorted) {
+	if (m_Strip && name.endsWith(".java")) {
+	  result++;
+	  continue;
+	}
+	if (signatures && SIGNATURE.matcher(name).matches()) {
+	  result++;
+	  continue;
+	}
+	entry = zip.getEntry(name);
+	try (InputStream in = zip.getInputStream(entry)) {
+	  data = in.readAllBytes();
+	}
+	if (signatures && name.equals(JarFile.MANIFEST_NAME))
+	  data = stripDigests(data);
+	out = new ZipEntry(name);
+	out.setTimeLocal(FileUtils.JAR_TIMESTAMP);
+	if (m_Mode == Mode.STORE) {
+	  crc = new CRC32();
+	  crc.update(data);
+	  out.setMethod(ZipEntry.STORED);
+	  out.setSize(data.length);
+	  out.setCompressedSize(data.length);
+	  out.setCrc(crc.getValue());
+	}
+	else {
+	  out.setMethod(ZipEntry.DEFLATED);
+	}
+	zout.putNextEntry(out);
+	zout.write(data);
+	zout.closeEntry();
+      }
+    }
+    catch (IOException e) {
+      FileUtils.delete(tmp);
+      throw e;
+    }
+    // replace rather than overwrite, the jar may be a hard link
+    Files.move(tmp.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    return result;
+  }
+
+  /**
+   * Repacks the jars, recording sizes and times before and after.
+   *
+   * @param jars	the jars to repack
+   * @return		null if successful, otherwise error message
+   */
+  public String repack(List<File> jars) {
+    List<File>	kept;
+
+    m_Before.clear();
+    m_After.clear();
+    m_Removed.clear();
+    m_Stripped = 0;
+    if (m_Mode == Mode.OFF)
+      return null;
+
+    try {
+      m_GzipBefore = gzipSize(jars);
+      m_ReadBefore = readClasses(jars);
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to measure jars before repacking!", e);
+      return "Failed to measure jars before repacking!";
+    }
+
+    kept = new ArrayList<>();
+    for (File jar : jars) {
+      m_Before.put(jar, jar.length());
+      if (m_Strip && SOURCE_JAR.matcher(jar.getName()).matches()) {
+	if (!jar.delete())
+	  return "Failed to remove jar: " + jar;
+	m_Removed.add(jar);
+	continue;
+      }
+      try {
+	m_Stripped += repack(jar);
+      }
+      catch (Exception e) {
+	getLogger().log(Level.SEVERE, "Failed to repack jar: " + jar, e);
+	return "Failed to repack jar: " + jar;
+      }
+      m_After.put(jar, jar.length());
+      kept.add(jar);
+    }
+
+    try {
+      m_GzipAfter = gzipSize(kept);
+      m_ReadAfter = readClasses(kept);
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to measure jars after repacking!", e);
+      return "Failed to measure jars after repacking!";
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns the total size of the jars before repacking.
+   *
+   * @return		the size in bytes
+   */
+  public long getSizeBefore() {
+    long	result;
+
+    result = 0;
+    for (long size : m_Before.values())
+      result += size;
+
+    return result;
+  }
+
+  /**
+   * Returns the total size of the jars after repacking.
+   *
+   * @return		the size in bytes
+   */
+  public long getSizeAfter() {
+    long	result;
+
+    result = 0;
+    for (long size : m_After.values())
+      result += size;
+
+    return result;
+  }
+
+  /**
+   * Returns the gzip-compressed size before repacking.
+   *
+   * @return		the size in bytes
+   */
+  public long getGzipBefore() {
+    return m_GzipBefore;
+  }
+
+  /**
+   * Returns the gzip-compressed size after repacking.
+   *
+   * @return		the size in bytes
+   */
+  public long getGzipAfter() {
+    return m_GzipAfter;
+  }
+
+  /**
+   * Returns the time for reading all classes before repacking.
+   *
+   * @return		the time in msec
+   */
+  public long getReadBefore() {
+    return m_ReadBefore;
+  }
+
+  /**
+   * Returns the time for reading all classes after repacking.
+   *
+   * @return		the time in msec
+   */
+  public long getReadAfter() {
+    return m_ReadAfter;
+  }
+
+  /**
+   * Returns the removed jars (sources/javadoc).
+   *
+   * @return		the jars
+   */
+  public List<File> getRemoved() {
+    return m_Removed;
+  }
+
+  /**
+   * Returns the number of stripped entries.
+   *
+   * @return		the number
+   */
+  public int getStripped() {
+    return m_Stripped;
+  }
+
+  /**
+   * Estimates the time for pulling the compressed size at the
+   * {@link #REFERENCE_BANDWIDTH}.
+   *
+   * @param size	the compressed size in bytes
+   * @return		the time in msec
+   */
+  public static long estimatePull(long size) {
+    return size * 8 * 1000 / (REFERENCE_BANDWIDTH * 1000000L);
+  }
+
+  /**
+   * Generates the report comparing the jars before and after repacking.
+   *
+   * @return		the lines of the report
+   */
+  public List<String> generateReport() {
+    List<String>	result;
+    Set<File>		removed;
+
+    removed = new HashSet<>(m_Removed);
+    result  = new ArrayList<>();
+    result.add("# Mode: " + m_Mode.toString().toLowerCase() + (m_Strip ? ", stripped" : ""));
+    result.add("");
+    result.add("# Totals (before -> after)");
+    result.add("jars: " + m_Before.size() + " -> " + m_After.size());
+    result.add("bytes: " + getSizeBefore() + " -> " + getSizeAfter());
+    result.add("layer bytes (gzip): " + m_GzipBefore + " -> " + m_GzipAfter);
+    result.add("pull time (msec, " + REFERENCE_BANDWIDTH + " Mbit/s): " + estimatePull(m_GzipBefore) + " -> " + estimatePull(m_GzipAfter));
+    result.add("class read time (msec): " + m_ReadBefore + " -> " + m_ReadAfter);
+    result.add("stripped entries: " + m_Stripped);
+    result.add("");
+    result.add("# Jars (bytes before -> after)");
+    for (File jar : m_Before.keySet()) {
+      if (removed.contains(jar))
+	result.add("removed: " + jar.getName() + " (" + m_Before.get(jar) + ")");
+      else
+	result.add("repacked: " + jar.getName() + " (" + m_Before.get(jar) + " -> " + m_After.get(jar) + ")");
+    }
+
+    return result;
+  }
+}
@@ -0,0 +1,444 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * JsonUtils.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON parser/writer, mapping objects to {@link LinkedHashMap}
+ * (retaining the order of the keys), arrays to {@link List}, numbers to
+ * {@link Long} or {@link Double}, plus {@link String}, {@link Boolean} and null.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class JsonUtils {
+
+  /** the JSON to parse. */
+  protected String m_Json;
+
+  /** the current position. */
+  protected int m_Pos;
+
+  /**
+   * Initializes the parser.
+   *
+   * @param json	the JSON to parse
+   */
+  protected JsonUtils(String json) {
+    m_Json = json;
+    m_Pos  = 0;
+  }
+
+  /**
+   * Creates an exception for the current position.
+   *
+   * @param msg		the error message
+   * @return		the exception
+   */
+  protected IllegalArgumentException error(String msg) {
+    return new IllegalArgumentException(msg + " at position " + m_Pos);
+  }
+
+  /**
+   * Skips whitespaces.
+   */
+  protected void skipWhitespace() {
+    while ((m_Pos < m_Json.length()) && Character.isWhitespace(m_Json.charAt(m_Pos)))
+      m_Pos++;
+  }
+
+  /**
+   * Expects the specified character at the current position (after
+   * whitespaces) and moves past it.
+   *
+   * @param c		the character
+   */
+  protected void expect(char c) {
+    skipWhitespace();
+    if ((m_Pos >= m_Json.length()) || (m_Json.charAt(m_Pos) != c))
+      throw error("Expected '" + c + "'");
+    m_Pos++;
+  }
+
+  /**
+   * Checks whether the current character (after whitespaces) is the
+   * specified one, moving past it if so.
+   *
+   * @param c		the character
+   * @return		true if found
+   */
+  protected boolean consume(char c) {
+    skipWhitespace();
+    if ((m_Pos < m_Json.length()) && (m_Json.charAt(m_Pos) == c)) {
+      m_Pos++;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Parses the next value.
+   *
+   * @return		the value
+   */
+  protected Object parseValue() {
+    char	c;
+
+    skipWhitespace();
+    if (m_Pos >= m_Json.length())
+      throw error("Unexpected end of JSON");
+    c = m_Json.charAt(m_Pos);
+    if (c == '{')
+      return parseObject();
+    if (c == '[')
+      return parseArray();
+    if (c == '"')
+      return parseString();
+    if (m_Json.startsWith("true", m_Pos)) {
+      m_Pos += 4;
+      return true;
+    }
+    if (m_Json.startsWith("false", m_Pos)) {
+      m_Pos += 5;
+      return false;
+    }
+    if (m_Json.startsWith("null", m_Pos)) {
+      m_Pos += 4;
+      return null;
+    }
+    return parseNumber();
+  }
+
+  /**
+   * Parses an object.
+   *
+   * @return		the object
+   */
+  protected Map<String,Object> parseObject() {
+    Map<String,Object>	result;
+    String		key;
+
+    result = new LinkedHashMap<>();
+    expect('{');
+    if (consume('}'))
+      return result;
+    do {
+      skipWhitespace();
+      key = parseString();
+      expect(':');
+      result.put(key, parseValue());
+    }
+    while (consume(','));
+    expect('}');
+
+    return result;
+  }
+
+  /**
+   * Parses an array.
+   *
+   * @return		the array
+   */
+  protected List<Object> parseArray() {
+    List<Object>	result;
+
+    result = new ArrayList<>();
+    expect('[');
+    if (consume(']'))
+      return result;
+    do {
+      result.add(parseValue());
+    }
+    while (consume(','));
+    expect(']');
+
+    return result;
+  }
+
+  /**
+   * Parses a string.
+   *
+   * @return		the string
+   */
+  protected String parseString() {
+    StringBuilder	result;
+    char		c;
+
+    result = new StringBuilder();
+    expect('"');
+    while (true) {
+      if (m_Pos >= m_Json.length())
+	throw error("Unterminated string");
+      c = m_Json.charAt(m_Pos++);
+      if (c == '"')
+	break;
+      if (c != '\\') {
+	result.append(c);
+	continue;
+      }
+      c = m_Json.charAt(m_Pos++);
+      switch (c) {
+	case 'b':
+	  result.append('\b');
+	  break;
+	case 'f':
+	  result.append('\f');
+	  break;
+	case 'n':
+	  result.append('\n');
+	  break;
+	case 'r':
+	  result.append('\r');
+	  break;
+	case 't':
+	  result.append('\t');
+	  break;
+	case 'u':
+	  result.append((char) Integer.parseInt(m_Json.substring(m_Pos, m_Pos + 4), 16));
+	  m_Pos += 4;
+	  break;
+	default:
+	  result.append(c);
+      }
+    }
+
+    return result.toString();
+  }
+
+  /**
+   * Parses a number.
+   *
+   * @return		the number (Long or Double)
+   */
+  protected Number parseNumber() {
+    int		start;
+    String	num;
+
+    start = m_Pos;
+    while ((m_Pos < m_Json.length()) && ("+-0123456789.eE".indexOf(m_Json.charAt(m_Pos)) > -1))
+      m_Pos++;
+    num = m_Json.substring(start, m_Pos);
+    if (num.isEmpty())
+      throw error("Unexpected character '" + m_Json.charAt(m_Pos) + "'");
+    if (num.contains(".") || num.contains("e") || num.contains("E"))
+      return Double.parseDouble(num);
+    return Long.parseLong(num);
+  }
+
+  /**
+   * Parses the JSON string.
+   *
+   * @param json	the JSON to parse
+   * @return		the parsed value
+   * @throws IllegalArgumentException	if parsing fails
+   */
+  public static Object parse(String json) {
+    JsonUtils	parser;
+    Object	result;
+
+    parser = new JsonUtils(json);
+    result = parser.parseValue();
+    parser.skipWhitespace();
+    if (parser.m_Pos < json.length())
+      throw parser.error("Unexpected trailing content");
+
+    return result;
+  }
+
+  /**
+   * Parses the JSON string, expecting an object.
+   *
+   * @param json	the JSON to parse
+   * @return		the parsed object
+   * @throws IllegalArgumentException	if parsing fails or not an object
+   */
+  public static Map<String,Object> parseObject(String json) {
+    Object	result;
+
+    result = parse(json);
+    if (!(result instanceof Map))
+      throw new IllegalArgumentException("JSON object expected!");
+
+    return asObject(result);
+  }
+
+  /**
+   * Returns the parsed value as JSON object.
+   *
+   * @param value	the value to convert, can be null
+   * @return		the object, null if the value is null
+   * @throws IllegalArgumentException	if not an object
+   */
+  @SuppressWarnings("unchecked")
+  public static Map<String,Object> asObject(Object value) {
+    if (value == null)
+      return null;
+    if (!(value instanceof Map))
+      throw new IllegalArgumentException("JSON object expected, found: " + value.getClass().getSimpleName());
+    return (Map<String,Object>) value;
+  }
+
+  /**
+   * Returns the parsed value as JSON array.
+   *
+   * @param value	the value to convert, can be null
+   * @return		the array, null if the value is null
+   * @throws IllegalArgumentException	if not an array
+   */
+  @SuppressWarnings("unchecked")
+  public static List<Object> asList(Object value) {
+    if (value == null)
+      return null;
+    if (!(value instanceof List))
+      throw new IllegalArgumentException("JSON array expected, found: " + value.getClass().getSimpleName());
+    return (List<Object>) value;
+  }
+
+  /**
+   * Returns the JSON object stored under the key.
+   *
+   * @param map		the object to get the value from
+   * @param key		the key of the value
+   * @return		the object, null if not present
+   * @throws IllegalArgumentException	if not an object
+   */
+  public static Map<String,Object> getObject(Map<String,Object> map, String key) {
+    return asObject(map.get(key));
+  }
+
+  /**
+   * Returns the JSON array stored under the key.
+   *
+   * @param map		the object to get the value from
+   * @param key		the key of the value
+   * @return		the array, null if not present
+   * @throws IllegalArgumentException	if not an array
+   */
+  public static List<Object> getList(Map<String,Object> map, String key) {
+    return asList(map.get(key));
+  }
+
+  /**
+   * Escapes the string and adds the surrounding double quotes.
+   *
+   * @param s		the string to quote
+   * @param out		the buffer to add to
+   */
+  protected static void quote(String s, StringBuilder out) {
+    char	c;
+    int		i;
+
+    out.append('"');
+    for (i = 0; i < s.length(); i++) {
+      c = s.charAt(i);
+      switch (c) {
+	case '"':
+	  out.append("\\\"");
+	  break;
+	case '\\':
+	  out.append("\\\\");
+	  break;
+	case '\n':
+	  out.append("\\n");
+	  break;
+	case '\r':
+	  out.append("\\r");
+	  break;
+	case '\t':
+	  out.append("\\t");
+	  break;
+	default:
+	  if (c < 0x20)
+	    out.append(String.format("\\u%04x", (int) c));
+	  else
+	    out.append(c);
+      }
+    }
+    out.append('"');
+  }
+
+  /**
+   * Turns the value into JSON.
+   *
+   * @param value	the value to convert
+   * @param out		the buffer to add to
+   */
+  protected static void write(Object value, StringBuilder out) {
+    boolean	first;
+    Map<?,?>	map;
+
+    if (value == null) {
+      out.append("null");
+    }
+    else if (value instanceof String) {
+      quote((String) value, out);
+    }
+    else if ((value instanceof Number) || (value instanceof Boolean)) {
+      out.append(value);
+    }
+    else if (value instanceof Map) {
+      map   = (Map<?,?>) value;
+      first = true;
+      out.append('{');
+      for (Object key : map.keySet()) {
+	if (!first)
+	  out.append(',');
+	quote(key.toString(), out);
+	out.append(':');
+	write(map.get(key), out);
+	first = false;
+      }
+      out.append('}');
+    }
+    else if (value instanceof List) {
+      first = true;
+      out.append('[');
+      for (Object item : (List<?>) value) {
+	if (!first)
+	  out.append(',');
+	write(item, out);
+	first = false;
+      }
+      out.append(']');
+    }
+    else {
+      quote(value.toString(), out);
+    }
+  }
+
+  /**
+   * Turns the value into (compact) JSON.
+   *
+   * @param value	the value to convert
+   * @return		the JSON
+   */
+  public static String toJson(Object value) {
+    StringBuilder	result;
+
+    result = new StringBuilder();
+    write(value, result);
+
+    return result.toString();
+  }
+}
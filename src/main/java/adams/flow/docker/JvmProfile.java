@@ -0,0 +1,256 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * JvmProfile.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Generates the wrapper script that applies a JVM tuning profile (heap
+ * sizing relative to the memory limit of the container, GC, processor count
+ * from the CPU quota) to all JVMs of the workflow via JAVA_TOOL_OPTIONS and
+ * then runs the command. The profile can be overridden at runtime with the
+ * JVM_PROFILE environment variable. Flags that the JVM options (-v) already
+ * specify get omitted from the profiles, as do all GC flags if the JVM
+ * options select a GC.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class JvmProfile {
+
+  /**
+   * The available profiles.
+   */
+  public enum Profile {
+    /** no tuning, the JVM defaults. */
+    NONE,
+    /** small-footprint for containers with less than 2 CPUs or 1GB, otherwise throughput. */
+    AUTO,
+    /** parallel GC, large heap. */
+    THROUGHPUT,
+    /** G1 with a pause time goal and string deduplication. */
+    LOW_LATENCY,
+    /** serial GC, C1 only, smaller heap and stacks. */
+    SMALL_FOOTPRINT;
+
+    /**
+     * Returns the name as used on the command-line and in JVM_PROFILE.
+     *
+     * @return		the name
+     */
+    public String getName() {
+      return toString().toLowerCase().replace('_', '-');
+    }
+
+    /**
+     * Returns the profile for the name.
+     *
+     * @param name	the name, see {@link #getName()}
+     * @return		the profile
+     * @throws IllegalArgumentException	if unknown profile
+     */
+    public static Profile fromName(String name) {
+      return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+  }
+
+  /** the name of the script. */
+  public final static String SCRIPT = "jvm.sh";
+
+  /** the environment variable for overriding the profile. */
+  public final static String ENV = "JVM_PROFILE";
+
+  /** the memory limit in MB below which the auto profile uses small-footprint. */
+  public final static int AUTO_MEMORY = 1024;
+
+  /** the number of CPUs below which the auto profile uses small-footprint. */
+  public final static int AUTO_CPUS = 2;
+
+  /** the GC-related flags (omitted if the JVM options select a GC). */
+  protected final static Set<String> GC_FLAGS = new HashSet<>(Arrays.asList(
+    "UseSerialGC", "UseParallelGC", "UseG1GC", "MaxGCPauseMillis", "UseStringDeduplication"));
+
+  /**
+   * Returns the name of the flag, e.g., MaxRAMPercentage for
+   * -XX:MaxRAMPercentage=75 or Xss for -Xss512k.
+   *
+   * @param flag	the flag
+   * @return		the name
+   */
+  protected static String getFlagName(String flag) {
+    String	result;
+
+    if (flag.startsWith("-XX:")) {
+      result = flag.substring(4);
+      if (result.startsWith("+") || result.startsWith("-"))
+	result = result.substring(1);
+      if (result.contains("="))
+	result = result.substring(0, result.indexOf('='));
+      return result;
+    }
+    if (flag.startsWith("-Xss") || flag.startsWith("-Xmx") || flag.startsWith("-Xms"))
+      return flag.substring(1, 4);
+
+    return flag;
+  }
+
+  /**
+   * Returns the flags of the profile (without the processor count).
+   *
+   * @param profile	the profile, AUTO is not resolved
+   * @return		the flags
+   */
+  public static List<String> getFlags(Profile profile) {
+    switch (profile) {
+      case THROUGHPUT:
+	return new ArrayList<>(Arrays.asList(
+	  "-XX:+UseParallelGC", "-XX:MaxRAMPercentage=75", "-XX:+ExitOnOutOfMemoryError"));
+      case LOW_LATENCY:
+	return new ArrayList<>(Arrays.asList(
+	  "-XX:+UseG1GC", "-XX:MaxGCPauseMillis=50", "-XX:+UseStringDeduplication",
+	  "-XX:MaxRAMPercentage=70", "-XX:+ExitOnOutOfMemoryError"));
+      case SMALL_FOOTPRINT:
+	return new ArrayList<>(Arrays.asList(
+	  "-XX:+UseSerialGC", "-XX:MaxRAMPercentage=60", "-XX:TieredStopAtLevel=1",
+	  "-XX:ReservedCodeCacheSize=48m", "-Xss512k", "-XX:+ExitOnOutOfMemoryError"));
+      default:
+	return new ArrayList<>();
+    }
+  }
+
+  /**
+   * Returns the flags of the profile, omitting the ones that the JVM options
+   * already specify (all GC flags if the options select a GC; the heap
+   * percentage if the options specify the heap size).
+   *
+   * @param profile	the profile, AUTO is not resolved
+   * @param jvm		the JVM options, can be null
+   * @return		the flags
+   */
+  public static List<String> getFlags(Profile profile, List<String> jvm) {
+    List<String>	result;
+    Set<String>		names;
+    boolean		gc;
+    boolean		heap;
+
+    names = new HashSet<>();
+    gc    = false;
+    heap  = false;
+    if (jvm != null) {
+      for (String option : jvm) {
+	names.add(getFlagName(option));
+	if (option.startsWith("-XX:+Use") && option.endsWith("GC"))
+	  gc = true;
+	if (option.startsWith("-Xmx") || option.startsWith("-XX:MaxRAM"))
+	  heap = true;
+      }
+    }
+
+    result = new ArrayList<>();
+    for (String flag : getFlags(profile)) {
+      if (names.contains(getFlagName(flag)))
+	continue;
+      if (gc && GC_FLAGS.contains(getFlagName(flag)))
+	continue;
+      if (heap && getFlagName(flag).equals("MaxRAMPercentage"))
+	continue;
+      result.add(flag);
+    }
+
+    return result;
+  }
+
+  /**
+   * Generates the wrapper script. The command to run gets supplied as
+   * arguments to the script.
+   *
+   * @param profile	the default profile
+   * @param jvm		the JVM options of the command, can be null
+   * @return		the lines of the script
+   */
+  public static List<String> generateScript(Profile profile, List<String> jvm) {
+    List<String>	result;
+    boolean		cpus;
+
+    cpus = false;
+    if (jvm != null) {
+      for (String option : jvm)
+	cpus = cpus || getFlagName(option).equals("ActiveProcessorCount");
+    }
+
+    result = new ArrayList<>();
+    result.add("#!/bin/sh");
+    result.add("# Applies the JVM profile in " + ENV + " to all JVMs via JAVA_TOOL_OPTIONS and runs the command (the workflow).");
+    result.add("");
+    result.add("PROFILE=${" + ENV + ":-" + profile.getName() + "}");
+    result.add("");
+    result.addAll(WorkerLauncher.generateCpus());
+    result.add("");
+    result.add("# the memory limit of the container in MB, 0 if unlimited");
+    result.add("memory() {");
+    result.add("  LIMIT=max");
+    result.add("  if [ -f /sys/fs/cgroup/memory.max ]; then");
+    result.add("    read LIMIT < /sys/fs/cgroup/memory.max");
+    result.add("  elif [ -f /sys/fs/cgroup/memory/memory.limit_in_bytes ]; then");
+    result.add("    read LIMIT < /sys/fs/cgroup/memory/memory.limit_in_bytes");
+    result.add("  fi");
+    result.add("  # cgroup v1 reports unlimited as a huge number");
+    result.add("  case \"$LIMIT\" in");
+    result.add("    max|\"\") echo 0 ;;");
+    result.add("    *) MB=$(( LIMIT / 1048576 )); if [ $MB -ge 1048576 ]; then echo 0; else echo $MB; fi ;;");
+    result.add("  esac");
+    result.add("}");
+    result.add("");
+    result.add("CPUS=`cpus`");
+    result.add("if [ \"$PROFILE\" = \"" + Profile.AUTO.getName() + "\" ]; then");
+    result.add("  MEMORY=`memory`");
+    result.add("  if [ $CPUS -lt " + AUTO_CPUS + " ] || { [ $MEMORY -gt 0 ] && [ $MEMORY -lt " + AUTO_MEMORY + " ]; }; then");
+    result.add("    PROFILE=" + Profile.SMALL_FOOTPRINT.getName());
+    result.add("  else");
+    result.add("    PROFILE=" + Profile.THROUGHPUT.getName());
+    result.add("  fi");
+    result.add("fi");
+    result.add("case \"$PROFILE\" in");
+    result.add("  " + Profile.NONE.getName() + ") FLAGS=\"\" ;;");
+    for (Profile p : Profile.values()) {
+      if ((p == Profile.NONE) || (p == Profile.AUTO))
+	continue;
+      result.add("  " + p.getName() + ") FLAGS=\"" + String.join(" ", getFlags(p, jvm)) + "\" ;;");
+    }
+    result.add("  *) echo \"[jvm] unknown profile: $PROFILE\"; PROFILE=" + Profile.NONE.getName() + "; FLAGS=\"\" ;;");
+    result.add("esac");
+    if (!cpus) {
+      result.add("# the JVM also counts CPU shares, use the quota instead");
+      result.add("if [ \"$PROFILE\" != \"" + Profile.NONE.getName() + "\" ]; then FLAGS=\"$FLAGS -XX:ActiveProcessorCount=$CPUS\"; fi");
+    }
+    result.add("echo \"[jvm] profile $PROFILE: $FLAGS\"");
+    result.add("if [ -n \"$FLAGS\" ]; then");
+    result.add("  JAVA_TOOL_OPTIONS=\"`echo $FLAGS $JAVA_TOOL_OPTIONS`\"");
+    result.add("  export JAVA_TOOL_OPTIONS");
+    result.add("fi");
+    result.add("exec \"$@\"");
+
+    return result;
+  }
+}
@@ -0,0 +1,568 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * LibraryDeduplicator.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Detects duplicate and conflicting jars in the lib directory. Jars get
+ * grouped by their artifact (groupId and artifactId from the Maven
+ * pom.properties, otherwise the artifactId from the file name). Jars with
+ * identical content and, depending on the policy, older versions of the same
+ * artifact get removed. Classes that are contained in several of the
+ * remaining jars with different content are conflicts, as it depends on the
+ * order of the jars on the classpath (the lib/* wildcard) which one gets
+ * loaded.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class LibraryDeduplicator {
+
+  /**
+   * How to handle duplicates and conflicts.
+   */
+  public enum Policy {
+    /** no analysis. */
+    OFF,
+    /** report only. */
+    WARN,
+    /** remove identical copies and older versions, warn about conflicts. */
+    NEWEST,
+    /** remove identical copies, fail on different versions and conflicts. */
+    FAIL,
+  }
+
+  /**
+   * The artifact, version, checksum and class entries (name and CRC) of a jar.
+   */
+  public static class JarInfo {
+
+    /** the jar. */
+    protected File m_Jar;
+
+    /** the artifact (groupId:artifactId or artifactId). */
+    protected String m_Artifact;
+
+    /** the version, empty if unknown. */
+    protected String m_Version;
+
+    /** the checksum of the content. */
+    protected String m_Checksum;
+
+    /** class entry -&gt; CRC. */
+    protected Map<String,Long> m_Classes = new HashMap<>();
+
+    /**
+     * Returns the jar.
+     *
+     * @return		the jar
+     */
+    public File getJar() {
+      return m_Jar;
+    }
+
+    /**
+     * Returns the artifact.
+     *
+     * @return		groupId:artifactId, or only the artifactId if determined from the file name
+     */
+    public String getArtifact() {
+      return m_Artifact;
+    }
+
+    /**
+     * Returns the version.
+     *
+     * @return		the version, empty if unknown
+     */
+    public String getVersion() {
+      return m_Version;
+    }
+
+    /**
+     * Returns the checksum of the content.
+     *
+     * @return		the SHA-256 checksum
+     */
+    public String getChecksum() {
+      return m_Checksum;
+    }
+  }
+
+  /** the directory that the removed jars get moved to, relative to the output directory. */
+  public final static String DUPLICATES_DIR = "target/duplicates";
+
+  /** the report file. */
+  public final static String REPORT = "duplicates-report.txt";
+
+  /** the location of the Maven properties in jars. */
+  public final static String MAVEN_DIR = "META-INF/maven/";
+
+  /** the possible starts of the version in the file name. */
+  protected final static Pattern VERSION_START = Pattern.compile("-\\d");
+
+  /** a word followed by a number, i.e., the version is part of the artifactId (e.g., log4j-1.2-api-2.17.1), unless a qualifier. */
+  protected final static Pattern ARTIFACT_IN_VERSION = Pattern.compile("-(?!(?i:alpha|beta|rc|cr|m|milestone|pre|preview|snapshot)-)[A-Za-z][^-]*-\\d");
+
+  /** the policy. */
+  protected Policy m_Policy;
+
+  /** the analyzed jars. */
+  protected List<JarInfo> m_Infos;
+
+  /** jar -&gt; reason why it gets removed. */
+  protected Map<File,String> m_Duplicates;
+
+  /** artifact -&gt; jars with different versions that are kept. */
+  protected Map<String,List<JarInfo>> m_Versions;
+
+  /** conflicting jars (names separated by " / ") -&gt; conflicting classes. */
+  protected Map<String,List<String>> m_Conflicts;
+
+  /** the removed jars. */
+  protected List<File> m_Removed;
+
+  /** the size of the removed jars in bytes. */
+  protected long m_RemovedSize;
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /**
+   * Initializes the deduplicator.
+   *
+   * @param policy	the policy
+   */
+  public LibraryDeduplicator(Policy policy) {
+    m_Policy      = (policy == null) ? Policy.WARN : policy;
+    m_Infos       = new ArrayList<>();
+    m_Duplicates  = new LinkedHashMap<>();
+    m_Versions    = new TreeMap<>();
+    m_Conflicts   = new TreeMap<>();
+    m_Removed     = new ArrayList<>();
+    m_RemovedSize = 0;
+  }
+
+  /**
+   * Returns the logger instance to use.
+   *
+   * @return		the logger
+   */
+  protected Logger getLogger() {
+    if (m_Logger == null)
+      m_Logger = Logger.getLogger(getClass().getName());
+    return m_Logger;
+  }
+
+  /**
+   * Returns the policy.
+   *
+   * @return		the policy
+   */
+  public Policy getPolicy() {
+    return m_Policy;
+  }
+
+  /**
+   * Reads the artifact, version, checksum and class entries of the jar.
+   *
+   * @param jar		the jar to read
+   * @return		the information
+   * @throws Exception	if reading fails
+   */
+  public static JarInfo read(File jar) throws Exception {
+    JarInfo				result;
+    Enumeration<? extends ZipEntry>	entries;
+    ZipEntry				entry;
+    String				name;
+    Map<String,Properties>		poms;
+    Properties				props;
+    String[]				parts;
+    String				artifactId;
+
+    result            = new JarInfo();
+    result.m_Jar      = jar;
+    result.m_Checksum = FileUtils.sha256(jar);
+    poms              = new LinkedHashMap<>();
+    try (ZipFile zip = new ZipFile(jar)) {
+      entries = zip.entries();
+      while (entries.hasMoreElements()) {
+	entry = entries.nextElement();
+	name  = entry.getName();
+	if (entry.isDirectory())
+	  continue;
+	if (name.startsWith(MAVEN_DIR) && name.endsWith("/pom.properties")) {
+	  props = new Properties();
+	  try (InputStream in = zip.getInputStream(entry)) {
+	    props.load(in);
+	  }
+	  if (props.containsKey("groupId") && props.containsKey("artifactId"))
+	    poms.put(props.getProperty("artifactId"), props);
+	  continue;
+	}
+	if (!name.endsWith(".class") || name.endsWith("module-info.class") || name.startsWith("META-INF/"))
+	  continue;
+	result.m_Classes.put(name, entry.getCrc());
+      }
+    }
+
+    // file name
+    parts             = splitFilename(jar.getName());
+    artifactId        = parts[0];
+    result.m_Version  = parts[1];
+    result.m_Artifact = artifactId;
+
+    // Maven properties (shaded jars contain several, use the one matching the file name)
+    props = null;
+    if (poms.containsKey(artifactId))
+      props = poms.get(artifactId);
+    else if (poms.size() == 1)
+      props = poms.values().iterator().next();
+    if (props != null) {
+      result.m_Artifact = props.getProperty("groupId") + ":" + props.getProperty("artifactId");
+      result.m_Version  = props.getProperty("version", result.m_Version);
+    }
+
+    return result;
+  }
+
+  /**
+   * Splits the file name of the jar into artifactId and version. The version
+   * starts at the first dash followed by a digit, unless a word followed by
+   * another number comes after it (e.g., log4j-1.2-api-2.17.1.jar).
+   *
+   * @param name	the file name
+   * @return		the artifactId and the version (empty if none)
+   */
+  public static String[] splitFilename(String name) {
+    Matcher	matcher;
+    String	version;
+
+    if (name.endsWith(".jar"))
+      name = name.substring(0, name.length() - ".jar".length());
+    matcher = VERSION_START.matcher(name);
+    while (matcher.find()) {
+      version = name.substring(matcher.start() + 1);
+      if (!ARTIFACT_IN_VERSION.matcher(version).find())
+	return new String[]{name.substring(0, matcher.start()), version};
+    }
+
+    return new String[]{name, ""};
+  }
+
+  /**
+   * Compares the versions, numeric parts numerically. A version with an
+   * additional qualifier (e.g., 1.0-SNAPSHOT) is older than the one without,
+   * additional zeros get ignored (e.g., 2.0 and 2.0.0).
+   *
+   * @param v1		the first version
+   * @param v2		the second version
+   * @return		less than, equal to or greater than zero if v1 is older, the same or newer
+   */
+  public static int compareVersions(String v1, String v2) {
+    String[]	parts1;
+    String[]	parts2;
+    int		i;
+    int		result;
+    boolean	num1;
+    boolean	num2;
+    String	longer;
+
+    parts1 = v1.split("[.\\-_]");
+    parts2 = v2.split("[.\\-_]");
+    for (i = 0; i < Math.min(parts1.length, parts2.length); i++) {
+      num1 = parts1[i].matches("\\d+");
+      num2 = parts2[i].matches("\\d+");
+      if (num1 && num2)
+	result = Long.compare(Long.parseLong(parts1[i]), Long.parseLong(parts2[i]));
+      else if (num1)
+	result = 1;
+      else if (num2)
+	result = -1;
+      else
+	result = parts1[i].compareToIgnoreCase(parts2[i]);
+      if (result != 0)
+	return result;
+    }
+    // additional zeros don't count (2.0 = 2.0.0), an additional number is newer, a qualifier older
+    for (i = Math.min(parts1.length, parts2.length); i < Math.max(parts1.length, parts2.length); i++) {
+      longer = (parts1.length > parts2.length) ? parts1[i] : parts2[i];
+      if (longer.matches("0+"))
+	continue;
+      result = longer.matches("\\d+") ? 1 : -1;
+      return (parts1.length > parts2.length) ? result : -result;
+    }
+    return 0;
+  }
+
+  /**
+   * Analyzes the jars and determines the duplicates to remove, the
+   * different versions of artifacts and the conflicting classes.
+   *
+   * @param jars	the jars to analyze
+   * @return		null if successful, otherwise error message
+   */
+  public String analyze(List<File> jars) {
+    Map<String,List<JarInfo>>	artifacts;
+    Map<String,JarInfo>		checksums;
+    Map<String,List<JarInfo>>	classes;
+    List<JarInfo>		infos;
+    List<JarInfo>		kept;
+    JarInfo			newest;
+    String			key;
+    int				i;
+    int				n;
+
+    m_Infos.clear();
+    m_Duplicates.clear();
+    m_Versions.clear();
+    m_Conflicts.clear();
+
+    for (File jar : jars) {
+      try {
+	m_Infos.add(read(jar));
+      }
+      catch (Exception e) {
+	getLogger().log(Level.SEVERE, "Failed to read jar: " + jar, e);
+	return "Failed to read jar: " + jar;
+      }
+    }
+
+    // identical content
+    checksums = new HashMap<>();
+    for (JarInfo info : m_Infos) {
+      if (checksums.containsKey(info.m_Checksum))
+	m_Duplicates.put(info.m_Jar, "identical to " + checksums.get(info.m_Checksum).m_Jar.getName());
+      else
+	checksums.put(info.m_Checksum, info);
+    }
+
+    // versions of the same artifact
+    artifacts = new TreeMap<>();
+    for (JarInfo info : m_Infos) {
+      if (!m_Duplicates.containsKey(info.m_Jar))
+	artifacts.computeIfAbsent(info.m_Artifact, (String k) -> new ArrayList<>()).add(info);
+    }
+    for (String artifact : artifacts.keySet()) {
+      infos = artifacts.get(artifact);
+      if (infos.size() < 2)
+	continue;
+      if (m_Policy == Policy.NEWEST) {
+	newest = infos.get(0);
+	for (JarInfo info : infos) {
+	  if (compareVersions(info.m_Version, newest.m_Version) > 0)
+	    newest = info;
+	}
+	for (JarInfo info : infos) {
+	  if (info != newest)
+	    m_Duplicates.put(info.m_Jar, "older version of " + artifact + " (" + info.m_Version + " < " + newest.m_Version + ")");
+	}
+      }
+      else {
+	m_Versions.put(artifact, infos);
+      }
+    }
+
+    // conflicting classes in the remaining jars
+    kept = new ArrayList<>();
+    for (JarInfo info : m_Infos) {
+      if (!m_Duplicates.containsKey(info.m_Jar))
+	kept.add(info);
+    }
+    classes = new HashMap<>();
+    for (JarInfo info : kept) {
+      for (String cls : info.m_Classes.keySet())
+	classes.computeIfAbsent(cls, (String k) -> new ArrayList<>()).add(info);
+    }
+    for (String cls : classes.keySet()) {
+      infos = classes.get(cls);
+      if (infos.size() < 2)
+	continue;
+      for (i = 0; i < infos.size(); i++) {
+	for (n = i + 1; n < infos.size(); n++) {
+	  // different versions of the same artifact are reported as such
+	  if (infos.get(i).m_Artifact.equals(infos.get(n).m_Artifact))
+	    continue;
+	  if (infos.get(i).m_Classes.get(cls).equals(infos.get(n).m_Classes.get(cls)))
+	    continue;
+	  key = infos.get(i).m_Jar.getName() + " / " + infos.get(n).m_Jar.getName();
+	  m_Conflicts.computeIfAbsent(key, (String k) -> new ArrayList<>()).add(JarIndex.toClassName(cls.substring(0, cls.length() - ".class".length())));
+	}
+      }
+    }
+    for (List<String> list : m_Conflicts.values())
+      list.sort(String::compareTo);
+
+    if (m_Policy == Policy.FAIL) {
+      if (!m_Versions.isEmpty())
+	return "Different versions of the same artifact(s) in the libraries: " + String.join(", ", m_Versions.keySet()) + " (see " + REPORT + ")";
+      if (!m_Conflicts.isEmpty())
+	return "Conflicting classes in the libraries: " + String.join(", ", m_Conflicts.keySet()) + " (see " + REPORT + ")";
+    }
+
+    return null;
+  }
+
+  /**
+   * Moves the duplicate jars into the duplicates directory (only with the
+   * NEWEST and FAIL policies).
+   *
+   * @param outputDir	the output directory
+   * @return		null if successful, otherwise error message
+   */
+  public String remove(File outputDir) {
+    File	dupDir;
+
+    m_Removed.clear();
+    m_RemovedSize = 0;
+    if ((m_Policy != Policy.NEWEST) && (m_Policy != Policy.FAIL))
+      return null;
+
+    dupDir = new File(outputDir.getAbsolutePath() + "/" + DUPLICATES_DIR);
+    if (!FileUtils.delete(dupDir) || !dupDir.mkdirs())
+      return "Failed to initialize directory for duplicate jars: " + dupDir;
+
+    for (File jar : m_Duplicates.keySet()) {
+      m_RemovedSize += jar.length();
+      try {
+	// moving leaves hard-linked (staged) content untouched
+	Files.move(jar.toPath(), new File(dupDir, jar.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+	m_Removed.add(jar);
+      }
+      catch (Exception e) {
+	getLogger().log(Level.SEVERE, "Failed to move '" + jar + "' to: " + dupDir, e);
+	return "Failed to move '" + jar + "' to: " + dupDir;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns the duplicate jars and why they are duplicates.
+   *
+   * @return		the jars and reasons
+   */
+  public Map<File,String> getDuplicates() {
+    return m_Duplicates;
+  }
+
+  /**
+   * Returns the artifacts with several versions that were kept.
+   *
+   * @return		the artifacts and their jars
+   */
+  public Map<String,List<JarInfo>> getVersions() {
+    return m_Versions;
+  }
+
+  /**
+   * Returns the conflicting jars and classes.
+   *
+   * @return		the jar names (separated by " / ") and conflicting classes
+   */
+  public Map<String,List<String>> getConflicts() {
+    return m_Conflicts;
+  }
+
+  /**
+   * Returns the removed jars.
+   *
+   * @return		the jars
+   */
+  public List<File> getRemoved() {
+    return m_Removed;
+  }
+
+  /**
+   * Returns the size of the removed jars.
+   *
+   * @return		the size in bytes
+   */
+  public long getRemovedSize() {
+    return m_RemovedSize;
+  }
+
+  /**
+   * Generates the report of duplicates, versions and conflicts.
+   *
+   * @return		the lines of the report
+   */
+  public List<String> generateReport() {
+    List<String>	result;
+    List<String>	classes;
+    long		size;
+
+    size = 0;
+    for (File jar : m_Duplicates.keySet())
+      size += jar.length();
+
+    result = new ArrayList<>();
+    result.add("# Policy: " + m_Policy.toString().toLowerCase());
+    result.add("");
+    result.add("# Removed jars: " + m_Removed.size() + " (" + m_RemovedSize + " bytes)");
+    for (File jar : m_Removed)
+      result.add("removed: " + jar.getName() + " (" + m_Duplicates.get(jar) + ")");
+    if (m_Removed.size() < m_Duplicates.size()) {
+      result.add("");
+      result.add("# Duplicate jars (not removed): " + (m_Duplicates.size() - m_Removed.size()) + " (" + (size - m_RemovedSize) + " bytes)");
+      for (File jar : m_Duplicates.keySet()) {
+	if (!m_Removed.contains(jar))
+	  result.add("duplicate: " + jar.getName() + " (" + m_Duplicates.get(jar) + ")");
+      }
+    }
+    if (!m_Versions.isEmpty()) {
+      result.add("");
+      result.add("# Artifacts with several versions: " + m_Versions.size());
+      for (String artifact : m_Versions.keySet()) {
+	for (JarInfo info : m_Versions.get(artifact))
+	  result.add("version: " + artifact + " " + info.m_Version + " (" + info.m_Jar.getName() + ")");
+      }
+    }
+    if (!m_Conflicts.isEmpty()) {
+      result.add("");
+      result.add("# Conflicting jars (classes with different content, the classpath order decides): " + m_Conflicts.size());
+      for (String jars : m_Conflicts.keySet()) {
+	classes = m_Conflicts.get(jars);
+	result.add("conflict: " + jars + " - " + classes.size() + " class(es), e.g., " + String.join(", ", classes.subList(0, Math.min(5, classes.size()))));
+      }
+    }
+
+    return result;
+  }
+}
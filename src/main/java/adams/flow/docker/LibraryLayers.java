@@ -0,0 +1,266 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * LibraryLayers.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sorts the jars of the bootstrapped lib directory into groups that each
+ * get their own Docker layer. The groups are ordered from least to most
+ * volatile, so that a rebuild only invalidates the layer that changed.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class LibraryLayers {
+
+  /**
+   * The groups of jars, ordered from least to most volatile.
+   */
+  public enum Group {
+    THIRD_PARTY("thirdparty"),
+    ADAMS("adams"),
+    DEPENDENCIES("dependencies"),
+    EXTERNAL("external");
+
+    /** the name of the staging directory. */
+    private final String m_DirName;
+
+    /**
+     * Initializes the group.
+     *
+     * @param dirName	the name of the staging directory
+     */
+    private Group(String dirName) {
+      m_DirName = dirName;
+    }
+
+    /**
+     * Returns the name of the staging directory.
+     *
+     * @return		the name
+     */
+    public String getDirName() {
+      return m_DirName;
+    }
+  }
+
+  /** the directory with the layers, relative to the output directory. */
+  public final static String LAYERS_DIR = "target/layers";
+
+  /** the version of ADAMS. */
+  protected String m_Version;
+
+  /** the name prefixes of the additional dependencies (artifact-version). */
+  protected List<String> m_DependencyPrefixes;
+
+  /** the names of the external jars. */
+  protected Set<String> m_ExternalNames;
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /**
+   * Initializes the layers.
+   *
+   * @param version		the ADAMS version
+   * @param dependencies	the additional dependencies (group:artifact:version), can be null
+   * @param externalJars	the external jars/dirs, can be null
+   */
+  public LibraryLayers(String version, List<String> dependencies, List<File> externalJars) {
+    File[]	files;
+
+    m_Version            = version;
+    m_DependencyPrefixes = new ArrayList<>();
+    m_ExternalNames      = new HashSet<>();
+
+    if (dependencies != null) {
+      for (String dependency : dependencies)
+	addDependency(dependency);
+    }
+
+    if (externalJars != null) {
+      for (File external : externalJars) {
+	if (external.isDirectory()) {
+	  files = external.listFiles((File f) -> f.isFile() && f.getName().toLowerCase().endsWith(".jar"));
+	  if (files != null) {
+	    for (File file : files)
+	      m_ExternalNames.add(file.getName());
+	  }
+	}
+	else {
+	  m_ExternalNames.add(external.getName());
+	}
+      }
+    }
+  }
+
+  /**
+   * Returns the logger instance to use.
+   *
+   * @return		the logger
+   */
+  protected Logger getLogger() {
+    if (m_Logger == null)
+      m_Logger = Logger.getLogger(getClass().getName());
+    return m_Logger;
+  }
+
+  /**
+   * Adds the dependency (group:artifact:version) to the dependency group.
+   * Malformed or empty dependencies are ignored.
+   *
+   * @param dependency	the dependency
+   */
+  public void addDependency(String dependency) {
+    String[]	parts;
+
+    dependency = dependency.trim();
+    if (dependency.isEmpty() || dependency.startsWith("#"))
+      return;
+    parts = dependency.split(":");
+    if (parts.length < 3)
+      return;
+    m_DependencyPrefixes.add(parts[1] + "-" + parts[2]);
+  }
+
+  /**
+   * Adds the dependencies stored in the file (one per line) to the dependency group.
+   *
+   * @param file	the file to read
+   * @return		null if successful, otherwise error message
+   */
+  public String addDependencies(File file) {
+    try {
+      for (String line : Files.readAllLines(file.toPath()))
+	addDependency(line);
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to read dependencies from: " + file, e);
+      return "Failed to read dependencies from: " + file;
+    }
+    return null;
+  }
+
+  /**
+   * Determines the group that the jar belongs to.
+   *
+   * @param jar		the jar to classify
+   * @return		the group
+   */
+  public Group classify(File jar) {
+    String	name;
+
+    name = jar.getName();
+    if (m_ExternalNames.contains(name))
+      return Group.EXTERNAL;
+    for (String prefix : m_DependencyPrefixes) {
+      if (name.startsWith(prefix + ".") || name.startsWith(prefix + "-"))
+	return Group.DEPENDENCIES;
+    }
+    if ((m_Version != null) && name.startsWith("adams-") && name.contains("-" + m_Version))
+      return Group.ADAMS;
+    return Group.THIRD_PARTY;
+  }
+
+  /**
+   * Returns the staging directory for the group.
+   *
+   * @param outputDir	the output directory
+   * @param group	the group
+   * @return		the directory
+   */
+  public static File getLayerDir(File outputDir, Group group) {
+    return new File(outputDir.getAbsolutePath() + "/" + LAYERS_DIR + "/" + group.getDirName());
+  }
+
+  /**
+   * Returns the groups that have jars staged in the output directory, in
+   * Docker layer order.
+   *
+   * @param outputDir	the output directory
+   * @return		the non-empty groups
+   */
+  public static List<Group> getStagedGroups(File outputDir) {
+    List<Group>	result;
+    File[]	files;
+
+    result = new ArrayList<>();
+    for (Group group : Group.values()) {
+      files = getLayerDir(outputDir, group).listFiles();
+      if ((files != null) && (files.length > 0))
+	result.add(group);
+    }
+
+    return result;
+  }
+
+  /**
+   * Moves the jars from the lib directory into the staging directories of
+   * their groups.
+   *
+   * @param libDir	the lib directory with all the jars
+   * @param outputDir	the output directory
+   * @return		null if successful, otherwise error message
+   */
+  public String stage(File libDir, File outputDir) {
+    File[]	jars;
+    File	layerDir;
+
+    for (Group group : Group.values()) {
+      layerDir = getLayerDir(outputDir, group);
+      if (!layerDir.exists() && !layerDir.mkdirs())
+	return "Failed to create layer directory: " + layerDir;
+      jars = layerDir.listFiles();
+      if (jars != null) {
+	for (File jar : jars) {
+	  if (!jar.delete())
+	    return "Failed to remove stale jar from layer directory: " + jar;
+	}
+      }
+    }
+
+    jars = libDir.listFiles((File f) -> f.isFile() && f.getName().toLowerCase().endsWith(".jar"));
+    if (jars == null)
+      return "Failed to list jars in: " + libDir;
+    Arrays.sort(jars);
+    for (File jar : jars) {
+      layerDir = getLayerDir(outputDir, classify(jar));
+      try {
+	Files.move(jar.toPath(), new File(layerDir, jar.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      catch (Exception e) {
+	getLogger().log(Level.SEVERE, "Failed to move '" + jar + "' to layer directory: " + layerDir, e);
+	return "Failed to move '" + jar + "' to layer directory: " + layerDir;
+      }
+    }
+
+    return null;
+  }
+}
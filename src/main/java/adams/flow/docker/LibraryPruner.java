@@ -0,0 +1,364 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * LibraryPruner.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Removes the jars from the lib directory that cannot be reached from the
+ * classes referenced in the workflow. Starting from the class names in the
+ * workflow (including the ones in nested option strings), the class
+ * references get followed through the jars. Classes that only get loaded
+ * via reflection (e.g., class discovery via packages) can be retained with
+ * the keep-list, which accepts class names and regular expressions for jar
+ * names.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class LibraryPruner {
+
+  /** the classes that always get used. */
+  public final static String[] DEFAULT_ROOTS = {
+    "adams.flow.FlowRunner",
+  };
+
+  /** the directory that the pruned jars get moved to, relative to the output directory. */
+  public final static String PRUNED_DIR = "target/pruned";
+
+  /** the report file. */
+  public final static String REPORT = "prune-report.txt";
+
+  /** for finding class names in the workflow. */
+  protected final static Pattern CLASSNAME = Pattern.compile("[A-Za-z_$][A-Za-z0-9_$]*(\\.[A-Za-z_$][A-Za-z0-9_$]*)+");
+
+  /** the keep-list (class names or regexps for jar names). */
+  protected List<String> m_Keep;
+
+  /** class -&gt; reason why it got reached. */
+  protected Map<String,String> m_Reached;
+
+  /** jar -&gt; reason why it was kept. */
+  protected Map<File,String> m_Kept;
+
+  /** the removed jars. */
+  protected List<File> m_Removed;
+
+  /** the size of the removed jars in bytes. */
+  protected long m_RemovedSize;
+
+  /** the class-like names in the workflow that are not available. */
+  protected Set<String> m_Unresolved;
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /**
+   * Initializes the pruner.
+   *
+   * @param keep	the keep-list, can be null
+   */
+  public LibraryPruner(List<String> keep) {
+    m_Keep        = (keep == null) ? new ArrayList<>() : keep;
+    m_Reached     = new HashMap<>();
+    m_Kept        = new LinkedHashMap<>();
+    m_Removed     = new ArrayList<>();
+    m_RemovedSize = 0;
+    m_Unresolved  = new TreeSet<>();
+  }
+
+  /**
+   * Returns the logger instance to use.
+   *
+   * @return		the logger
+   */
+  protected Logger getLogger() {
+    if (m_Logger == null)
+      m_Logger = Logger.getLogger(getClass().getName());
+    return m_Logger;
+  }
+
+  /**
+   * Extracts the class names from the workflow, including the ones from
+   * nested option strings. Names that look like classes (last part starts
+   * with an uppercase letter), but aren't available, get recorded as
+   * unresolved.
+   *
+   * @param flow	the content of the workflow
+   * @param index	the index of available classes
+   * @return		the internal names of the classes
+   */
+  public Set<String> extractClasses(String flow, JarIndex index) {
+    Set<String>		result;
+    Matcher		matcher;
+    String		name;
+    String		simple;
+
+    result  = new LinkedHashSet<>();
+    // nested option strings escape quotes and backslashes, which doesn't affect class names
+    matcher = CLASSNAME.matcher(flow);
+    while (matcher.find()) {
+      name = matcher.group();
+      if (index.contains(name)) {
+	result.add(JarIndex.toInternal(name));
+      }
+      else if (name.startsWith("adams.") || name.startsWith("weka.")) {
+	simple = name.substring(name.lastIndexOf('.') + 1);
+	if (Character.isUpperCase(simple.charAt(0)))
+	  m_Unresolved.add(name);
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Enqueues the class if not yet reached.
+   *
+   * @param queue	the queue to add to
+   * @param cls		the internal class name
+   * @param reason	the reason
+   */
+  protected void reach(Deque<String> queue, String cls, String reason) {
+    if (m_Reached.containsKey(cls))
+      return;
+    m_Reached.put(cls, reason);
+    queue.add(cls);
+  }
+
+  /**
+   * Determines the jars to keep, following the class references from the
+   * workflow's classes.
+   *
+   * @param flow	the content of the workflow
+   * @param index	the index of all the jars
+   * @return		null if successful, otherwise error message
+   */
+  public String analyze(String flow, JarIndex index) {
+    Deque<String>	queue;
+    String		cls;
+    File		jar;
+    Set<String>		impls;
+    Pattern		pattern;
+
+    m_Reached.clear();
+    m_Kept.clear();
+    m_Unresolved.clear();
+    queue = new ArrayDeque<>();
+
+    for (String root : DEFAULT_ROOTS) {
+      if (index.contains(root))
+	reach(queue, JarIndex.toInternal(root), "runs the workflow");
+    }
+    for (String name : extractClasses(flow, index))
+      reach(queue, name, "referenced by workflow");
+
+    for (String keep : m_Keep) {
+      if (index.contains(keep)) {
+	reach(queue, JarIndex.toInternal(keep), "keep-list");
+	continue;
+      }
+      try {
+	pattern = Pattern.compile(keep);
+      }
+      catch (Exception e) {
+	getLogger().log(Level.SEVERE, "Invalid keep-list entry (neither class nor regexp): " + keep, e);
+	return "Invalid keep-list entry (neither class nor regexp): " + keep;
+      }
+      for (File j : index.getJars()) {
+	if (pattern.matcher(j.getName()).matches()) {
+	  m_Kept.put(j, "keep-list: " + keep);
+	  for (String c : index.getClasses(j))
+	    reach(queue, c, "in kept jar " + j.getName());
+	}
+      }
+    }
+
+    while (!queue.isEmpty()) {
+      cls = queue.poll();
+      jar = index.getJar(cls);
+      if (!m_Kept.containsKey(jar))
+	m_Kept.put(jar, describe(cls));
+      impls = index.getServiceImplementations(cls);
+      if (impls != null) {
+	for (String impl : impls) {
+	  if (index.contains(impl))
+	    reach(queue, impl, "service implementation of " + JarIndex.toClassName(cls));
+	}
+      }
+      try {
+	for (String ref : index.getReferences(cls))
+	  reach(queue, ref, "referenced by " + JarIndex.toClassName(cls));
+      }
+      catch (Exception e) {
+	getLogger().log(Level.SEVERE, "Failed to analyze class: " + JarIndex.toClassName(cls), e);
+	return "Failed to analyze class: " + JarIndex.toClassName(cls);
+      }
+    }
+
+    // jars without classes only contain resources
+    for (File j : index.getJars()) {
+      if (!m_Kept.containsKey(j) && index.getClasses(j).isEmpty())
+	m_Kept.put(j, "contains no classes");
+    }
+
+    return null;
+  }
+
+  /**
+   * Describes why the class got reached, following the chain of references
+   * back to the workflow (limited to a few steps), e.g.,
+   * "a.D &lt;- a.B &lt;- a.A (referenced by workflow)".
+   *
+   * @param cls		the internal class name
+   * @return		the description
+   */
+  protected String describe(String cls) {
+    StringBuilder	result;
+    String		reason;
+    int			steps;
+
+    result = new StringBuilder(JarIndex.toClassName(cls));
+    steps  = 0;
+    while (true) {
+      reason = m_Reached.get(cls);
+      if (reason.equals("referenced by workflow") || !reason.startsWith("referenced by ") || (steps == 5)) {
+	result.append(" (").append(reason).append(")");
+	break;
+      }
+      cls = JarIndex.toInternal(reason.substring("referenced by ".length()));
+      result.append(" <- ").append(JarIndex.toClassName(cls));
+      steps++;
+    }
+
+    return result.toString();
+  }
+
+  /**
+   * Moves the jars that weren't reached into the pruned directory.
+   *
+   * @param index	the index used for the analysis
+   * @param outputDir	the output directory
+   * @return		null if successful, otherwise error message
+   */
+  public String prune(JarIndex index, File outputDir) {
+    File	prunedDir;
+
+    prunedDir = new File(outputDir.getAbsolutePath() + "/" + PRUNED_DIR);
+    if (!FileUtils.delete(prunedDir) || !prunedDir.mkdirs())
+      return "Failed to initialize directory for pruned jars: " + prunedDir;
+
+    m_Removed.clear();
+    m_RemovedSize = 0;
+    for (File jar : index.getJars()) {
+      if (m_Kept.containsKey(jar))
+	continue;
+      m_RemovedSize += jar.length();
+      try {
+	Files.move(jar.toPath(), new File(prunedDir, jar.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+	m_Removed.add(jar);
+      }
+      catch (Exception e) {
+	getLogger().log(Level.SEVERE, "Failed to move '" + jar + "' to: " + prunedDir, e);
+	return "Failed to move '" + jar + "' to: " + prunedDir;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns the removed jars.
+   *
+   * @return		the jars
+   */
+  public List<File> getRemoved() {
+    return m_Removed;
+  }
+
+  /**
+   * Returns the size of the removed jars.
+   *
+   * @return		the size in bytes
+   */
+  public long getRemovedSize() {
+    return m_RemovedSize;
+  }
+
+  /**
+   * Returns the kept jars and why they were kept.
+   *
+   * @return		the jars and reasons
+   */
+  public Map<File,String> getKept() {
+    return m_Kept;
+  }
+
+  /**
+   * Returns the class-like names from the workflow that weren't available.
+   *
+   * @return		the names
+   */
+  public Set<String> getUnresolved() {
+    return m_Unresolved;
+  }
+
+  /**
+   * Generates the report of removed and kept jars.
+   *
+   * @return		the lines of the report
+   */
+  public List<String> generateReport() {
+    List<String>	result;
+
+    result = new ArrayList<>();
+    result.add("# Removed jars: " + m_Removed.size() + " (" + m_RemovedSize + " bytes)");
+    for (File jar : m_Removed)
+      result.add("removed: " + jar.getName() + " (not reachable from workflow)");
+    result.add("");
+    result.add("# Kept jars: " + m_Kept.size());
+    for (File jar : m_Kept.keySet())
+      result.add("kept: " + jar.getName() + " - " + m_Kept.get(jar));
+    if (!m_Unresolved.isEmpty()) {
+      result.add("");
+      result.add("# Unresolved class names in workflow: " + m_Unresolved.size());
+      for (String name : m_Unresolved)
+	result.add("unresolved: " + name);
+    }
+
+    return result;
+  }
+}
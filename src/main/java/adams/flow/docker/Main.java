@@ -20,23 +20,17 @@
 
 package adams.flow.docker;
 
-import com.github.fracpete.resourceextractor4j.IOUtils;
 import com.github.fracpete.simpleargparse4j.ArgumentParser;
 import com.github.fracpete.simpleargparse4j.ArgumentParserException;
 import com.github.fracpete.simpleargparse4j.Namespace;
 import com.github.fracpete.simpleargparse4j.Option.Type;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
-import java.nio.file.StandardOpenOption;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Properties;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -46,44 +40,26 @@ import java.util.logging.Logger;
  */
 public class Main {
 
-  /** the alternative maven installation. */
-  protected File m_MavenHome;
+  /** the default image for the final stage when using jlink. */
+  public final static String DEFAULT_RUNTIME_IMAGE = GeneratorConfig.DEFAULT_RUNTIME_IMAGE;
 
-  /** the maven user settings to use. */
-  protected File m_MavenUserSettings;
+  /** the classpath in the image. */
+  public final static String CLASSPATH = Generator.CLASSPATH;
 
-  /** the alternative java installation. */
-  protected File m_JavaHome;
+  /** the configuration that gets built. */
+  protected GeneratorConfig.Builder m_Config;
 
-  /** the modules. */
-  protected String m_Modules;
+  /** whether to watch the inputs and regenerate on changes. */
+  protected boolean m_Watch;
 
-  /** the version to use. */
-  protected String m_Version;
+  /** the base images of the variants, null for a single image. */
+  protected List<String> m_BaseImageVariants;
 
-  /** the dependencies. */
-  protected List<String> m_Dependencies;
+  /** the JVM option sets of the variants (added to the JVM options), null for a single set. */
+  protected List<List<String>> m_JvmVariants;
 
-  /** the dependency files. */
-  protected List<File> m_DependencyFiles;
-
-  /** the external jar files/dirs. */
-  protected List<File> m_ExternalJars;
-
-  /** the JVM options. */
-  protected List<String> m_JVM;
-
-  /** the flow to use. */
-  protected File m_Input;
-
-  /** the docker base image to use. */
-  protected String m_DockerBaseImage;
-
-  /** any Dockerfile instructions to add beforehand. */
-  protected File m_DockerInstructions;
-
-  /** the output directory. */
-  protected File m_OutputDir;
+  /** the docker instructions of the variants, null for a single file. */
+  protected List<File> m_InstructionsVariants;
 
   /** for logging. */
   protected Logger m_Logger;
@@ -91,8 +67,8 @@ public class Main {
   /** whether help got requested. */
   protected boolean m_HelpRequested;
 
-  /** the generated Dockerfile. */
-  protected transient File m_DockerFile;
+  /** the result of the last generation. */
+  protected transient GeneratorResult m_Result;
 
   /**
    * Initializes the object.
@@ -105,21 +81,13 @@ public class Main {
    * Initializes the members.
    */
   protected void initialize() {
-    m_MavenHome          = null;
-    m_MavenUserSettings  = null;
-    m_JavaHome           = null;
-    m_Modules            = null;
-    m_Version            = null;
-    m_Dependencies       = null;
-    m_DependencyFiles    = null;
-    m_ExternalJars       = null;
-    m_Input              = null;
-    m_DockerBaseImage    = null;
-    m_DockerInstructions = null;
-    m_OutputDir          = null;
-    m_JVM                = null;
-    m_HelpRequested      = false;
-    m_DockerFile         = null;
+    m_Config               = new GeneratorConfig.Builder();
+    m_Watch                = false;
+    m_BaseImageVariants    = null;
+    m_JvmVariants          = null;
+    m_InstructionsVariants = null;
+    m_HelpRequested        = false;
+    m_Result               = null;
   }
 
   /**
@@ -140,7 +108,7 @@ public class Main {
    * @return		itself
    */
   public Main mavenHome(File dir) {
-    m_MavenHome = dir;
+    m_Config.mavenHome(dir);
     return this;
   }
 
@@ -150,7 +118,7 @@ public class Main {
    * @return		the directory, null to use bundled one
    */
   public File getMavenHome() {
-    return m_MavenHome;
+    return m_Config.getMavenHome();
   }
 
   /**
@@ -160,7 +128,7 @@ public class Main {
    * @return		itself
    */
   public Main mavenUserSettings(File dir) {
-    m_MavenUserSettings = dir;
+    m_Config.mavenUserSettings(dir);
     return this;
   }
 
@@ -170,7 +138,7 @@ public class Main {
    * @return		the file, null to use default ($HOME/.m2/settings.xml)
    */
   public File getMavenUserSettings() {
-    return m_MavenUserSettings;
+    return m_Config.getMavenUserSettings();
   }
 
   /**
@@ -180,7 +148,7 @@ public class Main {
    * @return		itself
    */
   public Main javaHome(File dir) {
-    m_JavaHome = dir;
+    m_Config.javaHome(dir);
     return this;
   }
 
@@ -190,7 +158,7 @@ public class Main {
    * @return		the directory, null if using one that class was started with
    */
   public File getJavaHome() {
-    return m_JavaHome;
+    return m_Config.getJavaHome();
   }
 
   /**
@@ -200,7 +168,7 @@ public class Main {
    * @return		itself
    */
   public Main modules(String modules) {
-    m_Modules = modules;
+    m_Config.modules(modules);
     return this;
   }
 
@@ -211,20 +179,7 @@ public class Main {
    * @return		itself
    */
   public Main modules(String... modules) {
-    StringBuilder	all;
-
-    if (modules != null) {
-      all = new StringBuilder();
-      for (String module : modules) {
-	if (all.length() > 0)
-	  all.append(",");
-	all.append(module);
-      }
-      m_Modules = all.toString();
-    }
-    else {
-      m_Modules = null;
-    }
+    m_Config.modules(modules);
     return this;
   }
 
@@ -235,10 +190,7 @@ public class Main {
    * @return		itself
    */
   public Main modules(List<String> modules) {
-    if (modules != null)
-      modules(modules.toArray(new String[0]));
-    else
-      m_Modules = null;
+    m_Config.modules(modules);
     return this;
   }
 
@@ -248,7 +200,7 @@ public class Main {
    * @return		the modules (comma-separated list), if not yet set
    */
   public String getModules() {
-    return m_Modules;
+    return m_Config.getModules();
   }
 
   /**
@@ -258,7 +210,7 @@ public class Main {
    * @return		itself
    */
   public Main version(String version) {
-    m_Version = version;
+    m_Config.version(version);
     return this;
   }
 
@@ -268,7 +220,7 @@ public class Main {
    * @return		the version
    */
   public String getVersion() {
-    return m_Version;
+    return m_Config.getVersion();
   }
 
   /**
@@ -278,7 +230,7 @@ public class Main {
    * @return		itself
    */
   public Main dependencies(List<String> dependencies) {
-    m_Dependencies = dependencies;
+    m_Config.dependencies(dependencies);
     return this;
   }
 
@@ -289,10 +241,7 @@ public class Main {
    * @return		itself
    */
   public Main dependencies(String... dependencies) {
-    if (dependencies != null)
-      m_Dependencies = new ArrayList<>(Arrays.asList(dependencies));
-    else
-      m_Dependencies = null;
+    m_Config.dependencies(dependencies);
     return this;
   }
 
@@ -302,7 +251,7 @@ public class Main {
    * @return		the dependencies, can be null
    */
   public List<String> getDependencies() {
-    return m_Dependencies;
+    return m_Config.getDependencies();
   }
 
   /**
@@ -312,7 +261,7 @@ public class Main {
    * @return		itself
    */
   public Main dependencyFiles(List<File> files) {
-    m_DependencyFiles = files;
+    m_Config.dependencyFiles(files);
     return this;
   }
 
@@ -323,10 +272,7 @@ public class Main {
    * @return		itself
    */
   public Main dependencyFiles(File... files) {
-    if (files != null)
-      m_DependencyFiles = new ArrayList<>(Arrays.asList(files));
-    else
-      m_DependencyFiles = null;
+    m_Config.dependencyFiles(files);
     return this;
   }
 
@@ -336,7 +282,7 @@ public class Main {
    * @return		the files, can be null
    */
   public List<File> getDependencyFiles() {
-    return m_DependencyFiles;
+    return m_Config.getDependencyFiles();
   }
 
   /**
@@ -346,7 +292,7 @@ public class Main {
    * @return		itself
    */
   public Main externalJars(List<File> external) {
-    m_ExternalJars = external;
+    m_Config.externalJars(external);
     return this;
   }
 
@@ -357,10 +303,7 @@ public class Main {
    * @return		itself
    */
   public Main externalJars(File... external) {
-    if (external == null)
-      m_ExternalJars = null;
-    else
-      externalJars(Arrays.asList(external));
+    m_Config.externalJars(external);
     return this;
   }
 
@@ -370,7 +313,7 @@ public class Main {
    * @return		the files/dirs, null if none set
    */
   public List<File> getExternalJars() {
-    return m_ExternalJars;
+    return m_Config.getExternalJars();
   }
 
   /**
@@ -380,7 +323,7 @@ public class Main {
    * @return		itself
    */
   public Main input(File input) {
-    m_Input = input;
+    m_Config.input(input);
     return this;
   }
 
@@ -390,7 +333,7 @@ public class Main {
    * @return		the notebook, null if none set
    */
   public File getInput() {
-    return m_Input;
+    return m_Config.getInput();
   }
 
   /**
@@ -400,7 +343,7 @@ public class Main {
    * @return		itself
    */
   public Main dockerBaseImage(String image) {
-    m_DockerBaseImage = image;
+    m_Config.dockerBaseImage(image);
     return this;
   }
 
@@ -410,7 +353,7 @@ public class Main {
    * @return		the base image, null if none set
    */
   public String getDockerBaseImage() {
-    return m_DockerBaseImage;
+    return m_Config.getDockerBaseImage();
   }
 
   /**
@@ -420,7 +363,7 @@ public class Main {
    * @return		itself
    */
   public Main dockerInstructions(File dir) {
-    m_DockerInstructions = dir;
+    m_Config.dockerInstructions(dir);
     return this;
   }
 
@@ -430,7 +373,7 @@ public class Main {
    * @return		the file, null if not used
    */
   public File getDockerInstructions() {
-    return m_DockerInstructions;
+    return m_Config.getDockerInstructions();
   }
 
   /**
@@ -440,7 +383,7 @@ public class Main {
    * @return		itself
    */
   public Main outputDir(File dir) {
-    m_OutputDir = dir;
+    m_Config.outputDir(dir);
     return this;
   }
 
@@ -450,7 +393,7 @@ public class Main {
    * @return		the directory, null if none set
    */
   public File getOutputDir() {
-    return m_OutputDir;
+    return m_Config.getOutputDir();
   }
 
   /**
@@ -460,7 +403,7 @@ public class Main {
    * @return		itself
    */
   public Main jvm(List<String> options) {
-    m_JVM = options;
+    m_Config.jvm(options);
     return this;
   }
 
@@ -471,10 +414,7 @@ public class Main {
    * @return		itself
    */
   public Main jvm(String... options) {
-    if (options != null)
-      m_JVM = new ArrayList<>(Arrays.asList(options));
-    else
-      m_JVM = null;
+    m_Config.jvm(options);
     return this;
   }
 
@@ -484,7 +424,701 @@ public class Main {
    * @return		the options, can be null
    */
   public List<String> getJvm() {
-    return m_JVM;
+    return m_Config.getJvm();
+  }
+
+  /**
+   * Sets whether to split the libraries into separate docker layers
+   * (third-party, ADAMS, dependencies, external jars).
+   *
+   * @param layered	true if to use layers
+   * @return		itself
+   */
+  public Main layered(boolean layered) {
+    m_Config.layered(layered);
+    return this;
+  }
+
+  /**
+   * Returns whether to split the libraries into separate docker layers
+   * (third-party, ADAMS, dependencies, external jars).
+   *
+   * @return		true if to use layers
+   */
+  public boolean getLayered() {
+    return m_Config.getLayered();
+  }
+
+  /**
+   * Sets the directory for caching the bootstrapped libraries across runs.
+   *
+   * @param dir		the directory, null to disable caching
+   * @return		itself
+   */
+  public Main cacheDir(File dir) {
+    m_Config.cacheDir(dir);
+    return this;
+  }
+
+  /**
+   * Returns the directory for caching the bootstrapped libraries across runs.
+   *
+   * @return		the directory, null if caching disabled
+   */
+  public File getCacheDir() {
+    return m_Config.getCacheDir();
+  }
+
+  /**
+   * Sets the maximum size of the cache, evicting least recently used entries
+   * when exceeded.
+   *
+   * @param size	the size in MB, &lt;= 0 for unlimited
+   * @return		itself
+   */
+  public Main cacheMaxSize(int size) {
+    m_Config.cacheMaxSize(size);
+    return this;
+  }
+
+  /**
+   * Returns the maximum size of the cache.
+   *
+   * @return		the size in MB, &lt;= 0 for unlimited
+   */
+  public int getCacheMaxSize() {
+    return m_Config.getCacheMaxSize();
+  }
+
+  /**
+   * Sets whether to generate a multi-stage build that uses a minimal runtime
+   * created with jlink, using the modules determined by jdeps.
+   *
+   * @param jlink	true if to use jlink
+   * @return		itself
+   */
+  public Main jlink(boolean jlink) {
+    m_Config.jlink(jlink);
+    return this;
+  }
+
+  /**
+   * Returns whether to generate a multi-stage build that uses a minimal
+   * runtime created with jlink, using the modules determined by jdeps.
+   *
+   * @return		true if to use jlink
+   */
+  public boolean getJLink() {
+    return m_Config.getJLink();
+  }
+
+  /**
+   * Sets the additional JDK modules to include in the jlink runtime.
+   *
+   * @param modules	the modules, can be null
+   * @return		itself
+   */
+  public Main jlinkModules(List<String> modules) {
+    m_Config.jlinkModules(modules);
+    return this;
+  }
+
+  /**
+   * Sets the additional JDK modules to include in the jlink runtime.
+   *
+   * @param modules	the modules, can be null
+   * @return		itself
+   */
+  public Main jlinkModules(String... modules) {
+    m_Config.jlinkModules(modules);
+    return this;
+  }
+
+  /**
+   * Returns the additional JDK modules to include in the jlink runtime.
+   *
+   * @return		the modules, can be null
+   */
+  public List<String> getJLinkModules() {
+    return m_Config.getJLinkModules();
+  }
+
+  /**
+   * Sets the image to use for the final stage when using jlink.
+   *
+   * @param image	the image
+   * @return		itself
+   */
+  public Main runtimeImage(String image) {
+    m_Config.runtimeImage(image);
+    return this;
+  }
+
+  /**
+   * Returns the image to use for the final stage when using jlink.
+   *
+   * @return		the image
+   */
+  public String getRuntimeImage() {
+    return m_Config.getRuntimeImage();
+  }
+
+  /**
+   * Sets whether to generate an AppCDS archive while building the image,
+   * which gets used by the workflow for faster startup.
+   *
+   * @param appcds	true if to generate the archive
+   * @return		itself
+   */
+  public Main appCDS(boolean appcds) {
+    m_Config.appCDS(appcds);
+    return this;
+  }
+
+  /**
+   * Returns whether to generate an AppCDS archive while building the image,
+   * which gets used by the workflow for faster startup.
+   *
+   * @return		true if to generate the archive
+   */
+  public boolean getAppCDS() {
+    return m_Config.getAppCDS();
+  }
+
+  /**
+   * Sets the time to run the workflow for recording the classes to archive.
+   *
+   * @param seconds	the time in seconds
+   * @return		itself
+   */
+  public Main appCDSTraining(int seconds) {
+    m_Config.appCDSTraining(seconds);
+    return this;
+  }
+
+  /**
+   * Returns the time to run the workflow for recording the classes to archive.
+   *
+   * @return		the time in seconds
+   */
+  public int getAppCDSTraining() {
+    return m_Config.getAppCDSTraining();
+  }
+
+  /**
+   * Sets whether to remove the jars that are not reachable from the classes
+   * referenced in the workflow.
+   *
+   * @param prune	true if to prune
+   * @return		itself
+   */
+  public Main prune(boolean prune) {
+    m_Config.prune(prune);
+    return this;
+  }
+
+  /**
+   * Returns whether to remove the jars that are not reachable from the
+   * classes referenced in the workflow.
+   *
+   * @return		true if to prune
+   */
+  public boolean getPrune() {
+    return m_Config.getPrune();
+  }
+
+  /**
+   * Sets the keep-list for pruning, i.e., classes (e.g., loaded via
+   * reflection) or regular expressions for jar names.
+   *
+   * @param keep	the classes/regexps, can be null
+   * @return		itself
+   */
+  public Main keep(List<String> keep) {
+    m_Config.keep(keep);
+    return this;
+  }
+
+  /**
+   * Sets the keep-list for pruning, i.e., classes (e.g., loaded via
+   * reflection) or regular expressions for jar names.
+   *
+   * @param keep	the classes/regexps, can be null
+   * @return		itself
+   */
+  public Main keep(String... keep) {
+    m_Config.keep(keep);
+    return this;
+  }
+
+  /**
+   * Returns the keep-list for pruning.
+   *
+   * @return		the classes/regexps, can be null
+   */
+  public List<String> getKeep() {
+    return m_Config.getKeep();
+  }
+
+  /**
+   * Sets the directory to write the image to as OCI image layout, without
+   * requiring a docker daemon.
+   *
+   * @param dir		the directory, null to only generate the Dockerfile
+   * @return		itself
+   */
+  public Main ociOutput(File dir) {
+    m_Config.ociOutput(dir);
+    return this;
+  }
+
+  /**
+   * Returns the directory to write the image to as OCI image layout.
+   *
+   * @return		the directory, null if only generating the Dockerfile
+   */
+  public File getOciOutput() {
+    return m_Config.getOciOutput();
+  }
+
+  /**
+   * Sets the base image for the OCI image, either an OCI image layout
+   * directory or a tar archive of one.
+   *
+   * @param base	the directory or archive
+   * @return		itself
+   */
+  public Main ociBase(File base) {
+    m_Config.ociBase(base);
+    return this;
+  }
+
+  /**
+   * Returns the base image for the OCI image.
+   *
+   * @return		the directory or archive, null if not set
+   */
+  public File getOciBase() {
+    return m_Config.getOciBase();
+  }
+
+  /**
+   * Sets the tag for the OCI image.
+   *
+   * @param tag		the tag
+   * @return		itself
+   */
+  public Main ociTag(String tag) {
+    m_Config.ociTag(tag);
+    return this;
+  }
+
+  /**
+   * Returns the tag for the OCI image.
+   *
+   * @return		the tag
+   */
+  public String getOciTag() {
+    return m_Config.getOciTag();
+  }
+
+  /**
+   * Sets whether to generate a reproducible build context, i.e., normalized
+   * timestamps (SOURCE_DATE_EPOCH if set) and deterministic file content,
+   * along with a manifest of content hashes.
+   *
+   * @param reproducible	true if reproducible
+   * @return		itself
+   */
+  public Main reproducible(boolean reproducible) {
+    m_Config.reproducible(reproducible);
+    return this;
+  }
+
+  /**
+   * Returns whether to generate a reproducible build context.
+   *
+   * @return		true if reproducible
+   */
+  public boolean getReproducible() {
+    return m_Config.getReproducible();
+  }
+
+  /**
+   * Sets the endpoint to push the metrics of the phases to, either StatsD
+   * (udp://host:port) or a Prometheus pushgateway
+   * (http://host:port/metrics/job/NAME).
+   *
+   * @param endpoint	the endpoint, null to only write the report
+   * @return		itself
+   */
+  public Main metricsEndpoint(String endpoint) {
+    m_Config.metricsEndpoint(endpoint);
+    return this;
+  }
+
+  /**
+   * Returns the endpoint to push the metrics of the phases to.
+   *
+   * @return		the endpoint, null if only writing the report
+   */
+  public String getMetricsEndpoint() {
+    return m_Config.getMetricsEndpoint();
+  }
+
+  /**
+   * Sets how to stage the jars from the cache or another output directory
+   * (and the flow): plain copies, hard links, copy-on-write clones (reflinks)
+   * or automatic (reflink, hard link, copy). Links and clones fall back to
+   * checksum-verified copies if not possible (e.g., different file systems).
+   *
+   * @param staging	the strategy
+   * @return		itself
+   */
+  public Main staging(FileStager.Strategy staging) {
+    m_Config.staging(staging);
+    return this;
+  }
+
+  /**
+   * Returns how to stage the jars from the cache or another output directory.
+   *
+   * @return		the strategy
+   */
+  public FileStager.Strategy getStaging() {
+    return m_Config.getStaging();
+  }
+
+  /**
+   * Sets whether to keep running after the generation and watch the flow,
+   * docker instructions, dependency files and external jars for changes,
+   * rerunning only the affected phases.
+   *
+   * @param watch	true if to watch
+   * @return		itself
+   */
+  public Main watch(boolean watch) {
+    m_Watch = watch;
+    return this;
+  }
+
+  /**
+   * Returns whether to keep running after the generation and watch the
+   * inputs for changes.
+   *
+   * @return		true if to watch
+   */
+  public boolean getWatch() {
+    return m_Watch;
+  }
+
+  /**
+   * Sets the default number of workers, i.e., instances of the workflow, to
+   * run in the container. With more than one (or 0 for the CPU quota of the
+   * container), a launcher script gets used as entrypoint that partitions the
+   * input directory across the workers. Can be overridden with the WORKERS
+   * environment variable.
+   *
+   * @param workers	the number of workers, 1 for no launcher, 0 for the CPU quota
+   * @return		itself
+   */
+  public Main workers(int workers) {
+    m_Config.workers(workers);
+    return this;
+  }
+
+  /**
+   * Returns the default number of workers to run in the container.
+   *
+   * @return		the number of workers, 1 for no launcher, 0 for the CPU quota
+   */
+  public int getWorkers() {
+    return m_Config.getWorkers();
+  }
+
+  /**
+   * Sets whether to ship the event-driven trigger, which watches the INPUT
+   * directory and writes the names of complete files to the FIFO in the
+   * TRIGGER environment variable, for the workflow to read instead of
+   * polling the directory.
+   *
+   * @param trigger	true if to ship the trigger
+   * @return		itself
+   */
+  public Main eventTrigger(boolean trigger) {
+    m_Config.eventTrigger(trigger);
+    return this;
+  }
+
+  /**
+   * Returns whether to ship the event-driven trigger for the input directory.
+   *
+   * @return		true if to ship the trigger
+   */
+  public boolean getEventTrigger() {
+    return m_Config.getEventTrigger();
+  }
+
+  /**
+   * Sets the port of the metrics endpoint that the workflow in the image
+   * serves (Prometheus format under /metrics, plus /health), 0 to disable.
+   *
+   * @param port	the port, 0 to disable
+   * @return		itself
+   */
+  public Main metricsPort(int port) {
+    m_Config.metricsPort(port);
+    return this;
+  }
+
+  /**
+   * Returns the port of the metrics endpoint that the workflow in the image
+   * serves.
+   *
+   * @return		the port, 0 if disabled
+   */
+  public int getMetricsPort() {
+    return m_Config.getMetricsPort();
+  }
+
+  /**
+   * Sets whether to parse and validate the flow with the libraries of the
+   * image at generation time and ship it serialized, for the image to load
+   * instead of parsing the text flow (fallback if the libraries differ).
+   *
+   * @param preparse	true if to pre-parse the flow
+   * @return		itself
+   */
+  public Main preparse(boolean preparse) {
+    m_Config.preparse(preparse);
+    return this;
+  }
+
+  /**
+   * Returns whether to validate the flow and ship it pre-parsed (serialized).
+   *
+   * @return		true if to pre-parse the flow
+   */
+  public boolean getPreparse() {
+    return m_Config.getPreparse();
+  }
+
+  /**
+   * Sets the default JVM profile of the image (GC, heap sizing, processor
+   * count), applied by a wrapper script to all JVMs of the workflow. Can be
+   * overridden with the JVM_PROFILE environment variable.
+   *
+   * @param profile	the profile, NONE for no wrapper script
+   * @return		itself
+   */
+  public Main jvmProfile(JvmProfile.Profile profile) {
+    m_Config.jvmProfile(profile);
+    return this;
+  }
+
+  /**
+   * Returns the default JVM profile of the image.
+   *
+   * @return		the profile
+   */
+  public JvmProfile.Profile getJvmProfile() {
+    return m_Config.getJvmProfile();
+  }
+
+  /**
+   * Sets how to handle duplicate jars (identical content or several versions
+   * of the same artifact) and jars with conflicting classes in the libraries:
+   * no analysis, report only, remove identical copies and older versions, or
+   * fail on different versions and conflicts.
+   *
+   * @param policy	the policy
+   * @return		itself
+   */
+  public Main duplicates(LibraryDeduplicator.Policy policy) {
+    m_Config.duplicates(policy);
+    return this;
+  }
+
+  /**
+   * Returns how to handle duplicate and conflicting jars.
+   *
+   * @return		the policy
+   */
+  public LibraryDeduplicator.Policy getDuplicates() {
+    return m_Config.getDuplicates();
+  }
+
+  /**
+   * Sets how to repack the jars: not at all, with stored entries (better
+   * compression of the docker layers, no inflating when loading classes) or
+   * with the best deflate compression (smaller uncompressed image).
+   *
+   * @param mode	the mode
+   * @return		itself
+   */
+  public Main repack(JarRepacker.Mode mode) {
+    m_Config.repack(mode);
+    return this;
+  }
+
+  /**
+   * Returns how to repack the jars.
+   *
+   * @return		the mode
+   */
+  public JarRepacker.Mode getRepack() {
+    return m_Config.getRepack();
+  }
+
+  /**
+   * Sets whether to strip source/javadoc jars, source files and signatures
+   * (except of security providers) when repacking.
+   *
+   * @param strip	true if to strip
+   * @return		itself
+   */
+  public Main stripJars(boolean strip) {
+    m_Config.stripJars(strip);
+    return this;
+  }
+
+  /**
+   * Returns whether to strip sources, javadoc and signatures when repacking.
+   *
+   * @return		true if to strip
+   */
+  public boolean getStripJars() {
+    return m_Config.getStripJars();
+  }
+
+  /**
+   * Sets the number of threads for running the generation phases, allowing
+   * independent phases to overlap with the processing of the libraries.
+   *
+   * @param num		the number of threads, &lt;= 0 for number of available processors, 1 for sequential
+   * @return		itself
+   */
+  public Main phaseThreads(int num) {
+    m_Config.phaseThreads(num);
+    return this;
+  }
+
+  /**
+   * Returns the number of threads for running the generation phases.
+   *
+   * @return		the number of threads
+   */
+  public int getPhaseThreads() {
+    return m_Config.getPhaseThreads();
+  }
+
+  /**
+   * Sets the tar archive to write the build context to, i.e., the Dockerfile
+   * and the files that it references, for "docker build -".
+   *
+   * @param file	the archive, "-" for stdout, null to not write one
+   * @return		itself
+   */
+  public Main contextTar(File file) {
+    m_Config.contextTar(file);
+    return this;
+  }
+
+  /**
+   * Returns the tar archive to write the build context to.
+   *
+   * @return		the archive, "-" for stdout, null if not to write one
+   */
+  public File getContextTar() {
+    return m_Config.getContextTar();
+  }
+
+  /**
+   * Sets the base images to generate variants of the image for.
+   *
+   * @param images	the base images, null or empty for just the docker base image
+   * @return		itself
+   */
+  public Main baseImageVariants(List<String> images) {
+    m_BaseImageVariants = ((images == null) || images.isEmpty()) ? null : images;
+    return this;
+  }
+
+  /**
+   * Returns the base images to generate variants of the image for.
+   *
+   * @return		the base images, null if just the docker base image
+   */
+  public List<String> getBaseImageVariants() {
+    return m_BaseImageVariants;
+  }
+
+  /**
+   * Sets the JVM option sets to generate variants of the image for. Each
+   * set gets added to the JVM options.
+   *
+   * @param sets	the option sets, null or empty for just the JVM options
+   * @return		itself
+   */
+  public Main jvmVariants(List<List<String>> sets) {
+    m_JvmVariants = ((sets == null) || sets.isEmpty()) ? null : sets;
+    return this;
+  }
+
+  /**
+   * Returns the JVM option sets to generate variants of the image for.
+   *
+   * @return		the option sets, null if just the JVM options
+   */
+  public List<List<String>> getJvmVariants() {
+    return m_JvmVariants;
+  }
+
+  /**
+   * Sets the docker instructions to generate variants of the image for.
+   *
+   * @param files	the instructions, null or empty for just the docker instructions
+   * @return		itself
+   */
+  public Main instructionsVariants(List<File> files) {
+    m_InstructionsVariants = ((files == null) || files.isEmpty()) ? null : files;
+    return this;
+  }
+
+  /**
+   * Returns the docker instructions to generate variants of the image for.
+   *
+   * @return		the instructions, null if just the docker instructions
+   */
+  public List<File> getInstructionsVariants() {
+    return m_InstructionsVariants;
+  }
+
+  /**
+   * Returns whether several variants of the image get generated.
+   *
+   * @return		true if variants
+   */
+  public boolean hasVariants() {
+    return (m_BaseImageVariants != null) || (m_JvmVariants != null) || (m_InstructionsVariants != null);
+  }
+
+  /**
+   * Returns the result of the last generation.
+   *
+   * @return		the result, null if not executed yet
+   */
+  public GeneratorResult getResult() {
+    return m_Result;
+  }
+
+  /**
+   * Returns the metrics of the phases run so far.
+   *
+   * @return		the metrics, null if not executed yet
+   */
+  public Metrics getMetrics() {
+    return (m_Result == null) ? null : m_Result.getMetrics();
   }
 
   /**
@@ -551,18 +1185,187 @@ public class Main {
       .help("The ADAMS workflow to use.");
     parser.addOption("-b", "--docker_base_image")
       .required(true)
+      .multiple(true)
       .dest("docker_base_image")
-      .help("The docker base image to use, e.g. 'openjdk:11-jdk-slim-buster'.");
+      .help("The docker base image to use, e.g. 'openjdk:11-jdk-slim-buster'. Specifying several generates a variant of the image per base image.");
     parser.addOption("-I", "--docker_instructions")
       .required(false)
+      .multiple(true)
       .type(Type.EXISTING_FILE)
       .dest("docker_instructions")
-      .help("File with additional docker instructions to use for generating the Dockerfile.");
+      .help("File with additional docker instructions to use for generating the Dockerfile. Specifying several generates a variant of the image per file.");
     parser.addOption("-o", "--output_dir")
       .required(true)
       .type(Type.DIRECTORY)
       .dest("output_dir")
       .help("The directory to output the bootstrapped application, workflow and Dockerfile in.");
+    parser.addOption("-l", "--layered")
+      .type(Type.BOOLEAN)
+      .setDefault(false)
+      .dest("layered")
+      .help("If enabled, the libraries get split into separate docker layers (third-party, ADAMS, dependencies, external jars), ordered from least to most volatile.")
+      .argument(false);
+    parser.addOption("-c", "--cache_dir")
+      .required(false)
+      .type(Type.DIRECTORY)
+      .dest("cache_dir")
+      .help("The directory for caching the bootstrapped libraries across runs, can be shared by concurrent processes.");
+    parser.addOption("-C", "--cache_max_size")
+      .required(false)
+      .type(Type.INTEGER)
+      .setDefault(0)
+      .dest("cache_max_size")
+      .metaVar("MB")
+      .help("The maximum size of the cache in MB, least recently used entries get evicted when exceeded; <= 0 for unlimited.");
+    parser.addOption("-L", "--jlink")
+      .type(Type.BOOLEAN)
+      .setDefault(false)
+      .dest("jlink")
+      .help("If enabled, a multi-stage Dockerfile gets generated that builds a minimal runtime with jlink from the base image, using the JDK modules determined by jdeps of the base image in the build stage.")
+      .argument(false);
+    parser.addOption("-x", "--jlink_module")
+      .required(false)
+      .multiple(true)
+      .dest("jlink_modules")
+      .metaVar("MODULE")
+      .help("Additional JDK module to include in the jlink runtime, e.g., for classes that only get loaded via reflection.");
+    parser.addOption("-r", "--runtime_image")
+      .required(false)
+      .setDefault(DEFAULT_RUNTIME_IMAGE)
+      .dest("runtime_image")
+      .help("The image to use for the final stage when using jlink, needs to be compatible with the base image (e.g., glibc).");
+    parser.addOption("-a", "--appcds")
+      .type(Type.BOOLEAN)
+      .setDefault(false)
+      .dest("appcds")
+      .help("If enabled, an AppCDS archive gets generated while building the image by running the workflow for a limited time; the archive gets used for faster startup.")
+      .argument(false);
+    parser.addOption("-T", "--appcds_training")
+      .required(false)
+      .type(Type.INTEGER)
+      .setDefault(AppCDS.DEFAULT_TRAINING)
+      .dest("appcds_training")
+      .metaVar("SECONDS")
+      .help("The time in seconds to run the workflow for recording the classes to archive.");
+    parser.addOption("-p", "--prune")
+      .type(Type.BOOLEAN)
+      .setDefault(false)
+      .dest("prune")
+      .help("If enabled, jars that are not reachable from the classes referenced in the workflow get removed; see " + LibraryPruner.REPORT + " in the output directory.")
+      .argument(false);
+    parser.addOption("-k", "--keep")
+      .required(false)
+      .multiple(true)
+      .dest("keep")
+      .metaVar("CLASS_OR_REGEXP")
+      .help("The class (e.g., loaded via reflection) or regular expression for jar names to keep when pruning.");
+    parser.addOption("-O", "--oci_output")
+      .required(false)
+      .type(Type.DIRECTORY)
+      .dest("oci_output")
+      .help("The directory to write the image to as OCI image layout, without requiring a docker daemon; requires --oci_base.");
+    parser.addOption("-B", "--oci_base")
+      .required(false)
+      .type(Type.EXISTING_FILE_OR_DIRECTORY)
+      .dest("oci_base")
+      .help("The base image for the OCI image layout, either an OCI image layout directory or a tar archive of one (e.g., generated with skopeo).");
+    parser.addOption("-n", "--oci_tag")
+      .required(false)
+      .setDefault(OciImageWriter.DEFAULT_TAG)
+      .dest("oci_tag")
+      .help("The tag for the image in the OCI image layout.");
+    parser.addOption("-R", "--reproducible")
+      .type(Type.BOOLEAN)
+      .setDefault(false)
+      .dest("reproducible")
+      .help("If enabled, a byte-identical build context gets generated for the same inputs (timestamps from " + ReproducibleContext.SOURCE_DATE_EPOCH + " if set), along with " + ReproducibleContext.MANIFEST + "; " + ReproducibleContext.UNCHANGED + " gets created if nothing changed since the last run.")
+      .argument(false);
+    parser.addOption("-e", "--metrics_endpoint")
+      .required(false)
+      .dest("metrics_endpoint")
+      .metaVar("URL")
+      .help("The endpoint to push the metrics of the generation phases to (" + Metrics.REPORT + " always gets written), either StatsD (udp://host:port) or a Prometheus pushgateway (http://host:port/metrics/job/NAME).");
+    parser.addOption("-s", "--staging")
+      .required(false)
+      .setDefault(FileStager.Strategy.COPY.toString().toLowerCase())
+      .dest("staging")
+      .metaVar("STRATEGY")
+      .help("How to stage the jars from the cache or other output directories (batch mode) and the flow: copy, hardlink, reflink (copy-on-write, eg btrfs/XFS) or auto (reflink, hardlink, copy). Falls back to checksum-verified copies when not on the same file system.");
+    parser.addOption("-w", "--watch")
+      .type(Type.BOOLEAN)
+      .setDefault(false)
+      .dest("watch")
+      .help("If enabled, the generator keeps running and watches the flow, docker instructions, dependency files and external jars, rerunning only the affected phases on changes.")
+      .argument(false);
+    parser.addOption("-W", "--workers")
+      .required(false)
+      .type(Type.INTEGER)
+      .setDefault(1)
+      .dest("workers")
+      .metaVar("NUM")
+      .help("The number of instances of the workflow to run in the container, each polling its own partition of the INPUT directory; 1 runs the workflow directly, 0 uses the CPU quota of the container. The WORKERS environment variable overrides it at runtime.");
+    parser.addOption("-E", "--event_trigger")
+      .type(Type.BOOLEAN)
+      .setDefault(false)
+      .dest("event_trigger")
+      .help("If enabled, an event-driven trigger watches the INPUT directory and writes the names of the complete files to the FIFO in the TRIGGER environment variable, for the workflow to read instead of polling the directory.")
+      .argument(false);
+    parser.addOption("-P", "--metrics_port")
+      .required(false)
+      .type(Type.INTEGER)
+      .setDefault(0)
+      .dest("metrics_port")
+      .metaVar("PORT")
+      .help("The port of the metrics endpoint that the workflow in the image serves (JVM heap/GC, items, execution times and outputs per actor, errors; Prometheus format under /metrics, plus /health); adds EXPOSE and HEALTHCHECK to the Dockerfile. Multiple workers use consecutive ports. 0 to disable.");
+    parser.addOption("-F", "--preparse_flow")
+      .type(Type.BOOLEAN)
+      .setDefault(false)
+      .dest("preparse_flow")
+      .help("If enabled, the flow gets parsed and validated with the libraries of the image at generation time (fails on errors) and shipped serialized, which the image loads instead of parsing the text flow; falls back to the text flow if the libraries differ.")
+      .argument(false);
+    parser.addOption("-G", "--jvm_profile")
+      .required(false)
+      .setDefault(JvmProfile.Profile.NONE.getName())
+      .dest("jvm_profile")
+      .metaVar("PROFILE")
+      .help("The JVM profile that gets applied to the workflow in the image: none, auto (small-footprint for less than " + JvmProfile.AUTO_CPUS + " CPUs or " + JvmProfile.AUTO_MEMORY + "MB, otherwise throughput), throughput, low-latency or small-footprint. Flags specified via -v take precedence. The " + JvmProfile.ENV + " environment variable overrides it at runtime (unless none). Requires a shell and Java 10+ (or 8u191+) in the base image.");
+
+    parser.addOption("-U", "--duplicates")
+      .required(false)
+      .setDefault(LibraryDeduplicator.Policy.OFF.toString().toLowerCase())
+      .dest("duplicates")
+      .metaVar("POLICY")
+      .help("How to handle duplicate jars (identical content, several versions of the same artifact) and jars with conflicting classes in the libraries: off (default), warn (report only), newest (remove identical copies and older versions) or fail (remove identical copies, fail on different versions and conflicts); see " + LibraryDeduplicator.REPORT + ".");
+    parser.addOption("-K", "--repack")
+      .required(false)
+      .setDefault(JarRepacker.Mode.OFF.toString().toLowerCase())
+      .dest("repack")
+      .metaVar("MODE")
+      .help("How to repack the jars: off, store (uncompressed entries, which compress better in the docker layers and need no inflating when loading classes) or deflate (best compression); see " + JarRepacker.REPORT + " for the sizes and times before and after.");
+    parser.addOption("-X", "--strip_jars")
+      .type(Type.BOOLEAN)
+      .setDefault(false)
+      .dest("strip_jars")
+      .help("If enabled, source and javadoc jars, source files and signatures (except of security providers) get removed when repacking.")
+      .argument(false);
+    parser.addOption("-Y", "--phase_threads")
+      .required(false)
+      .type(Type.INTEGER)
+      .setDefault(0)
+      .dest("phase_threads")
+      .metaVar("NUM")
+      .help("The number of threads for running the generation phases; phases that do not depend on each other (e.g., copying the flow, writing the placeholders) overlap with the processing of the libraries. <= 0 for number of available processors (batch and server mode use 1 unless specified), 1 to run them sequentially.");
+    parser.addOption("-A", "--context_tar")
+      .required(false)
+      .dest("context_tar")
+      .metaVar("FILE")
+      .help("The tar archive to write the build context to, i.e., the Dockerfile and the files it references, for 'docker build -'; '" + ContextArchive.STDOUT + "' for stdout (all other output goes to stderr).");
+    parser.addOption("-N", "--jvm_variant")
+      .required(false)
+      .multiple(true)
+      .dest("jvm_variant")
+      .metaVar("OPTIONS")
+      .help("A set of JVM options (blank-separated, in addition to -v) to generate a variant of the image for, e.g., '-Xmx2g -XX:+UseG1GC'. The variants of base images (-b), JVM options and docker instructions (-I) get combined, each variant gets generated in a sub-directory of the output directory, with the libraries resolved only once; see " + VariantMatrix.SUMMARY + ".");
 
     return parser;
   }
@@ -574,6 +1377,10 @@ public class Main {
    * @return		if successfully set
    */
   protected boolean setOptions(Namespace ns) {
+    List<String>	images;
+    List<File>		instructions;
+    List<List<String>>	jvmSets;
+
     mavenHome(ns.getFile("maven_home"));
     mavenUserSettings(ns.getFile("maven_user_settings"));
     javaHome(ns.getFile("java_home"));
@@ -583,10 +1390,71 @@ public class Main {
     dependencyFiles(ns.getList("dependency_files"));
     externalJars(ns.getList("external_jars"));
     input(ns.getFile("input"));
-    dockerBaseImage(ns.getString("docker_base_image"));
-    dockerInstructions(ns.getFile("docker_instructions"));
+    images = ns.getList("docker_base_image");
+    dockerBaseImage(images.get(0));
+    baseImageVariants((images.size() > 1) ? images : null);
+    instructions = ns.getList("docker_instructions");
+    dockerInstructions(((instructions == null) || instructions.isEmpty()) ? null : instructions.get(0));
+    instructionsVariants(((instructions != null) && (instructions.size() > 1)) ? instructions : null);
+    jvmSets = new ArrayList<>();
+    if (ns.getList("jvm_variant") != null) {
+      for (Object set : ns.getList("jvm_variant"))
+	jvmSets.add(Batch.splitOptions(set.toString()));
+    }
+    jvmVariants(jvmSets);
     outputDir(ns.getFile("output_dir"));
     jvm(ns.getList("jvm"));
+    layered(ns.getBoolean("layered"));
+    cacheDir(ns.getFile("cache_dir"));
+    cacheMaxSize(ns.getInt("cache_max_size"));
+    jlink(ns.getBoolean("jlink"));
+    jlinkModules(ns.getList("jlink_modules"));
+    runtimeImage(ns.getString("runtime_image"));
+    appCDS(ns.getBoolean("appcds"));
+    appCDSTraining(ns.getInt("appcds_training"));
+    prune(ns.getBoolean("prune"));
+    keep(ns.getList("keep"));
+    ociOutput(ns.getFile("oci_output"));
+    ociBase(ns.getFile("oci_base"));
+    ociTag(ns.getString("oci_tag"));
+    reproducible(ns.getBoolean("reproducible"));
+    metricsEndpoint(ns.getString("metrics_endpoint"));
+    watch(ns.getBoolean("watch"));
+    workers(ns.getInt("workers"));
+    eventTrigger(ns.getBoolean("event_trigger"));
+    metricsPort(ns.getInt("metrics_port"));
+    preparse(ns.getBoolean("preparse_flow"));
+    try {
+      staging(FileStager.Strategy.valueOf(ns.getString("staging").toUpperCase()));
+    }
+    catch (Exception e) {
+      getLogger().severe("Invalid staging strategy: " + ns.getString("staging"));
+      return false;
+    }
+    try {
+      jvmProfile(JvmProfile.Profile.fromName(ns.getString("jvm_profile")));
+    }
+    catch (Exception e) {
+      getLogger().severe("Invalid JVM profile: " + ns.getString("jvm_profile"));
+      return false;
+    }
+    stripJars(ns.getBoolean("strip_jars"));
+    phaseThreads(ns.getInt("phase_threads"));
+    contextTar((ns.getString("context_tar") == null) ? null : new File(ns.getString("context_tar")));
+    try {
+      repack(JarRepacker.Mode.valueOf(ns.getString("repack").toUpperCase()));
+    }
+    catch (Exception e) {
+      getLogger().severe("Invalid repack mode: " + ns.getString("repack"));
+      return false;
+    }
+    try {
+      duplicates(LibraryDeduplicator.Policy.valueOf(ns.getString("duplicates").toUpperCase()));
+    }
+    catch (Exception e) {
+      getLogger().severe("Invalid duplicates policy: " + ns.getString("duplicates"));
+      return false;
+    }
     return true;
   }
 
@@ -624,147 +1492,109 @@ public class Main {
   }
 
   /**
-   * Generates the lib directory based on the dependencies.
+   * Returns an immutable snapshot of the current configuration.
    *
-   * @return		null if successful, otherwise error message
+   * @return		the configuration
    */
-  protected String initLibraries() {
-    adams.bootstrap.Main		main;
-
-    main = new adams.bootstrap.Main()
-      .clean(true)
-      .modules(m_Modules)
-      .version(m_Version)
-      .dependencies(m_Dependencies)
-      .externalJars(m_ExternalJars)
-      .javaHome(m_JavaHome)
-      .mavenHome(m_MavenHome)
-      .mavenUserSettings(m_MavenUserSettings)
-      .outputDir(m_OutputDir);
-    return main.execute();
+  public GeneratorConfig toConfig() {
+    return m_Config.build();
   }
 
   /**
-   * Copies the flow into the output directory for docker.
+   * Returns the variants of the image to generate (the combinations of base
+   * images, JVM option sets and docker instructions), each with its own
+   * sub-directory of the output directory. The variants share the libraries
+   * of the first one, using links if possible when staging is set to copy.
    *
-   * @return		null if successful, otherwise error message
+   * @return		the variants
    */
-  protected String initFlow() {
-    File 	flowFile;
-
-    flowFile = new File(m_OutputDir + "/worker.flow");
-    try {
-      Files.copy(m_Input.toPath(), flowFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-    }
-    catch (Exception e) {
-      getLogger().log(Level.SEVERE, "Failed to copy flow '" + m_Input + "' to: " + m_OutputDir, e);
-      return "Failed to copy flow '" + m_Input + "' to: " + m_OutputDir;
+  public VariantMatrix toMatrix() {
+    VariantMatrix		result;
+    GeneratorConfig		config;
+    GeneratorConfig.Builder	builder;
+    List<String>		images;
+    List<List<String>>		jvmSets;
+    List<File>			instructions;
+    List<String>		options;
+    String			name;
+    int				i;
+
+    config       = toConfig();
+    images       = (m_BaseImageVariants != null) ? m_BaseImageVariants : Collections.singletonList(config.getDockerBaseImage());
+    jvmSets      = (m_JvmVariants != null) ? m_JvmVariants : Collections.singletonList(new ArrayList<>());
+    instructions = (m_InstructionsVariants != null) ? m_InstructionsVariants : Collections.singletonList(config.getDockerInstructions());
+    result       = new VariantMatrix(config.getOutputDir());
+    for (String img : images) {
+      for (i = 0; i < jvmSets.size(); i++) {
+	for (File instr : instructions) {
+	  name = result.uniqueName(VariantMatrix.createName(
+	    (m_BaseImageVariants != null) ? img : null,
+	    (m_JvmVariants != null) ? i : -1,
+	    (m_InstructionsVariants != null) ? instr : null));
+	  options = new ArrayList<>();
+	  if (config.getJvm() != null)
+	    options.addAll(config.getJvm());
+	  options.addAll(jvmSets.get(i));
+	  builder = config.toBuilder()
+	    .dockerBaseImage(img)
+	    .jvm(options)
+	    .dockerInstructions(instr)
+	    .outputDir(new File(config.getOutputDir(), name));
+	  if (!result.getVariants().isEmpty() && (config.getStaging() == FileStager.Strategy.COPY))
+	    builder.staging(FileStager.Strategy.AUTO);
+	  result.add(new VariantMatrix.Variant(name, img, options, instr, new Generator(builder.build())));
+	}
+      }
     }
 
-    return null;
+    return result;
   }
 
   /**
-   * Copies the flow into the output directory for docker.
+   * Checks whether the options are compatible.
    *
-   * @return		null if successful, otherwise error message
+   * @return		null if compatible, otherwise error message
    */
-  protected String initPlaceholders() {
-    Properties		props;
-    File		propsFile;
-    FileWriter		fwriter;
-    BufferedWriter	bwriter;
-
-    props = new Properties();
-    props.setProperty("CWD", "/adamsflow2docker");
-    props.setProperty("TMP", "/tmp");
-
-    propsFile = new File(m_OutputDir + "/Placeholders.props");
-    fwriter   = null;
-    bwriter   = null;
-    try {
-      fwriter = new FileWriter(propsFile);
-      bwriter = new BufferedWriter(fwriter);
-      props.store(bwriter, null);
-    }
-    catch (Exception e) {
-      getLogger().log(Level.SEVERE, "Failed to store placeholders in: " + propsFile, e);
-      return "Failed to store placeholders in: " + propsFile;
-    }
-    finally {
-      IOUtils.closeQuietly(bwriter);
-      IOUtils.closeQuietly(fwriter);
-    }
+  protected String checkOptions() {
+    if (m_Watch && ContextArchive.isStdout(getContextTar()))
+      return "Watch mode cannot stream the build context to stdout!";
+    if (hasVariants() && (m_Watch || (getContextTar() != null) || (getOciOutput() != null)))
+      return "Variants cannot be combined with watch mode, a build context archive or OCI output!";
+    return toConfig().check();
+  }
 
-    return null;
+  /**
+   * Logs the messages and warnings of the result.
+   *
+   * @param result	the result to log
+   */
+  protected void log(GeneratorResult result) {
+    for (String msg : result.getMessages())
+      getLogger().info(msg);
+    for (String msg : result.getWarnings())
+      getLogger().warning(msg);
   }
 
   /**
-   * Creates the Dockerfile.
+   * Generates the variants of the image.
    *
    * @return		null if successful, otherwise error message
    */
-  protected String createDockerfile() {
-    List<String>	content;
-    List<String>	cmd;
-    StringBuilder	cmdLine;
-    int			i;
-
-    content      = new ArrayList<>();
-    m_DockerFile = new File(m_OutputDir.getAbsolutePath() + "/Dockerfile");
-
-    content.add("FROM " + m_DockerBaseImage);
-    if ((m_DockerInstructions != null) && (m_DockerInstructions.exists()) && !m_DockerInstructions.isDirectory()) {
-      try {
-        content.addAll(Files.readAllLines(m_DockerInstructions.toPath()));
-      }
-      catch (Exception e) {
-        getLogger().log(Level.SEVERE, "Failed to read docker instructions from: " + m_DockerInstructions, e);
-        return "Failed to read docker instructions from: " + m_DockerInstructions;
-      }
-    }
-
-    content.add("COPY \"target/lib/*\" /adamsflow2docker/lib/");
-    content.add("COPY Placeholders.props /adamsflow2docker/Placeholders.props");
-    content.add("COPY worker.flow /adamsflow2docker/worker.flow");
-
-    cmd = new ArrayList<>();
-    cmd.add("java");
-    cmd.add("-cp");
-    cmd.add("/adamsflow2docker/lib/*");
-    if (m_JVM != null)
-      cmd.addAll(m_JVM);
-    cmd.add("adams.flow.FlowRunner");
-    cmd.add("-headless");
-    cmd.add("true");
-    cmd.add("-non-interactive");
-    cmd.add("true");
-    cmd.add("-clean-up");
-    cmd.add("true");
-    cmd.add("-home");
-    cmd.add("/adamsflow2docker");
-    cmd.add("-input");
-    cmd.add("/adamsflow2docker/worker.flow");
-
-    cmdLine = new StringBuilder();
-    cmdLine.append("CMD [");
-    for (i = 0; i < cmd.size(); i++) {
-      if (i > 0)
-        cmdLine.append(", ");
-      cmdLine.append("\"");
-      cmdLine.append(cmd.get(i));
-      cmdLine.append("\"");
-    }
-    cmdLine.append("]");
-    content.add(cmdLine.toString());
-
-    try {
-      Files.write(m_DockerFile.toPath(), content, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-    }
-    catch (Exception e) {
-      getLogger().log(Level.SEVERE, "Failed to write " + m_DockerFile, e);
-      return "Failed to write " + m_DockerFile;
-    }
+  protected String executeMatrix() {
+    VariantMatrix	matrix;
+    String		msg;
+
+    matrix   = toMatrix();
+    msg      = matrix.execute();
+    m_Result = matrix.getVariants().get(0).getResult();
+    matrix.printSummary();
+    if (msg != null)
+      return msg;
+
+    System.out.println("You can compile the Docker images now as follows:");
+    for (VariantMatrix.Variant variant : matrix.getVariants())
+      System.out.println("(cd " + variant.getGenerator().getConfig().getOutputDir() + " && [sudo] docker build -t <imagename>:" + variant.getName() + " .)");
+    System.out.println();
 
     return null;
   }
@@ -775,31 +1605,61 @@ public class Main {
    * @return		null if successful, otherwise error message
    */
   protected String doExecute() {
-    String 	result;
+    Generator		generator;
+    FileStager		stager;
+    String		msg;
 
-    // generate lib directory with bootstrapp
-    if ((result = initLibraries()) != null)
-      return result;
+    if ((msg = checkOptions()) != null)
+      return msg;
 
-    // copies the flow
-    if ((result = initFlow()) != null)
-      return result;
+    // generate the variants, sharing the libraries
+    if (hasVariants())
+      return executeMatrix();
 
-    // creates the placeholders to use in the docker image
-    if ((result = initPlaceholders()) != null)
-      return result;
-
-    // generate Dockerfile
-    if ((result = createDockerfile()) != null)
-      return result;
+    // generate lib directory, flow, placeholders and Dockerfile
+    generator = new Generator(toConfig());
+    m_Result  = generator.generate();
+    log(m_Result);
+    if (!m_Result.isSuccessful())
+      return m_Result.getError();
 
     // output instructions for compiling docker image
     System.out.println();
-    System.out.println("You can compile the Docker image now as follows:");
-    System.out.println("cd " + m_OutputDir);
-    System.out.println("[sudo] docker build -t <imagename> .");
+    stager = m_Result.getStager();
+    if ((stager != null) && (stager.getStrategy() != FileStager.Strategy.COPY)) {
+      System.out.println("Staging (" + stager.getStrategy().toString().toLowerCase() + "): "
+	+ stager.getLinked() + " linked, " + stager.getCloned() + " cloned, " + stager.getCopied() + " copied; "
+	+ (stager.getBytesShared() / 1024 / 1024) + " MB shared, " + (stager.getBytesCopied() / 1024 / 1024) + " MB written");
+      System.out.println();
+    }
+    if (m_Result.isUnchanged()) {
+      System.out.println("The build context is unchanged since the last run, building/pushing can be skipped.");
+      System.out.println();
+    }
+    if (getOciOutput() != null) {
+      System.out.println("The image was written as OCI image layout, you can push/load it as follows:");
+      System.out.println("skopeo copy oci:" + getOciOutput() + ":" + getOciTag() + " docker://<registry>/<imagename>");
+      System.out.println("skopeo copy oci:" + getOciOutput() + ":" + getOciTag() + " docker-daemon:<imagename>:" + getOciTag());
+    }
+    else if (ContextArchive.isStdout(getContextTar())) {
+      System.out.println("The build context was written to stdout, for piping it into:");
+      System.out.println("[sudo] docker build -t <imagename> -");
+    }
+    else if (getContextTar() != null) {
+      System.out.println("You can compile the Docker image now as follows:");
+      System.out.println("[sudo] docker build -t <imagename> - < " + getContextTar());
+    }
+    else {
+      System.out.println("You can compile the Docker image now as follows:");
+      System.out.println("cd " + getOutputDir());
+      System.out.println("[sudo] docker build -t <imagename> .");
+    }
     System.out.println();
 
+    // keep regenerating on changes
+    if (m_Watch)
+      return new FlowWatcher(generator, m_Result).watch();
+
     return null;
   }
 
@@ -810,8 +1670,18 @@ public class Main {
    */
   public String execute() {
     String		result;
+    PrintStream		stdout;
 
-    result = doExecute();
+    // stdout is reserved for the build context
+    stdout = System.out;
+    if (ContextArchive.isStdout(getContextTar()))
+      System.setOut(System.err);
+    try {
+      result = doExecute();
+    }
+    finally {
+      System.setOut(stdout);
+    }
     if (result != null)
       getLogger().severe(result);
 
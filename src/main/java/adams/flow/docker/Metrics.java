@@ -0,0 +1,440 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Metrics.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records wall time, CPU time, heap usage and phase-specific values (e.g.,
+ * bytes and jars) for the phases of the generator. The metrics can be
+ * written as JSON report and pushed to a StatsD ("udp://host:port") or a
+ * Prometheus pushgateway ("http://host:port/metrics/job/NAME") endpoint.
+ * Phases can run concurrently in different threads, values get recorded for
+ * the phase that the calling thread is running.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class Metrics {
+
+  /** the report file. */
+  public final static String REPORT = "metrics.json";
+
+  /** the prefix for the metric names. */
+  public final static String PREFIX = "adamsflow2docker";
+
+  /** the phase for the libraries. */
+  public final static String LIBRARIES = "libraries";
+
+  /**
+   * A single phase.
+   */
+  public static class Phase {
+
+    /** the name. */
+    protected String m_Name;
+
+    /** the start time (nanoseconds). */
+    protected long m_Start;
+
+    /** the end time (nanoseconds). */
+    protected long m_End;
+
+    /** the start CPU time of the thread (nanoseconds), -1 if not available. */
+    protected long m_StartCpu;
+
+    /** the wall time in msec. */
+    protected long m_WallTime;
+
+    /** the CPU time in msec, -1 if not available. */
+    protected long m_CpuTime;
+
+    /** the used heap at the end in bytes. */
+    protected long m_HeapUsed;
+
+    /** the phase-specific values. */
+    protected Map<String,Object> m_Values;
+
+    /** the error, null if successful. */
+    protected String m_Error;
+
+    /**
+     * Initializes the phase.
+     *
+     * @param name	the name of the phase
+     */
+    public Phase(String name) {
+      m_Name   = name;
+      m_Values = new LinkedHashMap<>();
+    }
+
+    /**
+     * Returns the name.
+     *
+     * @return		the name
+     */
+    public String getName() {
+      return m_Name;
+    }
+
+    /**
+     * Returns the wall time.
+     *
+     * @return		the time in msec
+     */
+    public long getWallTime() {
+      return m_WallTime;
+    }
+
+    /**
+     * Returns the phase-specific values.
+     *
+     * @return		the values
+     */
+    public Map<String,Object> getValues() {
+      return m_Values;
+    }
+
+    /**
+     * Returns the phase as map.
+     *
+     * @return		the map
+     */
+    public Map<String,Object> toMap() {
+      Map<String,Object>	result;
+
+      result = new LinkedHashMap<>();
+      result.put("name", m_Name);
+      result.put("wall_ms", m_WallTime);
+      if (m_CpuTime > -1)
+	result.put("cpu_ms", m_CpuTime);
+      result.put("heap_used_bytes", m_HeapUsed);
+      result.putAll(m_Values);
+      if (m_Error != null)
+	result.put("error", m_Error);
+
+      return result;
+    }
+  }
+
+  /** the phases. */
+  protected List<Phase> m_Phases;
+
+  /** the phase currently or last run. */
+  protected Phase m_Last;
+
+  /** the phase currently or last run by the thread. */
+  protected transient ThreadLocal<Phase> m_Current;
+
+  /** the creation time (msec). */
+  protected long m_Created;
+
+  /** for CPU times. */
+  protected transient ThreadMXBean m_ThreadBean;
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /**
+   * Initializes the metrics.
+   */
+  public Metrics() {
+    m_Phases     = new ArrayList<>();
+    m_Last       = null;
+    m_Current    = new ThreadLocal<>();
+    m_Created    = System.currentTimeMillis();
+    m_ThreadBean = ManagementFactory.getThreadMXBean();
+    if (!m_ThreadBean.isCurrentThreadCpuTimeSupported())
+      m_ThreadBean = null;
+  }
+
+  /**
+   * Returns the logger instance to use.
+   *
+   * @return		the logger
+   */
+  protected Logger getLogger() {
+    if (m_Logger == null)
+      m_Logger = Logger.getLogger(getClass().getName());
+    return m_Logger;
+  }
+
+  /**
+   * Returns the phase currently or last run by the calling thread, otherwise
+   * the one last started by any thread.
+   *
+   * @return		the phase, null if none started yet
+   */
+  protected Phase current() {
+    Phase	result;
+
+    result = m_Current.get();
+    if (result == null)
+      result = m_Last;
+
+    return result;
+  }
+
+  /**
+   * Starts the phase in the calling thread.
+   *
+   * @param name	the name of the phase
+   */
+  public synchronized void start(String name) {
+    Phase	phase;
+
+    phase            = new Phase(name);
+    phase.m_StartCpu = (m_ThreadBean == null) ? -1 : m_ThreadBean.getCurrentThreadCpuTime();
+    phase.m_Start    = System.nanoTime();
+    m_Phases.add(phase);
+    m_Last = phase;
+    m_Current.set(phase);
+  }
+
+  /**
+   * Stops the current phase of the calling thread.
+   *
+   * @param error	the error, null if successful
+   */
+  public synchronized void stop(String error) {
+    Runtime	rt;
+    Phase	phase;
+
+    phase = current();
+    if (phase == null)
+      return;
+    rt               = Runtime.getRuntime();
+    phase.m_End      = System.nanoTime();
+    phase.m_WallTime = (phase.m_End - phase.m_Start) / 1000000;
+    phase.m_CpuTime  = (phase.m_StartCpu == -1) ? -1 : (m_ThreadBean.getCurrentThreadCpuTime() - phase.m_StartCpu) / 1000000;
+    phase.m_HeapUsed = rt.totalMemory() - rt.freeMemory();
+    phase.m_Error    = error;
+  }
+
+  /**
+   * Sets the value for the phase currently or last run by the calling thread.
+   *
+   * @param key		the key (snake case)
+   * @param value	the value
+   */
+  public synchronized void set(String key, Object value) {
+    Phase	phase;
+
+    phase = current();
+    if (phase != null)
+      phase.m_Values.put(key, value);
+  }
+
+  /**
+   * Returns the phases.
+   *
+   * @return		the phases
+   */
+  public List<Phase> getPhases() {
+    return m_Phases;
+  }
+
+  /**
+   * Returns the metrics as map.
+   *
+   * @return		the map
+   */
+  public synchronized Map<String,Object> toMap() {
+    Map<String,Object>	result;
+    List<Object>	phases;
+    long		total;
+    long		start;
+    long		end;
+
+    phases = new ArrayList<>();
+    total  = 0;
+    start  = Long.MAX_VALUE;
+    end    = Long.MIN_VALUE;
+    for (Phase phase : m_Phases) {
+      phases.add(phase.toMap());
+      total += phase.m_WallTime;
+      start  = Math.min(start, phase.m_Start);
+      end    = Math.max(end, phase.m_End);
+    }
+    result = new LinkedHashMap<>();
+    result.put("timestamp", m_Created);
+    // phases can overlap, i.e., the elapsed time can be less than the sum
+    result.put("total_ms", total);
+    result.put("elapsed_ms", (end > start) ? (end - start) / 1000000 : 0);
+    result.put("phases", phases);
+
+    return result;
+  }
+
+  /**
+   * Writes the metrics as JSON to the file.
+   *
+   * @param file	the file to write to
+   * @return		null if successful, otherwise error message
+   */
+  public String write(File file) {
+    try {
+      Files.write(file.toPath(), (JsonUtils.toJson(toMap()) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to write metrics: " + file, e);
+      return "Failed to write metrics: " + file;
+    }
+
+    return null;
+  }
+
+  /**
+   * Turns the key into a valid metric name.
+   *
+   * @param key		the key
+   * @return		the name
+   */
+  protected static String toName(String key) {
+    return key.replaceAll("[^A-Za-z0-9_]", "_");
+  }
+
+  /**
+   * Generates the StatsD lines (timers for times, gauges for numbers).
+   *
+   * @return		the lines
+   */
+  protected synchronized List<String> toStatsD() {
+    List<String>	result;
+    String		prefix;
+
+    result = new ArrayList<>();
+    for (Phase phase : m_Phases) {
+      prefix = PREFIX + ".phase." + toName(phase.getName()) + ".";
+      result.add(prefix + "wall_ms:" + phase.m_WallTime + "|ms");
+      if (phase.m_CpuTime > -1)
+	result.add(prefix + "cpu_ms:" + phase.m_CpuTime + "|ms");
+      for (String key : phase.m_Values.keySet()) {
+	if (phase.m_Values.get(key) instanceof Number)
+	  result.add(prefix + toName(key) + ":" + phase.m_Values.get(key) + "|g");
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Generates the Prometheus text format (one gauge per value, labeled by phase).
+   *
+   * @return		the content
+   */
+  protected synchronized String toPrometheus() {
+    Map<String,List<String>>	metrics;
+    StringBuilder		result;
+    String			label;
+
+    metrics = new LinkedHashMap<>();
+    for (Phase phase : m_Phases) {
+      label = "{phase=\"" + toName(phase.getName()) + "\"}";
+      metrics.computeIfAbsent("wall_seconds", (String k) -> new ArrayList<>()).add(label + " " + (phase.m_WallTime / 1000.0));
+      if (phase.m_CpuTime > -1)
+	metrics.computeIfAbsent("cpu_seconds", (String k) -> new ArrayList<>()).add(label + " " + (phase.m_CpuTime / 1000.0));
+      metrics.computeIfAbsent("success", (String k) -> new ArrayList<>()).add(label + " " + ((phase.m_Error == null) ? 1 : 0));
+      for (String key : phase.m_Values.keySet()) {
+	if (phase.m_Values.get(key) instanceof Number)
+	  metrics.computeIfAbsent(toName(key), (String k) -> new ArrayList<>()).add(label + " " + phase.m_Values.get(key));
+      }
+    }
+
+    result = new StringBuilder();
+    for (String name : metrics.keySet()) {
+      result.append("# TYPE ").append(PREFIX).append("_phase_").append(name).append(" gauge\n");
+      for (String line : metrics.get(name))
+	result.append(PREFIX).append("_phase_").append(name).append(line).append("\n");
+    }
+
+    return result.toString();
+  }
+
+  /**
+   * Pushes the metrics to the endpoint, either StatsD (udp://host:port) or
+   * a Prometheus pushgateway (http(s)://host:port/metrics/job/NAME).
+   *
+   * @param endpoint	the endpoint URL
+   * @return		null if successful, otherwise error message
+   */
+  public String push(String endpoint) {
+    URI			uri;
+    byte[]		data;
+    InetAddress		address;
+    HttpURLConnection	conn;
+    int			code;
+
+    try {
+      uri = new URI(endpoint);
+      if ("udp".equals(uri.getScheme())) {
+	address = InetAddress.getByName(uri.getHost());
+	try (DatagramSocket socket = new DatagramSocket()) {
+	  // one packet per metric keeps below the typical MTU
+	  for (String line : toStatsD()) {
+	    data = line.getBytes(StandardCharsets.UTF_8);
+	    socket.send(new DatagramPacket(data, data.length, address, (uri.getPort() == -1) ? 8125 : uri.getPort()));
+	  }
+	}
+      }
+      else if ("http".equals(uri.getScheme()) || "https".equals(uri.getScheme())) {
+	data = toPrometheus().getBytes(StandardCharsets.UTF_8);
+	conn = (HttpURLConnection) uri.toURL().openConnection();
+	conn.setRequestMethod("POST");
+	conn.setDoOutput(true);
+	conn.setConnectTimeout(5000);
+	conn.setReadTimeout(5000);
+	conn.setRequestProperty("Content-Type", "text/plain; version=0.0.4");
+	try (OutputStream out = conn.getOutputStream()) {
+	  out.write(data);
+	}
+	code = conn.getResponseCode();
+	conn.disconnect();
+	if (code >= 300)
+	  return "Failed to push metrics to " + endpoint + ": HTTP " + code;
+      }
+      else {
+	return "Unsupported metrics endpoint (udp://, http:// or https://): " + endpoint;
+      }
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to push metrics to: " + endpoint, e);
+      return "Failed to push metrics to: " + endpoint;
+    }
+
+    return null;
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * MetricsAgent.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Generates the runtime for the metrics endpoint of the image: a jar with
+ * {@link RuntimeMetrics} (attached as Java agent) and {@link MetricsListener}
+ * (set as flow execution listener of the workflow), plus the HEALTHCHECK
+ * instruction.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class MetricsAgent {
+
+  /** the name of the jar. */
+  public final static String JAR = "metrics.jar";
+
+  /** the classname of the flow execution listener (not loaded by the generator, requires ADAMS). */
+  public final static String LISTENER = "adams.flow.docker.MetricsListener";
+
+  /** the classname of the root actor. */
+  public final static String FLOW = "adams.flow.control.Flow";
+
+  /** the option for enabling the listener. */
+  public final static String OPTION_ENABLED = "-flow-execution-listening-enabled";
+
+  /** the option for the listener. */
+  public final static String OPTION_LISTENER = "-flow-execution-listener";
+
+  /** the listener used by default. */
+  public final static String NULL_LISTENER = "adams.flow.execution.NullListener";
+
+  /** the JDK modules required by the agent (jlink). */
+  public final static String[] MODULES = {"java.instrument", "java.management", "jdk.httpserver", "jdk.management"};
+
+  /** the interval of the health check in seconds. */
+  public final static int HEALTHCHECK_INTERVAL = 30;
+
+  /** the timeout of the health check in seconds. */
+  public final static int HEALTHCHECK_TIMEOUT = 10;
+
+  /** the start period of the health check in seconds (workflow startup). */
+  public final static int HEALTHCHECK_START_PERIOD = 60;
+
+  /** the number of failed health checks before the container is unhealthy. */
+  public final static int HEALTHCHECK_RETRIES = 3;
+
+  /** the pattern for the enabled option. */
+  protected final static Pattern PATTERN_ENABLED = Pattern.compile("\\s+" + OPTION_ENABLED + "\\s+\\S+");
+
+  /** the pattern for the listener option (plain or quoted command-line). */
+  protected final static Pattern PATTERN_LISTENER = Pattern.compile("\\s+" + OPTION_LISTENER + "\\s+(\"(?:[^\"\\\\]|\\\\.)*\"|\\S+)");
+
+  /**
+   * Returns the JVM option for attaching the agent.
+   *
+   * @param port	the port (or shell expression) for the server
+   * @return		the option
+   */
+  public static String getAgentOption(String port) {
+    return "-javaagent:" + WorkerLauncher.HOME + "/" + JAR + "=" + port;
+  }
+
+  /**
+   * Returns the command for checking the health of the workflow.
+   *
+   * @param port	the port of the server
+   * @return		the command
+   */
+  public static List<String> getHealthcheckCommand(int port) {
+    return new ArrayList<>(Arrays.asList(
+      "java", "-Xmx16m", "-XX:+UseSerialGC", "-XX:TieredStopAtLevel=1",
+      "-cp", WorkerLauncher.HOME + "/" + JAR, RuntimeMetrics.class.getName(), "" + port));
+  }
+
+  /**
+   * Generates the HEALTHCHECK instruction.
+   *
+   * @param port	the port of the server
+   * @return		the instruction
+   */
+  public static String generateHealthcheck(int port) {
+    StringBuilder	result;
+    List<String>	cmd;
+    int			i;
+
+    cmd    = getHealthcheckCommand(port);
+    result = new StringBuilder("HEALTHCHECK"
+      + " --interval=" + HEALTHCHECK_INTERVAL + "s"
+      + " --timeout=" + HEALTHCHECK_TIMEOUT + "s"
+      + " --start-period=" + HEALTHCHECK_START_PERIOD + "s"
+      + " --retries=" + HEALTHCHECK_RETRIES
+      + " CMD [");
+    for (i = 0; i < cmd.size(); i++) {
+      if (i > 0)
+	result.append(", ");
+      result.append("\"").append(cmd.get(i)).append("\"");
+    }
+    result.append("]");
+
+    return result.toString();
+  }
+
+  /**
+   * Writes the jar with the agent and the listener, using fixed timestamps.
+   *
+   * @param jar		the jar to write
+   * @return		null if successful, otherwise error message
+   * @throws Exception	if writing fails
+   */
+  public static String writeJar(File jar) throws Exception {
+    Attributes		attributes;
+    List<String>	classes;
+
+    attributes = new Attributes();
+    attributes.put(Attributes.Name.MAIN_CLASS, RuntimeMetrics.class.getName());
+    attributes.put(new Attributes.Name("Premain-Class"), RuntimeMetrics.class.getName());
+    classes = new ArrayList<>();
+    classes.add(RuntimeMetrics.class.getName());
+    for (Class<?> cls : RuntimeMetrics.class.getDeclaredClasses())
+      classes.add(cls.getName());
+    classes.add(LISTENER);
+
+    return FileUtils.writeClassJar(jar, attributes, classes);
+  }
+
+  /**
+   * Sets the {@link MetricsListener} as flow execution listener of the
+   * workflow, replacing any existing one.
+   *
+   * @param flow	the flow file to update
+   * @return		null if set, otherwise a warning
+   * @throws Exception	if reading/writing fails
+   */
+  public static String injectListener(File flow) throws Exception {
+    List<String>	lines;
+    String		line;
+    String		result;
+    Matcher		matcher;
+    int			i;
+
+    result = null;
+    lines  = Files.readAllLines(flow.toPath(), StandardCharsets.UTF_8);
+    for (i = 0; i < lines.size(); i++) {
+      line = lines.get(i);
+      if (line.startsWith("#") || line.trim().isEmpty())
+	continue;
+      if (!line.equals(FLOW) && !line.startsWith(FLOW + " "))
+	return "Root actor is not " + FLOW + ", no metrics per actor available!";
+      matcher = PATTERN_LISTENER.matcher(line);
+      if (matcher.find() && !matcher.group(1).equals(NULL_LISTENER) && !matcher.group(1).equals(LISTENER))
+	result = "Replaced flow execution listener with " + LISTENER + ": " + matcher.group(1);
+      line = PATTERN_ENABLED.matcher(line).replaceAll("");
+      line = PATTERN_LISTENER.matcher(line).replaceAll("");
+      lines.set(i, line + " " + OPTION_ENABLED + " true " + OPTION_LISTENER + " " + LISTENER);
+      Files.write(flow.toPath(), lines, StandardCharsets.UTF_8);
+      return result;
+    }
+
+    return "No actor found in flow, no metrics per actor available!";
+  }
+}
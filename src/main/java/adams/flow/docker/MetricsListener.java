@@ -0,0 +1,131 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * MetricsListener.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import adams.flow.core.Actor;
+import adams.flow.core.Token;
+import adams.flow.execution.AbstractFlowExecutionListener;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Flow execution listener that records the tokens received/output and the
+ * execution times per actor in the {@link RuntimeMetrics}. Gets set as
+ * listener of the workflow in the image if the metrics are enabled, see
+ * {@link MetricsAgent}.
+ * <br>
+ * Only class of the generator that depends on ADAMS, it only gets loaded
+ * within the image.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class MetricsListener
+  extends AbstractFlowExecutionListener {
+
+  private static final long serialVersionUID = -1530870741276316843L;
+
+  /** actor -&gt; start of execution (nanoseconds), per thread. */
+  protected transient ThreadLocal<Map<Actor,Long>> m_Start;
+
+  /**
+   * Returns a string describing the object.
+   *
+   * @return 		a description suitable for displaying in the gui
+   */
+  @Override
+  public String globalInfo() {
+    return "Records the tokens and execution times per actor for the metrics endpoint of the image.";
+  }
+
+  /**
+   * Returns the start times of the current thread.
+   *
+   * @return		the start times
+   */
+  protected Map<Actor,Long> getStart() {
+    if (m_Start == null)
+      m_Start = ThreadLocal.withInitial(IdentityHashMap::new);
+    return m_Start.get();
+  }
+
+  /**
+   * Gets called when the flow execution starts.
+   */
+  @Override
+  public void startListening() {
+    RuntimeMetrics.getSingleton().started();
+  }
+
+  /**
+   * Gets called before the actor receives the token.
+   *
+   * @param actor	the actor that will receive the token
+   * @param token	the token that the actor will receive
+   */
+  @Override
+  public void preInput(Actor actor, Token token) {
+    RuntimeMetrics.getSingleton().item(actor.getFullName());
+  }
+
+  /**
+   * Gets called before the actor gets executed.
+   *
+   * @param actor	the actor that will get executed
+   */
+  @Override
+  public void preExecute(Actor actor) {
+    getStart().put(actor, System.nanoTime());
+  }
+
+  /**
+   * Gets called after the actor was executed.
+   *
+   * @param actor	the actor that was executed
+   */
+  @Override
+  public void postExecute(Actor actor) {
+    Long	start;
+
+    start = getStart().remove(actor);
+    if (start != null)
+      RuntimeMetrics.getSingleton().executed(actor.getFullName(), System.nanoTime() - start);
+  }
+
+  /**
+   * Gets called after a token was acquired from the actor.
+   *
+   * @param actor	the actor that the token was acquired from
+   * @param token	the token that was acquired from the actor
+   */
+  @Override
+  public void postOutput(Actor actor, Token token) {
+    RuntimeMetrics.getSingleton().output(actor.getFullName());
+  }
+
+  /**
+   * Gets called when the flow execution ends.
+   */
+  @Override
+  public void finishListening() {
+    RuntimeMetrics.getSingleton().finished();
+  }
+}
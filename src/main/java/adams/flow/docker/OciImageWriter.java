@@ -0,0 +1,1016 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * OciImageWriter.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the image as OCI image layout directly, without a docker daemon.
+ * The base image gets read from a local OCI image layout (directory or tar
+ * archive, e.g., generated with "skopeo copy docker://IMAGE oci:DIR"). The
+ * layers get streamed into (uncompressed) tar archives, computing the
+ * SHA-256 digest on the fly. Layers whose files haven't changed (same paths,
+ * sizes and timestamps) get reused from an earlier output without reading
+ * the files again (the fingerprints get stored next to the output directory
+ * in OUTPUT.layers.cache); layers with identical content always share the
+ * same blob.
+ * <br>
+ * Of the additional docker instructions, only the ones that modify the
+ * image configuration are supported (ENV, LABEL, WORKDIR, USER, EXPOSE),
+ * as running commands requires a container runtime.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class OciImageWriter {
+
+  /** the media type for OCI image indices. */
+  public final static String MEDIATYPE_INDEX = "application/vnd.oci.image.index.v1+json";
+
+  /** the media type for OCI manifests. */
+  public final static String MEDIATYPE_MANIFEST = "application/vnd.oci.image.manifest.v1+json";
+
+  /** the media type for OCI image configurations. */
+  public final static String MEDIATYPE_CONFIG = "application/vnd.oci.image.config.v1+json";
+
+  /** the media type for uncompressed OCI layers. */
+  public final static String MEDIATYPE_LAYER = "application/vnd.oci.image.layer.v1.tar";
+
+  /** the media type for gzip-compressed OCI layers. */
+  public final static String MEDIATYPE_LAYER_GZIP = "application/vnd.oci.image.layer.v1.tar+gzip";
+
+  /** the media type for docker manifest lists. */
+  public final static String MEDIATYPE_DOCKER_LIST = "application/vnd.docker.distribution.manifest.list.v2+json";
+
+  /** the media type for uncompressed docker layers. */
+  public final static String MEDIATYPE_DOCKER_LAYER = "application/vnd.docker.image.rootfs.diff.tar";
+
+  /** the media type for gzip-compressed docker layers. */
+  public final static String MEDIATYPE_DOCKER_LAYER_GZIP = "application/vnd.docker.image.rootfs.diff.tar.gzip";
+
+  /** the annotation for the tag. */
+  public final static String ANNOTATION_REF_NAME = "org.opencontainers.image.ref.name";
+
+  /** the default tag. */
+  public final static String DEFAULT_TAG = "latest";
+
+  /** the extension for the file next to the output directory that stores the layer fingerprints. */
+  public final static String LAYER_CACHE = ".layers.cache";
+
+  /** the modification time of the files in the layers (like jib, 1 second after epoch). */
+  public final static long DEFAULT_MODTIME = 1;
+
+  /**
+   * A layer to add to the image.
+   */
+  public static class Layer {
+
+    /** the description (for the history). */
+    protected String m_Description;
+
+    /** path in image -&gt; file. */
+    protected TreeMap<String,File> m_Files;
+
+    /**
+     * Initializes the layer.
+     *
+     * @param description	the description (for the history)
+     */
+    public Layer(String description) {
+      m_Description = description;
+      m_Files       = new TreeMap<>();
+    }
+
+    /**
+     * Adds the file.
+     *
+     * @param path	the absolute path in the image
+     * @param file	the file to add
+     * @return		itself
+     */
+    public Layer add(String path, File file) {
+      if (path.startsWith("/"))
+	path = path.substring(1);
+      m_Files.put(path, file);
+      return this;
+    }
+
+    /**
+     * Returns the description.
+     *
+     * @return		the description
+     */
+    public String getDescription() {
+      return m_Description;
+    }
+
+    /**
+     * Returns the files.
+     *
+     * @return		path in image -&gt; file
+     */
+    public TreeMap<String,File> getFiles() {
+      return m_Files;
+    }
+
+    /**
+     * Returns the fingerprint of the layer, based on paths, sizes and
+     * timestamps of the files. Content hashes are used instead of the
+     * timestamps where available.
+     *
+     * @param hashes	file (absolute) -&gt; content hash
+     * @param modTime	the modification time for the files in the layer
+     * @return		the fingerprint
+     */
+    public String fingerprint(Map<File,String> hashes, long modTime) {
+      MessageDigest	digest;
+      File		file;
+      String		hash;
+
+      digest = FileUtils.newDigest();
+      digest.update(Long.toString(modTime).getBytes(StandardCharsets.UTF_8));
+      for (String path : m_Files.keySet()) {
+	file = m_Files.get(path);
+	hash = hashes.get(file.getAbsoluteFile());
+	if (hash == null)
+	  hash = Long.toString(file.lastModified());
+	digest.update((path + "\t" + file.length() + "\t" + hash + "\n").getBytes(StandardCharsets.UTF_8));
+      }
+      return FileUtils.toHex(digest.digest());
+    }
+  }
+
+  /** the base image (OCI layout directory or tar archive). */
+  protected File m_Base;
+
+  /** the output directory (OCI layout). */
+  protected File m_OutputDir;
+
+  /** the tag. */
+  protected String m_Tag;
+
+  /** the layers to add. */
+  protected List<Layer> m_Layers;
+
+  /** the environment variables to set. */
+  protected Map<String,String> m_Env;
+
+  /** the labels to set. */
+  protected Map<String,String> m_Labels;
+
+  /** the ports to expose. */
+  protected Set<String> m_ExposedPorts;
+
+  /** the working directory, null if not set. */
+  protected String m_WorkingDir;
+
+  /** the user, null if not set. */
+  protected String m_User;
+
+  /** the command. */
+  protected List<String> m_Cmd;
+
+  /** the health check (docker extension of the configuration), null if none. */
+  protected Map<String,Object> m_Healthcheck;
+
+  /** the timestamp to use (seconds since epoch), -1 for current time. */
+  protected long m_Timestamp;
+
+  /** file (absolute) -&gt; content hash. */
+  protected Map<File,String> m_Hashes;
+
+  /** fingerprint -&gt; descriptor of layer. */
+  protected Properties m_LayerCache;
+
+  /** the number of layers that were reused. */
+  protected int m_Reused;
+
+  /** the number of bytes written for the layers. */
+  protected long m_BytesWritten;
+
+  /** the digests of the blobs in use. */
+  protected Set<String> m_Used;
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /**
+   * Initializes the writer.
+   *
+   * @param base	the base image (OCI layout directory or tar archive)
+   * @param outputDir	the output directory for the OCI layout
+   * @param tag		the tag for the image, null for default
+   */
+  public OciImageWriter(File base, File outputDir, String tag) {
+    m_Base         = base;
+    m_OutputDir    = outputDir;
+    m_Tag          = (tag == null) ? DEFAULT_TAG : tag;
+    m_Layers       = new ArrayList<>();
+    m_Env          = new LinkedHashMap<>();
+    m_Labels       = new LinkedHashMap<>();
+    m_ExposedPorts = new TreeSet<>();
+    m_WorkingDir   = null;
+    m_User         = null;
+    m_Cmd          = new ArrayList<>();
+    m_Healthcheck  = null;
+    m_Timestamp    = -1;
+    m_Hashes       = new HashMap<>();
+    m_LayerCache   = new Properties();
+    m_Used         = new HashSet<>();
+  }
+
+  /**
+   * Returns the logger instance to use.
+   *
+   * @return		the logger
+   */
+  protected Logger getLogger() {
+    if (m_Logger == null)
+      m_Logger = Logger.getLogger(getClass().getName());
+    return m_Logger;
+  }
+
+  /**
+   * Adds the layer.
+   *
+   * @param layer	the layer to add
+   */
+  public void addLayer(Layer layer) {
+    m_Layers.add(layer);
+  }
+
+  /**
+   * Returns the layers to add.
+   *
+   * @return		the layers
+   */
+  public List<Layer> getLayers() {
+    return m_Layers;
+  }
+
+  /**
+   * Sets the command to run.
+   *
+   * @param cmd		the command
+   */
+  public void setCmd(List<String> cmd) {
+    m_Cmd = new ArrayList<>(cmd);
+  }
+
+  /**
+   * Adds the port to expose.
+   *
+   * @param port	the port, tcp if no protocol specified
+   */
+  public void addExposedPort(String port) {
+    m_ExposedPorts.add(port.contains("/") ? port : port + "/tcp");
+  }
+
+  /**
+   * Sets the health check (Healthcheck in the configuration, as understood
+   * by docker).
+   *
+   * @param cmd		the command to run
+   * @param interval	the interval in seconds
+   * @param timeout	the timeout in seconds
+   * @param startPeriod	the start period in seconds
+   * @param retries	the number of retries
+   */
+  public void setHealthcheck(List<String> cmd, int interval, int timeout, int startPeriod, int retries) {
+    List<Object>	test;
+
+    test = new ArrayList<>();
+    test.add("CMD");
+    test.addAll(cmd);
+    m_Healthcheck = new LinkedHashMap<>();
+    m_Healthcheck.put("Test", test);
+    m_Healthcheck.put("Interval", interval * 1000000000L);
+    m_Healthcheck.put("Timeout", timeout * 1000000000L);
+    m_Healthcheck.put("StartPeriod", startPeriod * 1000000000L);
+    m_Healthcheck.put("Retries", retries);
+  }
+
+  /**
+   * Sets the timestamp to use for the image and the files in the layers,
+   * for reproducible images.
+   *
+   * @param timestamp	the timestamp (seconds since epoch), -1 for current
+   *			time (image) and default timestamp (files)
+   */
+  public void setTimestamp(long timestamp) {
+    m_Timestamp = timestamp;
+  }
+
+  /**
+   * Sets the content hashes of the files, which are used for determining
+   * whether layers can be reused (instead of the timestamps).
+   *
+   * @param hashes	file (absolute) -&gt; content hash
+   */
+  public void setHashes(Map<File,String> hashes) {
+    m_Hashes = new HashMap<>(hashes);
+  }
+
+  /**
+   * Returns the modification time for the files in the layers.
+   *
+   * @return		the time (seconds since epoch)
+   */
+  protected long getModTime() {
+    return (m_Timestamp < 0) ? DEFAULT_MODTIME : m_Timestamp;
+  }
+
+  /**
+   * Parses "key=value" pairs (or "key value" for a single pair).
+   *
+   * @param args	the arguments of the instruction
+   * @param map		the map to add the pairs to
+   * @return		null if successful, otherwise error message
+   */
+  protected String parsePairs(String args, Map<String,String> map) {
+    List<String>	parts;
+    int			pos;
+
+    parts = Batch.splitOptions(args);
+    if (parts.isEmpty())
+      return "No key/value pairs: " + args;
+    if (!parts.get(0).contains("=")) {
+      pos = args.trim().indexOf(' ');
+      if (pos == -1)
+	return "No value for key: " + args;
+      map.put(args.trim().substring(0, pos), args.trim().substring(pos + 1).trim());
+      return null;
+    }
+    for (String part : parts) {
+      pos = part.indexOf('=');
+      if (pos < 1)
+	return "Invalid key/value pair: " + part;
+      map.put(part.substring(0, pos), part.substring(pos + 1));
+    }
+
+    return null;
+  }
+
+  /**
+   * Applies the docker instructions to the image configuration.
+   *
+   * @param lines	the instructions
+   * @return		null if successful, otherwise error message
+   */
+  public String applyInstructions(List<String> lines) {
+    List<String>	instructions;
+    StringBuilder	current;
+    String		instr;
+    String		cmd;
+    String		args;
+    String		msg;
+    int			pos;
+
+    // join continuation lines
+    instructions = new ArrayList<>();
+    current      = new StringBuilder();
+    for (String line : lines) {
+      line = line.trim();
+      if ((current.length() == 0) && (line.isEmpty() || line.startsWith("#")))
+	continue;
+      if (line.endsWith("\\")) {
+	current.append(line, 0, line.length() - 1).append(" ");
+	continue;
+      }
+      current.append(line);
+      instructions.add(current.toString());
+      current.setLength(0);
+    }
+    if (current.length() > 0)
+      instructions.add(current.toString());
+
+    for (String instruction : instructions) {
+      instr = instruction.trim();
+      pos   = instr.indexOf(' ');
+      cmd   = ((pos == -1) ? instr : instr.substring(0, pos)).toUpperCase();
+      args  = (pos == -1) ? "" : instr.substring(pos + 1).trim();
+      msg   = null;
+      switch (cmd) {
+	case "ENV":
+	  msg = parsePairs(args, m_Env);
+	  break;
+	case "LABEL":
+	  msg = parsePairs(args, m_Labels);
+	  break;
+	case "WORKDIR":
+	  m_WorkingDir = args;
+	  break;
+	case "USER":
+	  m_User = args;
+	  break;
+	case "EXPOSE":
+	  for (String port : args.split("\\s+"))
+	    addExposedPort(port);
+	  break;
+	default:
+	  msg = "Docker instruction not supported without docker daemon: " + instr;
+      }
+      if (msg != null)
+	return msg;
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns the file for the blob.
+   *
+   * @param dir		the OCI layout directory
+   * @param digest	the digest (algorithm:hex)
+   * @return		the file
+   */
+  protected static File getBlob(File dir, String digest) {
+    return new File(dir.getAbsolutePath() + "/blobs/" + digest.replace(':', '/'));
+  }
+
+  /**
+   * Creates a descriptor.
+   *
+   * @param mediaType	the media type
+   * @param digest	the digest
+   * @param size	the size
+   * @return		the descriptor
+   */
+  protected static Map<String,Object> descriptor(String mediaType, String digest, long size) {
+    Map<String,Object>	result;
+
+    result = new LinkedHashMap<>();
+    result.put("mediaType", mediaType);
+    result.put("digest", digest);
+    result.put("size", size);
+
+    return result;
+  }
+
+  /**
+   * Writes the data as blob, if not already present.
+   *
+   * @param data	the data to write
+   * @return		the digest
+   * @throws Exception	if writing fails
+   */
+  protected String writeBlob(byte[] data) throws Exception {
+    String	result;
+    File	blob;
+
+    result = "sha256:" + FileUtils.toHex(FileUtils.newDigest().digest(data));
+    blob   = getBlob(m_OutputDir, result);
+    if (!blob.exists()) {
+      blob.getParentFile().mkdirs();
+      Files.write(blob.toPath(), data);
+    }
+    m_Used.add(result);
+
+    return result;
+  }
+
+  /**
+   * Reads the blob as JSON object.
+   *
+   * @param digest	the digest of the blob
+   * @return		the object
+   * @throws Exception	if reading/parsing fails
+   */
+  protected Map<String,Object> readJsonBlob(String digest) throws Exception {
+    return JsonUtils.parseObject(new String(Files.readAllBytes(getBlob(m_OutputDir, digest).toPath()), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Copies the stream into the blob with the given digest, verifying the
+   * digest.
+   *
+   * @param in		the stream to read from
+   * @param digest	the expected digest
+   * @throws Exception	if copying fails or the digest doesn't match
+   */
+  protected void copyBlob(InputStream in, String digest) throws Exception {
+    File		blob;
+    File		tmp;
+    MessageDigest	md;
+    byte[]		buffer;
+    int			read;
+
+    blob = getBlob(m_OutputDir, digest);
+    blob.getParentFile().mkdirs();
+    tmp    = File.createTempFile("blob", ".tmp", blob.getParentFile());
+    md     = FileUtils.newDigest();
+    buffer = new byte[65536];
+    try (OutputStream out = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp.toPath())), md)) {
+      while ((read = in.read(buffer)) != -1)
+	out.write(buffer, 0, read);
+    }
+    if (!("sha256:" + FileUtils.toHex(md.digest())).equals(digest)) {
+      tmp.delete();
+      throw new IllegalStateException("Digest mismatch for blob: " + digest);
+    }
+    Files.move(tmp.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Imports the blobs of the base image into the output directory and
+   * returns the descriptor of the base image's manifest.
+   *
+   * @return		the index of the base image
+   * @throws Exception	if importing fails
+   */
+  protected Map<String,Object> importBase() throws Exception {
+    TarArchiveReader		reader;
+    TarArchiveReader.Entry	entry;
+    byte[]			index;
+    String			digest;
+    File			source;
+    File[]			algs;
+    File[]			blobs;
+
+    index = null;
+    if (m_Base.isDirectory()) {
+      index = Files.readAllBytes(new File(m_Base, "index.json").toPath());
+    }
+    else {
+      try (InputStream in = Files.newInputStream(m_Base.toPath())) {
+	reader = new TarArchiveReader(in);
+	while ((entry = reader.next()) != null) {
+	  if (!entry.isFile())
+	    continue;
+	  if (entry.getName().equals("index.json")) {
+	    index = reader.getInputStream().readAllBytes();
+	  }
+	  else if (entry.getName().startsWith("blobs/")) {
+	    digest = entry.getName().substring("blobs/".length()).replace('/', ':');
+	    if (getBlob(m_OutputDir, digest).exists())
+	      continue;
+	    copyBlob(reader.getInputStream(), digest);
+	  }
+	}
+      }
+    }
+    if (index == null)
+      throw new IllegalStateException("No index.json found in base image (OCI image layout required): " + m_Base);
+
+    // makes sure the blobs of the base directory are available
+    if (m_Base.isDirectory()) {
+      source = new File(m_Base.getAbsolutePath() + "/blobs");
+      algs   = source.listFiles(File::isDirectory);
+      if (algs == null)
+	throw new IllegalStateException("No blobs directory found in base image (OCI image layout required): " + m_Base);
+      for (File alg : algs) {
+	blobs = alg.listFiles(File::isFile);
+	if (blobs == null)
+	  throw new IllegalStateException("Failed to list blobs of base image: " + alg);
+	for (File blob : blobs) {
+	  digest = alg.getName() + ":" + blob.getName();
+	  if (getBlob(m_OutputDir, digest).exists())
+	    continue;
+	  try (InputStream in = Files.newInputStream(blob.toPath())) {
+	    copyBlob(in, digest);
+	  }
+	}
+      }
+    }
+
+    return JsonUtils.parseObject(new String(index, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Selects the manifest (linux/amd64 for multi-platform images).
+   *
+   * @param index	the index to select from
+   * @return		the manifest descriptor
+   * @throws Exception	if reading fails
+   */
+  protected Map<String,Object> selectManifest(Map<String,Object> index) throws Exception {
+    List<Object>	manifests;
+    Map<String,Object>	result;
+    Map<String,Object>	desc;
+    Map<String,Object>	platform;
+    String		type;
+
+    manifests = JsonUtils.getList(index, "manifests");
+    if ((manifests == null) || manifests.isEmpty())
+      throw new IllegalStateException("Base image contains no manifests: " + m_Base);
+
+    result = JsonUtils.asObject(manifests.get(0));
+    for (Object m : manifests) {
+      desc     = JsonUtils.asObject(m);
+      platform = JsonUtils.getObject(desc, "platform");
+      if ((platform != null) && "linux".equals(platform.get("os")) && "amd64".equals(platform.get("architecture"))) {
+	result = desc;
+	break;
+      }
+    }
+
+    type = (String) result.get("mediaType");
+    if (MEDIATYPE_INDEX.equals(type) || MEDIATYPE_DOCKER_LIST.equals(type))
+      return selectManifest(readJsonBlob((String) result.get("digest")));
+
+    return result;
+  }
+
+  /**
+   * Returns the OCI media type for the layer.
+   *
+   * @param mediaType	the media type of the base image's layer
+   * @return		the OCI media type
+   */
+  protected static String toOciLayerType(String mediaType) {
+    if (MEDIATYPE_DOCKER_LAYER_GZIP.equals(mediaType))
+      return MEDIATYPE_LAYER_GZIP;
+    if (MEDIATYPE_DOCKER_LAYER.equals(mediaType))
+      return MEDIATYPE_LAYER;
+    return mediaType;
+  }
+
+  /**
+   * Writes the layer or reuses the existing one with the same fingerprint.
+   *
+   * @param layer	the layer to write
+   * @return		the descriptor
+   * @throws Exception	if writing fails
+   */
+  protected Map<String,Object> writeLayer(Layer layer) throws Exception {
+    String		fingerprint;
+    String		cached;
+    String		digest;
+    long		size;
+    File		blob;
+    File		tmp;
+    MessageDigest	md;
+    TarArchiveWriter	writer;
+    Set<String>		dirs;
+    String		parent;
+
+    fingerprint = layer.fingerprint(m_Hashes, getModTime());
+    cached      = m_LayerCache.getProperty(fingerprint);
+    if (cached != null) {
+      digest = cached.substring(0, cached.indexOf(' '));
+      size   = Long.parseLong(cached.substring(cached.indexOf(' ') + 1));
+      blob   = getBlob(m_OutputDir, digest);
+      if (blob.exists() && (blob.length() == size)) {
+	m_Reused++;
+	m_Used.add(digest);
+	return descriptor(MEDIATYPE_LAYER, digest, size);
+      }
+    }
+
+    tmp = File.createTempFile("layer", ".tmp", getBlob(m_OutputDir, "sha256:x").getParentFile());
+    md  = FileUtils.newDigest();
+    try (OutputStream out = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp.toPath()), 65536), md)) {
+      writer = new TarArchiveWriter(out, getModTime());
+      dirs   = new TreeSet<>();
+      for (String path : layer.getFiles().keySet()) {
+	parent = path;
+	while (parent.contains("/")) {
+	  parent = parent.substring(0, parent.lastIndexOf('/'));
+	  dirs.add(parent);
+	}
+      }
+      for (String dir : dirs)
+	writer.addDirectory(dir);
+      for (String path : layer.getFiles().keySet())
+	writer.addFile(path, layer.getFiles().get(path), TarArchiveWriter.MODE_FILE);
+      writer.finish();
+      size = writer.getWritten();
+    }
+    digest = "sha256:" + FileUtils.toHex(md.digest());
+    blob   = getBlob(m_OutputDir, digest);
+    if (blob.exists())
+      tmp.delete();
+    else
+      Files.move(tmp.toPath(), blob.toPath());
+    m_BytesWritten += size;
+    m_LayerCache.setProperty(fingerprint, digest + " " + size);
+    m_Used.add(digest);
+
+    return descriptor(MEDIATYPE_LAYER, digest, size);
+  }
+
+  /**
+   * Creates a history entry.
+   *
+   * @param created	the timestamp
+   * @param createdBy	the description
+   * @param empty	whether an empty layer
+   * @return		the entry
+   */
+  protected static Map<String,Object> history(String created, String createdBy, boolean empty) {
+    Map<String,Object>	result;
+
+    result = new LinkedHashMap<>();
+    result.put("created", created);
+    result.put("created_by", createdBy);
+    if (empty)
+      result.put("empty_layer", true);
+
+    return result;
+  }
+
+  /**
+   * Updates the image configuration.
+   *
+   * @param config	the configuration of the base image
+   * @param layers	the descriptors of the new layers
+   * @param created	the timestamp
+   */
+  protected void updateConfig(Map<String,Object> config, List<Map<String,Object>> layers, String created) {
+    Map<String,Object>	cfg;
+    Map<String,Object>	rootfs;
+    Map<String,Object>	labels;
+    Map<String,Object>	ports;
+    List<Object>	env;
+    List<Object>	diffIDs;
+    List<Object>	history;
+    Map<String,String>	merged;
+    String		key;
+    int			i;
+
+    cfg = JsonUtils.getObject(config, "config");
+    if (cfg == null) {
+      cfg = new LinkedHashMap<>();
+      config.put("config", cfg);
+    }
+
+    // environment, overriding variables of the base image
+    merged = new LinkedHashMap<>();
+    env    = JsonUtils.getList(cfg, "Env");
+    if (env != null) {
+      for (Object e : env) {
+	key = e.toString();
+	merged.put(key.contains("=") ? key.substring(0, key.indexOf('=')) : key, e.toString());
+      }
+    }
+    for (String k : m_Env.keySet())
+      merged.put(k, k + "=" + m_Env.get(k));
+    if (!merged.isEmpty())
+      cfg.put("Env", new ArrayList<Object>(merged.values()));
+
+    if (!m_Labels.isEmpty()) {
+      labels = JsonUtils.getObject(cfg, "Labels");
+      if (labels == null)
+	labels = new LinkedHashMap<>();
+      labels.putAll(m_Labels);
+      cfg.put("Labels", labels);
+    }
+    if (!m_ExposedPorts.isEmpty()) {
+      ports = JsonUtils.getObject(cfg, "ExposedPorts");
+      if (ports == null)
+	ports = new LinkedHashMap<>();
+      for (String port : m_ExposedPorts)
+	ports.put(port, new LinkedHashMap<>());
+      cfg.put("ExposedPorts", ports);
+    }
+    if (m_WorkingDir != null)
+      cfg.put("WorkingDir", m_WorkingDir);
+    if (m_User != null)
+      cfg.put("User", m_User);
+    cfg.put("Cmd", new ArrayList<Object>(m_Cmd));
+    if (m_Healthcheck != null)
+      cfg.put("Healthcheck", m_Healthcheck);
+
+    rootfs = JsonUtils.getObject(config, "rootfs");
+    if (rootfs == null) {
+      rootfs = new LinkedHashMap<>();
+      rootfs.put("type", "layers");
+      config.put("rootfs", rootfs);
+    }
+    diffIDs = JsonUtils.getList(rootfs, "diff_ids");
+    if (diffIDs == null) {
+      diffIDs = new ArrayList<>();
+      rootfs.put("diff_ids", diffIDs);
+    }
+    history = JsonUtils.getList(config, "history");
+    if (history == null) {
+      history = new ArrayList<>();
+      config.put("history", history);
+    }
+    // uncompressed layers: digest is the same as the diff ID
+    for (i = 0; i < layers.size(); i++) {
+      diffIDs.add(layers.get(i).get("digest"));
+      history.add(history(created, "adamsflow2docker: " + m_Layers.get(i).getDescription(), false));
+    }
+    history.add(history(created, "adamsflow2docker: CMD " + JsonUtils.toJson(m_Cmd), true));
+    config.put("created", created);
+  }
+
+  /**
+   * Removes the blobs that are no longer referenced.
+   */
+  protected void removeUnused() {
+    File	blobs;
+    File[]	algs;
+    File[]	files;
+
+    blobs = new File(m_OutputDir.getAbsolutePath() + "/blobs");
+    algs  = blobs.listFiles(File::isDirectory);
+    if (algs == null)
+      return;
+    for (File alg : algs) {
+      files = alg.listFiles(File::isFile);
+      if (files == null)
+	continue;
+      for (File blob : files) {
+	if (!m_Used.contains(alg.getName() + ":" + blob.getName()) && !blob.delete())
+	  getLogger().warning("Failed to remove unused blob: " + blob);
+      }
+    }
+  }
+
+  /**
+   * Returns the file that stores the layer fingerprints, which is located
+   * next to the output directory, as the OCI image layout reserves its root.
+   *
+   * @return		the file
+   */
+  public File getLayerCache() {
+    return getLayerCache(m_OutputDir);
+  }
+
+  /**
+   * Returns the file that stores the layer fingerprints for the output
+   * directory.
+   *
+   * @param outputDir	the output directory of the OCI image layout
+   * @return		the file
+   */
+  public static File getLayerCache(File outputDir) {
+    return new File(outputDir.getAbsoluteFile().toPath().normalize() + LAYER_CACHE);
+  }
+
+  /**
+   * Writes the image.
+   *
+   * @return		null if successful, otherwise error message
+   */
+  public String write() {
+    Map<String,Object>		baseDesc;
+    Map<String,Object>		manifest;
+    Map<String,Object>		config;
+    Map<String,Object>		configDesc;
+    Map<String,Object>		layerDesc;
+    Map<String,Object>		index;
+    Map<String,Object>		annotations;
+    List<Object>		baseLayers;
+    List<Object>		allLayers;
+    List<Map<String,Object>>	newLayers;
+    File			cacheFile;
+    File			legacy;
+    String			created;
+    String			digest;
+    byte[]			data;
+
+    m_Reused       = 0;
+    m_BytesWritten = 0;
+    m_Used.clear();
+    m_LayerCache.clear();
+    cacheFile = getLayerCache();
+    if (!m_OutputDir.exists() && !m_OutputDir.mkdirs())
+      return "Failed to create OCI output directory: " + m_OutputDir;
+    // earlier versions stored the cache in the image layout
+    legacy = new File(m_OutputDir, "layers.cache");
+    if (legacy.exists() && !legacy.delete())
+      getLogger().warning("Failed to remove layer cache from image layout: " + legacy);
+    if (cacheFile.exists()) {
+      try (Reader reader = Files.newBufferedReader(cacheFile.toPath())) {
+	m_LayerCache.load(reader);
+      }
+      catch (Exception e) {
+	getLogger().log(Level.WARNING, "Failed to read layer cache, ignoring: " + cacheFile, e);
+	m_LayerCache.clear();
+      }
+    }
+    getBlob(m_OutputDir, "sha256:x").getParentFile().mkdirs();
+
+    try {
+      // base image
+      baseDesc = selectManifest(importBase());
+      m_Used.add((String) baseDesc.get("digest"));
+      manifest = readJsonBlob((String) baseDesc.get("digest"));
+      m_Used.add((String) JsonUtils.getObject(manifest, "config").get("digest"));
+      config     = readJsonBlob((String) JsonUtils.getObject(manifest, "config").get("digest"));
+      baseLayers = JsonUtils.getList(manifest, "layers");
+      allLayers  = new ArrayList<>();
+      for (Object l : baseLayers) {
+	layerDesc = new LinkedHashMap<>(JsonUtils.asObject(l));
+	layerDesc.put("mediaType", toOciLayerType((String) layerDesc.get("mediaType")));
+	m_Used.add((String) layerDesc.get("digest"));
+	allLayers.add(layerDesc);
+      }
+
+      // new layers
+      newLayers = new ArrayList<>();
+      for (Layer layer : m_Layers)
+	newLayers.add(writeLayer(layer));
+      allLayers.addAll(newLayers);
+
+      // config
+      created = ((m_Timestamp < 0) ? Instant.now() : Instant.ofEpochSecond(m_Timestamp)).toString();
+      updateConfig(config, newLayers, created);
+      data       = JsonUtils.toJson(config).getBytes(StandardCharsets.UTF_8);
+      configDesc = descriptor(MEDIATYPE_CONFIG, writeBlob(data), data.length);
+
+      // manifest
+      manifest = new LinkedHashMap<>();
+      manifest.put("schemaVersion", 2);
+      manifest.put("mediaType", MEDIATYPE_MANIFEST);
+      manifest.put("config", configDesc);
+      manifest.put("layers", allLayers);
+      data   = JsonUtils.toJson(manifest).getBytes(StandardCharsets.UTF_8);
+      digest = writeBlob(data);
+
+      // index
+      annotations = new LinkedHashMap<>();
+      annotations.put(ANNOTATION_REF_NAME, m_Tag);
+      layerDesc = descriptor(MEDIATYPE_MANIFEST, digest, data.length);
+      layerDesc.put("annotations", annotations);
+      index = new LinkedHashMap<>();
+      index.put("schemaVersion", 2);
+      index.put("mediaType", MEDIATYPE_INDEX);
+      index.put("manifests", List.of(layerDesc));
+      Files.write(new File(m_OutputDir, "index.json").toPath(), JsonUtils.toJson(index).getBytes(StandardCharsets.UTF_8));
+      Files.write(new File(m_OutputDir, "oci-layout").toPath(), "{\"imageLayoutVersion\":\"1.0.0\"}".getBytes(StandardCharsets.UTF_8));
+
+      for (String fingerprint : m_LayerCache.stringPropertyNames()) {
+	digest = m_LayerCache.getProperty(fingerprint);
+	if (!m_Used.contains(digest.substring(0, digest.indexOf(' '))))
+	  m_LayerCache.remove(fingerprint);
+      }
+      try (Writer writer = Files.newBufferedWriter(cacheFile.toPath())) {
+	m_LayerCache.store(writer, null);
+      }
+    }
+    catch (IllegalStateException e) {
+      getLogger().log(Level.SEVERE, e.getMessage(), e);
+      return e.getMessage();
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to write OCI image to: " + m_OutputDir, e);
+      return "Failed to write OCI image to: " + m_OutputDir;
+    }
+
+    removeUnused();
+
+    return null;
+  }
+
+  /**
+   * Returns the number of layers that were reused from an earlier output.
+   *
+   * @return		the number of layers
+   */
+  public int getReused() {
+    return m_Reused;
+  }
+
+  /**
+   * Returns the number of bytes written for the layers that weren't reused.
+   *
+   * @return		the number of bytes
+   */
+  public long getBytesWritten() {
+    return m_BytesWritten;
+  }
+}
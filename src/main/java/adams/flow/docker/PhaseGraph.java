@@ -0,0 +1,213 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * PhaseGraph.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Executes phases that return an error message (null if successful) as a
+ * dependency graph: a phase starts as soon as the phases it depends on have
+ * finished, independent phases run concurrently on an executor. Once a phase
+ * fails, phases that have not started yet get skipped. The error is the one
+ * of the first failed phase in the order the phases got added, i.e., the same
+ * as when running them sequentially in that order.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class PhaseGraph {
+
+  /**
+   * A single phase.
+   */
+  protected static class Node {
+
+    /** the name. */
+    protected String m_Name;
+
+    /** the phase to run. */
+    protected Supplier<String> m_Phase;
+
+    /** the names of the phases it depends on. */
+    protected List<String> m_Dependencies;
+
+    /** the error, null if successful or not run. */
+    protected String m_Error;
+
+    /** the exception the phase threw, null if none. */
+    protected Throwable m_Exception;
+  }
+
+  /** the phases, in the order they got added. */
+  protected Map<String,Node> m_Nodes;
+
+  /** whether a phase failed. */
+  protected volatile boolean m_Failed;
+
+  /**
+   * Initializes the graph.
+   */
+  public PhaseGraph() {
+    m_Nodes = new LinkedHashMap<>();
+  }
+
+  /**
+   * Adds the phase. The dependencies must have been added already, which
+   * rules out cycles.
+   *
+   * @param name		the name of the phase
+   * @param phase		the phase, returns null if successful, otherwise error message
+   * @param dependencies	the names of the phases that need to finish first
+   * @return			itself
+   */
+  public PhaseGraph add(String name, Supplier<String> phase, String... dependencies) {
+    Node	node;
+
+    if (m_Nodes.containsKey(name))
+      throw new IllegalArgumentException("Phase already added: " + name);
+    for (String dependency : dependencies) {
+      if (!m_Nodes.containsKey(dependency))
+	throw new IllegalArgumentException("Unknown dependency of phase '" + name + "': " + dependency);
+    }
+
+    node                = new Node();
+    node.m_Name         = name;
+    node.m_Phase        = phase;
+    node.m_Dependencies = new ArrayList<>(Arrays.asList(dependencies));
+    m_Nodes.put(name, node);
+
+    return this;
+  }
+
+  /**
+   * Returns the names of the phases, in the order they got added.
+   *
+   * @return		the names
+   */
+  public List<String> getPhases() {
+    return new ArrayList<>(m_Nodes.keySet());
+  }
+
+  /**
+   * Runs the phase, unless a phase failed already.
+   *
+   * @param node	the phase to run
+   */
+  protected void run(Node node) {
+    if (m_Failed)
+      return;
+    try {
+      node.m_Error = node.m_Phase.get();
+    }
+    catch (Throwable t) {
+      node.m_Exception = t;
+    }
+    if ((node.m_Error != null) || (node.m_Exception != null))
+      m_Failed = true;
+  }
+
+  /**
+   * Runs the phases sequentially in the calling thread, in the order they
+   * got added.
+   */
+  protected void executeSequential() {
+    for (Node node : m_Nodes.values())
+      run(node);
+  }
+
+  /**
+   * Runs the phases concurrently, using the specified number of threads.
+   *
+   * @param numThreads	the number of threads
+   */
+  protected void executeConcurrent(int numThreads) {
+    ExecutorService				executor;
+    Map<String,CompletableFuture<Void>>	futures;
+    CompletableFuture<?>[]			dependencies;
+    AtomicInteger				count;
+    int						i;
+
+    count    = new AtomicInteger();
+    executor = Executors.newFixedThreadPool(numThreads, (Runnable r) -> {
+      Thread thread = new Thread(r, getClass().getSimpleName() + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    futures  = new LinkedHashMap<>();
+    try {
+      for (Node node : m_Nodes.values()) {
+	dependencies = new CompletableFuture<?>[node.m_Dependencies.size()];
+	for (i = 0; i < node.m_Dependencies.size(); i++)
+	  dependencies[i] = futures.get(node.m_Dependencies.get(i));
+	futures.put(node.m_Name, CompletableFuture.allOf(dependencies).thenRunAsync(() -> run(node), executor));
+      }
+      CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0])).join();
+    }
+    catch (CompletionException e) {
+      // run() catches everything, only happens if the executor rejects a phase
+      throw new IllegalStateException("Failed to execute phases!", e.getCause());
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Executes the phases.
+   *
+   * @param numThreads	the number of threads, 1 to run the phases sequentially in the calling thread
+   * @return		null if successful, otherwise the error message of the first failed phase
+   */
+  public String execute(int numThreads) {
+    m_Failed = false;
+    for (Node node : m_Nodes.values()) {
+      node.m_Error     = null;
+      node.m_Exception = null;
+    }
+
+    if (numThreads <= 1)
+      executeSequential();
+    else
+      executeConcurrent(numThreads);
+
+    for (Node node : m_Nodes.values()) {
+      if (node.m_Exception instanceof RuntimeException)
+	throw (RuntimeException) node.m_Exception;
+      if (node.m_Exception instanceof Error)
+	throw (Error) node.m_Exception;
+      if (node.m_Exception != null)
+	throw new IllegalStateException("Phase '" + node.m_Name + "' failed!", node.m_Exception);
+      if (node.m_Error != null)
+	return node.m_Error;
+    }
+
+    return null;
+  }
+}
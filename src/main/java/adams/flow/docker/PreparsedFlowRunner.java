@@ -0,0 +1,97 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * PreparsedFlowRunner.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import adams.flow.FlowRunner;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Runs the workflow in the image via FlowRunner, using the serialized flow
+ * generated by {@link FlowPreparser} instead of the text flow (-input) if
+ * it is present, a reader for it is available and the libraries in the image
+ * are the ones that it was generated with. Otherwise falls back to the text
+ * flow.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class PreparsedFlowRunner {
+
+  /**
+   * Checks whether the serialized flow can be used.
+   *
+   * @param serialized	the serialized flow
+   * @return		null if it can be used, otherwise the reason
+   */
+  protected static String check(File serialized) {
+    File	digest;
+    String	expected;
+    String	actual;
+
+    if (!serialized.exists())
+      return "not present: " + serialized;
+    try {
+      Class.forName(FlowPreparser.READER);
+    }
+    catch (Throwable t) {
+      return "no reader available: " + FlowPreparser.READER;
+    }
+    digest = FlowPreparser.getDigestFile(serialized);
+    try {
+      expected = new String(Files.readAllBytes(digest.toPath()), StandardCharsets.UTF_8).trim();
+      actual   = FlowPreparser.digest(FileUtils.listJars(new File(serialized.getAbsoluteFile().getParentFile(), FlowPreparser.LIB_DIR)));
+    }
+    catch (Exception e) {
+      return "failed to determine digest of libraries: " + e;
+    }
+    if (!expected.equals(actual))
+      return "libraries differ from generation";
+
+    return null;
+  }
+
+  /**
+   * Runs the flow.
+   *
+   * @param args	the options for FlowRunner
+   * @throws Exception	if execution fails
+   */
+  public static void main(String[] args) throws Exception {
+    File	serialized;
+    String	reason;
+    int		i;
+
+    for (i = 0; i < args.length - 1; i++) {
+      if (!args[i].equals("-input"))
+	continue;
+      serialized = FlowPreparser.getSerialized(new File(args[i + 1]));
+      if ((reason = check(serialized)) == null)
+	args[i + 1] = serialized.getAbsolutePath();
+      else
+	System.err.println("[preparse] using text flow, serialized flow " + reason);
+      break;
+    }
+
+    FlowRunner.main(args);
+  }
+}
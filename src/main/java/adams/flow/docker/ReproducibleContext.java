@@ -0,0 +1,309 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * ReproducibleContext.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Makes the build context reproducible: normalizes timestamps and
+ * permissions of the files and records their content hashes in a manifest
+ * (sha256sum format). When the manifest is the same as the one from the
+ * previous run, a marker file gets created, allowing CI to skip building
+ * and pushing the image.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class ReproducibleContext {
+
+  /** the environment variable with the timestamp to use (seconds since epoch). */
+  public final static String SOURCE_DATE_EPOCH = "SOURCE_DATE_EPOCH";
+
+  /** the timestamp to use if SOURCE_DATE_EPOCH isn't set (seconds since epoch). */
+  public final static long DEFAULT_EPOCH = OciImageWriter.DEFAULT_MODTIME;
+
+  /** the manifest with the content hashes. */
+  public final static String MANIFEST = "context.sha256";
+
+  /** the marker file for an unchanged context. */
+  public final static String UNCHANGED = "context.unchanged";
+
+  /** the permissions for the files. */
+  public final static String PERMISSIONS = "rw-r--r--";
+
+  /** the output directory. */
+  protected File m_OutputDir;
+
+  /** the timestamp to use (seconds since epoch). */
+  protected long m_Epoch;
+
+  /** file -&gt; content hash. */
+  protected Map<File,String> m_Hashes;
+
+  /** the digest over the manifest. */
+  protected String m_Digest;
+
+  /** whether the context is unchanged. */
+  protected boolean m_Unchanged;
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /**
+   * Initializes the context.
+   *
+   * @param outputDir	the output directory
+   */
+  public ReproducibleContext(File outputDir) {
+    m_OutputDir = outputDir;
+    m_Epoch     = getEpoch();
+    m_Hashes    = new HashMap<>();
+    m_Digest    = null;
+    m_Unchanged = false;
+  }
+
+  /**
+   * Returns the logger instance to use.
+   *
+   * @return		the logger
+   */
+  protected Logger getLogger() {
+    if (m_Logger == null)
+      m_Logger = Logger.getLogger(getClass().getName());
+    return m_Logger;
+  }
+
+  /**
+   * Returns the timestamp to use, either from SOURCE_DATE_EPOCH or the
+   * default one.
+   *
+   * @return		the timestamp (seconds since epoch)
+   */
+  public static long getEpoch() {
+    String	value;
+
+    value = System.getenv(SOURCE_DATE_EPOCH);
+    if ((value != null) && !value.trim().isEmpty()) {
+      try {
+	return Long.parseLong(value.trim());
+      }
+      catch (Exception e) {
+	Logger.getLogger(ReproducibleContext.class.getName()).warning("Invalid " + SOURCE_DATE_EPOCH + ", using default: " + value);
+      }
+    }
+
+    return DEFAULT_EPOCH;
+  }
+
+  /**
+   * Writes the properties without the timestamp comment and with the keys
+   * sorted.
+   *
+   * @param props	the properties to write
+   * @param file	the file to write to
+   * @throws Exception	if writing fails
+   */
+  public static void storeProperties(Properties props, File file) throws Exception {
+    StringWriter	writer;
+    List<String>	lines;
+
+    writer = new StringWriter();
+    props.store(writer, null);
+    lines = new ArrayList<>();
+    for (String line : writer.toString().split("\r?\n")) {
+      if (!line.startsWith("#") && !line.isEmpty())
+	lines.add(line);
+    }
+    lines.sort(null);
+    Files.write(file.toPath(), lines, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Returns the path relative to the output directory.
+   *
+   * @param file	the file
+   * @return		the relative path (using forward slashes)
+   */
+  protected String relativize(File file) {
+    return m_OutputDir.getAbsoluteFile().toPath().relativize(file.getAbsoluteFile().toPath()).toString().replace('\\', '/');
+  }
+
+  /**
+   * Returns the number of hard links of the file.
+   *
+   * @param file	the file to check
+   * @return		the number of links, 1 if not supported by the file system
+   * @throws Exception	if accessing the metadata fails
+   */
+  protected static int getLinkCount(File file) throws Exception {
+    try {
+      return ((Number) Files.getAttribute(file.toPath(), "unix:nlink")).intValue();
+    }
+    catch (UnsupportedOperationException | IllegalArgumentException e) {
+      return 1;
+    }
+  }
+
+  /**
+   * Normalizes timestamp and permissions of the file. Only modifies what
+   * differs, so that files that are normalized already don't get written to.
+   * Hard linked files (e.g., shared with the cache or another output
+   * directory) don't get modified, as that would affect all links.
+   *
+   * @param file	the file to normalize
+   * @return		null if successful, otherwise error message
+   * @throws Exception	if accessing the metadata fails
+   */
+  protected String normalize(File file) throws Exception {
+    Set<PosixFilePermission>	perms;
+    boolean			timestamp;
+    boolean			permissions;
+
+    perms     = PosixFilePermissions.fromString(PERMISSIONS);
+    timestamp = (file.lastModified() != m_Epoch * 1000);
+    try {
+      permissions = !Files.getPosixFilePermissions(file.toPath()).equals(perms);
+    }
+    catch (UnsupportedOperationException e) {
+      // not a POSIX file system
+      permissions = false;
+    }
+    if (!timestamp && !permissions)
+      return null;
+
+    if (getLinkCount(file) > 1)
+      return "Cannot normalize hard linked file, requires staging as copy or reflink: " + file;
+    if (timestamp && !file.setLastModified(m_Epoch * 1000))
+      return "Failed to set timestamp of: " + file;
+    if (permissions)
+      Files.setPosixFilePermissions(file.toPath(), perms);
+
+    return null;
+  }
+
+  /**
+   * Normalizes the timestamps and permissions of the files, computes their
+   * hashes and writes the manifest. Compares the manifest with the one from
+   * the previous run.
+   *
+   * @param files	the files of the build context
+   * @return		null if successful, otherwise error message
+   */
+  public String process(List<File> files) {
+    TreeMap<String,File>	sorted;
+    List<String>		manifest;
+    List<String>		previous;
+    File			manifestFile;
+    File			unchangedFile;
+    String			hash;
+    String			msg;
+
+    sorted = new TreeMap<>();
+    for (File file : files)
+      sorted.put(relativize(file), file);
+
+    // the timestamp ends up in the image as well
+    manifest = new ArrayList<>();
+    manifest.add("# " + SOURCE_DATE_EPOCH + "=" + m_Epoch);
+    m_Hashes.clear();
+    try {
+      for (String path : sorted.keySet()) {
+	hash = FileUtils.sha256(sorted.get(path));
+	m_Hashes.put(sorted.get(path).getAbsoluteFile(), hash);
+	manifest.add(hash + "  " + path);
+	if ((msg = normalize(sorted.get(path))) != null)
+	  return msg;
+      }
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to normalize build context in: " + m_OutputDir, e);
+      return "Failed to normalize build context in: " + m_OutputDir;
+    }
+    m_Digest = FileUtils.toHex(FileUtils.newDigest().digest(String.join("\n", manifest).getBytes(StandardCharsets.UTF_8)));
+
+    manifestFile  = new File(m_OutputDir.getAbsolutePath() + "/" + MANIFEST);
+    unchangedFile = new File(m_OutputDir.getAbsolutePath() + "/" + UNCHANGED);
+    try {
+      previous    = manifestFile.exists() ? Files.readAllLines(manifestFile.toPath(), StandardCharsets.UTF_8) : null;
+      m_Unchanged = manifest.equals(previous);
+      Files.write(manifestFile.toPath(), manifest, StandardCharsets.UTF_8);
+      if (m_Unchanged)
+	Files.write(unchangedFile.toPath(), (m_Digest + "\n").getBytes(StandardCharsets.UTF_8));
+      else
+	Files.deleteIfExists(unchangedFile.toPath());
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to write manifest: " + manifestFile, e);
+      return "Failed to write manifest: " + manifestFile;
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns the timestamp used.
+   *
+   * @return		the timestamp (seconds since epoch)
+   */
+  public long getTimestamp() {
+    return m_Epoch;
+  }
+
+  /**
+   * Returns the content hashes of the files.
+   *
+   * @return		file (absolute) -&gt; hash
+   */
+  public Map<File,String> getHashes() {
+    return m_Hashes;
+  }
+
+  /**
+   * Returns the digest over the manifest.
+   *
+   * @return		the digest, null if not yet processed
+   */
+  public String getDigest() {
+    return m_Digest;
+  }
+
+  /**
+   * Returns whether the build context is the same as in the previous run.
+   *
+   * @return		true if unchanged
+   */
+  public boolean isUnchanged() {
+    return m_Unchanged;
+  }
+}
@@ -0,0 +1,533 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * RuntimeMetrics.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Lightweight in-process metrics server for the workflow running in the
+ * image, attached as Java agent (-javaagent:metrics.jar=PORT). Serves the
+ * metrics in Prometheus text format under /metrics: JVM heap, GC and threads,
+ * plus items, executions, execution time histograms and outputs per actor
+ * (recorded by {@link MetricsListener}) and the number of errors (SEVERE log
+ * records). /health responds with 200 while the workflow is running and 503
+ * once it stopped.
+ * <br>
+ * Only depends on the JDK, as it gets shipped in its own jar. Running the
+ * class with a port as argument checks the health endpoint (exit code 0 if
+ * healthy), for use as HEALTHCHECK.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class RuntimeMetrics {
+
+  /** the prefix for the workflow metrics. */
+  public final static String PREFIX = "adams_flow";
+
+  /** the upper bounds of the buckets of the execution time histograms (seconds). */
+  public final static double[] BUCKETS = {0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 60};
+
+  /**
+   * The statistics of a single actor.
+   */
+  public static class ActorStats {
+
+    /** the number of tokens received. */
+    protected long m_Items;
+
+    /** the number of tokens output. */
+    protected long m_Outputs;
+
+    /** the counts per bucket (not cumulative, last one is +Inf). */
+    protected long[] m_Buckets;
+
+    /** the total execution time in nanoseconds. */
+    protected long m_Sum;
+
+    /** the number of executions. */
+    protected long m_Count;
+
+    /**
+     * Initializes the statistics.
+     */
+    public ActorStats() {
+      m_Buckets = new long[BUCKETS.length + 1];
+    }
+
+    /**
+     * Records the execution time.
+     *
+     * @param nanos	the time in nanoseconds
+     */
+    public synchronized void executed(long nanos) {
+      int	i;
+
+      for (i = 0; i < BUCKETS.length; i++) {
+	if (nanos <= BUCKETS[i] * 1e9)
+	  break;
+      }
+      m_Buckets[i]++;
+      m_Sum += nanos;
+      m_Count++;
+    }
+  }
+
+  /**
+   * Counts the SEVERE log records per logger.
+   */
+  public static class ErrorCounter
+    extends Handler {
+
+    /** logger name -&gt; count. */
+    protected Map<String,Long> m_Counts;
+
+    /**
+     * Initializes the counter.
+     */
+    public ErrorCounter() {
+      m_Counts = new TreeMap<>();
+      setLevel(Level.SEVERE);
+    }
+
+    /**
+     * Counts the record, if SEVERE.
+     *
+     * @param record	the record
+     */
+    @Override
+    public synchronized void publish(LogRecord record) {
+      if (record.getLevel().intValue() < Level.SEVERE.intValue())
+	return;
+      m_Counts.merge((record.getLoggerName() == null) ? "" : record.getLoggerName(), 1L, Long::sum);
+    }
+
+    /**
+     * Returns a copy of the counts.
+     *
+     * @return		the counts
+     */
+    public synchronized Map<String,Long> getCounts() {
+      return new TreeMap<>(m_Counts);
+    }
+
+    /**
+     * Does nothing.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Does nothing.
+     */
+    @Override
+    public void close() {
+    }
+  }
+
+  /** the singleton. */
+  protected static RuntimeMetrics m_Singleton;
+
+  /** actor (full name) -&gt; statistics. */
+  protected Map<String,ActorStats> m_Actors;
+
+  /** for counting the errors. */
+  protected ErrorCounter m_Errors;
+
+  /** whether the workflow has started. */
+  protected volatile boolean m_Started;
+
+  /** whether the workflow has finished. */
+  protected volatile boolean m_Finished;
+
+  /** the server. */
+  protected transient HttpServer m_Server;
+
+  /**
+   * Initializes the metrics.
+   */
+  protected RuntimeMetrics() {
+    m_Actors = new TreeMap<>();
+    m_Errors = new ErrorCounter();
+  }
+
+  /**
+   * Returns the statistics of the actor, creating them if necessary.
+   *
+   * @param actor	the full name of the actor
+   * @return		the statistics
+   */
+  protected synchronized ActorStats getStats(String actor) {
+    return m_Actors.computeIfAbsent(actor, (String k) -> new ActorStats());
+  }
+
+  /**
+   * Records a token received by the actor.
+   *
+   * @param actor	the full name of the actor
+   */
+  public void item(String actor) {
+    ActorStats	stats;
+
+    stats = getStats(actor);
+    synchronized(stats) {
+      stats.m_Items++;
+    }
+  }
+
+  /**
+   * Records a token output by the actor.
+   *
+   * @param actor	the full name of the actor
+   */
+  public void output(String actor) {
+    ActorStats	stats;
+
+    stats = getStats(actor);
+    synchronized(stats) {
+      stats.m_Outputs++;
+    }
+  }
+
+  /**
+   * Records an execution of the actor.
+   *
+   * @param actor	the full name of the actor
+   * @param nanos	the execution time in nanoseconds
+   */
+  public void executed(String actor, long nanos) {
+    getStats(actor).executed(nanos);
+  }
+
+  /**
+   * Gets called when the workflow starts. Installs the error counter (after
+   * ADAMS has configured its logging).
+   */
+  public void started() {
+    Logger.getLogger("").removeHandler(m_Errors);
+    Logger.getLogger("").addHandler(m_Errors);
+    m_Started  = true;
+    m_Finished = false;
+  }
+
+  /**
+   * Gets called when the workflow finishes.
+   */
+  public void finished() {
+    m_Finished = true;
+  }
+
+  /**
+   * Returns whether the workflow is considered healthy, i.e., not stopped.
+   *
+   * @return		true if healthy
+   */
+  public boolean isHealthy() {
+    return !m_Finished;
+  }
+
+  /**
+   * Escapes the label value.
+   *
+   * @param value	the value to escape
+   * @return		the escaped value
+   */
+  protected static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  /**
+   * Appends the type declaration of the metric.
+   *
+   * @param result	the buffer to append to
+   * @param name	the name of the metric
+   * @param type	the type
+   */
+  protected static void type(StringBuilder result, String name, String type) {
+    result.append("# TYPE ").append(name).append(" ").append(type).append("\n");
+  }
+
+  /**
+   * Appends the metric value.
+   *
+   * @param result	the buffer to append to
+   * @param name	the name of the metric
+   * @param labels	the labels (name="value",...), null for none
+   * @param value	the value
+   */
+  protected static void value(StringBuilder result, String name, String labels, Object value) {
+    result.append(name);
+    if (labels != null)
+      result.append("{").append(labels).append("}");
+    result.append(" ").append(value).append("\n");
+  }
+
+  /**
+   * Appends the JVM metrics.
+   *
+   * @param result	the buffer to append to
+   */
+  protected void appendJvm(StringBuilder result) {
+    MemoryUsage			heap;
+    MemoryUsage			nonHeap;
+    OperatingSystemMXBean	os;
+    String			label;
+
+    heap    = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+    type(result, "jvm_memory_heap_used_bytes", "gauge");
+    value(result, "jvm_memory_heap_used_bytes", null, heap.getUsed());
+    type(result, "jvm_memory_heap_committed_bytes", "gauge");
+    value(result, "jvm_memory_heap_committed_bytes", null, heap.getCommitted());
+    type(result, "jvm_memory_heap_max_bytes", "gauge");
+    value(result, "jvm_memory_heap_max_bytes", null, heap.getMax());
+    type(result, "jvm_memory_nonheap_used_bytes", "gauge");
+    value(result, "jvm_memory_nonheap_used_bytes", null, nonHeap.getUsed());
+
+    type(result, "jvm_gc_collections_total", "counter");
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      value(result, "jvm_gc_collections_total", "gc=\"" + escape(gc.getName()) + "\"", Math.max(0, gc.getCollectionCount()));
+    type(result, "jvm_gc_collection_seconds_total", "counter");
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      label = "gc=\"" + escape(gc.getName()) + "\"";
+      value(result, "jvm_gc_collection_seconds_total", label, Math.max(0, gc.getCollectionTime()) / 1000.0);
+    }
+
+    type(result, "jvm_threads_live", "gauge");
+    value(result, "jvm_threads_live", null, ManagementFactory.getThreadMXBean().getThreadCount());
+    type(result, "process_uptime_seconds", "gauge");
+    value(result, "process_uptime_seconds", null, ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0);
+    os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      type(result, "process_cpu_seconds_total", "counter");
+      value(result, "process_cpu_seconds_total", null, ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime() / 1e9);
+    }
+  }
+
+  /**
+   * Appends the workflow metrics.
+   *
+   * @param result	the buffer to append to
+   */
+  protected void appendFlow(StringBuilder result) {
+    Map<String,ActorStats>	actors;
+    Map<String,Long>		errors;
+    ActorStats			stats;
+    String			label;
+    long			cumulative;
+    int				i;
+
+    synchronized(this) {
+      actors = new TreeMap<>(m_Actors);
+    }
+
+    type(result, PREFIX + "_running", "gauge");
+    value(result, PREFIX + "_running", null, (m_Started && !m_Finished) ? 1 : 0);
+
+    type(result, PREFIX + "_actor_items_total", "counter");
+    for (String actor : actors.keySet()) {
+      stats = actors.get(actor);
+      synchronized(stats) {
+	value(result, PREFIX + "_actor_items_total", "actor=\"" + escape(actor) + "\"", stats.m_Items);
+      }
+    }
+    type(result, PREFIX + "_actor_outputs_total", "counter");
+    for (String actor : actors.keySet()) {
+      stats = actors.get(actor);
+      synchronized(stats) {
+	value(result, PREFIX + "_actor_outputs_total", "actor=\"" + escape(actor) + "\"", stats.m_Outputs);
+      }
+    }
+    type(result, PREFIX + "_actor_execution_seconds", "histogram");
+    for (String actor : actors.keySet()) {
+      stats = actors.get(actor);
+      label = "actor=\"" + escape(actor) + "\"";
+      synchronized(stats) {
+	cumulative = 0;
+	for (i = 0; i < BUCKETS.length; i++) {
+	  cumulative += stats.m_Buckets[i];
+	  value(result, PREFIX + "_actor_execution_seconds_bucket", label + ",le=\"" + BUCKETS[i] + "\"", cumulative);
+	}
+	value(result, PREFIX + "_actor_execution_seconds_bucket", label + ",le=\"+Inf\"", stats.m_Count);
+	value(result, PREFIX + "_actor_execution_seconds_sum", label, stats.m_Sum / 1e9);
+	value(result, PREFIX + "_actor_execution_seconds_count", label, stats.m_Count);
+      }
+    }
+
+    errors = m_Errors.getCounts();
+    type(result, PREFIX + "_errors_total", "counter");
+    for (String logger : errors.keySet())
+      value(result, PREFIX + "_errors_total", "logger=\"" + escape(logger) + "\"", errors.get(logger));
+  }
+
+  /**
+   * Generates the metrics in Prometheus text format.
+   *
+   * @return		the metrics
+   */
+  public String toPrometheus() {
+    StringBuilder	result;
+
+    result = new StringBuilder();
+    appendFlow(result);
+    appendJvm(result);
+
+    return result.toString();
+  }
+
+  /**
+   * Sends the response.
+   *
+   * @param exchange	the exchange to respond to
+   * @param code	the HTTP status code
+   * @param content	the content
+   * @throws Exception	if sending fails
+   */
+  protected void send(HttpExchange exchange, int code, String content) throws Exception {
+    byte[]	data;
+
+    data = content.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+    exchange.sendResponseHeaders(code, data.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(data);
+    }
+  }
+
+  /**
+   * Starts the server on the port, serving /metrics and /health.
+   *
+   * @param port	the port to listen on
+   * @throws Exception	if starting fails
+   */
+  public synchronized void start(int port) throws Exception {
+    if (m_Server != null)
+      return;
+
+    m_Server = HttpServer.create(new InetSocketAddress(port), 0);
+    // a single daemon thread, doesn't keep the JVM alive once the workflow finished
+    m_Server.setExecutor(Executors.newSingleThreadExecutor((Runnable r) -> {
+      Thread t = new Thread(r, "adamsflow2docker-metrics");
+      t.setDaemon(true);
+      return t;
+    }));
+    m_Server.createContext("/metrics", (HttpExchange exchange) -> {
+      try {
+	send(exchange, 200, toPrometheus());
+      }
+      catch (Exception e) {
+	exchange.close();
+      }
+    });
+    m_Server.createContext("/health", (HttpExchange exchange) -> {
+      try {
+	if (isHealthy())
+	  send(exchange, 200, "UP\n");
+	else
+	  send(exchange, 503, "STOPPED\n");
+      }
+      catch (Exception e) {
+	exchange.close();
+      }
+    });
+    m_Server.start();
+  }
+
+  /**
+   * Returns the singleton.
+   *
+   * @return		the singleton
+   */
+  public static synchronized RuntimeMetrics getSingleton() {
+    if (m_Singleton == null)
+      m_Singleton = new RuntimeMetrics();
+    return m_Singleton;
+  }
+
+  /**
+   * Starts the server when attached as agent. The server gets started from
+   * a daemon thread, as the dispatcher thread of the server inherits the
+   * daemon status.
+   *
+   * @param args	the port to listen on
+   */
+  public static void premain(String args) {
+    Thread	thread;
+    int		port;
+
+    port   = Integer.parseInt(args.trim());
+    thread = new Thread(() -> {
+      try {
+	getSingleton().start(port);
+      }
+      catch (Exception e) {
+	System.err.println("[metrics] Failed to start server on port " + port + ": " + e);
+      }
+    }, "adamsflow2docker-metrics-start");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Checks the health endpoint on localhost, exit code 0 if healthy.
+   *
+   * @param args	the port
+   */
+  public static void main(String[] args) {
+    HttpURLConnection	conn;
+    int			code;
+
+    if (args.length != 1) {
+      System.err.println("Usage: " + RuntimeMetrics.class.getName() + " PORT");
+      System.exit(1);
+    }
+    try {
+      conn = (HttpURLConnection) new URL("http://127.0.0.1:" + Integer.parseInt(args[0]) + "/health").openConnection();
+      conn.setConnectTimeout(2000);
+      conn.setReadTimeout(2000);
+      code = conn.getResponseCode();
+      conn.disconnect();
+    }
+    catch (Exception e) {
+      System.err.println(e);
+      code = -1;
+    }
+    System.exit((code == 200) ? 0 : 1);
+  }
+}
@@ -0,0 +1,1356 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Server.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import com.github.fracpete.simpleargparse4j.ArgumentParser;
+import com.github.fracpete.simpleargparse4j.ArgumentParserException;
+import com.github.fracpete.simpleargparse4j.Namespace;
+import com.github.fracpete.simpleargparse4j.Option.Type;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local HTTP service for turning ADAMS workflows into Docker images, avoiding
+ * JVM startup and repeated library resolution per invocation.
+ * <br>
+ * Endpoints:
+ * <ul>
+ *   <li>POST /jobs - submits a job; the JSON object uses the long options
+ *   of {@link Main} as keys (see {@link #OPTIONS} and {@link #PATH_OPTIONS},
+ *   e.g., "module", "version", "dependency", "input", "docker_base_image",
+ *   "output_dir"), with lists for options that can be specified multiple
+ *   times and booleans for flags; paths must be relative to the work
+ *   directory; instead of "input", the flow can be supplied as string via
+ *   "flow"</li>
+ *   <li>GET /jobs - lists the jobs</li>
+ *   <li>GET /jobs/ID - the status of the job</li>
+ *   <li>GET /jobs/ID/result - the result of the finished job (Dockerfile, metrics)</li>
+ *   <li>GET /health - the state of the queue</li>
+ * </ul>
+ * Resolved libraries get stored in the cache directory (on disk) and
+ * concurrent jobs with the same libraries wait for the first one to resolve
+ * them (in memory), restoring them from the cache afterwards. The files of
+ * jobs get deleted from the work directory once they get evicted.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class Server {
+
+  /** the default port. */
+  public final static int DEFAULT_PORT = 8700;
+
+  /** the default address to bind to (local only). */
+  public final static String DEFAULT_ADDRESS = "127.0.0.1";
+
+  /** the default queue size. */
+  public final static int DEFAULT_QUEUE_SIZE = 100;
+
+  /** the maximum number of finished jobs to keep. */
+  public final static int MAX_FINISHED = 1000;
+
+  /** the options of {@link Main} that jobs can specify (besides the path options). */
+  public final static String[] OPTIONS = {
+    "module",
+    "version",
+    "dependency",
+    "jvm",
+    "docker_base_image",
+    "layered",
+    "jlink",
+    "jlink_module",
+    "runtime_image",
+    "appcds",
+    "appcds_training",
+    "prune",
+    "keep",
+    "oci_tag",
+    "reproducible",
+    "metrics_endpoint",
+    "staging",
+    "workers",
+    "event_trigger",
+    "metrics_port",
+    "preparse_flow",
+    "jvm_profile",
+    "duplicates",
+    "repack",
+    "strip_jars",
+    "phase_threads",
+  };
+
+  /** the options of {@link Main} with paths, which must be relative to the work directory. */
+  public final static String[] PATH_OPTIONS = {
+    "input",
+    "docker_instructions",
+    "dependency-file",
+    "external-jar",
+    "output_dir",
+    "oci_output",
+    "oci_base",
+    "context_tar",
+  };
+
+  /**
+   * The states of a job.
+   */
+  public enum Status {
+    QUEUED,
+    RUNNING,
+    FINISHED,
+    FAILED,
+  }
+
+  /**
+   * Container for a single job.
+   */
+  public static class Job {
+
+    /** the ID. */
+    protected String m_ID;
+
+    /** the configured generator. */
+    protected Generator m_Generator;
+
+    /** the result of the generator. */
+    protected GeneratorResult m_Result;
+
+    /** the status. */
+    protected volatile Status m_Status;
+
+    /** the submission time (msec since epoch). */
+    protected long m_Submitted;
+
+    /** the start time (msec since epoch). */
+    protected long m_Started;
+
+    /** the end time (msec since epoch). */
+    protected long m_Finished;
+
+    /** the error, null if successful. */
+    protected String m_Error;
+
+    /**
+     * Initializes the job.
+     *
+     * @param id	the ID
+     * @param generator	the configured generator
+     */
+    public Job(String id, Generator generator) {
+      m_ID        = id;
+      m_Generator = generator;
+      m_Status    = Status.QUEUED;
+      m_Submitted = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the ID.
+     *
+     * @return		the ID
+     */
+    public String getID() {
+      return m_ID;
+    }
+
+    /**
+     * Returns the configured generator.
+     *
+     * @return		the generator
+     */
+    public Generator getGenerator() {
+      return m_Generator;
+    }
+
+    /**
+     * Returns the configuration of the generator.
+     *
+     * @return		the configuration
+     */
+    public GeneratorConfig getConfig() {
+      return m_Generator.getConfig();
+    }
+
+    /**
+     * Returns the result of the generator.
+     *
+     * @return		the result, null if not run yet
+     */
+    public synchronized GeneratorResult getResult() {
+      return m_Result;
+    }
+
+    /**
+     * Returns the status.
+     *
+     * @return		the status
+     */
+    public Status getStatus() {
+      return m_Status;
+    }
+
+    /**
+     * Returns the error.
+     *
+     * @return		the error, null if none
+     */
+    public String getError() {
+      return m_Error;
+    }
+
+    /**
+     * Returns the job as map.
+     *
+     * @return		the map
+     */
+    public synchronized Map<String,Object> toMap() {
+      Map<String,Object>	result;
+
+      result = new LinkedHashMap<>();
+      result.put("id", m_ID);
+      result.put("status", m_Status.toString().toLowerCase());
+      result.put("input", getConfig().getInput().getAbsolutePath());
+      result.put("output_dir", getConfig().getOutputDir().getAbsolutePath());
+      result.put("submitted", m_Submitted);
+      if (m_Started > 0) {
+	result.put("queued_ms", m_Started - m_Submitted);
+	result.put("started", m_Started);
+      }
+      if (m_Finished > 0) {
+	result.put("run_ms", m_Finished - m_Started);
+	result.put("finished", m_Finished);
+      }
+      if (m_Error != null)
+	result.put("error", m_Error);
+
+      return result;
+    }
+  }
+
+  /** the port to listen on. */
+  protected int m_Port;
+
+  /** the address to bind to. */
+  protected String m_Address;
+
+  /** the number of concurrent jobs. */
+  protected int m_NumThreads;
+
+  /** the maximum number of queued jobs. */
+  protected int m_QueueSize;
+
+  /** the directory for caching the resolved libraries. */
+  protected File m_CacheDir;
+
+  /** the maximum size of the cache in MB. */
+  protected int m_CacheMaxSize;
+
+  /** the directory for the jobs without output directory. */
+  protected File m_WorkDir;
+
+  /** how to stage the jars from the cache. */
+  protected FileStager.Strategy m_Staging;
+
+  /** the local maven repository to use. */
+  protected File m_LocalRepository;
+
+  /** whether to run maven in offline mode. */
+  protected boolean m_Offline;
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /** whether help got requested. */
+  protected boolean m_HelpRequested;
+
+  /** the generated maven settings (local repository/offline). */
+  protected transient File m_MavenSettings;
+
+  /** the jobs. */
+  protected transient Map<String,Job> m_Jobs;
+
+  /** library key -&gt; resolution of the first job with these libraries. */
+  protected transient Map<String,CompletableFuture<String>> m_Resolutions;
+
+  /** for executing the jobs. */
+  protected transient ThreadPoolExecutor m_Executor;
+
+  /** the HTTP server. */
+  protected transient HttpServer m_Server;
+
+  /**
+   * Initializes the object.
+   */
+  public Server() {
+    initialize();
+  }
+
+  /**
+   * Initializes the members.
+   */
+  protected void initialize() {
+    m_Port            = DEFAULT_PORT;
+    m_Address         = DEFAULT_ADDRESS;
+    m_NumThreads      = Runtime.getRuntime().availableProcessors();
+    m_QueueSize       = DEFAULT_QUEUE_SIZE;
+    m_CacheDir        = null;
+    m_CacheMaxSize    = 0;
+    m_WorkDir         = null;
+    m_Staging         = FileStager.Strategy.AUTO;
+    m_LocalRepository = null;
+    m_Offline         = false;
+    m_HelpRequested   = false;
+    m_MavenSettings   = null;
+    m_Jobs            = new LinkedHashMap<>();
+    m_Resolutions     = new ConcurrentHashMap<>();
+    m_Executor        = null;
+    m_Server          = null;
+  }
+
+  /**
+   * Returns the logger instance to use.
+   *
+   * @return		the logger
+   */
+  protected Logger getLogger() {
+    if (m_Logger == null)
+      m_Logger = Logger.getLogger(getClass().getName());
+    return m_Logger;
+  }
+
+  /**
+   * Sets the port to listen on.
+   *
+   * @param port	the port
+   * @return		itself
+   */
+  public Server port(int port) {
+    m_Port = port;
+    return this;
+  }
+
+  /**
+   * Returns the port to listen on.
+   *
+   * @return		the port
+   */
+  public int getPort() {
+    return m_Port;
+  }
+
+  /**
+   * Sets the address to bind to.
+   *
+   * @param address	the address
+   * @return		itself
+   */
+  public Server address(String address) {
+    if (address == null)
+      address = DEFAULT_ADDRESS;
+    m_Address = address;
+    return this;
+  }
+
+  /**
+   * Returns the address to bind to.
+   *
+   * @return		the address
+   */
+  public String getAddress() {
+    return m_Address;
+  }
+
+  /**
+   * Sets the number of jobs to run concurrently.
+   *
+   * @param num		the number of threads, &lt;= 0 for number of available processors
+   * @return		itself
+   */
+  public Server numThreads(int num) {
+    if (num <= 0)
+      num = Runtime.getRuntime().availableProcessors();
+    m_NumThreads = num;
+    return this;
+  }
+
+  /**
+   * Returns the number of jobs to run concurrently.
+   *
+   * @return		the number of threads
+   */
+  public int getNumThreads() {
+    return m_NumThreads;
+  }
+
+  /**
+   * Sets the maximum number of jobs waiting to be run.
+   *
+   * @param size	the size of the queue, &lt;= 0 for default
+   * @return		itself
+   */
+  public Server queueSize(int size) {
+    if (size <= 0)
+      size = DEFAULT_QUEUE_SIZE;
+    m_QueueSize = size;
+    return this;
+  }
+
+  /**
+   * Returns the maximum number of jobs waiting to be run.
+   *
+   * @return		the size of the queue
+   */
+  public int getQueueSize() {
+    return m_QueueSize;
+  }
+
+  /**
+   * Sets the directory for caching the resolved libraries, used by all
+   * jobs.
+   *
+   * @param dir		the directory
+   * @return		itself
+   */
+  public Server cacheDir(File dir) {
+    m_CacheDir = dir;
+    return this;
+  }
+
+  /**
+   * Returns the directory for caching the resolved libraries.
+   *
+   * @return		the directory
+   */
+  public File getCacheDir() {
+    return m_CacheDir;
+  }
+
+  /**
+   * Sets the maximum size of the cache.
+   *
+   * @param size	the size in MB, &lt;= 0 for unlimited
+   * @return		itself
+   */
+  public Server cacheMaxSize(int size) {
+    m_CacheMaxSize = size;
+    return this;
+  }
+
+  /**
+   * Returns the maximum size of the cache.
+   *
+   * @return		the size in MB, &lt;= 0 for unlimited
+   */
+  public int getCacheMaxSize() {
+    return m_CacheMaxSize;
+  }
+
+  /**
+   * Sets the directory for the jobs: the paths of the jobs are relative to
+   * it, it contains the output of jobs that don't specify an output
+   * directory (and flows supplied as string).
+   *
+   * @param dir		the directory
+   * @return		itself
+   */
+  public Server workDir(File dir) {
+    m_WorkDir = dir;
+    return this;
+  }
+
+  /**
+   * Returns the directory for the jobs.
+   *
+   * @return		the directory
+   */
+  public File getWorkDir() {
+    return m_WorkDir;
+  }
+
+  /**
+   * Sets how to stage the jars from the cache, used by jobs that don't
+   * specify a strategy themselves.
+   *
+   * @param staging	the strategy
+   * @return		itself
+   */
+  public Server staging(FileStager.Strategy staging) {
+    if (staging == null)
+      staging = FileStager.Strategy.AUTO;
+    m_Staging = staging;
+    return this;
+  }
+
+  /**
+   * Returns how to stage the jars from the cache.
+   *
+   * @return		the strategy
+   */
+  public FileStager.Strategy getStaging() {
+    return m_Staging;
+  }
+
+  /**
+   * Sets the local maven repository to use.
+   *
+   * @param dir		the repository, null for the default one
+   * @return		itself
+   */
+  public Server localRepository(File dir) {
+    m_LocalRepository = dir;
+    return this;
+  }
+
+  /**
+   * Returns the local maven repository to use.
+   *
+   * @return		the repository, null for the default one
+   */
+  public File getLocalRepository() {
+    return m_LocalRepository;
+  }
+
+  /**
+   * Sets whether to run maven in offline mode, i.e., only using the local
+   * maven repository.
+   *
+   * @param offline	true if offline
+   * @return		itself
+   */
+  public Server offline(boolean offline) {
+    m_Offline = offline;
+    return this;
+  }
+
+  /**
+   * Returns whether to run maven in offline mode.
+   *
+   * @return		true if offline
+   */
+  public boolean getOffline() {
+    return m_Offline;
+  }
+
+  /**
+   * Configures and returns the commandline parser.
+   *
+   * @return		the parser
+   */
+  protected ArgumentParser getParser() {
+    ArgumentParser 		parser;
+
+    parser = new ArgumentParser("Local HTTP service for converting ADAMS workflows into Docker images.");
+    parser.addOption("-p", "--port")
+      .required(false)
+      .type(Type.INTEGER)
+      .setDefault(DEFAULT_PORT)
+      .dest("port")
+      .help("The port to listen on.");
+    parser.addOption("-a", "--address")
+      .required(false)
+      .setDefault(DEFAULT_ADDRESS)
+      .dest("address")
+      .help("The address to bind to.");
+    parser.addOption("-t", "--threads")
+      .required(false)
+      .type(Type.INTEGER)
+      .setDefault(-1)
+      .dest("threads")
+      .help("The number of jobs to run concurrently; <= 0 for number of available processors.");
+    parser.addOption("-q", "--queue_size")
+      .required(false)
+      .type(Type.INTEGER)
+      .setDefault(DEFAULT_QUEUE_SIZE)
+      .dest("queue_size")
+      .help("The maximum number of jobs waiting to be run, further submissions get rejected (HTTP 503).");
+    parser.addOption("-c", "--cache_dir")
+      .required(true)
+      .type(Type.DIRECTORY)
+      .dest("cache_dir")
+      .help("The directory for caching the resolved libraries, used by all jobs.");
+    parser.addOption("-C", "--cache_max_size")
+      .required(false)
+      .type(Type.INTEGER)
+      .setDefault(0)
+      .dest("cache_max_size")
+      .metaVar("MB")
+      .help("The maximum size of the cache in MB, least recently used entries get evicted when exceeded; <= 0 for unlimited.");
+    parser.addOption("-w", "--work_dir")
+      .required(true)
+      .type(Type.DIRECTORY)
+      .dest("work_dir")
+      .help("The directory for the jobs, which their paths are relative to; contains the output of jobs that don't specify an output directory and flows supplied as string.");
+    parser.addOption("-s", "--staging")
+      .required(false)
+      .setDefault(FileStager.Strategy.AUTO.toString().toLowerCase())
+      .dest("staging")
+      .metaVar("STRATEGY")
+      .help("How to stage the jars from the cache for jobs that don't specify a strategy: copy, hardlink, reflink or auto.");
+    parser.addOption("-r", "--local_repository")
+      .required(false)
+      .type(Type.DIRECTORY)
+      .dest("local_repository")
+      .help("The local maven repository to use for the jobs.");
+    parser.addOption("-O", "--offline")
+      .type(Type.BOOLEAN)
+      .setDefault(false)
+      .dest("offline")
+      .help("If enabled, maven runs in offline mode, i.e., only uses the local maven repository.")
+      .argument(false);
+
+    return parser;
+  }
+
+  /**
+   * Sets the parsed options.
+   *
+   * @param ns		the parsed options
+   * @return		if successfully set
+   */
+  protected boolean setOptions(Namespace ns) {
+    port(ns.getInt("port"));
+    address(ns.getString("address"));
+    numThreads(ns.getInt("threads"));
+    queueSize(ns.getInt("queue_size"));
+    cacheDir(ns.getFile("cache_dir"));
+    cacheMaxSize(ns.getInt("cache_max_size"));
+    workDir(ns.getFile("work_dir"));
+    localRepository(ns.getFile("local_repository"));
+    offline(ns.getBoolean("offline"));
+    try {
+      staging(FileStager.Strategy.valueOf(ns.getString("staging").toUpperCase()));
+    }
+    catch (Exception e) {
+      getLogger().severe("Invalid staging strategy: " + ns.getString("staging"));
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns whether help got requested when setting the options.
+   *
+   * @return		true if help got requested
+   */
+  public boolean getHelpRequested() {
+    return m_HelpRequested;
+  }
+
+  /**
+   * Parses the options and configures the object.
+   *
+   * @param options	the command-line options
+   * @return		true if successfully set (or help requested)
+   */
+  public boolean setOptions(String[] options) {
+    ArgumentParser 	parser;
+    Namespace 		ns;
+
+    m_HelpRequested = false;
+    parser          = getParser();
+    try {
+      ns = parser.parseArgs(options);
+    }
+    catch (ArgumentParserException e) {
+      parser.handleError(e);
+      m_HelpRequested = parser.getHelpRequested();
+      return m_HelpRequested;
+    }
+
+    return setOptions(ns);
+  }
+
+  /**
+   * Writes the maven settings for the local repository and offline mode, if
+   * necessary.
+   *
+   * @return		null if successful, otherwise error message
+   */
+  protected String initMavenSettings() {
+    List<String>	lines;
+
+    m_MavenSettings = null;
+    if ((m_LocalRepository == null) && !m_Offline)
+      return null;
+
+    lines = new ArrayList<>();
+    lines.add("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+    lines.add("<settings xmlns=\"http://maven.apache.org/SETTINGS/1.0.0\">");
+    if (m_LocalRepository != null)
+      lines.add("  <localRepository>" + m_LocalRepository.getAbsolutePath().replace("&", "&amp;").replace("<", "&lt;") + "</localRepository>");
+    lines.add("  <offline>" + m_Offline + "</offline>");
+    lines.add("</settings>");
+    m_MavenSettings = new File(m_WorkDir.getAbsolutePath() + "/settings.xml");
+    try {
+      Files.write(m_MavenSettings.toPath(), lines, StandardCharsets.UTF_8);
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to write maven settings: " + m_MavenSettings, e);
+      return "Failed to write maven settings: " + m_MavenSettings;
+    }
+
+    return null;
+  }
+
+  /**
+   * Resolves the path of an option within the work directory.
+   *
+   * @param key		the option
+   * @param path	the path to resolve, relative to the work directory
+   * @param resolved	for storing the absolute path
+   * @return		null if successful, otherwise error message
+   */
+  protected String resolvePath(String key, String path, String[] resolved) {
+    Path	workDir;
+    Path	file;
+    Path	existing;
+
+    workDir = m_WorkDir.getAbsoluteFile().toPath().normalize();
+    if (new File(path).isAbsolute())
+      return "Path of option '" + key + "' must be relative to the work directory: " + path;
+    file = workDir.resolve(path).normalize();
+    if (!file.startsWith(workDir) || file.equals(workDir))
+      return "Path of option '" + key + "' must be located within the work directory: " + path;
+    if ((m_MavenSettings != null) && file.equals(m_MavenSettings.getAbsoluteFile().toPath().normalize()))
+      return "Path of option '" + key + "' is reserved: " + path;
+
+    // symbolic links must not lead outside the work directory either
+    existing = file;
+    while (!Files.exists(existing, LinkOption.NOFOLLOW_LINKS))
+      existing = existing.getParent();
+    try {
+      if (!existing.toRealPath().startsWith(workDir.toRealPath()))
+	return "Path of option '" + key + "' must be located within the work directory: " + path;
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to resolve path of option '" + key + "': " + path, e);
+      return "Failed to resolve path of option '" + key + "': " + path;
+    }
+
+    resolved[0] = file.toString();
+    return null;
+  }
+
+  /**
+   * Adds the option with its value, resolving paths within the work
+   * directory.
+   *
+   * @param key		the option
+   * @param value	the value
+   * @param options	the list to add the option to
+   * @return		null if successful, otherwise error message
+   */
+  protected String addOption(String key, Object value, List<String> options) {
+    String[]	resolved;
+    String	msg;
+
+    if ((value instanceof Map) || (value instanceof List))
+      return "Unsupported value for option '" + key + "': " + JsonUtils.toJson(value);
+
+    resolved = new String[]{"" + value};
+    if (Arrays.asList(PATH_OPTIONS).contains(key)) {
+      if ((msg = resolvePath(key, "" + value, resolved)) != null)
+	return msg;
+    }
+    options.add("--" + key);
+    options.add(resolved[0]);
+
+    return null;
+  }
+
+  /**
+   * Turns the JSON object of the job into command-line options for
+   * {@link Main}. Only the options in {@link #OPTIONS} and
+   * {@link #PATH_OPTIONS} are accepted; the cache and maven get configured
+   * by the server.
+   *
+   * @param id		the ID of the job
+   * @param json	the job
+   * @param options	the list to add the options to
+   * @return		null if successful, otherwise error message
+   */
+  protected String toOptions(String id, Map<String,Object> json, List<String> options) {
+    Object	value;
+    File	flow;
+    String	msg;
+
+    for (String key : json.keySet()) {
+      value = json.get(key);
+      if (key.equals("flow")) {
+	flow = getFlowFile(id);
+	try {
+	  Files.write(flow.toPath(), ("" + value).getBytes(StandardCharsets.UTF_8));
+	}
+	catch (Exception e) {
+	  getLogger().log(Level.SEVERE, "Failed to write flow: " + flow, e);
+	  return "Failed to write flow: " + flow;
+	}
+	options.add("--input");
+	options.add(flow.getAbsolutePath());
+      }
+      else if (!Arrays.asList(OPTIONS).contains(key) && !Arrays.asList(PATH_OPTIONS).contains(key)) {
+	return "Unsupported option: " + key;
+      }
+      else if (value instanceof Boolean) {
+	if ((Boolean) value)
+	  options.add("--" + key);
+      }
+      else if (value instanceof List) {
+	for (Object item : (List<?>) value) {
+	  if ((msg = addOption(key, item, options)) != null)
+	    return msg;
+	}
+      }
+      else if (value != null) {
+	if ((msg = addOption(key, value, options)) != null)
+	  return msg;
+      }
+    }
+
+    // server defaults
+    if (!json.containsKey("output_dir")) {
+      options.add("--output_dir");
+      options.add(m_WorkDir.getAbsolutePath() + "/" + id);
+    }
+    options.add("--cache_dir");
+    options.add(m_CacheDir.getAbsolutePath());
+    options.add("--cache_max_size");
+    options.add("" + m_CacheMaxSize);
+    if (!json.containsKey("staging")) {
+      options.add("--staging");
+      options.add(m_Staging.toString().toLowerCase());
+    }
+    // the jobs already run concurrently
+    if (!json.containsKey("phase_threads")) {
+      options.add("--phase_threads");
+      options.add("1");
+    }
+    if (m_MavenSettings != null) {
+      options.add("--maven_user_settings");
+      options.add(m_MavenSettings.getAbsolutePath());
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns the file for the flow supplied as string.
+   *
+   * @param id		the ID of the job
+   * @return		the file
+   */
+  protected File getFlowFile(String id) {
+    return new File(m_WorkDir.getAbsolutePath() + "/" + id + ".flow");
+  }
+
+  /**
+   * Creates the job from the JSON object.
+   *
+   * @param body	the JSON object
+   * @param job		for storing the job
+   * @return		null if successful, otherwise error message
+   */
+  protected String createJob(String body, Job[] job) {
+    Map<String,Object>	json;
+    List<String>	options;
+    String		id;
+    Main		main;
+    String		msg;
+
+    try {
+      json = JsonUtils.parseObject(body);
+    }
+    catch (Exception e) {
+      return "Invalid JSON: " + e.getMessage();
+    }
+
+    id      = UUID.randomUUID().toString();
+    options = new ArrayList<>();
+    main    = new Main();
+    msg     = toOptions(id, json, options);
+    if ((msg == null) && (!main.setOptions(options.toArray(new String[0])) || main.getHelpRequested()))
+      msg = "Failed to parse options: " + String.join(" ", options);
+    if (msg == null)
+      msg = main.checkOptions();
+    if ((msg == null) && main.getWatch())
+      msg = "Watch mode is not supported by the server!";
+    if ((msg == null) && main.hasVariants())
+      msg = "Variants are not supported by the server!";
+    if ((msg == null) && !main.getOutputDir().exists() && !main.getOutputDir().mkdirs())
+      msg = "Failed to create output directory: " + main.getOutputDir();
+
+    if (msg != null) {
+      // remove flow supplied as string
+      getFlowFile(id).delete();
+      return msg;
+    }
+
+    job[0] = new Job(id, new Generator(main.toConfig()));
+    return null;
+  }
+
+  /**
+   * Resolves the libraries of the job. Only the first job for a set of
+   * libraries resolves them, concurrent jobs wait for it and then restore
+   * them from the cache.
+   *
+   * @param job		the job
+   * @param result	for storing the result of the generator
+   * @return		null if successful, otherwise error message
+   */
+  protected String resolve(Job job, GeneratorResult[] result) {
+    GeneratorConfig		config;
+    String			key;
+    CompletableFuture<String>	own;
+    CompletableFuture<String>	first;
+    String			msg;
+
+    config = job.getConfig();
+    try {
+      key = BootstrapCache.computeKey(config.getModules(), config.getVersion(), config.getDependencies(), config.getDependencyFiles(), config.getExternalJars());
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to determine dependencies of job: " + job.getID(), e);
+      return "Failed to determine dependencies of job: " + job.getID();
+    }
+
+    own   = new CompletableFuture<>();
+    first = m_Resolutions.putIfAbsent(key, own);
+    if ((first != null) && !first.isDone())
+      first.join();
+
+    result[0] = job.getGenerator().resolveLibraries();
+    msg       = result[0].getError();
+    if (first == null) {
+      // failed resolutions can be retried by later jobs
+      if (msg != null)
+	m_Resolutions.remove(key);
+      own.complete(msg);
+    }
+
+    return msg;
+  }
+
+  /**
+   * Runs the job.
+   *
+   * @param job		the job to run
+   */
+  protected void run(Job job) {
+    GeneratorResult[]	generated;
+    String		result;
+
+    synchronized (job) {
+      job.m_Status  = Status.RUNNING;
+      job.m_Started = System.currentTimeMillis();
+    }
+    generated = new GeneratorResult[1];
+    result    = resolve(job, generated);
+    if (result == null) {
+      generated[0] = job.getGenerator().generate(generated[0]);
+      result       = generated[0].getError();
+    }
+    synchronized (job) {
+      job.m_Result   = generated[0];
+      job.m_Error    = result;
+      job.m_Finished = System.currentTimeMillis();
+      job.m_Status   = (result == null) ? Status.FINISHED : Status.FAILED;
+    }
+    if (result != null)
+      getLogger().warning("Job " + job.getID() + " failed: " + result);
+    else
+      getLogger().info("Job " + job.getID() + " finished: " + job.getConfig().getOutputDir());
+  }
+
+  /**
+   * Deletes the file, unless it is still used by one of the jobs.
+   *
+   * @param file	the file/dir to delete, ignored if null
+   * @param used	the files of the remaining jobs
+   */
+  protected void delete(File file, Set<File> used) {
+    Path	path;
+    Path	other;
+
+    if (file == null)
+      return;
+    // nested outputs count as used as well
+    path = file.getAbsoluteFile().toPath().normalize();
+    for (File u : used) {
+      other = u.toPath().normalize();
+      if (path.startsWith(other) || other.startsWith(path))
+	return;
+    }
+    if (!FileUtils.delete(file))
+      getLogger().warning("Failed to delete: " + file);
+  }
+
+  /**
+   * Deletes the files of the evicted job from the work directory (flow
+   * supplied as string, output directory, OCI image layout, context archive),
+   * unless they are used by one of the remaining jobs. Must be called with
+   * the lock on the jobs.
+   *
+   * @param job		the evicted job
+   */
+  protected void cleanUp(Job job) {
+    Set<File>		used;
+    GeneratorConfig	config;
+
+    used = new HashSet<>();
+    for (Job j : m_Jobs.values()) {
+      used.add(j.getConfig().getOutputDir().getAbsoluteFile());
+      if (j.getConfig().getOciOutput() != null)
+	used.add(j.getConfig().getOciOutput().getAbsoluteFile());
+      if (j.getConfig().getContextTar() != null)
+	used.add(j.getConfig().getContextTar().getAbsoluteFile());
+    }
+
+    config = job.getConfig();
+    delete(getFlowFile(job.getID()), used);
+    delete(config.getOutputDir(), used);
+    if (config.getOciOutput() != null) {
+      delete(OciImageWriter.getLayerCache(config.getOciOutput()), used);
+      delete(config.getOciOutput(), used);
+    }
+    delete(config.getContextTar(), used);
+  }
+
+  /**
+   * Submits the job.
+   *
+   * @param job		the job
+   * @return		true if submitted, false if the queue is full
+   */
+  protected boolean submit(Job job) {
+    Iterator<Job>	iter;
+    Job			current;
+    int			finished;
+
+    synchronized (m_Jobs) {
+      try {
+	m_Executor.execute(() -> run(job));
+      }
+      catch (RejectedExecutionException e) {
+	return false;
+      }
+      m_Jobs.put(job.getID(), job);
+
+      // remove oldest finished jobs
+      finished = 0;
+      for (Job j : m_Jobs.values()) {
+	if ((j.getStatus() == Status.FINISHED) || (j.getStatus() == Status.FAILED))
+	  finished++;
+      }
+      iter = m_Jobs.values().iterator();
+      while ((finished > MAX_FINISHED) && iter.hasNext()) {
+	current = iter.next();
+	if ((current.getStatus() == Status.FINISHED) || (current.getStatus() == Status.FAILED)) {
+	  iter.remove();
+	  cleanUp(current);
+	  finished--;
+	}
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Sends the response.
+   *
+   * @param exchange	the exchange to respond to
+   * @param code	the HTTP status code
+   * @param type	the content type
+   * @param content	the content
+   * @throws Exception	if sending fails
+   */
+  protected void send(HttpExchange exchange, int code, String type, String content) throws Exception {
+    byte[]	data;
+
+    data = content.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", type);
+    exchange.sendResponseHeaders(code, data.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(data);
+    }
+  }
+
+  /**
+   * Sends the value as JSON.
+   *
+   * @param exchange	the exchange to respond to
+   * @param code	the HTTP status code
+   * @param value	the value to send
+   * @throws Exception	if sending fails
+   */
+  protected void sendJson(HttpExchange exchange, int code, Object value) throws Exception {
+    send(exchange, code, "application/json", JsonUtils.toJson(value) + "\n");
+  }
+
+  /**
+   * Sends the error as JSON.
+   *
+   * @param exchange	the exchange to respond to
+   * @param code	the HTTP status code
+   * @param error	the error message
+   * @throws Exception	if sending fails
+   */
+  protected void sendError(HttpExchange exchange, int code, String error) throws Exception {
+    Map<String,Object>	result;
+
+    result = new LinkedHashMap<>();
+    result.put("error", error);
+    sendJson(exchange, code, result);
+  }
+
+  /**
+   * Returns the result of the finished job.
+   *
+   * @param job		the job
+   * @return		the result
+   */
+  protected Map<String,Object> getResult(Job job) {
+    Map<String,Object>	result;
+    GeneratorResult	generated;
+
+    result    = job.toMap();
+    generated = job.getResult();
+    if (generated != null) {
+      if (generated.getDockerFileContent() != null)
+	result.put("dockerfile", generated.getDockerFileContent());
+      result.put("metrics", generated.getMetrics().toMap());
+      result.put("warnings", generated.getWarnings());
+    }
+
+    return result;
+  }
+
+  /**
+   * Handles the job requests.
+   *
+   * @param exchange	the exchange to handle
+   * @throws Exception	if handling fails
+   */
+  protected void handleJobs(HttpExchange exchange) throws Exception {
+    String		path;
+    String[]		parts;
+    String		body;
+    Job[]		job;
+    String		msg;
+    List<Object>	jobs;
+
+    path  = exchange.getRequestURI().getPath().replaceAll("/+$", "");
+    parts = path.split("/");
+    job   = new Job[1];
+
+    // submit
+    if (path.equals("/jobs") && exchange.getRequestMethod().equals("POST")) {
+      try (InputStream in = exchange.getRequestBody()) {
+	body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+      }
+      if ((msg = createJob(body, job)) != null) {
+	sendError(exchange, 400, msg);
+	return;
+      }
+      if (!submit(job[0])) {
+	sendError(exchange, 503, "Queue is full (" + m_QueueSize + " jobs)!");
+	return;
+      }
+      sendJson(exchange, 202, job[0].toMap());
+      return;
+    }
+
+    if (!exchange.getRequestMethod().equals("GET")) {
+      sendError(exchange, 405, "Unsupported method: " + exchange.getRequestMethod());
+      return;
+    }
+
+    // list
+    if (path.equals("/jobs")) {
+      jobs = new ArrayList<>();
+      synchronized (m_Jobs) {
+	for (Job j : m_Jobs.values())
+	  jobs.add(j.toMap());
+      }
+      sendJson(exchange, 200, jobs);
+      return;
+    }
+
+    // status/result
+    if ((parts.length >= 3) && (parts.length <= 4)) {
+      synchronized (m_Jobs) {
+	job[0] = m_Jobs.get(parts[2]);
+      }
+      if (job[0] == null) {
+	sendError(exchange, 404, "Unknown job: " + parts[2]);
+	return;
+      }
+      if (parts.length == 3) {
+	sendJson(exchange, 200, job[0].toMap());
+	return;
+      }
+      if (parts[3].equals("result")) {
+	if (job[0].getStatus() == Status.FINISHED)
+	  sendJson(exchange, 200, getResult(job[0]));
+	else if (job[0].getStatus() == Status.FAILED)
+	  sendJson(exchange, 500, getResult(job[0]));
+	else
+	  sendError(exchange, 409, "Job not finished yet: " + job[0].getStatus().toString().toLowerCase());
+	return;
+      }
+    }
+
+    sendError(exchange, 404, "Unknown path: " + path);
+  }
+
+  /**
+   * Handles the health requests.
+   *
+   * @param exchange	the exchange to handle
+   * @throws Exception	if handling fails
+   */
+  protected void handleHealth(HttpExchange exchange) throws Exception {
+    Map<String,Object>	result;
+
+    result = new LinkedHashMap<>();
+    result.put("status", "ok");
+    result.put("threads", m_NumThreads);
+    result.put("running", m_Executor.getActiveCount());
+    result.put("queued", m_Executor.getQueue().size());
+    result.put("queue_size", m_QueueSize);
+    sendJson(exchange, 200, result);
+  }
+
+  /**
+   * Starts the server.
+   *
+   * @return		null if successful, otherwise error message
+   */
+  public String start() {
+    String	msg;
+
+    if (!m_WorkDir.exists() && !m_WorkDir.mkdirs())
+      return "Failed to create work directory: " + m_WorkDir;
+    if ((msg = initMavenSettings()) != null)
+      return msg;
+
+    m_Executor = new ThreadPoolExecutor(m_NumThreads, m_NumThreads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(m_QueueSize));
+    try {
+      m_Server = HttpServer.create(new InetSocketAddress(m_Address, m_Port), 0);
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to start server on " + m_Address + ":" + m_Port, e);
+      m_Executor.shutdownNow();
+      return "Failed to start server on " + m_Address + ":" + m_Port;
+    }
+    m_Server.createContext("/jobs", (HttpExchange exchange) -> {
+      try {
+	handleJobs(exchange);
+      }
+      catch (Exception e) {
+	getLogger().log(Level.SEVERE, "Failed to handle request: " + exchange.getRequestURI(), e);
+	exchange.close();
+      }
+    });
+    m_Server.createContext("/health", (HttpExchange exchange) -> {
+      try {
+	handleHealth(exchange);
+      }
+      catch (Exception e) {
+	getLogger().log(Level.SEVERE, "Failed to handle request: " + exchange.getRequestURI(), e);
+	exchange.close();
+      }
+    });
+    m_Server.start();
+    getLogger().info("Listening on " + m_Address + ":" + m_Server.getAddress().getPort());
+
+    return null;
+  }
+
+  /**
+   * Stops the server, waiting for running jobs to finish.
+   */
+  public void stop() {
+    if (m_Server != null) {
+      m_Server.stop(0);
+      m_Server = null;
+    }
+    if (m_Executor != null) {
+      m_Executor.shutdown();
+      try {
+	m_Executor.awaitTermination(1, TimeUnit.MINUTES);
+      }
+      catch (InterruptedException e) {
+	// ignored
+      }
+      m_Executor = null;
+    }
+  }
+
+  /**
+   * Starts the server with the specified command-line arguments.
+   *
+   * @param args	the options to use
+   */
+  public static void main(String[] args) {
+    Server server = new Server();
+
+    if (!server.setOptions(args)) {
+      System.err.println("Failed to parse options!");
+      System.exit(1);
+    }
+    else if (server.getHelpRequested()) {
+      System.exit(0);
+    }
+
+    String result = server.start();
+    if (result != null) {
+      System.err.println("Failed to start server:\n" + result);
+      System.exit(2);
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+  }
+}
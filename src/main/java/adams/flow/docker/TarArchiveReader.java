@@ -0,0 +1,289 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * TarArchiveReader.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sequentially reads the entries of a tar archive (ustar/PAX/GNU long
+ * names). The data of the current entry can be read with {@link #read}.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class TarArchiveReader {
+
+  /**
+   * An entry of the archive.
+   */
+  public static class Entry {
+
+    /** the name. */
+    protected String m_Name;
+
+    /** the size. */
+    protected long m_Size;
+
+    /** the type flag. */
+    protected char m_Type;
+
+    /**
+     * Returns the name.
+     *
+     * @return		the name
+     */
+    public String getName() {
+      return m_Name;
+    }
+
+    /**
+     * Returns the size.
+     *
+     * @return		the size in bytes
+     */
+    public long getSize() {
+      return m_Size;
+    }
+
+    /**
+     * Returns whether the entry is a regular file.
+     *
+     * @return		true if a file
+     */
+    public boolean isFile() {
+      return (m_Type == '0') || (m_Type == 0);
+    }
+  }
+
+  /** the stream to read from. */
+  protected DataInputStream m_Input;
+
+  /** the remaining bytes of the current entry. */
+  protected long m_Remaining;
+
+  /** the padding after the current entry. */
+  protected long m_Padding;
+
+  /**
+   * Initializes the reader.
+   *
+   * @param in		the stream to read from
+   */
+  public TarArchiveReader(InputStream in) {
+    m_Input     = new DataInputStream(in);
+    m_Remaining = 0;
+    m_Padding   = 0;
+  }
+
+  /**
+   * Extracts the NUL-terminated string from the header.
+   *
+   * @param header	the header
+   * @param offset	the offset of the field
+   * @param length	the length of the field
+   * @return		the string
+   */
+  protected static String getString(byte[] header, int offset, int length) {
+    int		end;
+
+    end = offset;
+    while ((end < offset + length) && (header[end] != 0))
+      end++;
+
+    return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Extracts the octal number from the header.
+   *
+   * @param header	the header
+   * @param offset	the offset of the field
+   * @param length	the length of the field
+   * @return		the number
+   */
+  protected static long getOctal(byte[] header, int offset, int length) {
+    String	value;
+
+    value = getString(header, offset, length).trim();
+    if (value.isEmpty())
+      return 0;
+
+    return Long.parseLong(value, 8);
+  }
+
+  /**
+   * Reads the remaining data of the current entry completely.
+   *
+   * @return		the data
+   * @throws IOException	if reading fails
+   */
+  protected byte[] readFully() throws IOException {
+    byte[]	result;
+
+    result = new byte[(int) m_Remaining];
+    m_Input.readFully(result);
+    m_Remaining = 0;
+
+    return result;
+  }
+
+  /**
+   * Skips the remaining data and padding of the current entry.
+   *
+   * @throws IOException	if skipping fails
+   */
+  protected void skipEntry() throws IOException {
+    long	toSkip;
+
+    toSkip = m_Remaining + m_Padding;
+    while (toSkip > 0)
+      toSkip -= m_Input.skip(toSkip);
+    m_Remaining = 0;
+    m_Padding   = 0;
+  }
+
+  /**
+   * Moves to the next entry.
+   *
+   * @return		the entry, null if end of archive
+   * @throws IOException	if reading fails
+   */
+  public Entry next() throws IOException {
+    Entry	result;
+    byte[]	header;
+    String	longName;
+    String	prefix;
+    String	pax;
+    boolean	empty;
+
+    skipEntry();
+    longName = null;
+    while (true) {
+      header = new byte[TarArchiveWriter.BLOCK];
+      try {
+	m_Input.readFully(header);
+      }
+      catch (java.io.EOFException e) {
+	return null;
+      }
+      empty = true;
+      for (byte b : header) {
+	if (b != 0) {
+	  empty = false;
+	  break;
+	}
+      }
+      if (empty)
+	return null;
+
+      result = new Entry();
+      result.m_Type = (char) header[156];
+      result.m_Size = getOctal(header, 124, 12);
+      prefix        = getString(header, 345, 155);
+      result.m_Name = prefix.isEmpty() ? getString(header, 0, 100) : prefix + "/" + getString(header, 0, 100);
+      m_Remaining   = result.m_Size;
+      m_Padding     = (TarArchiveWriter.BLOCK - (result.m_Size % TarArchiveWriter.BLOCK)) % TarArchiveWriter.BLOCK;
+
+      // GNU long name
+      if (result.m_Type == 'L') {
+	longName = new String(readFully(), StandardCharsets.UTF_8).trim();
+	skipEntry();
+	continue;
+      }
+      // PAX header
+      if ((result.m_Type == 'x') || (result.m_Type == 'g')) {
+	pax = new String(readFully(), StandardCharsets.UTF_8);
+	skipEntry();
+	for (String record : pax.split("\n")) {
+	  if (record.contains(" path="))
+	    longName = record.substring(record.indexOf(" path=") + 6);
+	}
+	continue;
+      }
+
+      if (longName != null)
+	result.m_Name = longName;
+      if (result.m_Name.startsWith("./"))
+	result.m_Name = result.m_Name.substring(2);
+      return result;
+    }
+  }
+
+  /**
+   * Reads data of the current entry.
+   *
+   * @param buffer	the buffer to read into
+   * @return		the number of bytes read, -1 if no more data
+   * @throws IOException	if reading fails
+   */
+  public int read(byte[] buffer) throws IOException {
+    return read(buffer, 0, buffer.length);
+  }
+
+  /**
+   * Reads data of the current entry.
+   *
+   * @param buffer	the buffer to read into
+   * @param off		the offset in the buffer
+   * @param len		the maximum number of bytes to read
+   * @return		the number of bytes read, -1 if no more data
+   * @throws IOException	if reading fails
+   */
+  public int read(byte[] buffer, int off, int len) throws IOException {
+    int		read;
+
+    if (m_Remaining <= 0)
+      return -1;
+    read = m_Input.read(buffer, off, (int) Math.min(len, m_Remaining));
+    if (read == -1)
+      throw new IOException("Unexpected end of archive!");
+    m_Remaining -= read;
+
+    return read;
+  }
+
+  /**
+   * Returns a stream for reading the data of the current entry. Closing the
+   * stream does not close the archive.
+   *
+   * @return		the stream
+   */
+  public InputStream getInputStream() {
+    return new InputStream() {
+      @Override
+      public int read() throws IOException {
+	byte[]	b;
+
+	b = new byte[1];
+	if (TarArchiveReader.this.read(b) == -1)
+	  return -1;
+	return b[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+	return TarArchiveReader.this.read(b, off, len);
+      }
+    };
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * TarArchiveWriter.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Streams files into a tar archive (ustar format, with PAX headers for long
+ * names). Ownership is always root and the modification time is fixed per
+ * archive, so that identical content results in identical archives.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class TarArchiveWriter {
+
+  /** the block size. */
+  public final static int BLOCK = 512;
+
+  /** the default mode for files. */
+  public final static int MODE_FILE = 0644;
+
+  /** the mode for executable files. */
+  public final static int MODE_EXECUTABLE = 0755;
+
+  /** the mode for directories. */
+  public final static int MODE_DIR = 0755;
+
+  /** the stream to write to. */
+  protected OutputStream m_Output;
+
+  /** the modification time to use (seconds since epoch). */
+  protected long m_ModTime;
+
+  /** the number of bytes written so far. */
+  protected long m_Written;
+
+  /**
+   * Initializes the writer.
+   *
+   * @param out		the stream to write to
+   * @param modTime	the modification time for all entries (seconds since epoch)
+   */
+  public TarArchiveWriter(OutputStream out, long modTime) {
+    m_Output  = out;
+    m_ModTime = modTime;
+    m_Written = 0;
+  }
+
+  /**
+   * Returns the number of bytes written so far.
+   *
+   * @return		the number of bytes
+   */
+  public long getWritten() {
+    return m_Written;
+  }
+
+  /**
+   * Writes the bytes to the output.
+   *
+   * @param data	the data to write
+   * @param off		the offset
+   * @param len		the number of bytes
+   * @throws IOException	if writing fails
+   */
+  protected void write(byte[] data, int off, int len) throws IOException {
+    m_Output.write(data, off, len);
+    m_Written += len;
+  }
+
+  /**
+   * Pads the output to the next block boundary.
+   *
+   * @param size	the size of the data that was written
+   * @throws IOException	if writing fails
+   */
+  protected void pad(long size) throws IOException {
+    int		rest;
+
+    rest = (int) (size % BLOCK);
+    if (rest > 0)
+      write(new byte[BLOCK - rest], 0, BLOCK - rest);
+  }
+
+  /**
+   * Stores the string in the header.
+   *
+   * @param header	the header
+   * @param offset	the offset of the field
+   * @param length	the length of the field
+   * @param value	the value to store
+   */
+  protected static void setString(byte[] header, int offset, int length, String value) {
+    byte[]	bytes;
+
+    bytes = value.getBytes(StandardCharsets.UTF_8);
+    System.arraycopy(bytes, 0, header, offset, Math.min(bytes.length, length));
+  }
+
+  /**
+   * Stores the number as zero-padded octal, terminated by NUL.
+   *
+   * @param header	the header
+   * @param offset	the offset of the field
+   * @param length	the length of the field (incl NUL)
+   * @param value	the value to store
+   */
+  protected static void setOctal(byte[] header, int offset, int length, long value) {
+    String	octal;
+
+    octal = Long.toOctalString(value);
+    while (octal.length() < length - 1)
+      octal = "0" + octal;
+    setString(header, offset, length - 1, octal);
+  }
+
+  /**
+   * Writes a header block.
+   *
+   * @param name	the name (max 100 bytes)
+   * @param prefix	the prefix (max 155 bytes)
+   * @param size	the size of the data
+   * @param mode	the mode
+   * @param type	the type flag
+   * @throws IOException	if writing fails
+   */
+  protected void writeHeader(String name, String prefix, long size, int mode, char type) throws IOException {
+    byte[]	header;
+    long	checksum;
+
+    header = new byte[BLOCK];
+    setString(header, 0, 100, name);
+    setOctal(header, 100, 8, mode);
+    setOctal(header, 108, 8, 0);
+    setOctal(header, 116, 8, 0);
+    setOctal(header, 124, 12, size);
+    setOctal(header, 136, 12, m_ModTime);
+    header[156] = (byte) type;
+    setString(header, 257, 6, "ustar");
+    setString(header, 263, 2, "00");
+    setString(header, 265, 32, "root");
+    setString(header, 297, 32, "root");
+    setString(header, 345, 155, prefix);
+
+    // checksum is computed with the checksum field filled with spaces
+    for (int i = 148; i < 156; i++)
+      header[i] = ' ';
+    checksum = 0;
+    for (byte b : header)
+      checksum += b & 0xff;
+    setOctal(header, 148, 7, checksum);
+    header[155] = ' ';
+
+    write(header, 0, BLOCK);
+  }
+
+  /**
+   * Writes the header(s) for the entry, using the ustar prefix or a PAX
+   * header for long names.
+   *
+   * @param path	the path in the archive
+   * @param size	the size of the data
+   * @param mode	the mode
+   * @param type	the type flag
+   * @throws IOException	if writing fails
+   */
+  protected void writeEntryHeader(String path, long size, int mode, char type) throws IOException {
+    byte[]	pax;
+    String	record;
+    int		len;
+    int		pos;
+
+    if (path.getBytes(StandardCharsets.UTF_8).length <= 100) {
+      writeHeader(path, "", size, mode, type);
+      return;
+    }
+
+    pos = path.lastIndexOf('/', path.length() - 2);
+    while (pos > 0) {
+      if ((pos <= 155) && (path.length() - pos - 1 <= 100) && (path.length() == path.getBytes(StandardCharsets.UTF_8).length)) {
+	writeHeader(path.substring(pos + 1), path.substring(0, pos), size, mode, type);
+	return;
+      }
+      pos = path.lastIndexOf('/', pos - 1);
+    }
+
+    // PAX record: "<len> path=<path>\n", with len including itself
+    record = " path=" + path + "\n";
+    len    = record.getBytes(StandardCharsets.UTF_8).length;
+    len   += Integer.toString(len + Integer.toString(len).length()).length();
+    pax    = (len + record).getBytes(StandardCharsets.UTF_8);
+    writeHeader("PaxHeader", "", pax.length, MODE_FILE, 'x');
+    write(pax, 0, pax.length);
+    pad(pax.length);
+    writeHeader(path.substring(0, Math.min(100, path.length())), "", size, mode, type);
+  }
+
+  /**
+   * Adds a directory entry.
+   *
+   * @param path	the path in the archive (without trailing slash)
+   * @throws IOException	if writing fails
+   */
+  public void addDirectory(String path) throws IOException {
+    writeEntryHeader(path + "/", 0, MODE_DIR, '5');
+  }
+
+  /**
+   * Adds the data as file.
+   *
+   * @param path	the path in the archive
+   * @param data	the content
+   * @param mode	the mode
+   * @throws IOException	if writing fails
+   */
+  public void addFile(String path, byte[] data, int mode) throws IOException {
+    writeEntryHeader(path, data.length, mode, '0');
+    write(data, 0, data.length);
+    pad(data.length);
+  }
+
+  /**
+   * Streams the file into the archive.
+   *
+   * @param path	the path in the archive
+   * @param file	the file to add
+   * @param mode	the mode
+   * @throws IOException	if reading/writing fails
+   */
+  public void addFile(String path, File file, int mode) throws IOException {
+    long	size;
+    long	total;
+    byte[]	buffer;
+    int		read;
+
+    size = file.length();
+    writeEntryHeader(path, size, mode, '0');
+    buffer = new byte[65536];
+    total  = 0;
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      while ((total < size) && ((read = in.read(buffer, 0, (int) Math.min(buffer.length, size - total))) != -1)) {
+	write(buffer, 0, read);
+	total += read;
+      }
+    }
+    if (total != size)
+      throw new IOException("File changed while adding to archive: " + file);
+    pad(size);
+  }
+
+  /**
+   * Writes the end-of-archive marker (two empty blocks) and flushes the output.
+   *
+   * @throws IOException	if writing fails
+   */
+  public void finish() throws IOException {
+    write(new byte[BLOCK * 2], 0, BLOCK * 2);
+    m_Output.flush();
+  }
+}
@@ -0,0 +1,498 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * VariantMatrix.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generates several variants of the image for the same workflow (e.g.,
+ * different base images, JVM option sets or docker instructions), each in
+ * its own sub-directory of the output directory. The libraries get resolved
+ * once by the first variant and staged (linked, if possible) into the other
+ * variants, like workflows sharing libraries in {@link Batch} mode.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class VariantMatrix {
+
+  /** the summary file. */
+  public final static String SUMMARY = "variants.json";
+
+  /**
+   * Container for a single variant.
+   */
+  public static class Variant {
+
+    /** the name (= sub-directory). */
+    protected String m_Name;
+
+    /** the base image. */
+    protected String m_BaseImage;
+
+    /** the JVM options. */
+    protected List<String> m_Jvm;
+
+    /** the docker instructions, can be null. */
+    protected File m_Instructions;
+
+    /** the configured generator. */
+    protected Generator m_Generator;
+
+    /** the result of the generator. */
+    protected GeneratorResult m_Result;
+
+    /** the time in msec for resolving or sharing the libraries. */
+    protected long m_ResolveTime;
+
+    /** the time in msec for the remaining phases. */
+    protected long m_GenerateTime;
+
+    /** the error, null if successful. */
+    protected String m_Error;
+
+    /**
+     * Initializes the variant.
+     *
+     * @param name		the name, used as sub-directory
+     * @param baseImage		the base image
+     * @param jvm		the JVM options, can be null
+     * @param instructions	the docker instructions, can be null
+     * @param generator		the configured generator
+     */
+    public Variant(String name, String baseImage, List<String> jvm, File instructions, Generator generator) {
+      m_Name         = name;
+      m_BaseImage    = baseImage;
+      m_Jvm          = (jvm == null) ? new ArrayList<>() : new ArrayList<>(jvm);
+      m_Instructions = instructions;
+      m_Generator    = generator;
+    }
+
+    /**
+     * Returns the name.
+     *
+     * @return		the name
+     */
+    public String getName() {
+      return m_Name;
+    }
+
+    /**
+     * Returns the base image.
+     *
+     * @return		the image
+     */
+    public String getBaseImage() {
+      return m_BaseImage;
+    }
+
+    /**
+     * Returns the JVM options.
+     *
+     * @return		the options
+     */
+    public List<String> getJvm() {
+      return m_Jvm;
+    }
+
+    /**
+     * Returns the docker instructions.
+     *
+     * @return		the file, null if none
+     */
+    public File getInstructions() {
+      return m_Instructions;
+    }
+
+    /**
+     * Returns the configured generator.
+     *
+     * @return		the generator
+     */
+    public Generator getGenerator() {
+      return m_Generator;
+    }
+
+    /**
+     * Returns the result of the generator.
+     *
+     * @return		the result, null if not run
+     */
+    public GeneratorResult getResult() {
+      return m_Result;
+    }
+
+    /**
+     * Returns the time for resolving or sharing the libraries.
+     *
+     * @return		the time in msec
+     */
+    public long getResolveTime() {
+      return m_ResolveTime;
+    }
+
+    /**
+     * Returns the time for the remaining phases.
+     *
+     * @return		the time in msec
+     */
+    public long getGenerateTime() {
+      return m_GenerateTime;
+    }
+
+    /**
+     * Returns the error.
+     *
+     * @return		the error, null if successful
+     */
+    public String getError() {
+      return m_Error;
+    }
+
+    /**
+     * Returns the summary of the variant.
+     *
+     * @return		the summary
+     */
+    public Map<String,Object> toMap() {
+      Map<String,Object>	result;
+      FileStager		stager;
+
+      result = new LinkedHashMap<>();
+      result.put("name", m_Name);
+      result.put("output_dir", m_Generator.getConfig().getOutputDir().getAbsolutePath());
+      result.put("base_image", m_BaseImage);
+      result.put("jvm", new ArrayList<Object>(m_Jvm));
+      if (m_Instructions != null)
+	result.put("instructions", m_Instructions.getAbsolutePath());
+      result.put("resolve_ms", m_ResolveTime);
+      result.put("generate_ms", m_GenerateTime);
+      if ((m_Result != null) && (m_Result.getStager() != null)) {
+	stager = m_Result.getStager();
+	result.put("files_linked", stager.getLinked());
+	result.put("files_cloned", stager.getCloned());
+	result.put("files_copied", stager.getCopied());
+      }
+      if ((m_Result != null) && (m_Result.getDockerFile() != null))
+	result.put("dockerfile", m_Result.getDockerFile().getAbsolutePath());
+      if ((m_Result != null) && (m_Result.getMetrics() != null)) {
+	for (Metrics.Phase phase : m_Result.getMetrics().getPhases()) {
+	  if (phase.getName().equals("context")) {
+	    result.put("context_files", phase.getValues().get("files"));
+	    result.put("context_bytes", phase.getValues().get("bytes"));
+	  }
+	}
+      }
+      result.put("status", (m_Error == null) ? "OK" : "FAILED");
+      if (m_Error != null)
+	result.put("error", m_Error);
+
+      return result;
+    }
+  }
+
+  /** the output directory with the variants. */
+  protected File m_OutputDir;
+
+  /** the variants. */
+  protected List<Variant> m_Variants;
+
+  /** for logging. */
+  protected Logger m_Logger;
+
+  /**
+   * Initializes the matrix.
+   *
+   * @param outputDir	the output directory with the sub-directories of the variants
+   */
+  public VariantMatrix(File outputDir) {
+    m_OutputDir = outputDir;
+    m_Variants  = new ArrayList<>();
+  }
+
+  /**
+   * Returns the logger instance to use.
+   *
+   * @return		the logger
+   */
+  protected Logger getLogger() {
+    if (m_Logger == null)
+      m_Logger = Logger.getLogger(getClass().getName());
+    return m_Logger;
+  }
+
+  /**
+   * Generates a name for the variant, based on the dimensions that have more
+   * than one value, e.g., "openjdk_11-jdk-slim-jvm2".
+   *
+   * @param baseImage		the base image, null if the same for all variants
+   * @param jvm			the index of the JVM option set (0-based), -1 if the same for all variants
+   * @param instructions	the docker instructions, null if the same for all variants
+   * @return			the name
+   */
+  public static String createName(String baseImage, int jvm, File instructions) {
+    List<String>	parts;
+    String		name;
+
+    parts = new ArrayList<>();
+    if (baseImage != null)
+      parts.add(baseImage.replaceAll("[^A-Za-z0-9._-]", "_"));
+    if (jvm > -1)
+      parts.add("jvm" + (jvm + 1));
+    if (instructions != null) {
+      name = instructions.getName();
+      if (name.contains("."))
+	name = name.substring(0, name.lastIndexOf('.'));
+      parts.add(name.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+    if (parts.isEmpty())
+      parts.add("default");
+
+    return String.join("-", parts);
+  }
+
+  /**
+   * Returns the sub-directory for the variant, appending a number if the name
+   * is already taken.
+   *
+   * @param name	the name of the variant
+   * @return		the unique name
+   */
+  public String uniqueName(String name) {
+    String	result;
+    boolean	taken;
+    int		i;
+
+    result = name;
+    i      = 1;
+    do {
+      taken = false;
+      for (Variant variant : m_Variants) {
+	if (variant.getName().equals(result)) {
+	  taken = true;
+	  result = name + "-" + (++i);
+	  break;
+	}
+      }
+    }
+    while (taken);
+
+    return result;
+  }
+
+  /**
+   * Adds the variant.
+   *
+   * @param variant	the variant to add
+   * @return		itself
+   */
+  public VariantMatrix add(Variant variant) {
+    m_Variants.add(variant);
+    return this;
+  }
+
+  /**
+   * Returns the variants.
+   *
+   * @return		the variants
+   */
+  public List<Variant> getVariants() {
+    return m_Variants;
+  }
+
+  /**
+   * Returns the output directory with the variants.
+   *
+   * @return		the directory
+   */
+  public File getOutputDir() {
+    return m_OutputDir;
+  }
+
+  /**
+   * Returns the summary file.
+   *
+   * @return		the file
+   */
+  public File getSummaryFile() {
+    return new File(m_OutputDir, SUMMARY);
+  }
+
+  /**
+   * Resolves the libraries once with the first variant and shares them with
+   * the other variants.
+   */
+  protected void resolve() {
+    Variant	leader;
+    Variant	variant;
+    String	msg;
+    long	start;
+    int		i;
+
+    leader = m_Variants.get(0);
+    start  = System.currentTimeMillis();
+    leader.m_Result      = leader.getGenerator().resolveLibraries();
+    leader.m_ResolveTime = System.currentTimeMillis() - start;
+    leader.m_Error       = leader.m_Result.getError();
+    msg                  = leader.m_Error;
+    for (i = 1; i < m_Variants.size(); i++) {
+      variant = m_Variants.get(i);
+      if (msg != null) {
+	variant.m_Error = "Library resolution failed for variant " + leader.getName() + ": " + msg;
+	continue;
+      }
+      start = System.currentTimeMillis();
+      variant.m_Result      = variant.getGenerator().resolveLibraries(leader.getGenerator().getConfig().getOutputDir());
+      variant.m_ResolveTime = System.currentTimeMillis() - start;
+      variant.m_Error       = variant.m_Result.getError();
+    }
+  }
+
+  /**
+   * Performs the remaining phases for the variant.
+   *
+   * @param variant	the variant to generate
+   */
+  protected void generate(Variant variant) {
+    long	start;
+
+    if (variant.getError() != null)
+      return;
+    start = System.currentTimeMillis();
+    variant.m_Result       = variant.getGenerator().generate(variant.getResult());
+    variant.m_GenerateTime = System.currentTimeMillis() - start;
+    variant.m_Error        = variant.m_Result.getError();
+    for (String msg : variant.m_Result.getMessages())
+      getLogger().info("Variant " + variant.getName() + ": " + msg);
+    for (String msg : variant.m_Result.getWarnings())
+      getLogger().warning("Variant " + variant.getName() + ": " + msg);
+  }
+
+  /**
+   * Returns the summary of the variants.
+   *
+   * @return		the summary
+   */
+  public Map<String,Object> toMap() {
+    Map<String,Object>	result;
+    List<Object>	variants;
+    int			failed;
+
+    variants = new ArrayList<>();
+    failed   = 0;
+    for (Variant variant : m_Variants) {
+      variants.add(variant.toMap());
+      if (variant.getError() != null)
+	failed++;
+    }
+    result = new LinkedHashMap<>();
+    result.put("variants", variants);
+    result.put("failed", failed);
+
+    return result;
+  }
+
+  /**
+   * Writes the summary as JSON to the output directory.
+   *
+   * @return		null if successful, otherwise error message
+   */
+  public String writeSummary() {
+    try {
+      Files.write(getSummaryFile().toPath(), (JsonUtils.toJson(toMap()) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+    catch (Exception e) {
+      getLogger().log(Level.SEVERE, "Failed to write summary: " + getSummaryFile(), e);
+      return "Failed to write summary: " + getSummaryFile();
+    }
+
+    return null;
+  }
+
+  /**
+   * Outputs a summary of what each variant produced.
+   */
+  public void printSummary() {
+    FileStager	stager;
+
+    System.out.println();
+    System.out.println("Variants:");
+    for (Variant variant : m_Variants) {
+      System.out.println(variant.getName());
+      System.out.println("  output:       " + variant.getGenerator().getConfig().getOutputDir());
+      System.out.println("  base image:   " + variant.getBaseImage());
+      System.out.println("  jvm:          " + String.join(" ", variant.getJvm()));
+      if (variant.getInstructions() != null)
+	System.out.println("  instructions: " + variant.getInstructions());
+      stager = (variant.getResult() == null) ? null : variant.getResult().getStager();
+      if ((stager != null) && (variant != m_Variants.get(0)))
+	System.out.println("  libs:         " + variant.getResolveTime() + "ms (shared: " + stager.getLinked() + " linked, " + stager.getCloned() + " cloned, " + stager.getCopied() + " copied)");
+      else
+	System.out.println("  libs:         " + variant.getResolveTime() + "ms");
+      System.out.println("  generate:     " + variant.getGenerateTime() + "ms");
+      if (variant.getError() == null)
+	System.out.println("  status:       OK");
+      else
+	System.out.println("  status:       FAILED - " + variant.getError());
+    }
+    System.out.println();
+    System.out.println("Summary: " + getSummaryFile());
+    System.out.println();
+  }
+
+  /**
+   * Generates the variants.
+   *
+   * @return		null if successful, otherwise error message
+   */
+  public String execute() {
+    String	msg;
+    int		failed;
+
+    if (m_Variants.isEmpty())
+      return "No variants to generate!";
+    if (!m_OutputDir.exists() && !m_OutputDir.mkdirs())
+      return "Failed to create output directory: " + m_OutputDir;
+
+    resolve();
+    for (Variant variant : m_Variants)
+      generate(variant);
+    if ((msg = writeSummary()) != null)
+      return msg;
+
+    failed = 0;
+    for (Variant variant : m_Variants) {
+      if (variant.getError() != null)
+	failed++;
+    }
+    if (failed > 0)
+      return "Failed to generate " + failed + " of " + m_Variants.size() + " variant(s)!";
+
+    return null;
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * WorkerLauncher.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates the entrypoint script that runs several instances (workers) of
+ * the workflow as supervised processes within the container. The number of
+ * workers comes from the WORKERS environment variable, otherwise from the
+ * default used at generation time, with 0 using the CPU quota of the
+ * container (cgroup v1/v2, or the number of processors if unlimited).
+ * <br>
+ * Each worker gets its own ADAMS home directory (placeholders with its own
+ * TMP, plus WORKER and WORKERS) and temp directory. The files in the INPUT
+ * directory get moved into per-worker inboxes (hidden sub-directories of
+ * INPUT, i.e., on the same file system), always the one with the fewest
+ * pending files, and each worker polls only its own inbox. Workers that fail
+ * get restarted, on shutdown the unprocessed files get moved back into
+ * INPUT. The number of processed files and throughput per worker get
+ * reported every REPORT_INTERVAL seconds. With the metrics endpoint enabled,
+ * worker N serves it on the port + N - 1.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class WorkerLauncher {
+
+  /** the name of the script. */
+  public final static String SCRIPT = "launcher.sh";
+
+  /** the home directory of the workflow in the image. */
+  public final static String HOME = "/adamsflow2docker";
+
+  /** the default interval in seconds for reporting the throughput. */
+  public final static int DEFAULT_REPORT_INTERVAL = 60;
+
+  /**
+   * Generates the shell function "cpus" that outputs the CPU quota of the
+   * container (rounded up), otherwise the number of processors.
+   *
+   * @return		the lines of the function
+   */
+  public static List<String> generateCpus() {
+    List<String>	result;
+
+    result = new ArrayList<>();
+    result.add("# the CPU quota of the container, otherwise the number of processors");
+    result.add("cpus() {");
+    result.add("  if [ -f /sys/fs/cgroup/cpu.max ]; then");
+    result.add("    read QUOTA PERIOD < /sys/fs/cgroup/cpu.max");
+    result.add("    if [ \"$QUOTA\" != \"max\" ]; then echo $(( (QUOTA + PERIOD - 1) / PERIOD )); return; fi");
+    result.add("  elif [ -f /sys/fs/cgroup/cpu/cpu.cfs_quota_us ]; then");
+    result.add("    QUOTA=`cat /sys/fs/cgroup/cpu/cpu.cfs_quota_us`");
+    result.add("    PERIOD=`cat /sys/fs/cgroup/cpu/cpu.cfs_period_us`");
+    result.add("    if [ \"$QUOTA\" -gt 0 ]; then echo $(( (QUOTA + PERIOD - 1) / PERIOD )); return; fi");
+    result.add("  fi");
+    result.add("  nproc");
+    result.add("}");
+
+    return result;
+  }
+
+  /**
+   * Generates the script.
+   *
+   * @param classpath	the classpath to use
+   * @param jvm		the JVM options, can be null
+   * @param runner	the main class and its options for running the workflow (without home directory)
+   * @param workers	the default number of workers, 0 for CPU quota
+   * @param trigger	whether to wrap the workers with the event-driven trigger, see {@link EventTrigger}
+   * @param metricsPort	the port of the metrics endpoint of the first worker, 0 if disabled, see {@link MetricsAgent}
+   * @return		the lines of the script
+   */
+  public static List<String> generateScript(String classpath, List<String> jvm, List<String> runner, int workers, boolean trigger, int metricsPort) {
+    List<String>	result;
+
+    if (jvm == null)
+      jvm = new ArrayList<>();
+
+    result = new ArrayList<>();
+    result.add("#!/bin/sh");
+    result.add("# Runs several instances of the workflow as supervised processes, partitioning the INPUT directory.");
+    result.add("");
+    result.add("CP=" + AppCDS.quote(classpath));
+    result.add("JVM=" + AppCDS.quote(AppCDS.quote(jvm)));
+    result.add("RUNNER=" + AppCDS.quote(AppCDS.quote(runner)));
+    result.add("HOME_DIR=" + HOME);
+    result.add("WRAPPER=" + (trigger ? AppCDS.quote("sh " + HOME + "/" + EventTrigger.SCRIPT) : "\"\""));
+    result.add("METRICS_PORT=" + metricsPort);
+    result.add("WORK=${WORK_DIR:-/tmp/adamsflow2docker-workers}");
+    result.add("POLL=${POLL_INTERVAL:-1}");
+    result.add("REPORT=${REPORT_INTERVAL:-" + DEFAULT_REPORT_INTERVAL + "}");
+    result.add("");
+    result.addAll(generateCpus());
+    result.add("");
+    result.add("WORKERS=${WORKERS:-" + workers + "}");
+    result.add("if [ \"$WORKERS\" -le 0 ]; then WORKERS=`cpus`; fi");
+    result.add("# share the memory between the JVMs, unless specified explicitly");
+    result.add("case \"$JVM\" in");
+    result.add("  *-Xmx*|*MaxRAMPercentage*) HEAP=\"\" ;;");
+    result.add("  *) PCT=$(( 75 / WORKERS )); [ $PCT -ge 1 ] || PCT=1; HEAP=\"-XX:MaxRAMPercentage=$PCT\" ;;");
+    result.add("esac");
+    result.add("if [ -n \"$INPUT\" ] && [ -d \"$INPUT\" ]; then INPUT_DIR=\"${INPUT%/}\"; else INPUT_DIR=\"\"; fi");
+    result.add("echo \"[launcher] starting $WORKERS worker(s)\"");
+    result.add("");
+    result.add("# sets up the home/temp directory of the worker and runs it, restarting it on failure");
+    result.add("worker() {");
+    result.add("  W=\"$WORK/worker-$1\"");
+    result.add("  mkdir -p \"$W/home\" \"$W/tmp\"");
+    result.add("  for F in \"$HOME_DIR\"/*; do");
+    result.add("    case `basename \"$F\"` in Placeholders.props) ;; *) ln -sf \"$F\" \"$W/home/\" ;; esac");
+    result.add("  done");
+    result.add("  grep -v '^TMP=' \"$HOME_DIR/Placeholders.props\" > \"$W/home/Placeholders.props\"");
+    result.add("  echo \"TMP=$W/tmp\" >> \"$W/home/Placeholders.props\"");
+    result.add("  echo \"WORKER=$1\" >> \"$W/home/Placeholders.props\"");
+    result.add("  echo \"WORKERS=$WORKERS\" >> \"$W/home/Placeholders.props\"");
+    result.add("  export WORKER=\"$1\"");
+    result.add("  if [ -n \"$INPUT_DIR\" ]; then export INPUT=\"$INPUT_DIR/.worker-$1/\"; fi");
+    result.add("  export TRIGGER=\"$W/trigger.fifo\"");
+    result.add("  if [ $METRICS_PORT -gt 0 ]; then AGENT=\"" + MetricsAgent.getAgentOption("$(( METRICS_PORT + $1 - 1 ))") + "\"; else AGENT=\"\"; fi");
+    result.add("  while true; do");
+    result.add("    eval exec $WRAPPER java -Djava.io.tmpdir=\"'$W/tmp'\" $HEAP -cp \"'$CP'\" $JVM $AGENT $RUNNER -home \"'$W/home'\" &");
+    result.add("    echo $! > \"$W/pid\"");
+    result.add("    wait $!");
+    result.add("    CODE=$?");
+    result.add("    if [ $CODE -eq 0 ] || [ -f \"$WORK/stop\" ]; then break; fi");
+    result.add("    echo \"[launcher] worker $1 exited with code $CODE, restarting\"");
+    result.add("    sleep 1");
+    result.add("  done");
+    result.add("  rm -f \"$W/pid\"");
+    result.add("}");
+    result.add("");
+    result.add("# stops the workers and moves unprocessed files back into the input directory");
+    result.add("stop() {");
+    result.add("  touch \"$WORK/stop\"");
+    result.add("  for P in \"$WORK\"/worker-*/pid; do [ -f \"$P\" ] && kill `cat \"$P\"` 2> /dev/null; done");
+    result.add("  wait");
+    result.add("  report");
+    result.add("  if [ -n \"$INPUT_DIR\" ]; then");
+    result.add("    for I in `seq 1 $WORKERS`; do mv \"$INPUT_DIR/.worker-$I\"/* \"$INPUT_DIR/\" 2> /dev/null; rmdir \"$INPUT_DIR/.worker-$I\" 2> /dev/null; done");
+    result.add("  fi");
+    result.add("  exit 0");
+    result.add("}");
+    result.add("");
+    result.add("# outputs the processed files and the throughput per worker");
+    result.add("report() {");
+    result.add("  [ -n \"$INPUT_DIR\" ] || return");
+    result.add("  ELAPSED=$(( `date +%s` - START ))");
+    result.add("  [ $ELAPSED -gt 0 ] || ELAPSED=1");
+    result.add("  for I in `seq 1 $WORKERS`; do");
+    result.add("    eval SENT=\\$SENT_$I");
+    result.add("    DONE=$(( SENT - `ls -A \"$INPUT_DIR/.worker-$I\" 2> /dev/null | wc -l` ))");
+    result.add("    echo \"[launcher] worker $I: $DONE file(s) processed, $(( DONE * 60 / ELAPSED ))/min\"");
+    result.add("  done");
+    result.add("}");
+    result.add("");
+    result.add("mkdir -p \"$WORK\"");
+    result.add("rm -rf \"$WORK\"/worker-* \"$WORK/stop\"");
+    result.add("START=`date +%s`");
+    result.add("for I in `seq 1 $WORKERS`; do");
+    result.add("  eval SENT_$I=0");
+    result.add("  [ -n \"$INPUT_DIR\" ] && mkdir -p \"$INPUT_DIR/.worker-$I\"");
+    result.add("  worker $I &");
+    result.add("  PIDS=\"$PIDS $!\"");
+    result.add("done");
+    result.add("trap stop TERM INT");
+    result.add("");
+    result.add("# dispatches the input files that haven't changed for POLL seconds to the worker with the fewest pending files");
+    result.add("LAST=$START");
+    result.add("alive() {");
+    result.add("  for P in $PIDS; do kill -0 $P 2> /dev/null && return 0; done");
+    result.add("  return 1");
+    result.add("}");
+    result.add("while alive; do");
+    result.add("  if [ -n \"$INPUT_DIR\" ]; then");
+    result.add("    NOW=`date +%s`");
+    result.add("    for F in \"$INPUT_DIR\"/*; do");
+    result.add("      [ -f \"$F\" ] || continue");
+    result.add("      # skip files that may still be being written");
+    result.add("      [ $(( NOW - `stat -c %Y \"$F\" 2> /dev/null || echo $NOW` )) -ge $POLL ] || continue");
+    result.add("      BEST=1");
+    result.add("      MIN=-1");
+    result.add("      for I in `seq 1 $WORKERS`; do");
+    result.add("        N=`ls -A \"$INPUT_DIR/.worker-$I\" | wc -l`");
+    result.add("        if [ $MIN -lt 0 ] || [ $N -lt $MIN ]; then BEST=$I; MIN=$N; fi");
+    result.add("      done");
+    result.add("      mv \"$F\" \"$INPUT_DIR/.worker-$BEST/\" && eval \"SENT_$BEST=\\$(( SENT_$BEST + 1 ))\"");
+    result.add("    done");
+    result.add("  fi");
+    result.add("  if [ $(( `date +%s` - LAST )) -ge $REPORT ]; then report; LAST=`date +%s`; fi");
+    result.add("  sleep $POLL");
+    result.add("done");
+    result.add("stop");
+
+    return result;
+  }
+}
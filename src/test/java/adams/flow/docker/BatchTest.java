@@ -0,0 +1,163 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * BatchTest.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the splitting of the manifest lines of {@link Batch}.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class BatchTest {
+
+  /** for the manifests and flows. */
+  @Rule
+  public TemporaryFolder m_Folder = new TemporaryFolder();
+
+  /**
+   * Tests splitting on whitespace.
+   */
+  @Test
+  public void testSplitPlain() {
+    assertEquals(Arrays.asList("-M", "adams-weka", "-V", "20.1.1"), Batch.splitOptions("  -M adams-weka\t-V   20.1.1 "));
+    assertEquals(new ArrayList<String>(), Batch.splitOptions("   "));
+  }
+
+  /**
+   * Tests single and double quotes.
+   */
+  @Test
+  public void testSplitQuotes() {
+    assertEquals(Arrays.asList("-i", "/some where/flow.flow", "-v", "-Dx=a b"), Batch.splitOptions("-i \"/some where/flow.flow\" -v '-Dx=a b'"));
+    // quotes inside the other quotes are literal
+    assertEquals(Arrays.asList("it's", "say \"hi\""), Batch.splitOptions("\"it's\" 'say \"hi\"'"));
+    // empty quotes result in an empty option
+    assertEquals(Arrays.asList("-x", "", "-y"), Batch.splitOptions("-x \"\" -y"));
+    // quotes in the middle of an option
+    assertEquals(Arrays.asList("--name=a b"), Batch.splitOptions("--name=\"a b\""));
+  }
+
+  /**
+   * Tests backslash escapes.
+   */
+  @Test
+  public void testSplitEscapes() {
+    assertEquals(Arrays.asList("a b", "c"), Batch.splitOptions("a\\ b c"));
+    assertEquals(Arrays.asList("say \"hi\""), Batch.splitOptions("\"say \\\"hi\\\"\""));
+    // no escapes within single quotes
+    assertEquals(Arrays.asList("C:\\temp"), Batch.splitOptions("'C:\\temp'"));
+    // trailing backslash is kept
+    assertEquals(Arrays.asList("a\\"), Batch.splitOptions("a\\"));
+  }
+
+  /**
+   * Writes the manifest and reads it.
+   *
+   * @param entries	the list to add the entries to
+   * @param lines	the lines of the manifest
+   * @return		the result of reading the manifest
+   * @throws Exception	if writing fails
+   */
+  protected String readManifest(List<Batch.Entry> entries, String... lines) throws Exception {
+    File	manifest;
+
+    manifest = m_Folder.newFile("manifest.txt");
+    Files.write(manifest.toPath(), String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+    return new Batch().manifest(manifest).readManifest(entries);
+  }
+
+  /**
+   * Tests continuation lines, comments and empty lines in the manifest.
+   *
+   * @throws Exception	if writing the manifest fails
+   */
+  @Test
+  public void testManifestContinuation() throws Exception {
+    List<Batch.Entry>	entries;
+    File		flow;
+    File		out1;
+    File		out2;
+
+    flow    = m_Folder.newFile("flow 1.flow");
+    out1    = new File(m_Folder.getRoot(), "out1");
+    out2    = new File(m_Folder.getRoot(), "out2");
+    entries = new ArrayList<>();
+    assertNull(readManifest(entries,
+      "# comment",
+      "",
+      "-M adams-weka -V 20.1.1 -b openjdk:11 \\",
+      "  -i '" + flow + "' \\",
+      "  -o " + out1,
+      "-M adams-weka -V 20.1.1 -b openjdk:11 -i \"" + flow + "\" -o " + out2 + " -Y 3"));
+    assertEquals(2, entries.size());
+    assertEquals(3, entries.get(0).m_Line);
+    assertEquals(6, entries.get(1).m_Line);
+    assertEquals(flow.getAbsoluteFile(), entries.get(0).m_Generator.getConfig().getInput().getAbsoluteFile());
+    assertEquals(out1.getAbsoluteFile(), entries.get(0).m_Generator.getConfig().getOutputDir().getAbsoluteFile());
+    // phases run sequentially unless specified
+    assertEquals(1, entries.get(0).m_Generator.getConfig().getPhaseThreads());
+    assertEquals(3, entries.get(1).m_Generator.getConfig().getPhaseThreads());
+  }
+
+  /**
+   * Tests that lines with unsupported options get rejected.
+   *
+   * @throws Exception	if writing the manifest fails
+   */
+  @Test
+  public void testManifestRejected() throws Exception {
+    List<Batch.Entry>	entries;
+    File		flow;
+    String		msg;
+
+    flow    = m_Folder.newFile("flow.flow");
+    entries = new ArrayList<>();
+    msg     = readManifest(entries,
+      "-M adams-weka -V 20.1.1 -b openjdk:11 -i " + flow + " -o " + new File(m_Folder.getRoot(), "out") + " -A -");
+    assertNotNull(msg);
+    assertTrue(msg, msg.contains("line #1"));
+
+    entries = new ArrayList<>();
+    m_Folder.delete();
+    m_Folder.create();
+    flow = m_Folder.newFile("flow.flow");
+    msg  = readManifest(entries,
+      "-M adams-weka -V 20.1.1 -b openjdk:11 -i " + flow + " -o " + new File(m_Folder.getRoot(), "out"),
+      "-M adams-weka -V 20.1.1 -b openjdk:11 -i " + flow + " -o " + new File(m_Folder.getRoot(), "out"));
+    assertNotNull(msg);
+    assertTrue(msg, msg.contains("already used by line #1"));
+  }
+}
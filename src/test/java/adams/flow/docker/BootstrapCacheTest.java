@@ -0,0 +1,205 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * BootstrapCacheTest.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the keys and the eviction of {@link BootstrapCache}.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class BootstrapCacheTest {
+
+  /** the size of the jars. */
+  public final static int JAR_SIZE = 10000;
+
+  /** for the cache and the jars. */
+  @Rule
+  public TemporaryFolder m_Folder = new TemporaryFolder();
+
+  /**
+   * Writes a file with the content.
+   *
+   * @param name	the name of the file
+   * @param content	the content
+   * @return		the file
+   * @throws Exception	if writing fails
+   */
+  protected File write(String name, byte[] content) throws Exception {
+    File	result;
+
+    result = new File(m_Folder.getRoot(), name);
+    result.getParentFile().mkdirs();
+    Files.write(result.toPath(), content);
+
+    return result;
+  }
+
+  /**
+   * Tests that the key depends on the parameters and the content of the
+   * files, but not on the location of the dependency files.
+   *
+   * @throws Exception	if writing/reading of files fails
+   */
+  @Test
+  public void testComputeKey() throws Exception {
+    String	key;
+    File	deps1;
+    File	deps2;
+    File	deps3;
+    File	jar1;
+    File	jar2;
+
+    deps1 = write("a/deps.txt", "g:a:1.0".getBytes());
+    deps2 = write("b/other.txt", "g:a:1.0".getBytes());
+    deps3 = write("c/deps.txt", "g:a:2.0".getBytes());
+    jar1  = write("jars1/x.jar", new byte[]{1, 2, 3});
+    jar2  = write("jars2/y.jar", new byte[]{1, 2, 3});
+
+    key = BootstrapCache.computeKey("adams-core", "20.1.1", null, null, null);
+    assertEquals(64, key.length());
+    assertEquals(key, BootstrapCache.computeKey("adams-core", "20.1.1", null, null, null));
+    assertEquals(key, BootstrapCache.computeKey("adams-core", "20.1.1", Collections.emptyList(), Collections.emptyList(), Collections.emptyList()));
+    assertNotEquals(key, BootstrapCache.computeKey("adams-weka", "20.1.1", null, null, null));
+    assertNotEquals(key, BootstrapCache.computeKey("adams-core", "20.1.2", null, null, null));
+    assertNotEquals(
+      BootstrapCache.computeKey("adams-core", "20.1.1", Arrays.asList("g:a:1", "g:b:1"), null, null),
+      BootstrapCache.computeKey("adams-core", "20.1.1", Arrays.asList("g:b:1", "g:a:1"), null, null));
+
+    // dependency files: content only
+    key = BootstrapCache.computeKey("adams-core", "20.1.1", null, Collections.singletonList(deps1), null);
+    assertEquals(key, BootstrapCache.computeKey("adams-core", "20.1.1", null, Collections.singletonList(deps2), null));
+    assertNotEquals(key, BootstrapCache.computeKey("adams-core", "20.1.1", null, Collections.singletonList(deps3), null));
+
+    // external jars: name and content, directories get expanded
+    key = BootstrapCache.computeKey("adams-core", "20.1.1", null, null, Collections.singletonList(jar1));
+    assertEquals(key, BootstrapCache.computeKey("adams-core", "20.1.1", null, null, Collections.singletonList(jar1.getParentFile())));
+    assertNotEquals(key, BootstrapCache.computeKey("adams-core", "20.1.1", null, null, Collections.singletonList(jar2)));
+    write("jars1/x.jar", new byte[]{3, 2, 1});
+    assertNotEquals(key, BootstrapCache.computeKey("adams-core", "20.1.1", null, null, Collections.singletonList(jar1)));
+  }
+
+  /**
+   * Stores an entry with a single jar and sets its last used timestamp.
+   *
+   * @param cache	the cache to store the entry in
+   * @param key		the key of the entry
+   * @param lastUsed	the last used timestamp (msec)
+   * @throws Exception	if storing fails
+   */
+  protected void store(BootstrapCache cache, String key, long lastUsed) throws Exception {
+    File	libDir;
+
+    libDir = new File(m_Folder.getRoot(), "lib-" + key);
+    libDir.mkdirs();
+    Files.write(new File(libDir, key + ".jar").toPath(), new byte[JAR_SIZE]);
+    assertNull(cache.store(key, libDir));
+    assertTrue(cache.contains(key));
+    Files.setLastModifiedTime(new File(cache.getEntryDir(key), BootstrapCache.LAST_USED).toPath(), FileTime.fromMillis(lastUsed));
+  }
+
+  /**
+   * Tests that the least recently used entries get evicted first.
+   *
+   * @throws Exception	if storing fails
+   */
+  @Test
+  public void testEvictLeastRecentlyUsed() throws Exception {
+    File		cacheDir;
+    BootstrapCache	cache;
+
+    cacheDir = new File(m_Folder.getRoot(), "cache");
+    cache    = new BootstrapCache(cacheDir, 0);
+    store(cache, "b", 2000000000000L);
+    store(cache, "a", 1000000000000L);
+    store(cache, "c", 3000000000000L);
+    store(cache, "d", 4000000000000L);
+
+    // room for two entries
+    cache = new BootstrapCache(cacheDir, 2 * JAR_SIZE + JAR_SIZE / 2);
+    cache.evict(null);
+    assertFalse(cache.contains("a"));
+    assertFalse(cache.contains("b"));
+    assertFalse(cache.getEntryDir("a").exists());
+    assertTrue(cache.contains("c"));
+    assertTrue(cache.contains("d"));
+
+    // the entry to keep survives, even if the least recently used one
+    cache = new BootstrapCache(cacheDir, JAR_SIZE + JAR_SIZE / 2);
+    cache.evict("c");
+    assertTrue(cache.contains("c"));
+    assertFalse(cache.contains("d"));
+  }
+
+  /**
+   * Tests that locked entries do not get evicted.
+   *
+   * @throws Exception	if storing or locking fails
+   */
+  @Test
+  public void testEvictSkipsLocked() throws Exception {
+    File			cacheDir;
+    BootstrapCache		cache;
+    BootstrapCache.Lock		lock;
+
+    cacheDir = new File(m_Folder.getRoot(), "cache");
+    cache    = new BootstrapCache(cacheDir, 0);
+    store(cache, "a", 1000000000000L);
+    store(cache, "b", 2000000000000L);
+    store(cache, "c", 3000000000000L);
+
+    cache = new BootstrapCache(cacheDir, JAR_SIZE + JAR_SIZE / 2);
+    lock  = cache.lock("a");
+    assertNotNull(lock);
+    try {
+      // another lock on the same entry is not available
+      assertNull(cache.tryLock("a"));
+      cache.evict(null);
+    }
+    finally {
+      lock.release();
+    }
+    assertTrue(cache.contains("a"));
+    assertFalse(cache.contains("b"));
+    assertFalse(cache.contains("c"));
+
+    // available again after releasing
+    lock = cache.tryLock("a");
+    assertNotNull(lock);
+    lock.release();
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * LibraryDeduplicatorTest.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the version handling of {@link LibraryDeduplicator}.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class LibraryDeduplicatorTest {
+
+  /** for the jars. */
+  @Rule
+  public TemporaryFolder m_Folder = new TemporaryFolder();
+
+  /**
+   * Tests the comparison of versions.
+   */
+  @Test
+  public void testCompareVersions() {
+    assertEquals(0, LibraryDeduplicator.compareVersions("1.2.3", "1.2.3"));
+    assertTrue(LibraryDeduplicator.compareVersions("1.10", "1.9") > 0);
+    assertTrue(LibraryDeduplicator.compareVersions("1.9", "1.10") < 0);
+    assertTrue(LibraryDeduplicator.compareVersions("2.0.1", "2.0") > 0);
+    // additional zeros
+    assertEquals(0, LibraryDeduplicator.compareVersions("2.0", "2.0.0"));
+    assertEquals(0, LibraryDeduplicator.compareVersions("2.0.0", "2.0"));
+    // qualifiers are older than the release
+    assertTrue(LibraryDeduplicator.compareVersions("1.0-SNAPSHOT", "1.0") < 0);
+    assertTrue(LibraryDeduplicator.compareVersions("1.0", "1.0-SNAPSHOT") > 0);
+    assertTrue(LibraryDeduplicator.compareVersions("1.0.0-SNAPSHOT", "1.0") < 0);
+    assertTrue(LibraryDeduplicator.compareVersions("1.0-SNAPSHOT", "1.0.1") < 0);
+    assertTrue(LibraryDeduplicator.compareVersions("1.0-beta", "1.0-alpha") > 0);
+    assertTrue(LibraryDeduplicator.compareVersions("30.1-jre", "29.0-jre") > 0);
+  }
+
+  /**
+   * Tests splitting the file names into artifactId and version.
+   */
+  @Test
+  public void testSplitFilename() {
+    assertArrayEquals(new String[]{"commons-lang3", "3.12.0"}, LibraryDeduplicator.splitFilename("commons-lang3-3.12.0.jar"));
+    assertArrayEquals(new String[]{"adams-core", "20.1.1-SNAPSHOT"}, LibraryDeduplicator.splitFilename("adams-core-20.1.1-SNAPSHOT.jar"));
+    assertArrayEquals(new String[]{"log4j-1.2-api", "2.17.1"}, LibraryDeduplicator.splitFilename("log4j-1.2-api-2.17.1.jar"));
+    assertArrayEquals(new String[]{"guava", "30.1-jre"}, LibraryDeduplicator.splitFilename("guava-30.1-jre.jar"));
+    assertArrayEquals(new String[]{"groovy-all", "2.4.0-beta-3"}, LibraryDeduplicator.splitFilename("groovy-all-2.4.0-beta-3.jar"));
+    assertArrayEquals(new String[]{"foo", "1.0-20200101.123456-1"}, LibraryDeduplicator.splitFilename("foo-1.0-20200101.123456-1.jar"));
+    assertArrayEquals(new String[]{"jsr305", ""}, LibraryDeduplicator.splitFilename("jsr305.jar"));
+  }
+
+  /**
+   * Writes a jar with a single class and optional Maven properties.
+   *
+   * @param name	the file name of the jar
+   * @param pom		the content of the pom.properties, null for none
+   * @return		the jar
+   * @throws Exception	if writing fails
+   */
+  protected File writeJar(String name, String pom) throws Exception {
+    File	result;
+
+    result = new File(m_Folder.getRoot(), name);
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(result))) {
+      out.putNextEntry(new ZipEntry("a/A.class"));
+      out.write(new byte[]{(byte) 0xCA, (byte) 0xFE});
+      out.closeEntry();
+      if (pom != null) {
+	out.putNextEntry(new ZipEntry(LibraryDeduplicator.MAVEN_DIR + "g/a/pom.properties"));
+	out.write(pom.getBytes(StandardCharsets.UTF_8));
+	out.closeEntry();
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Tests that the Maven properties take precedence over the file name.
+   *
+   * @throws Exception	if writing the jars fails
+   */
+  @Test
+  public void testRead() throws Exception {
+    LibraryDeduplicator.JarInfo	info;
+
+    info = LibraryDeduplicator.read(writeJar("log4j-1.2-api-2.17.1.jar", null));
+    assertEquals("log4j-1.2-api", info.getArtifact());
+    assertEquals("2.17.1", info.getVersion());
+    assertEquals(1, info.m_Classes.size());
+
+    info = LibraryDeduplicator.read(writeJar("renamed.jar", "groupId=org.example\nartifactId=thing\nversion=1.2.3\n"));
+    assertEquals("org.example:thing", info.getArtifact());
+    assertEquals("1.2.3", info.getVersion());
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * PhaseGraphTest.java
+ * Copyright (C) 2020 University of Waikato, Hamilton, NZ
+ */
+
+package adams.flow.docker;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the execution of {@link PhaseGraph}, sequentially and concurrently.
+ *
+ * @author FracPete (fracpete at waikato dot ac dot nz)
+ */
+public class PhaseGraphTest {
+
+  /**
+   * Returns a phase that records its name and returns the error.
+   *
+   * @param name	the name of the phase
+   * @param error	the error to return, null if successful
+   * @param log		the list to record the name in
+   * @return		the phase
+   */
+  protected Supplier<String> phase(String name, String error, List<String> log) {
+    return () -> {
+      try {
+	Thread.sleep(10);
+      }
+      catch (InterruptedException e) {
+	// ignored
+      }
+      log.add(name);
+      return error;
+    };
+  }
+
+  /**
+   * Tests that the phases run after their dependencies.
+   */
+  @Test
+  public void testDependencyOrder() {
+    List<String>	log;
+    PhaseGraph		graph;
+
+    for (int threads : new int[]{1, 4}) {
+      log   = Collections.synchronizedList(new ArrayList<>());
+      graph = new PhaseGraph()
+	.add("a", phase("a", null, log))
+	.add("b", phase("b", null, log), "a")
+	.add("c", phase("c", null, log))
+	.add("d", phase("d", null, log), "b", "c");
+      assertNull(graph.execute(threads));
+      assertEquals(4, log.size());
+      assertTrue(log.indexOf("a") < log.indexOf("b"));
+      assertTrue(log.indexOf("b") < log.indexOf("d"));
+      assertTrue(log.indexOf("c") < log.indexOf("d"));
+      if (threads == 1)
+	assertEquals(Arrays.asList("a", "b", "c", "d"), log);
+    }
+  }
+
+  /**
+   * Tests that independent phases overlap.
+   *
+   * @throws Exception	if interrupted
+   */
+  @Test
+  public void testConcurrent() throws Exception {
+    CountDownLatch	latch;
+    PhaseGraph		graph;
+
+    // each phase waits for the other one, only succeeds if both run at the same time
+    latch = new CountDownLatch(2);
+    graph = new PhaseGraph()
+      .add("a", () -> {
+	latch.countDown();
+	try {
+	  return latch.await(10, TimeUnit.SECONDS) ? null : "a timed out";
+	}
+	catch (InterruptedException e) {
+	  return "a interrupted";
+	}
+      })
+      .add("b", () -> {
+	latch.countDown();
+	try {
+	  return latch.await(10, TimeUnit.SECONDS) ? null : "b timed out";
+	}
+	catch (InterruptedException e) {
+	  return "b interrupted";
+	}
+      });
+    assertNull(graph.execute(2));
+  }
+
+  /**
+   * Tests that phases get skipped after a failure and that the error is the
+   * same as when running sequentially.
+   */
+  @Test
+  public void testFailure() {
+    List<String>	log;
+    PhaseGraph		graph;
+    String		sequential;
+    String		concurrent;
+
+    log   = Collections.synchronizedList(new ArrayList<>());
+    graph = new PhaseGraph()
+      .add("a", phase("a", null, log))
+      .add("b", phase("b", "b failed", log), "a")
+      .add("c", phase("c", null, log), "b")
+      .add("d", phase("d", "d failed", log), "a");
+    sequential = graph.execute(1);
+    assertEquals("b failed", sequential);
+    // d comes after b in the order the phases got added
+    assertEquals(Arrays.asList("a", "b"), log);
+
+    log.clear();
+    concurrent = graph.execute(4);
+    assertEquals(sequential, concurrent);
+    assertFalse(log.contains("c"));
+  }
+
+  /**
+   * Tests that the error of the first failed phase in the order they got
+   * added is reported, even if a later phase fails first.
+   */
+  @Test
+  public void testFirstError() {
+    CountDownLatch	latch;
+    PhaseGraph		graph;
+
+    latch = new CountDownLatch(1);
+    graph = new PhaseGraph()
+      .add("a", () -> {
+	try {
+	  latch.await(10, TimeUnit.SECONDS);
+	}
+	catch (InterruptedException e) {
+	  // ignored
+	}
+	return "a failed";
+      })
+      .add("b", () -> {
+	latch.countDown();
+	return "b failed";
+      });
+    assertEquals("a failed", graph.execute(2));
+  }
+
+  /**
+   * Tests that exceptions of phases get rethrown.
+   */
+  @Test
+  public void testException() {
+    PhaseGraph		graph;
+
+    graph = new PhaseGraph()
+      .add("a", () -> {
+	throw new IllegalArgumentException("boom");
+      });
+    for (int threads : new int[]{1, 2}) {
+      try {
+	graph.execute(threads);
+	fail("Exception expected");
+      }
+      catch (IllegalArgumentException e) {
+	assertEquals("boom", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Tests that unknown and duplicate phases get rejected.
+   */
+  @Test
+  public void testAdd() {
+    PhaseGraph		graph;
+
+    graph = new PhaseGraph().add("a", () -> null);
+    try {
+      graph.add("a", () -> null);
+      fail("Duplicate phase accepted");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      graph.add("b", () -> null, "c");
+      fail("Unknown dependency accepted");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertEquals(Collections.singletonList("a"), graph.getPhases());
+  }
+}